@@ -41,8 +41,14 @@ import java.util.Vector;
 
 import javax.servlet.http.HttpServletRequest;
 
+import net.sf.webdav.carddav.AddressbookFilter;
+import net.sf.webdav.carddav.AddressbookHomes;
+import net.sf.webdav.carddav.CollectionTags;
 import net.sf.webdav.carddav.DavAddressBook;
 import net.sf.webdav.carddav.DavUser;
+import net.sf.webdav.carddav.IAddressbookQueryStore;
+import net.sf.webdav.carddav.VCard;
+import net.sf.webdav.exceptions.AccessDeniedException;
 import net.sf.webdav.exceptions.WebdavException;
 import net.sf.webdav.fromcatalina.XMLWriter;
 
@@ -52,12 +58,18 @@ import net.sf.webdav.fromcatalina.XMLWriter;
  * If using two different pieces of client software some fields will probably not be correctly 
  * synchronized because of non-standard fields in the v-cards. But it is fine as a proof of
  * concept.
+ * <p>
+ * The cards of "/addressbook" are kept directly in the root path. Every user also has a
+ * home "/addressbooks/USER/" with one or more address books in
+ * "rootpath/addressbooks/USER/BOOK/". Homes are loaded when they are first used and only
+ * the most recently used ones are kept in memory (see {@link #setMaxCachedHomes(int)}).
+ * An authenticated user can only access his own home.
  * 
  * @author Niko Berger
  * @license MIT
  *
  */
-public class CardDavFileStore implements IWebdavStore {
+public class CardDavFileStore implements IWebdavStore, IAddressbookQueryStore {
 	
     private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
             .getLogger(CardDavFileStore.class);
@@ -69,15 +81,25 @@ public class CardDavFileStore implements IWebdavStore {
     private static String ABOOK_BASE = "addressbook";
     
     private static String ABOOK_URL = "/" + ABOOK_BASE;
+
+    private static String HOMES_BASE = "addressbooks";
+
+    private static String HOMES_URL = "/" + HOMES_BASE;
+
+    private static String PRINCIPALS_URL = "/principals/users/";
+
+    private static String GETCTAG = "http://calendarserver.org/ns/:getctag";
     
     private File _root = null;
 
 	private DavExtensionConfig config;
 	
-	// root node: used to resolve everything
-	private ObjectTree root;
-	private DavUser user;
+	// the address book in the root path
 	private DavAddressBook abook;
+	// per user address books below HOMES_BASE, loaded on demand
+	private AddressbookHomes homes;
+	// change tags of the address books, bumped on every card write
+	private CollectionTags ctags;
 		
 	public CardDavFileStore(File root) {
         _root = root;
@@ -88,23 +110,31 @@ public class CardDavFileStore implements IWebdavStore {
 		config.setEtagFormat(DavExtensionConfig.ETAG_DEFAULT);
 		config.setSupportsReport(true);
 		config.addSupportedReportSet(
-				"urn:ietf:params:xml:ns:carddav:addressbook-muliget", 
+				"urn:ietf:params:xml:ns:carddav:addressbook-multiget", 
 				"urn:ietf:params:xml:ns:carddav:addressbook-query", 
 				"DAV::expand-property","DAV::principal-property-search","DAV::principal-search-property-set"
 				);
 		// TREE: [/dav/carddav]/addressbooks/USER/default/[addresses]
-		this.root = new ObjectTree("addressbooks", "");
-		this.user = new DavUser("GUEST", this.root);
-		abook = new DavAddressBook(ABOOK_ID, user);
+		abook = new DavAddressBook(ABOOK_ID, new DavUser("GUEST", HOMES_URL), _root);
+		abook.getIndex();
+		setMaxCachedHomes(1000);
+		ctags = new CollectionTags(new File(_root, ".ctags"));
+	}
+
+	/**
+	 * @param maxCachedHomes number of user homes kept in memory, default 1000
+	 */
+	public void setMaxCachedHomes(int maxCachedHomes) {
+		homes = new AddressbookHomes(new File(_root, HOMES_BASE), HOMES_URL, maxCachedHomes);
 	}
 
 	@Override
 	public void destroy() {
-		// not needed
+		ctags.flush();
 	}
 
 	@Override
-	public ITransaction begin(Principal principal) {
+	public ITransaction begin(final Principal principal) {
         LOG.trace("CardDavFileStore.begin()");
         if (!_root.exists()) {
             if (!_root.mkdirs()) {
@@ -113,7 +143,12 @@ public class CardDavFileStore implements IWebdavStore {
                         + " does not exist and could not be created");
             }
         }
-		return null;
+		return new ITransaction() {
+			@Override
+			public Principal getPrincipal() {
+				return principal;
+			}
+		};
 	}
 
 	@Override
@@ -124,8 +159,8 @@ public class CardDavFileStore implements IWebdavStore {
 
 	@Override
 	public void commit(ITransaction transaction) {
-        // do nothing
         LOG.trace("LocalFileSystemStore.commit()");
+        ctags.flush();
 	}
 
 	@Override
@@ -137,17 +172,29 @@ public class CardDavFileStore implements IWebdavStore {
 	@Override
 	public void createFolder(ITransaction transaction, String folderUri) {
         LOG.trace("LocalFileSystemStore.createFolder(" + folderUri + ")");
-		// not possible
+        CardUri target = resolve(transaction, folderUri);
+        // only new address books in a home
+        if (target.home != null && target.segments.length == 3 && target.book == null
+        		&& homes.createAddressBook(target.home, target.segments[2]) != null) {
+        	return;
+        }
         throw new WebdavException("cannot create folder: " + folderUri);
 	}
 
 	@Override
 	public void createResource(ITransaction transaction, String resourceUri) {
         LOG.trace("LocalFileSystemStore.createResource(" + resourceUri + ")");
-        File file = getFile(resourceUri);
+        CardUri target = resolve(transaction, resourceUri);
+        File file = getFile(target);
         try {
+            if (target.card != null)
+                file.getParentFile().mkdirs();
             if (!file.createNewFile())
                 throw new WebdavException("cannot create file: " + resourceUri);
+            if (target.card != null) {
+                target.book.getIndex().update(target.card);
+                ctags.bump(target.collection);
+            }
         } catch (IOException e) {
             LOG
                     .error("LocalFileSystemStore.createResource(" + resourceUri
@@ -160,7 +207,7 @@ public class CardDavFileStore implements IWebdavStore {
 	public InputStream getResourceContent(ITransaction transaction,
 			String resourceUri) {
 		LOG.trace("LocalFileSystemStore.getResourceContent(" + resourceUri + ")");
-		File file = getFile(resourceUri);
+		File file = getFile(resolve(transaction, resourceUri));
 
         InputStream in;
         try {
@@ -178,7 +225,8 @@ public class CardDavFileStore implements IWebdavStore {
 			String resourceUri, InputStream content, String contentType,
 			String characterEncoding) {
 		LOG.trace("LocalFileSystemStore.setResourceContent(" + resourceUri + ")");
-        File file = getFile(resourceUri);
+		CardUri target = resolve(transaction, resourceUri);
+        File file = getFile(target);
         try {
             OutputStream os = new BufferedOutputStream(new FileOutputStream(
                     file), BUF_SIZE);
@@ -201,6 +249,11 @@ public class CardDavFileStore implements IWebdavStore {
                     + ") failed");
             throw new WebdavException(e);
         }
+        if (target.card != null) {
+            target.book.getIndex().update(target.card);
+            ctags.bump(target.collection);
+        }
+
         long length = -1;
 
         try {
@@ -218,32 +271,30 @@ public class CardDavFileStore implements IWebdavStore {
 		LOG.trace("LocalFileSystemStore.getChildrenNames(" + folderUri + ")");
 		// special handling: we need a subcollection with the cards
 		if(folderUri.equals("/")) {
-			return new String[]{ABOOK_BASE};
+			return new String[]{ABOOK_BASE, HOMES_BASE};
 		}
 		
 		// propfind on principals is handled in a custom way
-		if(folderUri.startsWith("/principals/users/")) {
+		if(folderUri.startsWith(PRINCIPALS_URL)) {
 			return null;
 		}
 				
-		String[] parts = folderUri.split("/");
-		ObjectTree so = root.findByPath(parts);
-		if(so == abook) {
-	        File file = getFile(folderUri);
-	        String[] childrenNames = null;
-	        if (file.isDirectory()) {
-	            File[] children = file.listFiles();
-	            List<String> childList = new ArrayList<>();
-	            String name = null;
-	            for (int i = 0; i < children.length; i++) {
-	                name = children[i].getName();
-	                childList.add(name);
-	                LOG.trace("Child " + i + ": " + name);
-	            }
-	            childrenNames = new String[childList.size()];
-	            childrenNames = (String[]) childList.toArray(childrenNames);
-	        }
-	        return childrenNames;
+		CardUri target = resolve(transaction, folderUri);
+		if(target.book != null && target.card == null) {
+			List<String> names = target.book.getIndex().getNames();
+			return names.toArray(new String[names.size()]);
+		}
+		if(target.home != null && target.segments.length == 2) {
+			DavUser home = homes.getHome(target.home);
+			if(home == null)
+				return null;
+			List<String> names = home.getAddressBookNames();
+			return names.toArray(new String[names.size()]);
+		}
+		if(target.segments.length == 1 && target.segments[0].equals(HOMES_BASE)) {
+			// the homes are not listed, only your own
+			Principal principal = getPrincipal(transaction);
+			return new String[]{ principal == null ? "GUEST" : principal.getName() };
 		}
 		
 		return null;
@@ -255,7 +306,7 @@ public class CardDavFileStore implements IWebdavStore {
 	 * @return the normalized uri (without the prefix)
 	 */
 	private String normalize(String folderUri) {
-		if(folderUri.startsWith(ABOOK_URL)) {
+		if(folderUri.equals(ABOOK_URL) || folderUri.startsWith(ABOOK_URL + "/")) {
 			return folderUri.substring(ABOOK_URL.length());
 		}
 		return folderUri;
@@ -265,6 +316,84 @@ public class CardDavFileStore implements IWebdavStore {
 		return new File(_root, normalize(path));
 	}
 
+	private File getFile(CardUri target) {
+		if(target.card != null)
+			return new File(target.book.getFolder(), target.card);
+		if(target.book != null)
+			return target.book.getFolder();
+		return getFile(target.uri);
+	}
+
+	private static Principal getPrincipal(ITransaction transaction) {
+		return transaction == null ? null : transaction.getPrincipal();
+	}
+
+	/**
+	 * What an uri points to in the address book tree.
+	 */
+	private static final class CardUri {
+		String uri;
+		String[] segments;
+		// owner of the home the uri is in, null outside of the homes
+		String home;
+		DavAddressBook book;
+		// uri of the address book
+		String collection;
+		// file name if the uri is a card in the address book
+		String card;
+	}
+
+	/**
+	 * Splits the uri and looks up the address book it is in.
+	 * @throws AccessDeniedException if the uri is in the home of another user,
+	 * requests without a principal only get the GUEST home
+	 */
+	private CardUri resolve(ITransaction transaction, String uri) {
+		return resolve(transaction, uri, true);
+	}
+
+	/**
+	 * Looks up an uri the method executor already resolved with the
+	 * transaction of the request.
+	 */
+	private CardUri resolve(String uri) {
+		return resolve(null, uri, false);
+	}
+
+	private CardUri resolve(ITransaction transaction, String uri, boolean checkOwner) {
+		CardUri target = new CardUri();
+		target.uri = uri;
+		target.segments = DavPath.splitPath(uri);
+		int depth;
+		if(target.segments.length >= 1 && target.segments[0].equals(ABOOK_BASE)) {
+			target.book = abook;
+			depth = 1;
+		} else if(target.segments.length >= 2 && target.segments[0].equals(HOMES_BASE)) {
+			target.home = target.segments[1];
+			Principal principal = getPrincipal(transaction);
+			String user = principal == null ? "GUEST" : principal.getName();
+			if(checkOwner && !user.equals(target.home))
+				throw new AccessDeniedException(uri);
+			DavUser home = homes.getHome(target.home);
+			if(home != null && target.segments.length >= 3)
+				target.book = home.getAddressBook(target.segments[2]);
+			depth = 3;
+		} else {
+			return target;
+		}
+		if(target.book == null)
+			return target;
+		StringBuilder collection = new StringBuilder();
+		for(int i = 0; i < depth; i++)
+			collection.append('/').append(target.segments[i]);
+		target.collection = collection.toString();
+		if(target.segments.length == depth + 1 && !target.segments[depth].startsWith("."))
+			target.card = target.segments[depth];
+		else if(target.segments.length > depth)
+			target.book = null;
+		return target;
+	}
+
 	@Override
 	public long getResourceLength(ITransaction transaction, String path) {
 		LOG.trace("LocalFileSystemStore.getResourceLength(" + path + ")");
@@ -272,15 +401,22 @@ public class CardDavFileStore implements IWebdavStore {
 			return 1;
 		}
 
-        File file = getFile(path);
+        File file = getFile(resolve(transaction, path));
         return file.length();
 	}
 
 	@Override
 	public void removeObject(ITransaction transaction, String uri) {
-		File file = getFile(uri);
+		CardUri target = resolve(transaction, uri);
+		File file = getFile(target);
         boolean success = file.delete();
         LOG.trace("LocalFileSystemStore.removeObject(" + uri + ")=" + success);
+        if (target.card != null) {
+            target.book.getIndex().remove(target.card);
+            ctags.bump(target.collection);
+        } else if (success && target.book != null && target.book != abook) {
+            homes.removeAddressBook(target.home, target.book.getName());
+        }
         if (!success) {
             throw new WebdavException("cannot delete object: " + uri);
         }
@@ -300,7 +436,7 @@ public class CardDavFileStore implements IWebdavStore {
 		}
 		
 
-		if(uri.startsWith("/principals/users/")) {
+		if(uri.startsWith(PRINCIPALS_URL) || uri.equals(HOMES_URL) || uri.equals(HOMES_URL + "/")) {
 			so = new StoredObject();
             so.setFolder(true);
             so.setLastModified(new Date());
@@ -308,8 +444,28 @@ public class CardDavFileStore implements IWebdavStore {
             so.setResourceLength(1);
             return so;
 		}
+
+		CardUri target = resolve(transaction, uri);
+		if(target.home != null) {
+			// homes and their address books are in memory
+			if(target.segments.length == 2)
+				return homes.getHome(target.home);
+			if(target.card == null)
+				return target.book;
+		}
+
+		VCard card = target.card == null ? null : target.book.getIndex().get(target.card);
+		if(card != null) {
+            so = new StoredObject();
+            so.setFolder(false);
+            so.setLastModified(new Date(card.getLastModified()));
+            so.setCreationDate(new Date(card.getLastModified()));
+            so.setResourceLength(card.getLength());
+            so.setMimeType("text/x-vcard");
+            return so;
+		}
 		
-        File file = getFile(uri);
+        File file = getFile(target);
         if (file.exists()) {
             so = new StoredObject();
             so.setFolder(file.isDirectory());
@@ -351,6 +507,7 @@ public class CardDavFileStore implements IWebdavStore {
 	@Override
 	public void addNamespace(Map<String, String> namespaces) {
 		namespaces.put("urn:ietf:params:xml:ns:carddav", "card");
+		namespaces.put("http://calendarserver.org/ns/", "CS");
 	}
 
 	@Override
@@ -363,10 +520,16 @@ public class CardDavFileStore implements IWebdavStore {
 	public Map<String, String> getAdditionalProperties(String path,
 			Vector<String> properties) {
 		
-		File file = getFile(path);
 		Map<String, String> props = new HashMap<>();
 		if(properties != null) {
+			CardUri target = resolve(path);
+			String ctag = getCTag(target);
+			if(ctag != null && properties.remove(GETCTAG)) {
+				props.put(GETCTAG, ctag);
+			}
         	if(properties.remove("urn:ietf:params:xml:ns:carddav:address-data")) {
+        		// the index does not keep the cards, they are read from disk
+        		File file = getFile(target);
         		if(!file.isDirectory()) {
         			byte[] bytes;
 					try {
@@ -383,9 +546,47 @@ public class CardDavFileStore implements IWebdavStore {
 		return props;
 	}
 
+	@Override
+	public List<String> queryAddressbook(ITransaction transaction,
+			String addressbookUri, AddressbookFilter filter) {
+		CardUri target = resolve(transaction, addressbookUri);
+		if(target.book == null || target.card != null)
+			return null;
+		List<String> uris = new ArrayList<>();
+		for(String name : target.book.getIndex().query(filter)) {
+			uris.add(target.collection + "/" + name);
+		}
+		return uris;
+	}
+
+	/**
+	 * @return the change tag if the uri is an address book, null otherwise
+	 */
+	private String getCTag(CardUri target) {
+		if(target.book != null && target.card == null)
+			return ctags.get(target.collection);
+		return null;
+	}
+
+	/**
+	 * @param principalUri uri of the principal the home set is asked for
+	 * @return href of the address book home of that principal
+	 */
+	private String getHomeHref(String principalUri) {
+		String user = "GUEST";
+		if(principalUri.startsWith(PRINCIPALS_URL)) {
+			String name = principalUri.substring(PRINCIPALS_URL.length());
+			if(name.endsWith("/"))
+				name = name.substring(0, name.length() - 1);
+			if(!name.isEmpty() && name.indexOf('/') == -1)
+				user = name;
+		}
+		return HOMES_URL + "/" + user + "/";
+	}
+
 	@Override
 	public String getPrincipalUri(Principal principal) {
-		return "/principals/users/" + (principal==null?"GUEST":principal.getName()) + "/";
+		return PRINCIPALS_URL + (principal==null?"GUEST":principal.getName()) + "/";
 	}
 
 	@Override
@@ -404,11 +605,14 @@ public class CardDavFileStore implements IWebdavStore {
             if(property.equals("urn:ietf:params:xml:ns:carddav:addressbook-home-set")) {
                 out.writeElement("urn:ietf:params:xml:ns:carddav:addressbook-home-set", XMLWriter.OPENING);
             	out.writeElement("DAV::href", XMLWriter.OPENING);
-        			out.writeText(this.user.getHref());
+        			out.writeText(getHomeHref(path));
         		out.writeElement("DAV::href", XMLWriter.CLOSING);
                 out.writeElement("urn:ietf:params:xml:ns:carddav:addressbook-home-set", XMLWriter.CLOSING);
 
             } 
+            else if(property.equals(GETCTAG) && getCTag(resolve(path)) != null) {
+                out.writeProperty(GETCTAG, getCTag(resolve(path)));
+            }
             else if(property.equals("DAV::group-membership")) {
                 out.writeElement("DAV::group-membership", XMLWriter.OPENING);
                 out.writeElement("DAV::group-membership", XMLWriter.CLOSING);
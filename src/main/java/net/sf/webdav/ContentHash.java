@@ -0,0 +1,256 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
+
+/**
+ * Content based strong ETags for file based stores. The content is hashed with
+ * xxHash64 while it is streamed to disk and persisted together with the file
+ * length and modification time in a user extended attribute, file systems
+ * without extended attributes only keep the hash in memory.
+ * <p>
+ * Reads never hash: while the hash of a file is unknown, i.e. it was changed
+ * outside of the store, {@link #getEtag} returns null so the default
+ * length/modification time ETag is used, and the file is hashed on a
+ * background thread. When only the modification time changed (i.e. touch)
+ * that yields the old ETag again, so clients can skip the download.
+ *
+ * @author Niko Berger
+ */
+public class ContentHash {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(ContentHash.class);
+
+	private static final String ATTRIBUTE = "webdav.etag";
+
+	/**
+	 * number of hashes (and their ETag strings) kept in memory
+	 */
+	private static final int MAX_CACHED = 100000;
+
+	private static final ThreadLocal<XxHash64> CHECKSUM = ThreadLocal
+			.withInitial(XxHash64::new);
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final class Entry {
+
+		final long _hash;
+
+		final long _length;
+
+		final long _lastModified;
+
+		final String _etag;
+
+		Entry(long hash, long length, long lastModified) {
+			_hash = hash;
+			_length = length;
+			_lastModified = lastModified;
+			_etag = toEtag(hash, length);
+		}
+	}
+
+	/**
+	 * keys: absolute path, least recently used first
+	 */
+	private final Map<String, Entry> _entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+
+	private final Set<String> _hashing = ConcurrentHashMap.newKeySet();
+
+	private final ThreadPoolExecutor _hasher;
+
+	private volatile boolean _xattrSupported = true;
+
+	public ContentHash() {
+		_hasher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(10000), r -> {
+					Thread t = new Thread(r, "webdav-content-hash");
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.DiscardPolicy());
+	}
+
+	/**
+	 * @return the checksum of the current thread, reset and ready to use
+	 */
+	public static Checksum checksum() {
+		XxHash64 checksum = CHECKSUM.get();
+		checksum.reset();
+		return checksum;
+	}
+
+	/**
+	 * @return a new checksum for content written from several threads
+	 */
+	public static Checksum newChecksum() {
+		return new XxHash64();
+	}
+
+	/**
+	 * Builds a strong ETag from hash and length without intermediate strings.
+	 */
+	public static String toEtag(long hash, long length) {
+		StringBuilder sb = new StringBuilder(36);
+		sb.append('"');
+		appendHex(sb, hash);
+		sb.append('-');
+		appendHex(sb, length);
+		sb.append('"');
+		return sb.toString();
+	}
+
+	static void appendHex(StringBuilder sb, long value) {
+		int shift = value == 0 ? 0 : (63 - Long.numberOfLeadingZeros(value)) & ~3;
+		for (; shift >= 0; shift -= 4)
+			sb.append(HEX[(int) (value >>> shift) & 0xf]);
+	}
+
+	/**
+	 * Remembers the hash calculated while writing the file.
+	 */
+	public void store(File file, long hash) {
+		Entry entry = new Entry(hash, file.length(), file.lastModified());
+		synchronized (_entries) {
+			_entries.put(file.getAbsolutePath(), entry);
+		}
+		if (_xattrSupported) {
+			try {
+				UserDefinedFileAttributeView view = view(file.toPath());
+				if (view != null) {
+					ByteBuffer buf = ByteBuffer.allocate(24);
+					buf.putLong(entry._hash).putLong(entry._length)
+							.putLong(entry._lastModified);
+					buf.flip();
+					view.write(ATTRIBUTE, buf);
+				}
+			} catch (IOException | UnsupportedOperationException e) {
+				LOG.debug("extended attributes not usable, keeping content hashes in memory: " + e);
+				_xattrSupported = false;
+			}
+		}
+	}
+
+	/**
+	 * @return the content ETag of the file, null while its hash is unknown
+	 */
+	public String getEtag(File file, long length, long lastModified) {
+		String path = file.getAbsolutePath();
+		Entry entry;
+		synchronized (_entries) {
+			entry = _entries.get(path);
+		}
+		if (entry == null) {
+			entry = load(file);
+			if (entry != null) {
+				synchronized (_entries) {
+					_entries.put(path, entry);
+				}
+			}
+		}
+		if (entry != null && entry._length == length
+				&& entry._lastModified == lastModified)
+			return entry._etag;
+
+		// unknown or changed behind our back
+		if (_hashing.add(path)) {
+			_hasher.execute(() -> {
+				try {
+					hash(file);
+				} finally {
+					_hashing.remove(path);
+				}
+			});
+		}
+		return null;
+	}
+
+	private void hash(File file) {
+		long lastModified = file.lastModified();
+		try (InputStream in = new FileInputStream(file)) {
+			Checksum checksum = checksum();
+			byte[] buf = new byte[65536];
+			int read;
+			while ((read = in.read(buf)) != -1)
+				checksum.update(buf, 0, read);
+			if (file.lastModified() == lastModified)
+				store(file, checksum.getValue());
+		} catch (IOException e) {
+			LOG.debug("Unable to hash " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * Waits until the files queued for hashing are done, for tests.
+	 */
+	boolean awaitHashing(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!_hashing.isEmpty()) {
+			if (System.currentTimeMillis() > deadline)
+				return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Forgets the hash of a removed file.
+	 */
+	public void remove(File file) {
+		synchronized (_entries) {
+			_entries.remove(file.getAbsolutePath());
+		}
+	}
+
+	public void destroy() {
+		_hasher.shutdownNow();
+	}
+
+	private Entry load(File file) {
+		if (!_xattrSupported)
+			return null;
+		try {
+			UserDefinedFileAttributeView view = view(file.toPath());
+			if (view != null) {
+				ByteBuffer buf = ByteBuffer.allocate(24);
+				view.read(ATTRIBUTE, buf);
+				if (buf.position() == 24) {
+					buf.flip();
+					return new Entry(buf.getLong(), buf.getLong(), buf.getLong());
+				}
+			}
+		} catch (IOException | UnsupportedOperationException e) {
+			// no attribute yet
+		}
+		return null;
+	}
+
+	private static UserDefinedFileAttributeView view(Path path) {
+		return Files.getFileAttributeView(path,
+				UserDefinedFileAttributeView.class);
+	}
+}
@@ -28,6 +28,16 @@ public class DavExtensionConfig {
 	
 	public DavExtensionConfig() {
 	}
+
+	/**
+	 * copies the config, i.e. for a store wrapper adding to it
+	 */
+	public DavExtensionConfig(DavExtensionConfig config) {
+		davHeader = config.davHeader;
+		supportedReportSets.addAll(config.supportedReportSets);
+		etagFormat = config.etagFormat;
+		supportsReport = config.supportsReport;
+	}
 	
 
 	/**
@@ -0,0 +1,256 @@
+package net.sf.webdav;
+
+import java.util.Arrays;
+
+/**
+ * An immutable, pre-split resource path. The segments are split once, the
+ * string form and the hash are cached, so walking up to the parents or down to
+ * the children of a path does not parse strings again.
+ *
+ * @author Niko Berger
+ */
+public final class DavPath {
+
+	public static final DavPath ROOT = new DavPath(new String[0], 0, "/");
+
+	/**
+	 * shared between a path and its parents, only the first _depth are used
+	 */
+	private final String[] _segments;
+
+	private final int _depth;
+
+	private String _path;
+
+	private int _hash;
+
+	private DavPath(String[] segments, int depth, String path) {
+		_segments = segments;
+		_depth = depth;
+		_path = path;
+	}
+
+	/**
+	 * Splits the path into its segments, empty segments and a trailing '/' are
+	 * dropped. "." and ".." are kept as they are.
+	 *
+	 * @param path
+	 *            the path, a missing leading '/' is added
+	 * @return the path or null if path is null
+	 */
+	public static DavPath valueOf(String path) {
+		if (path == null)
+			return null;
+		String[] segments = splitPath(path);
+		if (segments.length == 0)
+			return ROOT;
+		return new DavPath(segments, segments.length, null);
+	}
+
+	/**
+	 * Like {@link #valueOf(String)} but resolves "." and ".." segments.
+	 *
+	 * @param path
+	 *            the path
+	 * @return the path or null if path is null or points above the root
+	 */
+	public static DavPath parse(String path) {
+		if (path == null)
+			return null;
+		String[] segments = splitPath(path);
+		int depth = 0;
+		for (String segment : segments) {
+			if (segment.equals("."))
+				continue;
+			if (segment.equals("..")) {
+				if (depth == 0)
+					return null; // Trying to go outside our context
+				depth--;
+			} else {
+				segments[depth++] = segment;
+			}
+		}
+		if (depth == 0)
+			return ROOT;
+		return new DavPath(segments, depth, null);
+	}
+
+	/**
+	 * Splits a path into its segments without a regex. Leading, trailing and
+	 * double slashes do not produce empty segments, "." and ".." are kept.
+	 *
+	 * @param path
+	 *            the path
+	 * @return the segments, an empty array for the root
+	 */
+	public static String[] splitPath(String path) {
+		int count = 0;
+		int length = path.length();
+		for (int i = 0; i < length; i++) {
+			if (path.charAt(i) != '/' && (i == 0 || path.charAt(i - 1) == '/'))
+				count++;
+		}
+		String[] segments = new String[count];
+		int n = 0;
+		int start = -1;
+		for (int i = 0; i <= length; i++) {
+			if (i == length || path.charAt(i) == '/') {
+				if (start >= 0)
+					segments[n++] = path.substring(start, i);
+				start = -1;
+			} else if (start < 0) {
+				start = i;
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * Normalize a relative URI path that may have relative values ("/./",
+	 * "/../", and so on ) it it in a single pass. A leading '/' is added,
+	 * duplicate '/' are collapsed and a trailing '/' is kept.
+	 * <strong>WARNING</strong> - This method is useful only for normalizing
+	 * application-generated paths. It does not try to perform security checks
+	 * for malicious input.
+	 *
+	 * @param path
+	 *            Relative path to be normalized
+	 * @return the normalized path or null if path is null or points above the
+	 *         root
+	 */
+	public static String normalize(String path) {
+		if (path == null)
+			return null;
+
+		// always ends with a '/' while building
+		StringBuilder normalized = new StringBuilder(path.length() + 1);
+		normalized.append('/');
+		boolean trailingSlash = false;
+		int length = path.length();
+		int start = 0;
+		while (start <= length) {
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = length;
+			int segmentLength = end - start;
+			if (segmentLength == 0) {
+				trailingSlash = true;
+			} else if (segmentLength == 1 && path.charAt(start) == '.') {
+				trailingSlash = true;
+			} else if (segmentLength == 2 && path.charAt(start) == '.'
+					&& path.charAt(start + 1) == '.') {
+				if (normalized.length() == 1)
+					return null; // Trying to go outside our context
+				normalized.setLength(normalized.lastIndexOf("/",
+						normalized.length() - 2) + 1);
+				trailingSlash = true;
+			} else {
+				normalized.append(path, start, end).append('/');
+				trailingSlash = false;
+			}
+			start = end + 1;
+		}
+		if (!trailingSlash && normalized.length() > 1)
+			normalized.setLength(normalized.length() - 1);
+		return normalized.toString();
+	}
+
+	/**
+	 * @return the parent path or null for the root
+	 */
+	public DavPath parent() {
+		if (_depth == 0)
+			return null;
+		if (_depth == 1)
+			return ROOT;
+		return new DavPath(_segments, _depth - 1, null);
+	}
+
+	/**
+	 * @param name
+	 *            the name of the child, it must not contain a '/'
+	 * @return the path of the child
+	 */
+	public DavPath child(String name) {
+		String[] segments = Arrays.copyOf(_segments, _depth + 1);
+		segments[_depth] = name;
+		String path = _depth == 0 ? "/" + name : toString() + "/" + name;
+		return new DavPath(segments, _depth + 1, path);
+	}
+
+	/**
+	 * @return the last segment, an empty string for the root
+	 */
+	public String getName() {
+		return _depth == 0 ? "" : _segments[_depth - 1];
+	}
+
+	/**
+	 * @return the number of segments, 0 for the root
+	 */
+	public int getDepth() {
+		return _depth;
+	}
+
+	public String getSegment(int index) {
+		if (index < 0 || index >= _depth)
+			throw new IndexOutOfBoundsException("segment " + index + " of " + this);
+		return _segments[index];
+	}
+
+	public boolean isRoot() {
+		return _depth == 0;
+	}
+
+	/**
+	 * @return true if other is this path or one of its children
+	 */
+	public boolean startsWith(DavPath other) {
+		if (other._depth > _depth)
+			return false;
+		for (int i = other._depth - 1; i >= 0; i--) {
+			if (!_segments[i].equals(other._segments[i]))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof DavPath))
+			return false;
+		DavPath other = (DavPath) obj;
+		return _depth == other._depth && hashCode() == other.hashCode()
+				&& startsWith(other);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = _hash;
+		if (hash == 0 && _depth > 0) {
+			hash = 1;
+			for (int i = 0; i < _depth; i++)
+				hash = 31 * hash + _segments[i].hashCode();
+			_hash = hash;
+		}
+		return hash;
+	}
+
+	/**
+	 * @return the path with a leading and without a trailing '/'
+	 */
+	@Override
+	public String toString() {
+		String path = _path;
+		if (path == null) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < _depth; i++)
+				sb.append('/').append(_segments[i]);
+			path = sb.toString();
+			_path = path;
+		}
+		return path;
+	}
+}
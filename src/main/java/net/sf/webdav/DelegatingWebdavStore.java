@@ -0,0 +1,153 @@
+package net.sf.webdav;
+
+import java.io.InputStream;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.sf.webdav.fromcatalina.XMLWriter;
+
+/**
+ * Base class for stores that wrap another {@link IWebdavStore} (i.e. to add
+ * metrics, tracing or caching). Every call is passed on to the delegate,
+ * subclasses only override what they need.
+ *
+ * @author Niko Berger
+ */
+public class DelegatingWebdavStore implements IWebdavStore {
+
+	protected final IWebdavStore _delegate;
+
+	public DelegatingWebdavStore(IWebdavStore delegate) {
+		if (delegate == null)
+			throw new IllegalArgumentException("delegate store must not be null");
+		_delegate = delegate;
+	}
+
+	/**
+	 * @return the wrapped store
+	 */
+	public IWebdavStore getDelegate() {
+		return _delegate;
+	}
+
+	@Override
+	public void destroy() {
+		_delegate.destroy();
+	}
+
+	@Override
+	public ITransaction begin(Principal principal) {
+		return _delegate.begin(principal);
+	}
+
+	@Override
+	public void checkAuthentication(ITransaction transaction) {
+		_delegate.checkAuthentication(transaction);
+	}
+
+	@Override
+	public void commit(ITransaction transaction) {
+		_delegate.commit(transaction);
+	}
+
+	@Override
+	public void rollback(ITransaction transaction) {
+		_delegate.rollback(transaction);
+	}
+
+	@Override
+	public void createFolder(ITransaction transaction, String folderUri) {
+		_delegate.createFolder(transaction, folderUri);
+	}
+
+	@Override
+	public void createResource(ITransaction transaction, String resourceUri) {
+		_delegate.createResource(transaction, resourceUri);
+	}
+
+	@Override
+	public InputStream getResourceContent(ITransaction transaction, String resourceUri) {
+		return _delegate.getResourceContent(transaction, resourceUri);
+	}
+
+	@Override
+	public long setResourceContent(ITransaction transaction, String resourceUri,
+			InputStream content, String contentType, String characterEncoding) {
+		return _delegate.setResourceContent(transaction, resourceUri, content,
+				contentType, characterEncoding);
+	}
+
+	@Override
+	public String[] getChildrenNames(ITransaction transaction, String folderUri) {
+		return _delegate.getChildrenNames(transaction, folderUri);
+	}
+
+	@Override
+	public long getResourceLength(ITransaction transaction, String path) {
+		return _delegate.getResourceLength(transaction, path);
+	}
+
+	@Override
+	public void removeObject(ITransaction transaction, String uri) {
+		_delegate.removeObject(transaction, uri);
+	}
+
+	@Override
+	public StoredObject getStoredObject(ITransaction transaction, String uri,
+			Vector<String> properties) {
+		return _delegate.getStoredObject(transaction, uri, properties);
+	}
+
+	@Override
+	public Principal createPrincipal(HttpServletRequest request) {
+		return _delegate.createPrincipal(request);
+	}
+
+	@Override
+	public boolean supportsMoveOperation() {
+		return _delegate.supportsMoveOperation();
+	}
+
+	@Override
+	public void moveResource(ITransaction transaction, String sourceUri,
+			String destinationUri) {
+		_delegate.moveResource(transaction, sourceUri, destinationUri);
+	}
+
+	@Override
+	public DavExtensionConfig getConfig() {
+		return _delegate.getConfig();
+	}
+
+	@Override
+	public void addNamespace(Map<String, String> namespaces) {
+		_delegate.addNamespace(namespaces);
+	}
+
+	@Override
+	public List<String> getReportSubEntries(String reportAction, String path) {
+		return _delegate.getReportSubEntries(reportAction, path);
+	}
+
+	@Override
+	public Map<String, String> getAdditionalProperties(String path,
+			Vector<String> properties) {
+		return _delegate.getAdditionalProperties(path, properties);
+	}
+
+	@Override
+	public Vector<String> handleCustomProperties(String path,
+			Vector<String> properties, StoredObject so, XMLWriter out) {
+		return _delegate.handleCustomProperties(path, properties, so, out);
+	}
+
+	@Override
+	public String getPrincipalUri(Principal principal) {
+		return _delegate.getPrincipalUri(principal);
+	}
+
+}
@@ -0,0 +1,198 @@
+package net.sf.webdav;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Precompressed gzip copies of text files for {@link LocalFileSystemStore}.
+ * The copies live in a separate folder mirroring the content tree. A copy
+ * carries the modification time of the file it was made from and is only
+ * used while the two match, so a changed file is never served from a stale
+ * copy.
+ * <p>
+ * Missing or stale copies can be built on a background thread the first
+ * time a client asks for gzip; until then the file is sent uncompressed.
+ *
+ * @author Niko Berger
+ */
+public class GzipSidecars {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(GzipSidecars.class);
+
+	/**
+	 * text formats worth compressing, everything else is usually compressed
+	 * already
+	 */
+	public static final Set<String> DEFAULT_EXTENSIONS = new HashSet<>(
+			Arrays.asList("vcf", "ics", "html", "htm", "json", "txt", "xml",
+					"css", "js", "svg", "csv", "md"));
+
+	/**
+	 * smaller files do not get a copy, the gzip overhead eats the savings
+	 */
+	private static final int MIN_SIZE = 512;
+
+	private final File _root;
+	private final boolean _build;
+	private final Set<String> _extensions;
+	private final Set<String> _pending = ConcurrentHashMap.newKeySet();
+	private ThreadPoolExecutor _builder;
+
+	/**
+	 * @param root
+	 *            folder holding the compressed copies
+	 * @param build
+	 *            true to create missing copies in the background
+	 */
+	public GzipSidecars(File root, boolean build) {
+		this(root, build, DEFAULT_EXTENSIONS);
+	}
+
+	public GzipSidecars(File root, boolean build, Set<String> extensions) {
+		_root = root;
+		_build = build;
+		_extensions = extensions;
+	}
+
+	/**
+	 * @param file
+	 *            the content file
+	 * @param uri
+	 *            its URI in the store
+	 * @return length of the up to date compressed copy, -1 if there is none
+	 */
+	public long getLength(File file, String uri) {
+		if (!isCompressible(uri))
+			return -1;
+		long lastModified = file.lastModified();
+		if (lastModified == 0)
+			return -1; // gone
+		File sidecar = sidecar(uri);
+		if (sidecar.lastModified() == lastModified)
+			return sidecar.length();
+		if (_build && file.length() >= MIN_SIZE)
+			scheduleBuild(file, uri);
+		return -1;
+	}
+
+	public InputStream open(String uri) throws IOException {
+		return new BufferedInputStream(new FileInputStream(sidecar(uri)));
+	}
+
+	/**
+	 * Drops the copy of a removed file, or all copies below a removed folder.
+	 */
+	public void remove(String uri) {
+		sidecar(uri).delete();
+		File folder = new File(_root, uri);
+		if (folder.isDirectory() && !folder.equals(_root))
+			deleteTree(folder);
+	}
+
+	public synchronized void destroy() {
+		if (_builder != null)
+			_builder.shutdownNow();
+	}
+
+	private static void deleteTree(File folder) {
+		File[] children = folder.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (child.isDirectory())
+					deleteTree(child);
+				else
+					child.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	private boolean isCompressible(String uri) {
+		int dot = uri.lastIndexOf('.');
+		return dot > uri.lastIndexOf('/')
+				&& _extensions.contains(uri.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	private File sidecar(String uri) {
+		return new File(_root, uri + ".gz");
+	}
+
+	private synchronized void scheduleBuild(final File file, final String uri) {
+		if (!_pending.add(uri))
+			return;
+		if (_builder == null) {
+			// one thread is plenty, requests are dropped while the queue is full
+			_builder = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(256), r -> {
+						Thread t = new Thread(r, "webdav-gzip");
+						t.setDaemon(true);
+						return t;
+					});
+			_builder.allowCoreThreadTimeOut(true);
+		}
+		try {
+			_builder.execute(() -> {
+				try {
+					build(file, uri);
+				} finally {
+					_pending.remove(uri);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			_pending.remove(uri); // busy, try again on the next request
+		}
+	}
+
+	void build(File file, String uri) {
+		File sidecar = sidecar(uri);
+		sidecar.getParentFile().mkdirs();
+		long lastModified = file.lastModified();
+		File tmp = new File(sidecar.getPath() + ".tmp");
+		try {
+			try (InputStream in = new FileInputStream(file);
+					OutputStream out = new GZIPOutputStream(
+							new FileOutputStream(tmp), 8192) {
+						{
+							def.setLevel(Deflater.BEST_COMPRESSION);
+						}
+					}) {
+				byte[] buf = new byte[8192];
+				int read;
+				while ((read = in.read(buf)) != -1)
+					out.write(buf, 0, read);
+			}
+			tmp.setLastModified(lastModified);
+			try {
+				Files.move(tmp.toPath(), sidecar.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), sidecar.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			LOG.warn("Unable to compress " + uri + ": " + e);
+			tmp.delete();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package net.sf.webdav;
+
+import java.io.InputStream;
+
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * Optional extension of {@link IWebdavStore} for stores that keep
+ * precompressed copies of resources. GET and HEAD use it to answer clients
+ * sending <code>Accept-Encoding</code> without compressing on every request.
+ *
+ * @author Niko Berger
+ */
+public interface IEncodedContentStore {
+
+	/**
+	 * @param resourceUri
+	 *            URI of the resource
+	 * @param encoding
+	 *            content coding, i.e. "gzip"
+	 * @return length of the encoded content, -1 if there is no up to date
+	 *         encoded copy
+	 */
+	long getEncodedLength(ITransaction transaction, String resourceUri,
+			String encoding) throws WebdavException;
+
+	/**
+	 * @return the encoded content, only called after
+	 *         {@link #getEncodedLength(ITransaction, String, String)} returned
+	 *         a length
+	 */
+	InputStream getEncodedContent(ITransaction transaction,
+			String resourceUri, String encoding) throws WebdavException;
+}
@@ -0,0 +1,24 @@
+package net.sf.webdav;
+
+import java.util.Map;
+
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * Optional extension of {@link IWebdavStore} for stores that can list the
+ * members of a folder together with their metadata. The HTML folder listing
+ * of GET uses it instead of calling getStoredObject for every member.
+ *
+ * @author Niko Berger
+ */
+public interface IFolderListingStore {
+
+	/**
+	 * @param folderUri
+	 *            URI of the folder
+	 * @return the members by name, null if the URI is not a folder. Only
+	 *         folder flag, length and dates have to be filled in
+	 */
+	Map<String, StoredObject> listChildren(ITransaction transaction,
+			String folderUri) throws WebdavException;
+}
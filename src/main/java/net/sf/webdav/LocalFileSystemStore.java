@@ -23,17 +23,38 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
 
 import javax.servlet.http.HttpServletRequest;
 
+import net.sf.webdav.async.FileChannelSink;
+import net.sf.webdav.async.IAsyncContentStore;
+import net.sf.webdav.async.IContentSink;
+import net.sf.webdav.exceptions.AccessDeniedException;
 import net.sf.webdav.exceptions.WebdavException;
 import net.sf.webdav.fromcatalina.XMLWriter;
+import net.sf.webdav.upload.IStagedContentStore;
 
 /**
  * Reference Implementation of WebdavStore
@@ -41,23 +62,124 @@ import net.sf.webdav.fromcatalina.XMLWriter;
  * @author joa
  * @author re
  */
-public class LocalFileSystemStore implements IWebdavStore {
+public class LocalFileSystemStore implements IWebdavStore, IAsyncContentStore,
+        IStagedContentStore, IEncodedContentStore, IFolderListingStore {
 
     private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
             .getLogger(LocalFileSystemStore.class);
 
     private static int BUF_SIZE = 65536;
 
+    /**
+     * folder below the root holding the parts of resumable uploads, hidden
+     * from listings and not accessible by path
+     */
+    static final String STAGING_FOLDER = ".upload-staging";
+
+    /**
+     * folder below the root holding precompressed copies, hidden from
+     * listings and not accessible by path
+     */
+    static final String GZIP_FOLDER = ".gzip-cache";
+
     private File _root = null;
     
     private static DavExtensionConfig config = new DavExtensionConfig();
 
+    /**
+     * content based etags, null if disabled
+     */
+    private ContentHash _contentHash = null;
+
+    /**
+     * precompressed copies, null if disabled
+     */
+    private GzipSidecars _gzipSidecars = null;
+
+    /**
+     * mappings of medium sized files, null if files are read with streams
+     */
+    private MappedFileCache _mappedFiles = null;
+
+    /**
+     * part file names of the resumable uploads in progress, keyed by
+     * principal and resource
+     */
+    private final Map<String, String> _stagedParts = new ConcurrentHashMap<>();
+
+    /**
+     * time of the last sweep of abandoned parts
+     */
+    private final AtomicLong _stagingSwept = new AtomicLong();
+
     public LocalFileSystemStore(File root) {
         _root = root;
     }
 
+    /**
+     * Enables strong ETags based on a hash of the file content instead of
+     * length and modification time. The hash is calculated while storing
+     * the content.
+     * 
+     * @param contentEtags
+     *      true to enable content ETags
+     */
+    public void setContentEtags(boolean contentEtags) {
+        if (_contentHash != null)
+            _contentHash.destroy();
+        _contentHash = contentEtags ? new ContentHash() : null;
+    }
+
+    /**
+     * @return the content hashes, null unless content ETags are enabled
+     */
+    ContentHash getContentHash() {
+        return _contentHash;
+    }
+
+    /**
+     * Enables serving gzip compressed copies of text files to clients
+     * accepting them. The copies are kept in a hidden folder below the root.
+     * 
+     * @param enabled
+     *      true to serve compressed copies
+     * @param build
+     *      true to create missing copies in the background on first request
+     */
+    public void setGzipSidecars(boolean enabled, boolean build) {
+        if (_gzipSidecars != null)
+            _gzipSidecars.destroy();
+        _gzipSidecars = enabled ? new GzipSidecars(
+                new File(_root, GZIP_FOLDER), build) : null;
+    }
+
+    /**
+     * Enables memory mapped reads of medium sized files. Hot files are then
+     * served from the page cache, GET writes the mapped bytes to the
+     * response. Content is written to a temporary file and moved in place so
+     * files are never truncated while they are mapped.
+     * 
+     * @param minSize
+     *      smaller files are read with a stream
+     * @param maxSize
+     *      larger files are read with a stream
+     * @param maxMappedBytes
+     *      total size of the files kept mapped, 0 disables mapping
+     */
+    public void setMappedReads(long minSize, long maxSize, long maxMappedBytes) {
+        if (_mappedFiles != null)
+            _mappedFiles.clear();
+        _mappedFiles = maxMappedBytes > 0 ? new MappedFileCache(minSize,
+                maxSize, maxMappedBytes) : null;
+    }
+
     public void destroy() {
-        ;
+        if (_contentHash != null)
+            _contentHash.destroy();
+        if (_gzipSidecars != null)
+            _gzipSidecars.destroy();
+        if (_mappedFiles != null)
+            _mappedFiles.clear();
     }
 
     public ITransaction begin(Principal principal) throws WebdavException {
@@ -93,7 +215,7 @@ public class LocalFileSystemStore implements IWebdavStore {
     public void createFolder(ITransaction transaction, String uri)
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.createFolder(" + uri + ")");
-        File file = new File(_root, uri);
+        File file = file(uri);
         if (!file.mkdir())
             throw new WebdavException("cannot create folder: " + uri);
     }
@@ -101,7 +223,7 @@ public class LocalFileSystemStore implements IWebdavStore {
     public void createResource(ITransaction transaction, String uri)
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.createResource(" + uri + ")");
-        File file = new File(_root, uri);
+        File file = file(uri);
         try {
             if (!file.createNewFile())
                 throw new WebdavException("cannot create file: " + uri);
@@ -118,10 +240,17 @@ public class LocalFileSystemStore implements IWebdavStore {
             throws WebdavException {
 
         LOG.trace("LocalFileSystemStore.setResourceContent(" + uri + ")");
-        File file = new File(_root, uri);
+        File file = file(uri);
+        // a mapped file must not be truncated, write a new one instead
+        File target = _mappedFiles != null ? replacementFile() : file;
+        Checksum checksum = null;
+        if (_contentHash != null) {
+            checksum = ContentHash.checksum();
+            is = new CheckedInputStream(is, checksum);
+        }
         try {
             OutputStream os = new BufferedOutputStream(new FileOutputStream(
-                    file), BUF_SIZE);
+                    target), BUF_SIZE);
             try {
                 int read;
                 byte[] copyBuffer = new byte[BUF_SIZE];
@@ -136,7 +265,11 @@ public class LocalFileSystemStore implements IWebdavStore {
                     os.close();
                 }
             }
+            if (target != file)
+                replace(target, file);
         } catch (IOException e) {
+            if (target != file)
+                target.delete();
             LOG.error("LocalFileSystemStore.setResourceContent(" + uri
                     + ") failed");
             throw new WebdavException(e);
@@ -149,21 +282,257 @@ public class LocalFileSystemStore implements IWebdavStore {
             LOG.error("LocalFileSystemStore.setResourceContent(" + uri
                     + ") failed" + "\nCan't get file.length");
         }
+        if (checksum != null)
+            _contentHash.store(file, checksum.getValue());
 
         return length;
     }
 
+    public IContentSink openResourceContent(ITransaction transaction,
+            String uri, String contentType, String characterEncoding)
+            throws WebdavException {
+        LOG.trace("LocalFileSystemStore.openResourceContent(" + uri + ")");
+        final File file = file(uri);
+        // a mapped file must not be truncated, write a new one instead
+        final File target = _mappedFiles != null ? replacementFile() : file;
+        // the sink is written from callback threads, so no thread local checksum
+        return new FileChannelSink(target,
+                _contentHash != null ? ContentHash.newChecksum() : null) {
+            @Override
+            public long commit() throws WebdavException {
+                long length = super.commit();
+                if (target != file) {
+                    try {
+                        replace(target, file);
+                    } catch (IOException e) {
+                        target.delete();
+                        throw new WebdavException(e);
+                    }
+                }
+                if (getChecksum() != null)
+                    _contentHash.store(file, getChecksum().getValue());
+                return length;
+            }
+
+            @Override
+            public void abort() {
+                super.abort();
+                if (target != file)
+                    target.delete();
+            }
+        };
+    }
+
+    public long getStagedLength(ITransaction transaction, String uri)
+            throws WebdavException {
+        File staged = stagingFile(transaction, uri, false);
+        return staged != null && staged.isFile() ? staged.length() : -1;
+    }
+
+    public long writeStagedContent(ITransaction transaction, String uri,
+            long offset, InputStream is, long length) throws WebdavException {
+        LOG.trace("LocalFileSystemStore.writeStagedContent(" + uri + ", "
+                + offset + ")");
+        File staged = stagingFile(transaction, uri, true);
+        try (FileChannel channel = FileChannel.open(staged.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (offset > channel.size())
+                throw new WebdavException("part at " + offset + " of " + uri
+                        + " leaves a gap, " + channel.size() + " bytes staged");
+            byte[] copyBuffer = new byte[BUF_SIZE];
+            long position = offset;
+            long remaining = length;
+            int read;
+            while (remaining > 0
+                    && (read = is.read(copyBuffer, 0,
+                            (int) Math.min(copyBuffer.length, remaining))) != -1) {
+                ByteBuffer buf = ByteBuffer.wrap(copyBuffer, 0, read);
+                while (buf.hasRemaining())
+                    position += channel.write(buf, position);
+                remaining -= read;
+            }
+            return channel.size();
+        } catch (IOException e) {
+            LOG.error("LocalFileSystemStore.writeStagedContent(" + uri
+                    + ") failed");
+            throw new WebdavException(e);
+        }
+    }
+
+    public long commitStagedContent(ITransaction transaction, String uri)
+            throws WebdavException {
+        LOG.trace("LocalFileSystemStore.commitStagedContent(" + uri + ")");
+        File staged = stagingFile(transaction, uri, false);
+        if (staged == null)
+            throw new WebdavException("nothing staged for " + uri);
+        File file = file(uri);
+        try {
+            replace(staged, file);
+        } catch (IOException e) {
+            LOG.error("LocalFileSystemStore.commitStagedContent(" + uri
+                    + ") failed");
+            throw new WebdavException(e);
+        }
+        _stagedParts.remove(stagingKey(transaction, uri));
+        if (_contentHash != null)
+            _contentHash.remove(file); // hashed in the background on first access
+        return file.length();
+    }
+
+    public void discardStagedContent(ITransaction transaction, String uri)
+            throws WebdavException {
+        String name = _stagedParts.remove(stagingKey(transaction, uri));
+        if (name != null)
+            new File(new File(_root, STAGING_FOLDER), name).delete();
+    }
+
+    /**
+     * Moves the new content in place, readers of the old file keep reading
+     * the old content.
+     */
+    private void replace(File source, File file) throws IOException {
+        try {
+            Files.move(source.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (_mappedFiles != null)
+            _mappedFiles.remove(file);
+    }
+
+    /**
+     * @return a new file in the staging folder to write the content of the
+     *         resource to
+     */
+    private File replacementFile() {
+        File staging = new File(_root, STAGING_FOLDER);
+        staging.mkdirs();
+        return new File(staging, UUID.randomUUID().toString() + ".tmp");
+    }
+
+    /**
+     * parts are staged in one flat folder on the same file system as the
+     * content, so the final move is atomic. The part names are random and
+     * only known to the principal uploading, so an upload can neither be
+     * guessed nor continued by someone else.
+     * 
+     * @return the part file, null if nothing is staged and create is false
+     */
+    private File stagingFile(ITransaction transaction, String uri,
+            boolean create) throws WebdavException {
+        file(uri);
+        String key = stagingKey(transaction, uri);
+        String name = _stagedParts.get(key);
+        if (name == null) {
+            if (!create)
+                return null;
+            File staging = new File(_root, STAGING_FOLDER);
+            staging.mkdirs();
+            sweepStaging(staging);
+            name = _stagedParts.computeIfAbsent(key, k -> UUID.randomUUID()
+                    .toString() + ".part");
+        }
+        return new File(new File(_root, STAGING_FOLDER), name);
+    }
+
+    private static String stagingKey(ITransaction transaction, String uri) {
+        Principal principal = transaction != null ? transaction.getPrincipal()
+                : null;
+        return (principal != null ? principal.getName() : "") + '\0' + uri;
+    }
+
+    /**
+     * Removes parts and replacement files nobody touched for a day, at most
+     * once an hour. Parts staged before a restart are abandoned as well.
+     */
+    private void sweepStaging(File staging) {
+        long now = System.currentTimeMillis();
+        long swept = _stagingSwept.get();
+        if (now - swept < TimeUnit.HOURS.toMillis(1)
+                || !_stagingSwept.compareAndSet(swept, now))
+            return;
+        long expired = now - TimeUnit.DAYS.toMillis(1);
+        File[] parts = staging.listFiles();
+        if (parts == null)
+            return;
+        for (File part : parts) {
+            if (part.lastModified() < expired && part.delete()) {
+                _stagedParts.values().remove(part.getName());
+                LOG.debug("removed abandoned upload part " + part);
+            }
+        }
+    }
+
+    /**
+     * @return the file of the uri
+     * @throws AccessDeniedException
+     *      if the uri points into one of the internal folders
+     */
+    private File file(String uri) throws AccessDeniedException {
+        if (isInternal(uri))
+            throw new AccessDeniedException(uri);
+        return new File(_root, uri);
+    }
+
+    /**
+     * @return true if the first segment of the normalized uri is one of the
+     *         internal folders
+     */
+    static boolean isInternal(String uri) {
+        // nearly every uri names neither folder, that needs no normalizing
+        if (uri.indexOf(STAGING_FOLDER) < 0 && uri.indexOf(GZIP_FOLDER) < 0)
+            return false;
+        String normalized = DavPath.normalize(uri);
+        // above the root and naming an internal folder: refused as well
+        return normalized == null || isFirstSegment(normalized, STAGING_FOLDER)
+                || isFirstSegment(normalized, GZIP_FOLDER);
+    }
+
+    private static boolean isFirstSegment(String normalized, String name) {
+        int end = name.length() + 1;
+        return normalized.startsWith(name, 1)
+                && (normalized.length() == end || normalized.charAt(end) == '/');
+    }
+
+    public long getEncodedLength(ITransaction transaction, String uri,
+            String encoding) throws WebdavException {
+        if (_gzipSidecars == null || !"gzip".equals(encoding)
+                || isInternal(uri))
+            return -1;
+        return _gzipSidecars.getLength(new File(_root, uri), uri);
+    }
+
+    public InputStream getEncodedContent(ITransaction transaction, String uri,
+            String encoding) throws WebdavException {
+        if (_gzipSidecars == null || !"gzip".equals(encoding))
+            throw new WebdavException("no " + encoding + " copy of " + uri);
+        if (isInternal(uri))
+            throw new AccessDeniedException(uri);
+        try {
+            return _gzipSidecars.open(uri);
+        } catch (IOException e) {
+            LOG.error("LocalFileSystemStore.getEncodedContent(" + uri
+                    + ") failed");
+            throw new WebdavException(e);
+        }
+    }
+
     public String[] getChildrenNames(ITransaction transaction, String uri)
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.getChildrenNames(" + uri + ")");
         File file = new File(_root, uri);
         String[] childrenNames = null;
-        if (file.isDirectory()) {
+        if (!isInternal(uri) && file.isDirectory()) {
             File[] children = file.listFiles();
             List<String> childList = new ArrayList<>();
             String name = null;
             for (int i = 0; i < children.length; i++) {
                 name = children[i].getName();
+                if (STAGING_FOLDER.equals(name) || GZIP_FOLDER.equals(name))
+                    continue;
                 childList.add(name);
                 LOG.trace("Child " + i + ": " + name);
             }
@@ -173,10 +542,54 @@ public class LocalFileSystemStore implements IWebdavStore {
         return childrenNames;
     }
 
+    public Map<String, StoredObject> listChildren(ITransaction transaction,
+            String uri) throws WebdavException {
+        LOG.trace("LocalFileSystemStore.listChildren(" + uri + ")");
+        File folder = new File(_root, uri);
+        if (isInternal(uri) || !folder.isDirectory())
+            return null;
+        Map<String, StoredObject> children = new HashMap<>();
+        // one directory read and one stat per member
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder
+                .toPath())) {
+            for (Path child : stream) {
+                String name = child.getFileName().toString();
+                if (STAGING_FOLDER.equals(name) || GZIP_FOLDER.equals(name))
+                    continue;
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(child,
+                            BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue; // removed while listing
+                }
+                StoredObject so = new StoredObject();
+                so.setFolder(attributes.isDirectory());
+                Date lastModified = new Date(attributes.lastModifiedTime()
+                        .toMillis());
+                so.setLastModified(lastModified);
+                so.setCreationDate(lastModified);
+                so.setResourceLength(attributes.isDirectory() ? 0
+                        : attributes.size());
+                children.put(name, so);
+            }
+        } catch (IOException e) {
+            LOG.error("LocalFileSystemStore.listChildren(" + uri + ") failed");
+            throw new WebdavException(e);
+        }
+        return children;
+    }
+
     public void removeObject(ITransaction transaction, String uri)
             throws WebdavException {
-        File file = new File(_root, uri);
+        File file = file(uri);
         boolean success = file.delete();
+        if (success && _mappedFiles != null)
+            _mappedFiles.remove(file);
+        if (success && _contentHash != null)
+            _contentHash.remove(file);
+        if (success && _gzipSidecars != null)
+            _gzipSidecars.remove(uri);
         LOG.trace("LocalFileSystemStore.removeObject(" + uri + ")=" + success);
         if (!success) {
             throw new WebdavException("cannot delete object: " + uri);
@@ -187,10 +600,15 @@ public class LocalFileSystemStore implements IWebdavStore {
     public InputStream getResourceContent(ITransaction transaction, String uri)
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.getResourceContent(" + uri + ")");
-        File file = new File(_root, uri);
+        File file = file(uri);
 
         InputStream in;
         try {
+            if (_mappedFiles != null) {
+                in = _mappedFiles.open(file);
+                if (in != null)
+                    return in;
+            }
             in = new BufferedInputStream(new FileInputStream(file));
         } catch (IOException e) {
             LOG.error("LocalFileSystemStore.getResourceContent(" + uri
@@ -203,7 +621,7 @@ public class LocalFileSystemStore implements IWebdavStore {
     public long getResourceLength(ITransaction transaction, String uri)
             throws WebdavException {
         LOG.trace("LocalFileSystemStore.getResourceLength(" + uri + ")");
-        File file = new File(_root, uri);
+        File file = file(uri);
         return file.length();
     }
 
@@ -213,12 +631,16 @@ public class LocalFileSystemStore implements IWebdavStore {
         StoredObject so = null;
 
         File file = new File(_root, uri);
-        if (file.exists()) {
+        if (!isInternal(uri) && file.exists()) {
             so = new StoredObject();
             so.setFolder(file.isDirectory());
-            so.setLastModified(new Date(file.lastModified()));
-            so.setCreationDate(new Date(file.lastModified()));
-            so.setResourceLength(getResourceLength(transaction, uri));
+            long lastModified = file.lastModified();
+            so.setLastModified(new Date(lastModified));
+            so.setCreationDate(new Date(lastModified));
+            so.setResourceLength(file.length());
+            if (_contentHash != null && !so.isFolder())
+                so.setEtag(_contentHash.getEtag(file, so.getResourceLength(),
+                        lastModified));
         }
 
         return so;
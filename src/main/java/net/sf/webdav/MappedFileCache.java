@@ -0,0 +1,280 @@
+package net.sf.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Read-only memory mappings of medium sized files for
+ * {@link LocalFileSystemStore}, shared between concurrent readers. A hot file
+ * is mapped once and then served from the page cache without read calls.
+ * <p>
+ * Mappings are kept in least recently used order up to a total size. Every
+ * open stream holds a reference to its mapping, a mapping that was evicted
+ * or whose file changed is unmapped when the last stream is closed. A
+ * mapping is only used while length and modification time of the file
+ * match, so the store has to replace files instead of rewriting them in
+ * place while they may be mapped.
+ *
+ * @author Niko Berger
+ */
+public class MappedFileCache {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(MappedFileCache.class);
+
+	private static final Method INVOKE_CLEANER;
+
+	private static final Object UNSAFE;
+
+	static {
+		Method invokeCleaner = null;
+		Object unsafe = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+					ByteBuffer.class);
+		} catch (Exception | LinkageError e) {
+			LOG.info("Unmapping files is not supported, mappings are released by the garbage collector: "
+					+ e);
+		}
+		INVOKE_CLEANER = invokeCleaner;
+		UNSAFE = unsafe;
+	}
+
+	private final long _minSize;
+
+	private final long _maxSize;
+
+	private final long _maxMappedBytes;
+
+	private final LinkedHashMap<String, Mapping> _mappings = new LinkedHashMap<>(
+			16, 0.75f, true);
+
+	private long _mappedBytes = 0;
+
+	/**
+	 * @param minSize
+	 *            smaller files are read with a stream
+	 * @param maxSize
+	 *            larger files are read with a stream, at most 2GB
+	 * @param maxMappedBytes
+	 *            total size of the cached mappings
+	 */
+	public MappedFileCache(long minSize, long maxSize, long maxMappedBytes) {
+		_minSize = minSize;
+		_maxSize = Math.min(maxSize, Integer.MAX_VALUE);
+		_maxMappedBytes = maxMappedBytes;
+	}
+
+	private static final class Mapping {
+
+		private final String _key;
+
+		private final MappedByteBuffer _buffer;
+
+		private final long _lastModified;
+
+		private int _readers = 0;
+
+		private boolean _removed = false;
+
+		private Mapping(String key, MappedByteBuffer buffer, long lastModified) {
+			_key = key;
+			_buffer = buffer;
+			_lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * @param file
+	 *            the file to read
+	 * @return a stream over the mapped file or null if its size is out of the
+	 *         mapped range
+	 */
+	public MappedContentStream open(File file) throws IOException {
+		long length = file.length();
+		if (length < _minSize || length > _maxSize || length > _maxMappedBytes)
+			return null;
+		long lastModified = file.lastModified();
+		String key = file.getPath();
+		synchronized (this) {
+			Mapping mapping = _mappings.get(key);
+			if (mapping != null && mapping._lastModified == lastModified
+					&& mapping._buffer.capacity() == length)
+				return new MappedContentStream(this, mapping);
+			if (mapping != null)
+				remove(mapping);
+		}
+
+		// map outside of the lock, two threads may map the same file at once
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			length = channel.size();
+			if (length < _minSize || length > _maxSize)
+				return null;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		}
+		Mapping mapping = new Mapping(key, buffer, lastModified);
+		synchronized (this) {
+			Mapping other = _mappings.put(key, mapping);
+			if (other != null) {
+				_mappedBytes -= other._buffer.capacity();
+				removed(other);
+			}
+			_mappedBytes += length;
+			MappedContentStream in = new MappedContentStream(this, mapping);
+			evict();
+			return in;
+		}
+	}
+
+	/**
+	 * Drops the mapping of a file that is deleted or replaced.
+	 */
+	public synchronized void remove(File file) {
+		Mapping mapping = _mappings.get(file.getPath());
+		if (mapping != null)
+			remove(mapping);
+	}
+
+	public synchronized void clear() {
+		List<Mapping> mappings = new ArrayList<>(_mappings.values());
+		for (Mapping mapping : mappings)
+			remove(mapping);
+	}
+
+	public synchronized int size() {
+		return _mappings.size();
+	}
+
+	/**
+	 * @return total size of the cached mappings
+	 */
+	public synchronized long getMappedBytes() {
+		return _mappedBytes;
+	}
+
+	private void remove(Mapping mapping) {
+		_mappings.remove(mapping._key);
+		_mappedBytes -= mapping._buffer.capacity();
+		removed(mapping);
+	}
+
+	private void evict() {
+		Iterator<Mapping> it = _mappings.values().iterator();
+		while (_mappedBytes > _maxMappedBytes && it.hasNext()) {
+			Mapping eldest = it.next();
+			it.remove();
+			_mappedBytes -= eldest._buffer.capacity();
+			removed(eldest);
+		}
+	}
+
+	private void removed(Mapping mapping) {
+		mapping._removed = true;
+		if (mapping._readers == 0)
+			unmap(mapping._buffer);
+	}
+
+	private synchronized void release(Mapping mapping) {
+		mapping._readers--;
+		if (mapping._removed && mapping._readers == 0)
+			unmap(mapping._buffer);
+	}
+
+	private static void unmap(MappedByteBuffer buffer) {
+		if (INVOKE_CLEANER == null)
+			return;
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (Exception e) {
+			LOG.warn("Unable to unmap file: " + e);
+		}
+	}
+
+	/**
+	 * Stream over a mapped file. {@link #getBuffer()} gives access to the
+	 * mapped bytes, the buffer must not be used after the stream is closed.
+	 */
+	public static class MappedContentStream extends InputStream {
+
+		private final MappedFileCache _cache;
+
+		private final Mapping _mapping;
+
+		private final ByteBuffer _buffer;
+
+		private boolean _closed = false;
+
+		/**
+		 * called with the cache locked
+		 */
+		private MappedContentStream(MappedFileCache cache, Mapping mapping) {
+			_cache = cache;
+			_mapping = mapping;
+			_buffer = mapping._buffer.asReadOnlyBuffer();
+			mapping._readers++;
+		}
+
+		/**
+		 * @return the bytes not read yet, reading from the buffer advances
+		 *         the stream
+		 */
+		public ByteBuffer getBuffer() throws IOException {
+			if (_closed)
+				throw new IOException("stream closed");
+			return _buffer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return getBuffer().hasRemaining() ? _buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!getBuffer().hasRemaining())
+				return len == 0 ? 0 : -1;
+			len = Math.min(len, _buffer.remaining());
+			_buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			if (_closed || n <= 0)
+				return 0;
+			int skipped = (int) Math.min(n, _buffer.remaining());
+			_buffer.position(_buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return _closed ? 0 : _buffer.remaining();
+		}
+
+		@Override
+		public void close() {
+			if (!_closed) {
+				_closed = true;
+				_cache.release(_mapping);
+			}
+		}
+	}
+}
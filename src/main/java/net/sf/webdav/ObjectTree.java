@@ -1,9 +1,12 @@
 package net.sf.webdav;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 /**
@@ -20,7 +23,17 @@ public class ObjectTree extends StoredObject {
 
     protected ObjectTree parent;
     
-    private List<ObjectTree> children = new ArrayList<>();
+    private List<ObjectTree> children = new CopyOnWriteArrayList<>();
+
+    /**
+     * children by their lower case name, names are matched ignoring case
+     */
+    private Map<String, ObjectTree> childIndex = new ConcurrentHashMap<>();
+
+    /**
+     * a child without a name, it matches every segment
+     */
+    private ObjectTree anyChild;
     
     private String baseref;
     
@@ -49,7 +62,46 @@ public class ObjectTree extends StoredObject {
     	this(name);
     	
     	this.parent = parent;
-    	parent.children.add(this);
+    	parent.addChild(this);
+    }
+
+    private void addChild(ObjectTree child) {
+    	children.add(child);
+    	if(child.name == null) {
+    		if(anyChild == null)
+    			anyChild = child;
+    	} else {
+    		childIndex.putIfAbsent(child.name.toLowerCase(Locale.ROOT), child);
+    	}
+    }
+
+    /**
+     * Detaches a child from this node.
+     * @param child the child to remove
+     */
+    public void removeChild(ObjectTree child) {
+    	if(!children.remove(child))
+    		return;
+    	if(child == anyChild) {
+    		anyChild = null;
+    		for(ObjectTree other : children) {
+    			if(other.name == null) {
+    				anyChild = other;
+    				break;
+    			}
+    		}
+    	} else if(child.name != null) {
+    		String key = child.name.toLowerCase(Locale.ROOT);
+    		if(childIndex.remove(key, child)) {
+    			// another child with the same name (ignoring case) takes over
+    			for(ObjectTree other : children) {
+    				if(other.name != null && other.name.equalsIgnoreCase(child.name)) {
+    					childIndex.putIfAbsent(key, other);
+    					break;
+    				}
+    			}
+    		}
+    	}
     }
 
 	/**
@@ -67,10 +119,20 @@ public class ObjectTree extends StoredObject {
 	}
 
 	/**
-	 * @return the children
+	 * @return the children, read only
 	 */
 	public List<ObjectTree> getChildren() {
-		return children;
+		return Collections.unmodifiableList(children);
+	}
+
+	/**
+	 * @param name the name of the child, case is ignored
+	 * @return the child with that name, a child without name if there is none
+	 *         or null
+	 */
+	public ObjectTree getChild(String name) {
+		ObjectTree child = childIndex.get(name.toLowerCase(Locale.ROOT));
+		return child != null ? child : anyChild;
 	}
 
 	/**
@@ -91,37 +153,26 @@ public class ObjectTree extends StoredObject {
 	 * @return a given path or null if not found
 	 */
 	public ObjectTree findByPath(String[] path) {
-		if(path == null || path.length == 0)
+		if(path == null)
 			return this;
-		
-		String cur = path[0];
-		if(cur.isEmpty()) {
-			if(path.length == 1)
-				return this;
-			else {
-				path = Arrays.copyOfRange(path, 1, path.length);
-				cur = path[0];
+		ObjectTree node = this;
+		int i = 0;
+		while(i < path.length) {
+			if(path[i].isEmpty()) {
+				if(++i == path.length)
+					return node;
 			}
-		}
-		
-		if(cur.equals(name)) {
-			if(path.length == 1)
-				return this;
-			
-			// go one deep
-			path = Arrays.copyOfRange(path, 1, path.length);
-			cur = path[0];
-		}
-		
-		// try to find the child
-		for(ObjectTree child: children) {
-			if(child.getName() == null || child.getName().equalsIgnoreCase(cur)) {
-				// go down one level
-				return child.findByPath(Arrays.copyOfRange(path, 1, path.length));
+			if(path[i].equals(node.name)) {
+				// go one deep
+				if(++i == path.length)
+					return node;
 			}
+			// try to find the child
+			node = node.getChild(path[i++]);
+			if(node == null)
+				return null;
 		}
-		
-		return null;
+		return node;
 	}
-    
+
 }
@@ -1,22 +1,36 @@
 package net.sf.webdav;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.sf.webdav.async.AsyncUpload;
+import net.sf.webdav.async.IAsyncContentStore;
+import net.sf.webdav.cache.ContentCachingWebdavStore;
+import net.sf.webdav.cache.OffHeapContentCache;
+import net.sf.webdav.carddav.IAddressbookQueryStore;
 import net.sf.webdav.exceptions.AccessDeniedException;
 import net.sf.webdav.exceptions.UnauthenticatedException;
 import net.sf.webdav.exceptions.WebdavException;
 import net.sf.webdav.fromcatalina.MD5Encoder;
+import net.sf.webdav.locking.AsyncLockingListener;
 import net.sf.webdav.locking.ResourceLocks;
 import net.sf.webdav.methods.DoCopy;
 import net.sf.webdav.methods.DoDelete;
@@ -32,6 +46,18 @@ import net.sf.webdav.methods.DoProppatch;
 import net.sf.webdav.methods.DoPut;
 import net.sf.webdav.methods.DoReport;
 import net.sf.webdav.methods.DoUnlock;
+import net.sf.webdav.metrics.CountingRequestWrapper;
+import net.sf.webdav.metrics.CountingResponseWrapper;
+import net.sf.webdav.metrics.IWebdavMetrics;
+import net.sf.webdav.metrics.MeteredResourceLocks;
+import net.sf.webdav.metrics.MeteredWebdavStore;
+import net.sf.webdav.sync.ChangeJournal;
+import net.sf.webdav.sync.JournalingWebdavStore;
+import net.sf.webdav.props.IPropertyStore;
+import net.sf.webdav.trace.RequestTrace;
+import net.sf.webdav.trace.TracingWebdavStore;
+import net.sf.webdav.upload.IStagedContentStore;
+import net.sf.webdav.xml.DavRequestParser;
 
 public class WebDavServletBean extends HttpServlet {
 
@@ -41,10 +67,22 @@ public class WebDavServletBean extends HttpServlet {
 			.getLogger(WebDavServletBean.class);
 
 	/**
-	 * MD5 message digest provider.
+	 * MD5 message digest provider, created once. MessageDigest is not thread
+	 * safe, subclasses using it from request threads have to synchronize on it.
+	 *
+	 * @deprecated not used by the servlet anymore, kept for subclasses
 	 */
+	@Deprecated
 	protected static MessageDigest MD5_HELPER;
 
+	static {
+		try {
+			MD5_HELPER = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
 	/**
 	 * The MD5 helper object for this class.
 	 */
@@ -54,21 +92,100 @@ public class WebDavServletBean extends HttpServlet {
 	protected ResourceLocks _resLocks;
 	protected IWebdavStore _store;
 	protected ILockingListener _lockingListener;
+	/**
+	 * optional metrics receiver, has to be set before init() is called
+	 */
+	protected IWebdavMetrics _metrics;
+	/**
+	 * requests taking at least this long get their trace logged, -1 disables
+	 * tracing. Has to be set before init() is called
+	 */
+	protected long _traceThresholdMillis = -1;
+	/**
+	 * optional storage for dead properties, has to be set before init() is
+	 * called. Without it PROPPATCH only pretends to succeed
+	 */
+	protected IPropertyStore _propertyStore;
+	/**
+	 * executor running the requests in async mode, null to run them on the
+	 * container thread
+	 */
+	protected ExecutorService _asyncExecutor;
+	/**
+	 * async timeout in milliseconds, 0 for none
+	 */
+	protected long _asyncTimeoutMillis = 0;
+	/**
+	 * transfer buffer of non-blocking uploads in async mode, 0 to read PUT
+	 * bodies blocking on the executor thread
+	 */
+	protected int _asyncUploadBufferSize = 65536;
+	/**
+	 * accept PUT with Content-Range if the store supports staged content
+	 */
+	protected boolean _resumableUploads = false;
+	/**
+	 * gzip level of PROPFIND/REPORT responses, -1 disables compression
+	 */
+	protected int _xmlCompressionLevel = -1;
+	protected int _xmlCompressionMinSize = 1024;
+	/**
+	 * serve precompressed content if the store has it
+	 */
+	protected boolean _encodedContent = false;
+	/**
+	 * streaming parser for PROPFIND/PROPPATCH/REPORT/LOCK bodies, null to
+	 * parse them into a DOM
+	 */
+	protected DavRequestParser _requestParser;
+	/**
+	 * journal of collection changes answering sync-collection reports, null
+	 * if they are not supported
+	 */
+	protected ChangeJournal _changeJournal;
+	/**
+	 * events waiting per thread when the locking listener is called
+	 * asynchronously, 0 to call it while the lock is taken
+	 */
+	protected int _lockingListenerQueueSize = 0;
+	protected int _lockingListenerBatchSize = 100;
+	protected int _lockingListenerThreads = 1;
+	protected AsyncLockingListener.OverflowPolicy _lockingListenerOverflow = AsyncLockingListener.OverflowPolicy.BLOCK;
+	/**
+	 * off-heap cache for the content of small resources, null to always read
+	 * from the store
+	 */
+	protected OffHeapContentCache _contentCache;
+	protected long _contentCacheRevalidateMillis = 1000;
+	/**
+	 * members per page of the HTML folder listing, 0 for a single page
+	 */
+	protected int _folderPageSize = 1000;
 	private final Map<String, IMethodExecutor> _methodMap = new HashMap<>();
 
-	public WebDavServletBean() {
-		try {
-			MD5_HELPER = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			throw new IllegalStateException();
-		}
-	}
-
 	public void init(IWebdavStore store, ILockingListener lockingListener,
 			String dftIndexFile, String insteadOf404,
 			int nocontentLenghHeaders, boolean lazyFolderCreationOnPut) {
 
+		IWebdavStore contentStore = store;
+		ContentCachingWebdavStore cachingStore = null;
+		if (_contentCache != null)
+			store = cachingStore = new ContentCachingWebdavStore(store,
+					_contentCache, _contentCacheRevalidateMillis);
+		JournalingWebdavStore journalingStore = null;
+		if (_changeJournal != null)
+			store = journalingStore = new JournalingWebdavStore(store, _changeJournal);
+		MeteredWebdavStore meteredStore = null;
+		if (_metrics != null)
+			store = meteredStore = new MeteredWebdavStore(store, _metrics);
+		TracingWebdavStore tracingStore = null;
+		if (_traceThresholdMillis >= 0)
+			store = tracingStore = new TracingWebdavStore(store);
 		_store = store;
+		if (lockingListener != null && _lockingListenerQueueSize > 0)
+			lockingListener = new AsyncLockingListener(lockingListener,
+					_lockingListenerQueueSize, _lockingListenerBatchSize,
+					_lockingListenerThreads, _lockingListenerOverflow);
 		_lockingListener = lockingListener;
 
 		_resLocks = createResourceLocks(_lockingListener);
@@ -85,24 +202,77 @@ public class WebDavServletBean extends HttpServlet {
 			}
 		};
 
-		register("GET", new DoGet(store, dftIndexFile, insteadOf404, _resLocks,
-				mimeTyper, nocontentLenghHeaders));
-		register("HEAD", new DoHead(store, dftIndexFile, insteadOf404,
-				_resLocks, mimeTyper, nocontentLenghHeaders));
+		DoGet doGet = new DoGet(store, dftIndexFile, insteadOf404, _resLocks,
+				mimeTyper, nocontentLenghHeaders);
+		DoHead doHead = new DoHead(store, dftIndexFile, insteadOf404,
+				_resLocks, mimeTyper, nocontentLenghHeaders);
+		if (_encodedContent && contentStore instanceof IEncodedContentStore) {
+			doGet.setEncodedContentStore((IEncodedContentStore) contentStore);
+			doHead.setEncodedContentStore((IEncodedContentStore) contentStore);
+		}
+		if (contentStore instanceof IFolderListingStore) {
+			IFolderListingStore listingStore = (IFolderListingStore) contentStore;
+			if (meteredStore != null)
+				listingStore = meteredStore.metered(listingStore);
+			if (tracingStore != null)
+				listingStore = tracingStore.traced(listingStore);
+			doGet.setFolderListing(listingStore, _folderPageSize);
+		} else {
+			doGet.setFolderListing(null, _folderPageSize);
+		}
+		register("GET", doGet);
+		register("HEAD", doHead);
 		DoDelete doDelete = (DoDelete) register("DELETE", new DoDelete(store,
 				_resLocks, READ_ONLY));
+		doDelete.setPropertyStore(_propertyStore);
 		DoCopy doCopy = (DoCopy) register("COPY", new DoCopy(store, _resLocks,
 				doDelete, READ_ONLY));
-		register("LOCK", new DoLock(store, _lockingListener, _resLocks, READ_ONLY));
+		doCopy.setPropertyStore(_propertyStore);
+		DoLock doLock = new DoLock(store, _lockingListener, _resLocks, READ_ONLY);
+		doLock.setRequestParser(_requestParser);
+		register("LOCK", doLock);
 		register("UNLOCK", new DoUnlock(store, _lockingListener, _resLocks, READ_ONLY));
-		register("MOVE", new DoMove(_resLocks, store, doDelete, doCopy, READ_ONLY));
+		DoMove doMove = new DoMove(_resLocks, store, doDelete, doCopy, READ_ONLY);
+		doMove.setPropertyStore(_propertyStore);
+		register("MOVE", doMove);
 		register("MKCOL", new DoMkcol(store, _resLocks, READ_ONLY));
 		register("OPTIONS", new DoOptions(store, _resLocks));
-		register("PUT", new DoPut(store, _resLocks, READ_ONLY,
-				lazyFolderCreationOnPut));
-		register("PROPFIND", new DoPropfind(store, _resLocks, mimeTyper));
-		register("PROPPATCH", new DoProppatch(store, _resLocks, READ_ONLY));
-		register("REPORT", new DoReport(store, _resLocks));
+		DoPut doPut = new DoPut(store, _resLocks, READ_ONLY,
+				lazyFolderCreationOnPut);
+		if (_asyncExecutor != null && _asyncUploadBufferSize > 0
+				&& contentStore instanceof IAsyncContentStore) {
+			IAsyncContentStore asyncStore = (IAsyncContentStore) contentStore;
+			if (cachingStore != null)
+				asyncStore = cachingStore.invalidating(asyncStore);
+			if (journalingStore != null)
+				asyncStore = journalingStore.journal(asyncStore);
+			doPut.setAsyncContentStore(asyncStore, _asyncUploadBufferSize);
+		}
+		if (_resumableUploads && contentStore instanceof IStagedContentStore) {
+			IStagedContentStore stagedStore = (IStagedContentStore) contentStore;
+			if (cachingStore != null)
+				stagedStore = cachingStore.invalidating(stagedStore);
+			if (journalingStore != null)
+				stagedStore = journalingStore.journal(stagedStore);
+			doPut.setStagedContentStore(stagedStore);
+		}
+		register("PUT", doPut);
+		DoPropfind doPropfind = new DoPropfind(store, _resLocks, mimeTyper);
+		doPropfind.setPropertyStore(_propertyStore);
+		doPropfind.setResponseCompression(_xmlCompressionLevel, _xmlCompressionMinSize);
+		doPropfind.setRequestParser(_requestParser);
+		register("PROPFIND", doPropfind);
+		DoProppatch doProppatch = new DoProppatch(store, _resLocks, READ_ONLY);
+		doProppatch.setPropertyStore(_propertyStore);
+		doProppatch.setRequestParser(_requestParser);
+		register("PROPPATCH", doProppatch);
+		DoReport doReport = new DoReport(store, _resLocks);
+		doReport.setResponseCompression(_xmlCompressionLevel, _xmlCompressionMinSize);
+		doReport.setRequestParser(_requestParser);
+		if (contentStore instanceof IAddressbookQueryStore)
+			doReport.setAddressbookQueryStore((IAddressbookQueryStore) contentStore);
+		doReport.setChangeJournal(_changeJournal);
+		register("REPORT", doReport);
 		register("*NO*IMPL*", new DoNotImplemented(READ_ONLY));
 	}
 
@@ -112,13 +282,177 @@ public class WebDavServletBean extends HttpServlet {
 	 * @return
 	 */
 	protected ResourceLocks createResourceLocks(ILockingListener lockingListener) {
+		if (_metrics != null)
+			return new MeteredResourceLocks(lockingListener, _metrics);
 		return new ResourceLocks(lockingListener);
 	}
 
+	/**
+	 * Sets the receiver for request, store and lock measurements. Must be
+	 * called before {@link #init(IWebdavStore, ILockingListener, String, String, int, boolean)}.
+	 * @param metrics the metrics implementation or null to disable
+	 */
+	public void setMetrics(IWebdavMetrics metrics) {
+		_metrics = metrics;
+	}
+
+	public IWebdavMetrics getMetrics() {
+		return _metrics;
+	}
+
+	/**
+	 * Sets the storage for dead properties. Must be called before
+	 * {@link #init(IWebdavStore, ILockingListener, String, String, int, boolean)}.
+	 * @param propertyStore the property store or null to disable
+	 */
+	public void setPropertyStore(IPropertyStore propertyStore) {
+		_propertyStore = propertyStore;
+	}
+
+	/**
+	 * Enables async mode: requests are taken off the container thread with
+	 * startAsync() and executed by the given executor. When the executor
+	 * rejects a request the client gets a 503.
+	 * @param executor bounded executor or null to run requests on the container thread
+	 * @param timeoutMillis async timeout, 0 for no timeout
+	 */
+	public void setAsyncExecutor(ExecutorService executor, long timeoutMillis) {
+		_asyncExecutor = executor;
+		_asyncTimeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Sets the transfer buffer size of non-blocking PUT in async mode. Only
+	 * used when the store implements {@link IAsyncContentStore}. Must be
+	 * called before {@link #init(IWebdavStore, ILockingListener, String, String, int, boolean)}.
+	 * @param bufferSize buffer size per upload, 0 to read the body blocking on the executor thread
+	 */
+	public void setAsyncUploadBufferSize(int bufferSize) {
+		_asyncUploadBufferSize = bufferSize;
+	}
+
+	/**
+	 * Enables resumable uploads (PUT with Content-Range) for stores
+	 * implementing {@link IStagedContentStore}. Must be called before
+	 * {@link #init(IWebdavStore, ILockingListener, String, String, int, boolean)}.
+	 * @param resumableUploads true to accept partial PUT
+	 */
+	public void setResumableUploads(boolean resumableUploads) {
+		_resumableUploads = resumableUploads;
+	}
+
+	/**
+	 * Enables gzip compression of PROPFIND and REPORT responses for clients
+	 * accepting it, the xml is then streamed while it is generated. Must be
+	 * called before {@link #init(IWebdavStore, ILockingListener, String, String, int, boolean)}.
+	 * @param level deflate level 0-9, -1 to disable
+	 * @param minSize responses up to this many bytes are sent uncompressed
+	 */
+	public void setXmlCompression(int level, int minSize) {
+		_xmlCompressionLevel = level;
+		_xmlCompressionMinSize = minSize;
+	}
+
+	/**
+	 * Parses PROPFIND, PROPPATCH, REPORT and LOCK bodies with a streaming
+	 * parser that rejects DOCTYPEs instead of building a DOM. Must be called
+	 * before {@link #init(IWebdavStore, ILockingListener, String, String, int, boolean)}.
+	 * @param maxBodySize larger bodies are answered with 413, 0 for no limit
+	 */
+	public void setStreamingRequestParser(long maxBodySize) {
+		_requestParser = new DavRequestParser(maxBodySize);
+	}
+
+	/**
+	 * Enables the sync-collection REPORT: changes of collection members are
+	 * written to the journal, which hands out the sync tokens. Must be called
+	 * before {@link #init(IWebdavStore, ILockingListener, String, String, int, boolean)}.
+	 * @param changeJournal the journal or null to disable
+	 */
+	public void setChangeJournal(ChangeJournal changeJournal) {
+		_changeJournal = changeJournal;
+	}
+
+	/**
+	 * Calls the locking listener on background threads instead of while the
+	 * lock is taken. Must be called before
+	 * {@link #init(IWebdavStore, ILockingListener, String, String, int, boolean)}.
+	 * @param queueSize events waiting per thread, 0 to call the listener synchronously
+	 * @param batchSize maximum number of events handed over at once
+	 * @param threads number of threads, the events of one path always go to the same thread
+	 * @param overflow what to do with events when the queue is full
+	 */
+	public void setAsyncLockingListener(int queueSize, int batchSize,
+			int threads, AsyncLockingListener.OverflowPolicy overflow) {
+		_lockingListenerQueueSize = queueSize;
+		_lockingListenerBatchSize = batchSize;
+		_lockingListenerThreads = threads;
+		_lockingListenerOverflow = overflow;
+	}
+
+	/**
+	 * Keeps the content of small resources in an off-heap cache, GET of a
+	 * cached resource does not touch the store. Must be called before
+	 * {@link #init(IWebdavStore, ILockingListener, String, String, int, boolean)}.
+	 * @param contentCache the cache or null to disable
+	 * @param revalidateMillis how long a cached resource is served before its metadata is read again to catch changes made outside of the server
+	 */
+	public void setContentCache(OffHeapContentCache contentCache,
+			long revalidateMillis) {
+		_contentCache = contentCache;
+		_contentCacheRevalidateMillis = revalidateMillis;
+	}
+
+	/**
+	 * Sets the number of members shown per page when a browser GETs a
+	 * folder. Must be called before
+	 * {@link #init(IWebdavStore, ILockingListener, String, String, int, boolean)}.
+	 * @param pageSize members per page, 0 to list all members on one page
+	 */
+	public void setFolderPageSize(int pageSize) {
+		_folderPageSize = pageSize;
+	}
+
+	/**
+	 * Lets GET and HEAD serve precompressed content to clients accepting
+	 * gzip, for stores implementing {@link IEncodedContentStore}. Must be
+	 * called before {@link #init(IWebdavStore, ILockingListener, String, String, int, boolean)}.
+	 * @param encodedContent true to negotiate Accept-Encoding
+	 */
+	public void setEncodedContent(boolean encodedContent) {
+		_encodedContent = encodedContent;
+	}
+
+	/**
+	 * Enables per request tracing of store calls and xml handling. Requests
+	 * taking at least the given time are logged with their span tree. Must be
+	 * called before {@link #init(IWebdavStore, ILockingListener, String, String, int, boolean)}.
+	 * @param thresholdMillis minimum duration to log, 0 logs every request, -1 disables tracing
+	 */
+	public void setTraceThreshold(long thresholdMillis) {
+		_traceThresholdMillis = thresholdMillis;
+	}
+
 	@Override
 	public void destroy() {
 		if(_store != null)
 			_store.destroy();
+		if (_propertyStore != null)
+			_propertyStore.destroy();
+		if (_metrics != null)
+			_metrics.destroy();
+		if (_lockingListener instanceof AsyncLockingListener)
+			((AsyncLockingListener) _lockingListener).close(10000);
+		if (_asyncExecutor != null) {
+			_asyncExecutor.shutdown();
+			try {
+				if (!_asyncExecutor.awaitTermination(10, TimeUnit.SECONDS))
+					_asyncExecutor.shutdownNow();
+			} catch (InterruptedException e) {
+				_asyncExecutor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
 		super.destroy();
 	}
 
@@ -133,6 +467,149 @@ public class WebDavServletBean extends HttpServlet {
 	@Override
 	protected void service(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
+		if (_asyncExecutor != null && req.isAsyncSupported()) {
+			dispatchAsync(req, resp);
+			return;
+		}
+		meteredService(req, resp);
+	}
+
+	/**
+	 * Runs the request on the async executor, the container thread is
+	 * returned to the pool right away.
+	 */
+	private void dispatchAsync(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		final AsyncContext ctx = req.startAsync(req, resp);
+		ctx.setTimeout(_asyncTimeoutMillis);
+		ctx.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) {
+				abortUpload(event, new TimeoutException("async timeout"));
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+				abortUpload(event, event.getThrowable());
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+		try {
+			_asyncExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					HttpServletRequest asyncReq = (HttpServletRequest) ctx.getRequest();
+					HttpServletResponse asyncResp = (HttpServletResponse) ctx.getResponse();
+					try {
+						meteredService(asyncReq, asyncResp);
+					} catch (Exception e) {
+						LOG.error("Async " + asyncReq.getMethod() + " failed", e);
+						if (!asyncResp.isCommitted()) {
+							try {
+								asyncResp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
+							} catch (IOException ignore) {
+								// client is gone
+							}
+						}
+					} finally {
+						// a non-blocking upload completes the request once the body is stored
+						AsyncUpload upload = AsyncUpload.get(asyncReq);
+						if (upload == null) {
+							complete(ctx);
+						} else {
+							upload.whenDone(new AsyncUpload.Listener() {
+								@Override
+								public void uploadFinished(AsyncUpload upload) {
+									complete(ctx);
+								}
+							});
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOG.warn("Rejecting " + req.getMethod() + " " + req.getRequestURI()
+					+ ": async executor is saturated");
+			resp.setHeader("Retry-After", "1");
+			resp.sendError(WebdavStatus.SC_SERVICE_UNAVAILABLE);
+			complete(ctx);
+		}
+	}
+
+	private static void abortUpload(AsyncEvent event, Throwable reason) {
+		AsyncUpload upload = AsyncUpload.get(event.getAsyncContext().getRequest());
+		if (upload != null)
+			upload.abort(reason);
+	}
+
+	private static void complete(AsyncContext ctx) {
+		try {
+			ctx.complete();
+		} catch (IllegalStateException e) {
+			// already completed by a timeout
+			LOG.debug("async context already completed: " + e.getMessage());
+		}
+	}
+
+	private void meteredService(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		if (_metrics == null) {
+			tracedService(req, resp);
+			return;
+		}
+
+		final String methodName = req.getMethod();
+		final CountingRequestWrapper countingReq = new CountingRequestWrapper(req);
+		final CountingResponseWrapper countingResp = new CountingResponseWrapper(resp);
+		_metrics.requestStarted(methodName);
+		final long start = System.nanoTime();
+		try {
+			tracedService(countingReq, countingResp);
+		} finally {
+			AsyncUpload upload = _asyncExecutor != null ? AsyncUpload.get(req) : null;
+			if (upload == null) {
+				_metrics.requestFinished(methodName, countingResp.getStatus(),
+						System.nanoTime() - start, countingReq.getBytesRead(),
+						countingResp.getBytesWritten());
+			} else {
+				upload.whenDone(new AsyncUpload.Listener() {
+					@Override
+					public void uploadFinished(AsyncUpload upload) {
+						_metrics.requestFinished(methodName, countingResp.getStatus(),
+								System.nanoTime() - start, countingReq.getBytesRead(),
+								countingResp.getBytesWritten());
+					}
+				});
+			}
+		}
+	}
+
+	private void tracedService(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		if (_traceThresholdMillis < 0) {
+			doService(req, resp);
+			return;
+		}
+
+		RequestTrace.begin(req.getMethod(), req.getRequestURI());
+		try {
+			doService(req, resp);
+		} finally {
+			RequestTrace trace = RequestTrace.finish();
+			if (trace != null && trace.getDurationNanos() >= _traceThresholdMillis * 1000000L)
+				LOG.warn("Slow request (>= " + _traceThresholdMillis + " ms):\n" + trace.dump());
+		}
+	}
+
+	private void doService(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
 
 		String methodName = req.getMethod();
 		ITransaction transaction = null;
@@ -156,7 +633,20 @@ public class WebDavServletBean extends HttpServlet {
 							.get("*NO*IMPL*");
 				}
 
-				methodExecutor.execute(transaction, req, resp);
+				try {
+					methodExecutor.execute(transaction, req, resp);
+				} catch (UncheckedIOException e) {
+					// thrown by a streaming XMLWriter
+					throw e.getCause();
+				}
+
+				AsyncUpload upload = _asyncExecutor != null ? AsyncUpload.get(req) : null;
+				if (upload != null) {
+					// the body is still being received
+					needRollback = false;
+					commitAfterUpload(upload, transaction, resp);
+					return;
+				}
 
 				_store.commit(transaction);
 				/** Clear not consumed data
@@ -177,7 +667,8 @@ public class WebDavServletBean extends HttpServlet {
 				java.io.PrintWriter pw = new java.io.PrintWriter(sw);
 				e.printStackTrace(pw);
 				LOG.error("IOException: " + sw.toString());
-				resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
+				if (!resp.isCommitted())
+					resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
 				_store.rollback(transaction);
 				throw new ServletException(e);
 			}
@@ -205,6 +696,32 @@ public class WebDavServletBean extends HttpServlet {
 
 	}
 
+	private void commitAfterUpload(AsyncUpload upload,
+			final ITransaction transaction, final HttpServletResponse resp) {
+		upload.whenDone(new AsyncUpload.Listener() {
+			@Override
+			public void uploadFinished(AsyncUpload upload) {
+				if (upload.getFailure() != null) {
+					_store.rollback(transaction);
+					return;
+				}
+				try {
+					_store.commit(transaction);
+				} catch (RuntimeException e) {
+					LOG.error("Commit after upload failed", e);
+					_store.rollback(transaction);
+					if (!resp.isCommitted()) {
+						try {
+							resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
+						} catch (IOException ignore) {
+							// client is gone
+						}
+					}
+				}
+			}
+		});
+	}
+
 	private void debugRequest(String methodName, HttpServletRequest req) {
 		LOG.debug("-----------");
 		LOG.debug("Request: methodName = " + methodName);
@@ -18,10 +18,22 @@ package net.sf.webdav;
 
 import java.io.File;
 import java.lang.reflect.Constructor;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
 
 import javax.servlet.ServletException;
 
+import net.sf.webdav.async.AsyncExecutors;
+import net.sf.webdav.cache.CachingWebdavStore;
+import net.sf.webdav.cache.OffHeapContentCache;
 import net.sf.webdav.exceptions.WebdavException;
+import net.sf.webdav.locking.AsyncLockingListener.OverflowPolicy;
+import net.sf.webdav.metrics.IWebdavMetrics;
+import net.sf.webdav.metrics.JmxWebdavMetrics;
+import net.sf.webdav.metrics.SimpleWebdavMetrics;
+import net.sf.webdav.props.FilePropertyStore;
+import net.sf.webdav.routing.RoutingWebdavStore;
+import net.sf.webdav.sync.ChangeJournal;
 
 /**
  * Servlet which provides support for WebDAV level 2.
@@ -36,6 +48,9 @@ public class WebdavServlet extends WebDavServletBean {
 	
 	private static final long serialVersionUID = 1L;
 
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(WebdavServlet.class);
+
 	private static final String INIT_PARAM_DEFAULT_INDEX_FILE = "default-index-file";
 	private static final String INIT_PARAM_INSTEAD_OF_404 = "instead-of-404";
 	private static final String INIT_PARAM_LAZY_FOLDER_CREATION_ON_PUT = "lazyFolderCreationOnPut";
@@ -43,6 +58,44 @@ public class WebdavServlet extends WebDavServletBean {
 	private static final String INIT_PARAM_RESOURCE_HANDLER_IMPL = "ResourceHandlerImplementation";
 	private static final String INIT_PARAM_ROOTPATH = "rootpath";
 	private static final String INIT_PARAM_ROOTPATH_WAR_FILE_ROOT_VALUE = "*WAR-FILE-ROOT*";
+	private static final String INIT_PARAM_METRICS = "metrics";
+	private static final String INIT_PARAM_TRACE_THRESHOLD = "trace-threshold-ms";
+	private static final String INIT_PARAM_CONTENT_ETAG = "content-etag";
+	private static final String INIT_PARAM_PROPERTY_STORE_ROOT = "property-store-root";
+	private static final String INIT_PARAM_ASYNC = "async";
+	private static final String INIT_PARAM_ASYNC_THREADS = "async-threads";
+	private static final String INIT_PARAM_ASYNC_QUEUE = "async-queue";
+	private static final String INIT_PARAM_ASYNC_VIRTUAL_THREADS = "async-virtual-threads";
+	private static final String INIT_PARAM_ASYNC_TIMEOUT = "async-timeout-ms";
+	private static final String INIT_PARAM_ASYNC_UPLOAD_BUFFER = "async-upload-buffer";
+	private static final String INIT_PARAM_RESUMABLE_PUT = "resumable-put";
+	private static final String INIT_PARAM_GZIP_SIDECARS = "gzip-sidecars";
+	private static final String INIT_PARAM_MMAP_READS_MB = "mmap-reads-mb";
+	private static final String INIT_PARAM_MMAP_MIN_SIZE = "mmap-min-size";
+	private static final String INIT_PARAM_MMAP_MAX_SIZE = "mmap-max-size";
+	private static final String INIT_PARAM_XML_COMPRESSION_LEVEL = "xml-compression-level";
+	private static final String INIT_PARAM_XML_COMPRESSION_MIN_SIZE = "xml-compression-min-size";
+	private static final String INIT_PARAM_XML_STREAMING_PARSER = "xml-streaming-parser";
+	private static final String INIT_PARAM_XML_MAX_REQUEST_SIZE = "xml-max-request-size";
+	private static final String INIT_PARAM_SYNC_COLLECTION = "sync-collection";
+	private static final String INIT_PARAM_SYNC_JOURNAL_ROOT = "sync-journal-root";
+	private static final String INIT_PARAM_SYNC_JOURNAL_SIZE = "sync-journal-size";
+	private static final String INIT_PARAM_CARDDAV_CACHED_HOMES = "carddav-cached-homes";
+	private static final String INIT_PARAM_LOCKING_LISTENER_QUEUE = "locking-listener-queue";
+	private static final String INIT_PARAM_LOCKING_LISTENER_BATCH = "locking-listener-batch";
+	private static final String INIT_PARAM_LOCKING_LISTENER_THREADS = "locking-listener-threads";
+	private static final String INIT_PARAM_LOCKING_LISTENER_OVERFLOW = "locking-listener-overflow";
+	private static final String INIT_PARAM_FOLDER_PAGE_SIZE = "folder-page-size";
+	private static final String INIT_PARAM_CONTENT_CACHE_MB = "content-cache-mb";
+	private static final String INIT_PARAM_CONTENT_CACHE_ENTRIES = "content-cache-entries";
+	private static final String INIT_PARAM_CONTENT_CACHE_MAX_FILE = "content-cache-max-file";
+	private static final String INIT_PARAM_CONTENT_CACHE_REVALIDATE = "content-cache-revalidate-ms";
+	private static final String INIT_PARAM_CACHE_ROOT = "cache-root";
+	private static final String INIT_PARAM_CACHE_SIZE_MB = "cache-size-mb";
+	private static final String INIT_PARAM_CACHE_ENTRIES = "cache-entries";
+	private static final String INIT_PARAM_CACHE_TTL = "cache-ttl-ms";
+	private static final String INIT_PARAM_CACHE_WRITE_BACK = "cache-write-back";
+	private static final String INIT_PARAM_MOUNTS = "mounts";
 
 	@Override
 	public void init() throws ServletException {
@@ -56,7 +109,18 @@ public class WebdavServlet extends WebDavServletBean {
 
 		File root = getFileRoot();
 
-		IWebdavStore webdavStore = constructStore(clazzName, root);
+		IWebdavStore webdavStore = configureStore(constructStore(clazzName, root));
+		setEncodedContent(getIntInitParameter(INIT_PARAM_GZIP_SIDECARS, 0) > 0);
+		String mounts = getInitParameter(INIT_PARAM_MOUNTS);
+		if (mounts != null && !"".equals(mounts.trim()))
+			webdavStore = constructRoutingStore(clazzName, webdavStore, mounts);
+		String cacheRoot = getInitParameter(INIT_PARAM_CACHE_ROOT);
+		if (cacheRoot != null && !"".equals(cacheRoot.trim()))
+			webdavStore = new CachingWebdavStore(webdavStore, new File(cacheRoot.trim()),
+					getIntInitParameter(INIT_PARAM_CACHE_SIZE_MB, 1024) * 1024L * 1024L,
+					getIntInitParameter(INIT_PARAM_CACHE_ENTRIES, 100000),
+					getIntInitParameter(INIT_PARAM_CACHE_TTL, 5000),
+					getBooleanInitParameter(INIT_PARAM_CACHE_WRITE_BACK, false));
 
 		boolean lazyFolderCreationOnPut = getBooleanInitParameter(INIT_PARAM_LAZY_FOLDER_CREATION_ON_PUT, false);
 		String dftIndexFile = getInitParameter(INIT_PARAM_DEFAULT_INDEX_FILE);
@@ -65,11 +129,88 @@ public class WebdavServlet extends WebDavServletBean {
 
 		// Lock notifications
 		ILockingListener listener = constructLockingListener(getInitParameter("LockingListener"));
+		String overflow = getInitParameter(INIT_PARAM_LOCKING_LISTENER_OVERFLOW);
+		setAsyncLockingListener(getIntInitParameter(INIT_PARAM_LOCKING_LISTENER_QUEUE, 0),
+				getIntInitParameter(INIT_PARAM_LOCKING_LISTENER_BATCH, 100),
+				getIntInitParameter(INIT_PARAM_LOCKING_LISTENER_THREADS, 1),
+				overflow == null || "".equals(overflow.trim()) ? OverflowPolicy.BLOCK
+						: OverflowPolicy.valueOf(overflow.trim().toUpperCase(Locale.ROOT).replace('-', '_')));
+
+		setMetrics(constructMetrics(getInitParameter(INIT_PARAM_METRICS)));
+		setTraceThreshold(getIntInitParameter(INIT_PARAM_TRACE_THRESHOLD, -1));
+		String propertyRoot = getInitParameter(INIT_PARAM_PROPERTY_STORE_ROOT);
+		if (propertyRoot != null && !"".equals(propertyRoot.trim()))
+			setPropertyStore(new FilePropertyStore(new File(propertyRoot.trim())));
+		setResumableUploads(getBooleanInitParameter(INIT_PARAM_RESUMABLE_PUT, false));
+		setXmlCompression(getIntInitParameter(INIT_PARAM_XML_COMPRESSION_LEVEL, -1),
+				getIntInitParameter(INIT_PARAM_XML_COMPRESSION_MIN_SIZE, 1024));
+		if (getBooleanInitParameter(INIT_PARAM_XML_STREAMING_PARSER, false))
+			setStreamingRequestParser(getIntInitParameter(INIT_PARAM_XML_MAX_REQUEST_SIZE, 1048576));
+		if (getBooleanInitParameter(INIT_PARAM_SYNC_COLLECTION, false)) {
+			String journalRoot = getInitParameter(INIT_PARAM_SYNC_JOURNAL_ROOT);
+			setChangeJournal(new ChangeJournal(journalRoot == null
+					|| "".equals(journalRoot.trim()) ? null : new File(
+					journalRoot.trim()), getIntInitParameter(
+					INIT_PARAM_SYNC_JOURNAL_SIZE, 10000)));
+		}
+		setFolderPageSize(getIntInitParameter(INIT_PARAM_FOLDER_PAGE_SIZE, 1000));
+		int contentCacheMb = getIntInitParameter(INIT_PARAM_CONTENT_CACHE_MB, 0);
+		if (contentCacheMb > 0)
+			setContentCache(new OffHeapContentCache(contentCacheMb * 1024L * 1024L,
+					getIntInitParameter(INIT_PARAM_CONTENT_CACHE_ENTRIES, 10000),
+					getIntInitParameter(INIT_PARAM_CONTENT_CACHE_MAX_FILE, 65536)),
+					getIntInitParameter(INIT_PARAM_CONTENT_CACHE_REVALIDATE, 1000));
+		if (getBooleanInitParameter(INIT_PARAM_ASYNC, false)) {
+			setAsyncExecutor(constructAsyncExecutor(),
+					getIntInitParameter(INIT_PARAM_ASYNC_TIMEOUT, 0));
+			setAsyncUploadBufferSize(getIntInitParameter(INIT_PARAM_ASYNC_UPLOAD_BUFFER, 65536));
+		}
 
 		super.init(webdavStore, listener, dftIndexFile, insteadOf404,
 				noContentLengthHeader, lazyFolderCreationOnPut);
 	}
 
+	private IWebdavStore configureStore(IWebdavStore webdavStore) {
+		// 0 = off, 1 = serve existing compressed copies, 2 = also build missing ones
+		int gzipSidecars = getIntInitParameter(INIT_PARAM_GZIP_SIDECARS, 0);
+		if (webdavStore instanceof LocalFileSystemStore) {
+			LocalFileSystemStore localStore = (LocalFileSystemStore) webdavStore;
+			localStore.setContentEtags(
+					getBooleanInitParameter(INIT_PARAM_CONTENT_ETAG, false));
+			localStore.setGzipSidecars(gzipSidecars > 0, gzipSidecars > 1);
+			localStore.setMappedReads(getIntInitParameter(INIT_PARAM_MMAP_MIN_SIZE, 262144),
+					getIntInitParameter(INIT_PARAM_MMAP_MAX_SIZE, 268435456),
+					getIntInitParameter(INIT_PARAM_MMAP_READS_MB, 0) * 1024L * 1024L);
+		}
+		if (webdavStore instanceof CardDavFileStore)
+			((CardDavFileStore) webdavStore).setMaxCachedHomes(
+					getIntInitParameter(INIT_PARAM_CARDDAV_CACHED_HOMES, 1000));
+		return webdavStore;
+	}
+
+	/**
+	 * @param mounts
+	 *            "/prefix=dir" separated by ';', several dirs separated by ','
+	 *            shard the prefix
+	 */
+	protected IWebdavStore constructRoutingStore(String clazzName,
+			IWebdavStore rootStore, String mounts) {
+		RoutingWebdavStore routingStore = new RoutingWebdavStore(rootStore);
+		for (String mount : mounts.split(";")) {
+			if ("".equals(mount.trim()))
+				continue;
+			int eq = mount.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("mount without directory: " + mount);
+			String[] dirs = mount.substring(eq + 1).split(",");
+			IWebdavStore[] stores = new IWebdavStore[dirs.length];
+			for (int i = 0; i < dirs.length; i++)
+				stores[i] = configureStore(constructStore(clazzName, new File(dirs[i].trim())));
+			routingStore.shard(mount.substring(0, eq).trim(), stores);
+		}
+		return routingStore;
+	}
+
 	protected IWebdavStore constructStore(String clazzName, File root) {
 		IWebdavStore webdavStore;
 			try {
@@ -108,9 +249,49 @@ public class WebdavServlet extends WebDavServletBean {
 		return listener;
 	}
 
+	/**
+	 * @param type
+	 *      "none" (default), "simple", "jmx" or the class name of an
+	 *      {@link IWebdavMetrics} implementation with a default constructor
+	 * @return the metrics implementation or null if disabled
+	 */
+	protected IWebdavMetrics constructMetrics(String type) {
+		if (type == null || "".equals(type.trim()) || "none".equalsIgnoreCase(type.trim()))
+			return null;
+		type = type.trim();
+		if ("simple".equalsIgnoreCase(type))
+			return new SimpleWebdavMetrics();
+		if ("jmx".equalsIgnoreCase(type))
+			return new JmxWebdavMetrics(getServletName());
+		try {
+			Class<?> clazz = WebdavServlet.class.getClassLoader().loadClass(type);
+			return (IWebdavMetrics) clazz.getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new RuntimeException("Could not instantiate metrics " + type, e);
+		}
+	}
+
+	/**
+	 * @return the executor for async mode: virtual threads if requested and
+	 *         available (JDK 21+), a bounded thread pool otherwise
+	 */
+	protected ExecutorService constructAsyncExecutor() {
+		int threads = getIntInitParameter(INIT_PARAM_ASYNC_THREADS, 50);
+		int queue = getIntInitParameter(INIT_PARAM_ASYNC_QUEUE, 100);
+		String name = "webdav-" + getServletName();
+		if (getBooleanInitParameter(INIT_PARAM_ASYNC_VIRTUAL_THREADS, false)) {
+			// no queue needed, every waiting request gets its own virtual thread
+			ExecutorService virtual = AsyncExecutors.virtual(name, threads + queue);
+			if (virtual != null)
+				return virtual;
+			LOG.warn("Virtual threads are not available on this JVM, using a thread pool");
+		}
+		return AsyncExecutors.bounded(name, threads, queue);
+	}
+
     private boolean getBooleanInitParameter(String key, boolean defaultValue) {
 		String value = getInitParameter(key);
-		return value == null ? defaultValue : ("1".equals(value) || Boolean.getBoolean(value));
+		return value == null ? defaultValue : ("1".equals(value) || Boolean.parseBoolean(value));
 	}
 
 	private int getIntInitParameter(String key, int defaultValue) {
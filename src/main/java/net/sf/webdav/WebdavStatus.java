@@ -68,6 +68,13 @@ public class WebdavStatus {
      */
     public static final int SC_NOT_MODIFIED = HttpServletResponse.SC_NOT_MODIFIED;
 
+    /**
+     * Status code (308) used by resumable uploads to indicate that the part
+     * was stored but the resource is not complete yet. The Range header tells
+     * the client which bytes have been received.
+     */
+    public static final int SC_RESUME_INCOMPLETE = 308;
+
     /**
      * Status code (400) indicating the request sent by the client was
      * syntactically incorrect.
@@ -157,6 +164,12 @@ public class WebdavStatus {
      */
     public static final int SC_UNSUPPORTED_MEDIA_TYPE = 415;
 
+    /**
+     * Status code (416) indicating that the requested or uploaded range does
+     * not fit the current state of the resource.
+     */
+    public static final int SC_REQUESTED_RANGE_NOT_SATISFIABLE = HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+
     // -------------------------------------------- Extended WebDav status code
 
     /**
@@ -201,6 +214,13 @@ public class WebdavStatus {
      */
     public static final int SC_LOCKED = 423;
 
+    /**
+     * Status code (424) indicating the method could not be performed on the
+     * resource because the requested action depended on another action and
+     * that action failed.
+     */
+    public static final int SC_FAILED_DEPENDENCY = 424;
+
     // ------------------------------------------------------------ Initializer
 
     static {
@@ -212,6 +232,7 @@ public class WebdavStatus {
         addStatusCodeMap(SC_MOVED_PERMANENTLY, "Moved Permanently");
         addStatusCodeMap(SC_MOVED_TEMPORARILY, "Moved Temporarily");
         addStatusCodeMap(SC_NOT_MODIFIED, "Not Modified");
+        addStatusCodeMap(SC_RESUME_INCOMPLETE, "Resume Incomplete");
         addStatusCodeMap(SC_BAD_REQUEST, "Bad Request");
         addStatusCodeMap(SC_UNAUTHORIZED, "Unauthorized");
         addStatusCodeMap(SC_FORBIDDEN, "Forbidden");
@@ -226,6 +247,8 @@ public class WebdavStatus {
         addStatusCodeMap(SC_PRECONDITION_FAILED, "Precondition Failed");
         addStatusCodeMap(SC_REQUEST_TOO_LONG, "Request Too Long");
         addStatusCodeMap(SC_UNSUPPORTED_MEDIA_TYPE, "Unsupported Media Type");
+        addStatusCodeMap(SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+                "Requested Range Not Satisfiable");
         // WebDav Status Codes
         addStatusCodeMap(SC_MULTI_STATUS, "Multi-Status");
         addStatusCodeMap(SC_UNPROCESSABLE_ENTITY, "Unprocessable Entity");
@@ -233,6 +256,7 @@ public class WebdavStatus {
                 "Insufficient Space On Resource");
         addStatusCodeMap(SC_METHOD_FAILURE, "Method Failure");
         addStatusCodeMap(SC_LOCKED, "Locked");
+        addStatusCodeMap(SC_FAILED_DEPENDENCY, "Failed Dependency");
     }
 
     // --------------------------------------------------------- Public Methods
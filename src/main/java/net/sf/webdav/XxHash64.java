@@ -0,0 +1,141 @@
+package net.sf.webdav;
+
+import java.util.zip.Checksum;
+
+/**
+ * Streaming xxHash64 (seed 0), a fast non-cryptographic 64 bit hash for
+ * content ETags. Not thread safe, use one instance per stream.
+ *
+ * @author Niko Berger
+ */
+public class XxHash64 implements Checksum {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private final byte[] _buffer = new byte[32];
+
+	private int _buffered;
+
+	private long _total;
+
+	private long _v1, _v2, _v3, _v4;
+
+	public XxHash64() {
+		reset();
+	}
+
+	@Override
+	public void reset() {
+		_v1 = PRIME1 + PRIME2;
+		_v2 = PRIME2;
+		_v3 = 0;
+		_v4 = -PRIME1;
+		_buffered = 0;
+		_total = 0;
+	}
+
+	@Override
+	public void update(int b) {
+		_buffer[_buffered++] = (byte) b;
+		_total++;
+		if (_buffered == 32) {
+			consume(_buffer, 0);
+			_buffered = 0;
+		}
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		_total += len;
+		if (_buffered > 0) {
+			int fill = Math.min(32 - _buffered, len);
+			System.arraycopy(b, off, _buffer, _buffered, fill);
+			_buffered += fill;
+			off += fill;
+			len -= fill;
+			if (_buffered < 32)
+				return;
+			consume(_buffer, 0);
+			_buffered = 0;
+		}
+		while (len >= 32) {
+			consume(b, off);
+			off += 32;
+			len -= 32;
+		}
+		if (len > 0) {
+			System.arraycopy(b, off, _buffer, 0, len);
+			_buffered = len;
+		}
+	}
+
+	private void consume(byte[] b, int off) {
+		_v1 = round(_v1, readLong(b, off));
+		_v2 = round(_v2, readLong(b, off + 8));
+		_v3 = round(_v3, readLong(b, off + 16));
+		_v4 = round(_v4, readLong(b, off + 24));
+	}
+
+	@Override
+	public long getValue() {
+		long h;
+		if (_total >= 32) {
+			h = Long.rotateLeft(_v1, 1) + Long.rotateLeft(_v2, 7)
+					+ Long.rotateLeft(_v3, 12) + Long.rotateLeft(_v4, 18);
+			h = merge(h, _v1);
+			h = merge(h, _v2);
+			h = merge(h, _v3);
+			h = merge(h, _v4);
+		} else {
+			h = PRIME5;
+		}
+		h += _total;
+		int p = 0;
+		for (; p + 8 <= _buffered; p += 8) {
+			h ^= round(0, readLong(_buffer, p));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+		}
+		if (p + 4 <= _buffered) {
+			h ^= (readInt(_buffer, p) & 0xFFFFFFFFL) * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			p += 4;
+		}
+		for (; p < _buffered; p++) {
+			h ^= (_buffer[p] & 0xFF) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+		}
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	private static long merge(long acc, long v) {
+		acc ^= round(0, v);
+		return acc * PRIME1 + PRIME4;
+	}
+
+	private static long readLong(byte[] b, int off) {
+		return (b[off] & 0xFFL) | (b[off + 1] & 0xFFL) << 8
+				| (b[off + 2] & 0xFFL) << 16 | (b[off + 3] & 0xFFL) << 24
+				| (b[off + 4] & 0xFFL) << 32 | (b[off + 5] & 0xFFL) << 40
+				| (b[off + 6] & 0xFFL) << 48 | (b[off + 7] & 0xFFL) << 56;
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8
+				| (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+	}
+}
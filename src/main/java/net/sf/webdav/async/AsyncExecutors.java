@@ -0,0 +1,143 @@
+package net.sf.webdav.async;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory for the executors used in async mode. All of them are bounded and
+ * reject work with a {@link RejectedExecutionException} when full, which the
+ * servlet turns into a 503 instead of queuing requests forever.
+ *
+ * @author Niko Berger
+ */
+public class AsyncExecutors {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(AsyncExecutors.class);
+
+	private AsyncExecutors() {
+	}
+
+	/**
+	 * @param threads
+	 *            maximum number of worker threads
+	 * @param queueSize
+	 *            number of requests waiting for a worker before rejecting
+	 * @return a thread pool with named daemon threads
+	 */
+	public static ExecutorService bounded(String name, int threads,
+			int queueSize) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+						Math.max(1, queueSize)), new NamedThreadFactory(name),
+				new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Virtual threads (JDK 21+) with at most <code>maxConcurrent</code> tasks
+	 * running. Looked up reflectively so the servlet still runs on older JDKs.
+	 *
+	 * @return the executor or null if virtual threads are not available
+	 */
+	public static ExecutorService virtual(String name, int maxConcurrent) {
+		try {
+			Method factory = java.util.concurrent.Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor");
+			ExecutorService delegate = (ExecutorService) factory.invoke(null);
+			return new ConcurrencyLimitedExecutor(delegate, maxConcurrent);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			LOG.warn("Unable to create virtual thread executor for " + name + ": " + e);
+			return null;
+		}
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String _name;
+		private final AtomicInteger _count = new AtomicInteger();
+
+		NamedThreadFactory(String name) {
+			_name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, _name + "-" + _count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Rejects tasks while <code>maxConcurrent</code> tasks are running,
+	 * everything else is passed on to the (unbounded) delegate.
+	 */
+	static class ConcurrencyLimitedExecutor extends AbstractExecutorService {
+		private final ExecutorService _delegate;
+		private final Semaphore _permits;
+
+		ConcurrencyLimitedExecutor(ExecutorService delegate, int maxConcurrent) {
+			_delegate = delegate;
+			_permits = new Semaphore(maxConcurrent);
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			if (!_permits.tryAcquire())
+				throw new RejectedExecutionException("too many concurrent requests");
+			try {
+				_delegate.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							command.run();
+						} finally {
+							_permits.release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				_permits.release();
+				throw e;
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			_delegate.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return _delegate.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return _delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return _delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit)
+				throws InterruptedException {
+			return _delegate.awaitTermination(timeout, unit);
+		}
+	}
+}
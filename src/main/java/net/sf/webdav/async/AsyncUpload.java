@@ -0,0 +1,228 @@
+package net.sf.webdav.async;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+
+/**
+ * Non-blocking request body transfer: reads the body with a
+ * {@link ReadListener} and writes it to an {@link IContentSink}. A single
+ * buffer is used, no more data is read until the sink has written the last
+ * chunk, so memory per upload is bounded and a slow disk slows down the
+ * client instead of filling the heap.
+ * <p>
+ * While the upload runs no thread is blocked: reading happens in the
+ * container's read callbacks, writing in the sink's completion handler. The
+ * upload is registered as request attribute so the servlet knows not to
+ * commit the transaction or complete the async context until
+ * {@link Listener#uploadFinished(AsyncUpload)} is called.
+ *
+ * @author Niko Berger
+ */
+public class AsyncUpload implements ReadListener {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(AsyncUpload.class);
+
+	public static final String ATTRIBUTE = AsyncUpload.class.getName();
+
+	/**
+	 * Called exactly once when the upload is done, successful or not.
+	 */
+	public interface Listener {
+		void uploadFinished(AsyncUpload upload);
+	}
+
+	private final ServletInputStream _in;
+	private final IContentSink _sink;
+	private final ByteBuffer _buffer;
+	private final List<Listener> _listeners = new ArrayList<>();
+	/**
+	 * only the thread incrementing from 0 transfers data, others just signal
+	 * that there might be more work
+	 */
+	private final AtomicInteger _pending = new AtomicInteger();
+	private volatile boolean _writing;
+	private volatile boolean _done;
+	private volatile Throwable _failure;
+	private volatile long _length = -1;
+
+	private final CompletionHandler<Void, Void> _written = new CompletionHandler<Void, Void>() {
+		@Override
+		public void completed(Void result, Void attachment) {
+			_writing = false;
+			pump();
+		}
+
+		@Override
+		public void failed(Throwable exc, Void attachment) {
+			_writing = false;
+			fail(exc);
+		}
+	};
+
+	AsyncUpload(ServletInputStream in, IContentSink sink, int bufferSize) {
+		_in = in;
+		_sink = sink;
+		_buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Starts reading the request body. The request has to be in async mode.
+	 *
+	 * @param bufferSize
+	 *            size of the transfer buffer
+	 * @return the running upload, also available via {@link #get(ServletRequest)}
+	 */
+	public static AsyncUpload start(ServletRequest req, IContentSink sink,
+			int bufferSize) throws IOException {
+		AsyncUpload upload = new AsyncUpload(req.getInputStream(), sink,
+				bufferSize);
+		req.setAttribute(ATTRIBUTE, upload);
+		try {
+			upload._in.setReadListener(upload);
+		} catch (RuntimeException e) {
+			req.removeAttribute(ATTRIBUTE);
+			throw e;
+		}
+		return upload;
+	}
+
+	/**
+	 * @return the upload started for this request or null
+	 */
+	public static AsyncUpload get(ServletRequest req) {
+		Object upload = req.getAttribute(ATTRIBUTE);
+		return upload instanceof AsyncUpload ? (AsyncUpload) upload : null;
+	}
+
+	/**
+	 * Registers a listener, if the upload is already done it is called right
+	 * away. Listeners are called in the order they were added.
+	 */
+	public void whenDone(Listener listener) {
+		synchronized (this) {
+			if (!_done) {
+				_listeners.add(listener);
+				return;
+			}
+		}
+		fireFinished(listener);
+	}
+
+	/**
+	 * Cancels the upload (i.e. on async timeout), the sink is aborted.
+	 */
+	public void abort(Throwable reason) {
+		fail(reason);
+	}
+
+	public boolean isDone() {
+		return _done;
+	}
+
+	/**
+	 * @return the reason the upload failed, null if it succeeded or is still
+	 *         running
+	 */
+	public Throwable getFailure() {
+		return _failure;
+	}
+
+	/**
+	 * @return the length reported by the sink, -1 if unknown or not done
+	 */
+	public long getLength() {
+		return _length;
+	}
+
+	@Override
+	public void onDataAvailable() throws IOException {
+		pump();
+	}
+
+	@Override
+	public void onAllDataRead() throws IOException {
+		pump();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		fail(t);
+	}
+
+	private void pump() {
+		if (_pending.getAndIncrement() != 0)
+			return;
+		do {
+			transfer();
+		} while (_pending.decrementAndGet() != 0);
+	}
+
+	/**
+	 * Reads until the buffer has data for the sink, the container has no more
+	 * data ready or the body is complete.
+	 */
+	private void transfer() {
+		if (_done || _writing)
+			return;
+		try {
+			byte[] buf = _buffer.array();
+			while (!_in.isFinished()) {
+				if (!_in.isReady())
+					return; // onDataAvailable is called once there is more
+				int read = _in.read(buf, 0, buf.length);
+				if (read > 0) {
+					_buffer.clear();
+					_buffer.limit(read);
+					_writing = true;
+					_sink.write(_buffer, _written);
+					return;
+				}
+				if (read == -1)
+					break;
+			}
+			_length = _sink.commit();
+			finish(null);
+		} catch (IOException | RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	private void fail(Throwable failure) {
+		if (_done)
+			return;
+		LOG.debug("upload failed: " + failure);
+		_sink.abort();
+		finish(failure);
+	}
+
+	private void finish(Throwable failure) {
+		List<Listener> listeners;
+		synchronized (this) {
+			if (_done)
+				return;
+			_failure = failure;
+			_done = true;
+			listeners = new ArrayList<>(_listeners);
+			_listeners.clear();
+		}
+		for (Listener listener : listeners)
+			fireFinished(listener);
+	}
+
+	private void fireFinished(Listener listener) {
+		try {
+			listener.uploadFinished(this);
+		} catch (RuntimeException e) {
+			LOG.error("upload listener failed", e);
+		}
+	}
+}
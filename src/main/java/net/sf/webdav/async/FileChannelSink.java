@@ -0,0 +1,106 @@
+package net.sf.webdav.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * {@link IContentSink} writing to a file with an
+ * {@link AsynchronousFileChannel}. The file is truncated when the sink is
+ * opened. An optional checksum is updated with every written byte.
+ *
+ * @author Niko Berger
+ */
+public class FileChannelSink implements IContentSink {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(FileChannelSink.class);
+
+	private final File _file;
+	private final AsynchronousFileChannel _channel;
+	private final Checksum _checksum;
+	private volatile long _position = 0;
+
+	/**
+	 * @param file
+	 *            the file to write
+	 * @param checksum
+	 *            updated with the written content, may be null
+	 */
+	public FileChannelSink(File file, Checksum checksum) throws WebdavException {
+		_file = file;
+		_checksum = checksum;
+		try {
+			_channel = AsynchronousFileChannel.open(file.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		} catch (IOException e) {
+			throw new WebdavException(e);
+		}
+	}
+
+	@Override
+	public void write(final ByteBuffer data,
+			final CompletionHandler<Void, Void> handler) {
+		if (_checksum != null && data.hasArray())
+			_checksum.update(data.array(), data.arrayOffset() + data.position(),
+					data.remaining());
+		writeRemaining(data, handler);
+	}
+
+	private void writeRemaining(final ByteBuffer data,
+			final CompletionHandler<Void, Void> handler) {
+		_channel.write(data, _position, null,
+				new CompletionHandler<Integer, Void>() {
+					@Override
+					public void completed(Integer written, Void attachment) {
+						_position += written;
+						if (data.hasRemaining())
+							writeRemaining(data, handler);
+						else
+							handler.completed(null, null);
+					}
+
+					@Override
+					public void failed(Throwable exc, Void attachment) {
+						handler.failed(exc, null);
+					}
+				});
+	}
+
+	@Override
+	public long commit() throws WebdavException {
+		try {
+			_channel.close();
+		} catch (IOException e) {
+			throw new WebdavException(e);
+		}
+		return _position;
+	}
+
+	@Override
+	public void abort() {
+		try {
+			_channel.close();
+		} catch (IOException e) {
+			LOG.warn("Unable to close " + _file + ": " + e);
+		}
+	}
+
+	/**
+	 * @return the checksum passed to the constructor
+	 */
+	public Checksum getChecksum() {
+		return _checksum;
+	}
+
+	public File getFile() {
+		return _file;
+	}
+}
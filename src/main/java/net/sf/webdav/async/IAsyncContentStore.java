@@ -0,0 +1,34 @@
+package net.sf.webdav.async;
+
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * Optional extension of {@link net.sf.webdav.IWebdavStore} for stores that can
+ * receive resource content without blocking. In async mode PUT uses it to
+ * feed the request body to the store as it arrives instead of handing an
+ * InputStream to setResourceContent.
+ *
+ * @author Niko Berger
+ */
+public interface IAsyncContentStore {
+
+	/**
+	 * Opens a sink replacing the content of an existing resource.
+	 *
+	 * @param transaction
+	 *            indicates that the method is within the scope of a WebDAV
+	 *            transaction
+	 * @param resourceUri
+	 *            URI of the resource
+	 * @param contentType
+	 *            content type of the resource or null if unknown
+	 * @param characterEncoding
+	 *            character encoding of the resource or null if unknown or not
+	 *            applicable
+	 * @return the sink, never null
+	 */
+	IContentSink openResourceContent(ITransaction transaction,
+			String resourceUri, String contentType, String characterEncoding)
+			throws WebdavException;
+}
@@ -0,0 +1,40 @@
+package net.sf.webdav.async;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * Destination for resource content written without blocking the calling
+ * thread. Only one write is in flight at any time, the caller waits for the
+ * completion handler before reusing the buffer.
+ *
+ * @author Niko Berger
+ */
+public interface IContentSink {
+
+	/**
+	 * Writes all remaining bytes of the buffer.
+	 *
+	 * @param data
+	 *            bytes to write, must not be modified until the handler is
+	 *            called
+	 * @param handler
+	 *            called once all bytes are written or the write failed
+	 */
+	void write(ByteBuffer data, CompletionHandler<Void, Void> handler);
+
+	/**
+	 * Called after the last write completed, makes the content visible.
+	 *
+	 * @return the length of the stored content or -1 if unknown
+	 */
+	long commit() throws WebdavException;
+
+	/**
+	 * Called instead of {@link #commit()} when the upload failed or was
+	 * cancelled, releases all resources.
+	 */
+	void abort();
+}
@@ -0,0 +1,692 @@
+package net.sf.webdav.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.Vector;
+
+import net.sf.webdav.DelegatingWebdavStore;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.IWebdavStore;
+import net.sf.webdav.StoredObject;
+import net.sf.webdav.exceptions.ObjectAlreadyExistsException;
+import net.sf.webdav.exceptions.ObjectNotFoundException;
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * Store wrapper for slow backing stores (i.e. database or network backed
+ * ones) keeping metadata, child lists and content on a fast local disk.
+ * <p>
+ * Reads go through the cache: what was read is kept for the time to live
+ * and then read from the backing store again, content is kept as long as the
+ * ETag of the resource does not change. Entries are evicted least recently
+ * used first when the number of entries or the size of the cached content
+ * exceeds the limits.
+ * <p>
+ * Writes are passed on to the backing store and drop the affected entries
+ * (write-through). In write-back mode they are instead written to a local
+ * journal, which is forced to disk, and applied to the backing store in the
+ * background; until then reads see the local state. Write-back gives up the
+ * transaction of the request: a change is applied even if the request is
+ * rolled back afterwards. MOVE waits for the queued changes before it is
+ * passed on.
+ *
+ * @author Niko Berger
+ */
+public class CachingWebdavStore extends DelegatingWebdavStore {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(CachingWebdavStore.class);
+
+	private static final int BUF_SIZE = 65536;
+
+	private final File _contentDir;
+
+	private final long _maxBytes;
+
+	private final int _maxEntries;
+
+	private final long _ttlMillis;
+
+	/**
+	 * larger resources are streamed from the backing store
+	 */
+	private final long _maxContentSize;
+
+	private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(
+			16, 0.75f, true);
+
+	private long _contentBytes = 0;
+
+	/**
+	 * paths written per transaction, dropped from the cache on rollback
+	 */
+	private final Map<ITransaction, Set<String>> _written = new HashMap<>();
+
+	/**
+	 * local state of paths with changes not yet written back
+	 */
+	private final Map<String, Pending> _pending = new HashMap<>();
+
+	private final WriteBackJournal _writeBack;
+
+	private static final class Entry {
+
+		/**
+		 * null if the path does not exist
+		 */
+		StoredObject _so;
+
+		long _soLoadedAt = -1;
+
+		String[] _children;
+
+		long _childrenLoadedAt = -1;
+
+		File _content;
+
+		String _contentTag;
+
+		long _contentLength;
+	}
+
+	private static final class Pending {
+
+		/**
+		 * null if the path was removed
+		 */
+		StoredObject _so;
+
+		File _content;
+
+		long _seq;
+	}
+
+	/**
+	 * @param delegate
+	 *            the backing store
+	 * @param cacheDir
+	 *            local folder for content and the write-back journal, the
+	 *            cached content in it is dropped on start
+	 * @param maxBytes
+	 *            size of the cached content
+	 * @param maxEntries
+	 *            number of cached paths
+	 * @param ttlMillis
+	 *            how long metadata and child lists are used before they are
+	 *            read from the backing store again
+	 * @param writeBack
+	 *            true to apply writes to the backing store in the background
+	 */
+	public CachingWebdavStore(IWebdavStore delegate, File cacheDir,
+			long maxBytes, int maxEntries, long ttlMillis, boolean writeBack) {
+		super(delegate);
+		_contentDir = new File(cacheDir, "content");
+		_maxBytes = maxBytes;
+		_maxEntries = Math.max(1, maxEntries);
+		_ttlMillis = ttlMillis;
+		_maxContentSize = Math.max(1, maxBytes / 8);
+		deleteFiles(_contentDir);
+		_contentDir.mkdirs();
+		if (writeBack) {
+			try {
+				_writeBack = new WriteBackJournal(new File(cacheDir, "journal"),
+						delegate, new WriteBackJournal.Listener() {
+							@Override
+							public void applied(WriteBackJournal.Change change) {
+								writtenBack(change);
+							}
+
+							@Override
+							public void parked(WriteBackJournal.Change change) {
+								// reads see the backing store again
+								writtenBack(change);
+							}
+						});
+			} catch (IOException e) {
+				throw new WebdavException(e);
+			}
+			for (WriteBackJournal.Change change : _writeBack.getPending())
+				queued(change);
+			_writeBack.start();
+		} else {
+			_writeBack = null;
+		}
+	}
+
+	/**
+	 * Waits until the changes queued in write-back mode reached the backing
+	 * store.
+	 *
+	 * @return true if nothing is waiting anymore
+	 */
+	public boolean flush(long timeoutMillis) {
+		return _writeBack == null || _writeBack.drain(timeoutMillis);
+	}
+
+	/**
+	 * @return number of changes waiting to be written back
+	 */
+	public int getPendingWrites() {
+		return _writeBack == null ? 0 : _writeBack.getPending().size();
+	}
+
+	/**
+	 * @return number of cached paths
+	 */
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	/**
+	 * @return size of the cached content
+	 */
+	public synchronized long getContentBytes() {
+		return _contentBytes;
+	}
+
+	@Override
+	public void destroy() {
+		if (_writeBack != null)
+			_writeBack.close(10000);
+		synchronized (this) {
+			_entries.clear();
+			_contentBytes = 0;
+		}
+		deleteFiles(_contentDir);
+		super.destroy();
+	}
+
+	@Override
+	public void commit(ITransaction transaction) {
+		_delegate.commit(transaction);
+		synchronized (this) {
+			_written.remove(transaction);
+		}
+	}
+
+	@Override
+	public void rollback(ITransaction transaction) {
+		try {
+			_delegate.rollback(transaction);
+		} finally {
+			// what was read back within the transaction may be gone now
+			synchronized (this) {
+				Set<String> written = _written.remove(transaction);
+				if (written != null)
+					for (String path : written)
+						invalidate(path, true);
+			}
+		}
+	}
+
+	@Override
+	public StoredObject getStoredObject(ITransaction transaction, String uri,
+			Vector<String> properties) {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Pending pending = _pending.get(uri);
+			if (pending != null)
+				return StoredObjects.copy(pending._so);
+			Entry entry = _entries.get(uri);
+			if (entry != null && now - entry._soLoadedAt < _ttlMillis)
+				return StoredObjects.copy(entry._so);
+		}
+		StoredObject so = _delegate.getStoredObject(transaction, uri, properties);
+		if (so != null && so.getClass() != StoredObject.class)
+			return so; // computed by the store, not copied
+		synchronized (this) {
+			Entry entry = entry(uri);
+			if (entry._content != null
+					&& (so == null || !StoredObjects.getTag(so).equals(
+							entry._contentTag)))
+				dropContent(entry);
+			entry._so = StoredObjects.copy(so);
+			entry._soLoadedAt = now;
+			evict();
+		}
+		return so;
+	}
+
+	@Override
+	public String[] getChildrenNames(ITransaction transaction, String folderUri) {
+		long now = System.currentTimeMillis();
+		String[] children = null;
+		boolean cached = false;
+		synchronized (this) {
+			Pending pending = _pending.get(folderUri);
+			if (pending != null && (pending._so == null || !pending._so.isFolder()))
+				return null;
+			Entry entry = _entries.get(folderUri);
+			if (pending != null) {
+				// created locally, the backing store has no members yet
+				cached = true;
+			} else if (entry != null && now - entry._childrenLoadedAt < _ttlMillis) {
+				children = entry._children;
+				cached = true;
+			}
+		}
+		if (!cached) {
+			try {
+				children = _delegate.getChildrenNames(transaction, folderUri);
+			} catch (ObjectNotFoundException e) {
+				children = null; // created locally, not written back yet
+			}
+			synchronized (this) {
+				Entry entry = entry(folderUri);
+				entry._children = children == null ? null : children.clone();
+				entry._childrenLoadedAt = now;
+				evict();
+			}
+		}
+		return merge(folderUri, children);
+	}
+
+	@Override
+	public InputStream getResourceContent(ITransaction transaction,
+			String resourceUri) {
+		synchronized (this) {
+			Pending pending = _pending.get(resourceUri);
+			if (pending != null) {
+				if (pending._so == null)
+					throw new ObjectNotFoundException(resourceUri);
+				if (pending._content != null)
+					return open(pending._content);
+			}
+		}
+		StoredObject so = getStoredObject(transaction, resourceUri, null);
+		synchronized (this) {
+			Pending pending = _pending.get(resourceUri);
+			if (pending != null && pending._content == null)
+				return new ByteArrayInputStream(new byte[0]);
+			Entry entry = _entries.get(resourceUri);
+			if (so != null && entry != null && entry._content != null
+					&& StoredObjects.getTag(so).equals(entry._contentTag))
+				return open(entry._content);
+		}
+		InputStream in = _delegate.getResourceContent(transaction, resourceUri);
+		if (in == null || so == null || so.getClass() != StoredObject.class
+				|| so.getResourceLength() > _maxContentSize)
+			return in;
+		return load(resourceUri, StoredObjects.getTag(so), in);
+	}
+
+	@Override
+	public long getResourceLength(ITransaction transaction, String path) {
+		StoredObject so = getStoredObject(transaction, path, null);
+		return so == null ? _delegate.getResourceLength(transaction, path) : so
+				.getResourceLength();
+	}
+
+	@Override
+	public void createFolder(ITransaction transaction, String folderUri) {
+		if (_writeBack != null) {
+			StoredObject so = new StoredObject();
+			so.setFolder(true);
+			Date now = new Date();
+			so.setCreationDate(now);
+			so.setLastModified(now);
+			writeBack(WriteBackJournal.Op.CREATE_FOLDER, folderUri, so, null,
+					null, null);
+			return;
+		}
+		_delegate.createFolder(transaction, folderUri);
+		written(transaction, folderUri, false);
+	}
+
+	@Override
+	public void createResource(ITransaction transaction, String resourceUri) {
+		if (_writeBack != null) {
+			StoredObject so = new StoredObject();
+			Date now = new Date();
+			so.setCreationDate(now);
+			so.setLastModified(now);
+			writeBack(WriteBackJournal.Op.CREATE_RESOURCE, resourceUri, so,
+					null, null, null);
+			return;
+		}
+		_delegate.createResource(transaction, resourceUri);
+		written(transaction, resourceUri, false);
+	}
+
+	@Override
+	public long setResourceContent(ITransaction transaction,
+			String resourceUri, InputStream content, String contentType,
+			String characterEncoding) {
+		if (_writeBack != null) {
+			File data = _writeBack.newDataFile();
+			long length = copy(content, data, true);
+			StoredObject so = StoredObjects.copy(getStoredObject(transaction,
+					resourceUri, null));
+			if (so == null) {
+				so = new StoredObject();
+				so.setCreationDate(new Date());
+			}
+			so.setLastModified(new Date());
+			so.setResourceLength(length);
+			so.setMimeType(contentType);
+			so.setEtag(null);
+			writeBack(WriteBackJournal.Op.SET_CONTENT, resourceUri, so,
+					contentType, characterEncoding, data);
+			return length;
+		}
+		try {
+			return _delegate.setResourceContent(transaction, resourceUri,
+					content, contentType, characterEncoding);
+		} finally {
+			written(transaction, resourceUri, false);
+		}
+	}
+
+	@Override
+	public void removeObject(ITransaction transaction, String uri) {
+		if (_writeBack != null) {
+			writeBack(WriteBackJournal.Op.REMOVE, uri, null, null, null, null);
+			return;
+		}
+		try {
+			_delegate.removeObject(transaction, uri);
+		} finally {
+			written(transaction, uri, true);
+		}
+	}
+
+	@Override
+	public void moveResource(ITransaction transaction, String sourceUri,
+			String destinationUri) {
+		// the backing store has to know what is moved
+		if (!flush(60000))
+			throw new WebdavException("changes below " + sourceUri
+					+ " are not written back yet");
+		try {
+			_delegate.moveResource(transaction, sourceUri, destinationUri);
+		} finally {
+			written(transaction, sourceUri, true);
+			written(transaction, destinationUri, true);
+		}
+	}
+
+	/**
+	 * Queues a change and makes it visible to reads at once. The journal is
+	 * forced to disk outside of the monitor, so reads do not wait for it.
+	 */
+	private void writeBack(WriteBackJournal.Op op, String path,
+			StoredObject so, String contentType, String characterEncoding,
+			File data) {
+		WriteBackJournal.Change change;
+		synchronized (this) {
+			Pending pending = _pending.get(path);
+			boolean exists = pending != null ? pending._so != null : existsCached(path);
+			if (op == WriteBackJournal.Op.CREATE_FOLDER
+					|| op == WriteBackJournal.Op.CREATE_RESOURCE) {
+				if (exists)
+					throw new ObjectAlreadyExistsException(path);
+			}
+			change = _writeBack.append(op, path, contentType,
+					characterEncoding, data);
+			queued(change, so);
+		}
+		_writeBack.force(change);
+	}
+
+	/**
+	 * @return true if the path is known to exist, without asking the backing
+	 *         store
+	 */
+	private boolean existsCached(String path) {
+		Entry entry = _entries.get(path);
+		return entry != null && entry._so != null
+				&& System.currentTimeMillis() - entry._soLoadedAt < _ttlMillis;
+	}
+
+	/**
+	 * Rebuilds the local state of a change read from the journal.
+	 */
+	private synchronized void queued(WriteBackJournal.Change change) {
+		StoredObject so = null;
+		if (change._op != WriteBackJournal.Op.REMOVE) {
+			so = new StoredObject();
+			so.setFolder(change._op == WriteBackJournal.Op.CREATE_FOLDER);
+			Date modified = new Date(change._data != null ? change._data
+					.lastModified() : System.currentTimeMillis());
+			so.setCreationDate(modified);
+			so.setLastModified(modified);
+			if (change._data != null) {
+				so.setResourceLength(change._data.length());
+				so.setMimeType(change._contentType);
+			}
+		}
+		queued(change, so);
+	}
+
+	private void queued(WriteBackJournal.Change change, StoredObject so) {
+		if (change._op == WriteBackJournal.Op.REMOVE) {
+			// everything below is gone as well
+			String prefix = change._path.endsWith("/") ? change._path
+					: change._path + "/";
+			for (Map.Entry<String, Pending> below : _pending.entrySet()) {
+				if (below.getKey().startsWith(prefix)) {
+					below.getValue()._so = null;
+					below.getValue()._content = null;
+				}
+			}
+		}
+		Pending pending = _pending.get(change._path);
+		if (pending == null) {
+			pending = new Pending();
+			_pending.put(change._path, pending);
+		}
+		pending._so = so;
+		pending._content = change._op == WriteBackJournal.Op.SET_CONTENT ? change._data
+				: null;
+		pending._seq = change._seq;
+		invalidate(change._path, change._op == WriteBackJournal.Op.REMOVE);
+	}
+
+	/**
+	 * Called by the journal once a change reached the backing store.
+	 */
+	private synchronized void writtenBack(WriteBackJournal.Change change) {
+		Pending pending = _pending.get(change._path);
+		if (pending != null && pending._seq == change._seq)
+			_pending.remove(change._path);
+		invalidate(change._path, change._op == WriteBackJournal.Op.REMOVE);
+	}
+
+	/**
+	 * Adds and removes the members changed locally.
+	 */
+	private synchronized String[] merge(String folderUri, String[] children) {
+		Pending folder = _pending.get(folderUri);
+		if (children == null && folder != null && folder._so != null)
+			children = new String[0]; // created locally
+		if (_pending.isEmpty())
+			return children == null ? null : children.clone();
+		String prefix = folderUri.endsWith("/") ? folderUri : folderUri + "/";
+		Set<String> names = null;
+		for (Map.Entry<String, Pending> entry : _pending.entrySet()) {
+			String path = entry.getKey();
+			if (!path.startsWith(prefix) || path.indexOf('/', prefix.length()) >= 0
+					|| path.length() == prefix.length())
+				continue;
+			if (names == null) {
+				names = new HashSet<>();
+				if (children != null)
+					for (String child : children)
+						names.add(child);
+			}
+			String name = path.substring(prefix.length());
+			if (entry.getValue()._so != null)
+				names.add(name);
+			else
+				names.remove(name);
+		}
+		if (names == null)
+			return children == null ? null : children.clone();
+		return names.toArray(new String[names.size()]);
+	}
+
+	private void written(ITransaction transaction, String path, boolean tree) {
+		synchronized (this) {
+			invalidate(path, tree);
+			Set<String> written = _written.get(transaction);
+			if (written == null) {
+				written = new HashSet<>();
+				_written.put(transaction, written);
+			}
+			written.add(path);
+		}
+	}
+
+	/**
+	 * Drops the entry of the path, the child list of its parent and with tree
+	 * everything below it.
+	 */
+	private void invalidate(String path, boolean tree) {
+		remove(_entries.get(path), path);
+		String parent = getParent(path);
+		if (parent != null) {
+			Entry entry = _entries.get(parent);
+			if (entry != null)
+				entry._childrenLoadedAt = -1;
+		}
+		if (tree) {
+			String prefix = path.endsWith("/") ? path : path + "/";
+			List<String> below = new ArrayList<>();
+			for (String key : _entries.keySet())
+				if (key.startsWith(prefix))
+					below.add(key);
+			for (String key : below)
+				remove(_entries.get(key), key);
+		}
+	}
+
+	private void remove(Entry entry, String path) {
+		if (entry == null)
+			return;
+		_entries.remove(path);
+		dropContent(entry);
+	}
+
+	private Entry entry(String path) {
+		Entry entry = _entries.get(path);
+		if (entry == null) {
+			entry = new Entry();
+			_entries.put(path, entry);
+		}
+		return entry;
+	}
+
+	private void dropContent(Entry entry) {
+		if (entry._content != null) {
+			// open streams keep reading the unlinked file
+			entry._content.delete();
+			_contentBytes -= entry._contentLength;
+			entry._content = null;
+			entry._contentTag = null;
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator();
+		while ((_entries.size() > _maxEntries || _contentBytes > _maxBytes)
+				&& it.hasNext()) {
+			Entry eldest = it.next().getValue();
+			it.remove();
+			dropContent(eldest);
+		}
+	}
+
+	/**
+	 * Copies the content of a small resource to the local disk.
+	 */
+	private InputStream load(String uri, String tag, InputStream in) {
+		File file = new File(_contentDir, UUID.randomUUID().toString());
+		long length = copy(in, file, false);
+		synchronized (this) {
+			Entry entry = _entries.get(uri);
+			if (entry != null && entry._so != null
+					&& tag.equals(StoredObjects.getTag(entry._so))
+					&& !_pending.containsKey(uri)) {
+				dropContent(entry);
+				entry._content = file;
+				entry._contentTag = tag;
+				entry._contentLength = length;
+				_contentBytes += length;
+				InputStream content = open(file);
+				evict();
+				return content;
+			}
+		}
+		// changed in the meantime, serve what was read once
+		InputStream content = open(file);
+		file.delete();
+		return content;
+	}
+
+	private static InputStream open(File file) {
+		try {
+			return new FileInputStream(file);
+		} catch (IOException e) {
+			throw new WebdavException(e);
+		}
+	}
+
+	/**
+	 * Copies the stream to the file and closes it.
+	 *
+	 * @param sync
+	 *            whether the file has to be on disk before this returns
+	 * @return the number of bytes copied
+	 */
+	private static long copy(InputStream in, File file, boolean sync) {
+		long length = 0;
+		try {
+			try (FileOutputStream out = new FileOutputStream(file)) {
+				byte[] copyBuffer = new byte[BUF_SIZE];
+				int read;
+				while ((read = in.read(copyBuffer, 0, copyBuffer.length)) != -1) {
+					out.write(copyBuffer, 0, read);
+					length += read;
+				}
+				if (sync)
+					out.getFD().sync();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			file.delete();
+			throw new WebdavException(e);
+		}
+		return length;
+	}
+
+	private static String getParent(String path) {
+		int end = path.endsWith("/") ? path.length() - 1 : path.length();
+		if (end <= 0)
+			return null;
+		int slash = path.lastIndexOf('/', end - 1);
+		return slash < 0 ? null : slash == 0 ? "/" : path.substring(0, slash);
+	}
+
+	private static void deleteFiles(File folder) {
+		File[] files = folder.listFiles();
+		if (files != null)
+			for (File file : files)
+				if (!file.delete())
+					LOG.warn("Unable to delete " + file);
+	}
+}
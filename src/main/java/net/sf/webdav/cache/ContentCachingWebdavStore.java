@@ -0,0 +1,290 @@
+package net.sf.webdav.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.Arrays;
+import java.util.Vector;
+
+import net.sf.webdav.DelegatingWebdavStore;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.IWebdavStore;
+import net.sf.webdav.StoredObject;
+import net.sf.webdav.async.IAsyncContentStore;
+import net.sf.webdav.async.IContentSink;
+import net.sf.webdav.exceptions.WebdavException;
+import net.sf.webdav.upload.IStagedContentStore;
+
+/**
+ * Store wrapper keeping the content and metadata of small, frequently read
+ * resources in an {@link OffHeapContentCache}. A GET of a cached resource is
+ * answered without calling the wrapped store.
+ * <p>
+ * Entries are keyed by path and remember the ETag of the content. Writes
+ * through this store drop the affected entries, changes made to the storage
+ * behind the server's back are noticed when an entry is older than the
+ * revalidation interval: its metadata is then read again and the entry is
+ * dropped if the ETag changed. PUT writes staged and non-blocking uploads
+ * directly to the content store, those stores have to be wrapped with
+ * {@link #invalidating(IStagedContentStore)} and
+ * {@link #invalidating(IAsyncContentStore)}.
+ *
+ * @author Niko Berger
+ */
+public class ContentCachingWebdavStore extends DelegatingWebdavStore {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(ContentCachingWebdavStore.class);
+
+	private final OffHeapContentCache _cache;
+
+	private final long _revalidateMillis;
+
+	/**
+	 * @param delegate
+	 *            the store holding the content
+	 * @param cache
+	 *            the cache
+	 * @param revalidateMillis
+	 *            how long an entry is used without asking the store whether
+	 *            it is still current, 0 to ask on every request
+	 */
+	public ContentCachingWebdavStore(IWebdavStore delegate,
+			OffHeapContentCache cache, long revalidateMillis) {
+		super(delegate);
+		_cache = cache;
+		_revalidateMillis = revalidateMillis;
+	}
+
+	public OffHeapContentCache getCache() {
+		return _cache;
+	}
+
+	@Override
+	public StoredObject getStoredObject(ITransaction transaction, String uri,
+			Vector<String> properties) {
+		if (properties == null) {
+			OffHeapContentCache.Content content = _cache.get(uri);
+			if (content != null && isFresh(content))
+				return StoredObjects.copy(content.getStoredObject());
+		}
+		StoredObject so = _delegate.getStoredObject(transaction, uri, properties);
+		revalidate(uri, so);
+		return so;
+	}
+
+	@Override
+	public InputStream getResourceContent(ITransaction transaction,
+			String resourceUri) {
+		OffHeapContentCache.Content content = _cache.get(resourceUri);
+		if (content != null && !isFresh(content))
+			content = revalidate(resourceUri,
+					_delegate.getStoredObject(transaction, resourceUri, null));
+		if (content != null) {
+			InputStream in = content.openStream();
+			if (in != null)
+				return in;
+		}
+
+		StoredObject so = _delegate.getStoredObject(transaction, resourceUri, null);
+		InputStream in = _delegate.getResourceContent(transaction, resourceUri);
+		if (in == null || !isCacheable(so))
+			return in;
+		return load(resourceUri, so, in);
+	}
+
+	@Override
+	public long getResourceLength(ITransaction transaction, String path) {
+		OffHeapContentCache.Content content = _cache.get(path);
+		if (content != null && isFresh(content))
+			return content.getLength();
+		return _delegate.getResourceLength(transaction, path);
+	}
+
+	@Override
+	public void createResource(ITransaction transaction, String resourceUri) {
+		_cache.remove(resourceUri);
+		_delegate.createResource(transaction, resourceUri);
+	}
+
+	@Override
+	public long setResourceContent(ITransaction transaction,
+			String resourceUri, InputStream content, String contentType,
+			String characterEncoding) {
+		_cache.remove(resourceUri);
+		try {
+			return _delegate.setResourceContent(transaction, resourceUri,
+					content, contentType, characterEncoding);
+		} finally {
+			_cache.remove(resourceUri);
+		}
+	}
+
+	@Override
+	public void removeObject(ITransaction transaction, String uri) {
+		_delegate.removeObject(transaction, uri);
+		_cache.removeTree(uri);
+	}
+
+	@Override
+	public void moveResource(ITransaction transaction, String sourceUri,
+			String destinationUri) {
+		_delegate.moveResource(transaction, sourceUri, destinationUri);
+		_cache.removeTree(sourceUri);
+		_cache.removeTree(destinationUri);
+	}
+
+	@Override
+	public void destroy() {
+		_cache.clear();
+		super.destroy();
+	}
+
+	/**
+	 * @return the store dropping cached content when an upload is committed
+	 */
+	public IStagedContentStore invalidating(final IStagedContentStore store) {
+		return new IStagedContentStore() {
+			@Override
+			public long getStagedLength(ITransaction transaction,
+					String resourceUri) {
+				return store.getStagedLength(transaction, resourceUri);
+			}
+
+			@Override
+			public long writeStagedContent(ITransaction transaction,
+					String resourceUri, long offset, InputStream content,
+					long length) {
+				return store.writeStagedContent(transaction, resourceUri,
+						offset, content, length);
+			}
+
+			@Override
+			public long commitStagedContent(ITransaction transaction,
+					String resourceUri) {
+				try {
+					return store.commitStagedContent(transaction, resourceUri);
+				} finally {
+					_cache.remove(resourceUri);
+				}
+			}
+
+			@Override
+			public void discardStagedContent(ITransaction transaction,
+					String resourceUri) {
+				store.discardStagedContent(transaction, resourceUri);
+			}
+		};
+	}
+
+	/**
+	 * @return the store dropping cached content when a sink is committed
+	 */
+	public IAsyncContentStore invalidating(final IAsyncContentStore store) {
+		return new IAsyncContentStore() {
+			@Override
+			public IContentSink openResourceContent(ITransaction transaction,
+					final String resourceUri, String contentType,
+					String characterEncoding) {
+				final IContentSink sink = store.openResourceContent(
+						transaction, resourceUri, contentType,
+						characterEncoding);
+				return new IContentSink() {
+					@Override
+					public void write(ByteBuffer data,
+							CompletionHandler<Void, Void> handler) {
+						sink.write(data, handler);
+					}
+
+					@Override
+					public long commit() {
+						try {
+							return sink.commit();
+						} finally {
+							_cache.remove(resourceUri);
+						}
+					}
+
+					@Override
+					public void abort() {
+						sink.abort();
+					}
+				};
+			}
+		};
+	}
+
+	private boolean isFresh(OffHeapContentCache.Content content) {
+		return System.currentTimeMillis() - content.getValidatedAt() < _revalidateMillis;
+	}
+
+	/**
+	 * Compares the cached entry with the current metadata of the resource.
+	 *
+	 * @return the entry if it is still current, null if there is none or it
+	 *         was dropped
+	 */
+	private OffHeapContentCache.Content revalidate(String uri, StoredObject so) {
+		OffHeapContentCache.Content content = _cache.get(uri);
+		if (content == null)
+			return null;
+		if (!isCacheable(so)
+				|| !content.getTag().equals(StoredObjects.getTag(so))) {
+			_cache.remove(uri);
+			return null;
+		}
+		content.setValidatedAt(System.currentTimeMillis());
+		return content;
+	}
+
+	/**
+	 * Reads the content of a small resource into the cache. Content turning
+	 * out to be larger than expected is passed on without caching it.
+	 */
+	private InputStream load(String uri, StoredObject so, InputStream in) {
+		int max = _cache.getMaxEntrySize();
+		byte[] data = new byte[(int) Math.min(max + 1, Math.max(0, so.getResourceLength()) + 1)];
+		int length = 0;
+		try {
+			int read;
+			while (length < data.length
+					&& (read = in.read(data, length, data.length - length)) >= 0) {
+				length += read;
+				if (length == data.length && length <= max)
+					data = Arrays.copyOf(data, Math.min(max + 1, data.length * 2));
+			}
+		} catch (IOException e) {
+			try {
+				in.close();
+			} catch (IOException ignored) {
+			}
+			throw new WebdavException(e);
+		}
+		if (length > max) {
+			// more than announced, stream the rest
+			return new SequenceInputStream(new ByteArrayInputStream(data, 0,
+					length), in);
+		}
+		try {
+			in.close();
+		} catch (IOException e) {
+			LOG.debug("Closing content of " + uri + " failed", e);
+		}
+		_cache.put(uri, StoredObjects.getTag(so), StoredObjects.copy(so), data,
+				length);
+		return new ByteArrayInputStream(data, 0, length);
+	}
+
+	/**
+	 * Only plain resources are cached, subclasses of {@link StoredObject} may
+	 * compute their values and are not copied.
+	 */
+	private boolean isCacheable(StoredObject so) {
+		return so != null && so.getClass() == StoredObject.class
+				&& so.isResource() && !so.isNullResource()
+				&& so.getResourceLength() <= _cache.getMaxEntrySize();
+	}
+}
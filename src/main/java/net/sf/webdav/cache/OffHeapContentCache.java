@@ -0,0 +1,358 @@
+package net.sf.webdav.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.webdav.StoredObject;
+
+/**
+ * Least recently used cache for the content of small resources, kept outside
+ * of the Java heap. The memory is allocated in direct {@link ByteBuffer} slabs
+ * on demand and split into fixed size chunks, an entry uses as many chunks as
+ * its content needs, so there is no fragmentation. Entries are limited by
+ * their number and the total size.
+ * <p>
+ * Streams opened on an entry keep its chunks alive, an entry that is removed
+ * while it is read gives its chunks back when the last stream is closed.
+ *
+ * @author Niko Berger
+ */
+public class OffHeapContentCache {
+
+	private static final int CHUNK_SIZE = 4096;
+
+	private static final int SLAB_SIZE = 1024 * 1024;
+
+	private final int _chunksPerSlab;
+
+	private final ByteBuffer[] _slabs;
+
+	private final int _totalChunks;
+
+	/**
+	 * chunks handed out at least once, all others have never been touched
+	 */
+	private int _allocatedChunks = 0;
+
+	/**
+	 * stack of chunks given back
+	 */
+	private final int[] _freeChunks;
+
+	private int _freeCount = 0;
+
+	private final int _maxEntries;
+
+	private final int _maxEntrySize;
+
+	private final LinkedHashMap<String, Content> _entries = new LinkedHashMap<>(
+			16, 0.75f, true);
+
+	private long _evictions = 0;
+
+	/**
+	 * @param maxBytes
+	 *            off-heap memory for the content
+	 * @param maxEntries
+	 *            maximum number of cached resources
+	 * @param maxEntrySize
+	 *            larger resources are not cached
+	 */
+	public OffHeapContentCache(long maxBytes, int maxEntries, int maxEntrySize) {
+		if (maxBytes < CHUNK_SIZE)
+			throw new IllegalArgumentException("cache size must be at least "
+					+ CHUNK_SIZE + " bytes");
+		_totalChunks = (int) Math.min(Integer.MAX_VALUE / 2, maxBytes / CHUNK_SIZE);
+		_chunksPerSlab = Math.min(SLAB_SIZE / CHUNK_SIZE, _totalChunks);
+		_slabs = new ByteBuffer[(_totalChunks + _chunksPerSlab - 1) / _chunksPerSlab];
+		_freeChunks = new int[_totalChunks];
+		_maxEntries = Math.max(1, maxEntries);
+		_maxEntrySize = (int) Math.min(maxEntrySize, (long) _totalChunks * CHUNK_SIZE);
+	}
+
+	/**
+	 * A cached resource. The tag identifies the version of the content (i.e.
+	 * its ETag), the stored object is a snapshot taken when it was cached.
+	 */
+	public static final class Content {
+
+		private final OffHeapContentCache _cache;
+
+		private final String _key;
+
+		private final String _tag;
+
+		private final StoredObject _storedObject;
+
+		private final int _length;
+
+		private final int[] _chunks;
+
+		private int _readers = 0;
+
+		private boolean _removed = false;
+
+		private volatile long _validatedAt;
+
+		private Content(OffHeapContentCache cache, String key, String tag,
+				StoredObject storedObject, int length, int[] chunks) {
+			_cache = cache;
+			_key = key;
+			_tag = tag;
+			_storedObject = storedObject;
+			_length = length;
+			_chunks = chunks;
+			_validatedAt = System.currentTimeMillis();
+		}
+
+		public String getKey() {
+			return _key;
+		}
+
+		public String getTag() {
+			return _tag;
+		}
+
+		public StoredObject getStoredObject() {
+			return _storedObject;
+		}
+
+		public int getLength() {
+			return _length;
+		}
+
+		/**
+		 * @return when the entry was last confirmed to match the store
+		 */
+		public long getValidatedAt() {
+			return _validatedAt;
+		}
+
+		public void setValidatedAt(long validatedAt) {
+			_validatedAt = validatedAt;
+		}
+
+		/**
+		 * @return a stream over the content, null if the entry was removed
+		 *         in the meantime
+		 */
+		public InputStream openStream() {
+			synchronized (_cache) {
+				if (_removed)
+					return null;
+				_readers++;
+			}
+			return new ContentInputStream(this);
+		}
+	}
+
+	/**
+	 * @return the entry or null if nothing is cached for the key
+	 */
+	public synchronized Content get(String key) {
+		return _entries.get(key);
+	}
+
+	/**
+	 * Copies the content off the heap, replacing an older entry for the key.
+	 *
+	 * @return the new entry or null if the content is too large
+	 */
+	public synchronized Content put(String key, String tag,
+			StoredObject storedObject, byte[] data, int length) {
+		remove(key);
+		if (length > _maxEntrySize)
+			return null;
+		int[] chunks = new int[(length + CHUNK_SIZE - 1) / CHUNK_SIZE];
+		while (_entries.size() >= _maxEntries)
+			evictEldest();
+		for (int i = 0; i < chunks.length; i++) {
+			int chunk = allocateChunk();
+			while (chunk < 0) {
+				if (_entries.isEmpty()) {
+					// everything left is still being read
+					for (int j = 0; j < i; j++)
+						freeChunk(chunks[j]);
+					return null;
+				}
+				evictEldest();
+				chunk = allocateChunk();
+			}
+			chunks[i] = chunk;
+			ByteBuffer buffer = buffer(chunk);
+			buffer.put(data, i * CHUNK_SIZE, Math.min(CHUNK_SIZE, length - i
+					* CHUNK_SIZE));
+		}
+		Content content = new Content(this, key, tag, storedObject, length, chunks);
+		_entries.put(key, content);
+		return content;
+	}
+
+	public synchronized void remove(String key) {
+		Content content = _entries.remove(key);
+		if (content != null)
+			removed(content);
+	}
+
+	/**
+	 * Removes the entry for the path and all entries below it.
+	 */
+	public synchronized void removeTree(String path) {
+		remove(path);
+		String prefix = path.endsWith("/") ? path : path + "/";
+		Iterator<Map.Entry<String, Content>> it = _entries.entrySet().iterator();
+		List<Content> removed = new ArrayList<>();
+		while (it.hasNext()) {
+			Map.Entry<String, Content> entry = it.next();
+			if (entry.getKey().startsWith(prefix)) {
+				it.remove();
+				removed.add(entry.getValue());
+			}
+		}
+		for (Content content : removed)
+			removed(content);
+	}
+
+	public synchronized void clear() {
+		for (Content content : _entries.values())
+			removed(content);
+		_entries.clear();
+	}
+
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	/**
+	 * @return bytes of off-heap memory holding content
+	 */
+	public synchronized long getUsedBytes() {
+		return (long) (_allocatedChunks - _freeCount) * CHUNK_SIZE;
+	}
+
+	public synchronized long getEvictions() {
+		return _evictions;
+	}
+
+	public int getMaxEntrySize() {
+		return _maxEntrySize;
+	}
+
+	private void evictEldest() {
+		Iterator<Content> it = _entries.values().iterator();
+		Content eldest = it.next();
+		it.remove();
+		removed(eldest);
+		_evictions++;
+	}
+
+	private void removed(Content content) {
+		content._removed = true;
+		if (content._readers == 0)
+			freeChunks(content);
+	}
+
+	private synchronized void release(Content content) {
+		content._readers--;
+		if (content._removed && content._readers == 0)
+			freeChunks(content);
+	}
+
+	private void freeChunks(Content content) {
+		for (int chunk : content._chunks)
+			freeChunk(chunk);
+	}
+
+	private int allocateChunk() {
+		if (_freeCount > 0)
+			return _freeChunks[--_freeCount];
+		if (_allocatedChunks == _totalChunks)
+			return -1;
+		int chunk = _allocatedChunks++;
+		int slab = chunk / _chunksPerSlab;
+		if (_slabs[slab] == null)
+			_slabs[slab] = ByteBuffer.allocateDirect(_chunksPerSlab * CHUNK_SIZE);
+		return chunk;
+	}
+
+	private void freeChunk(int chunk) {
+		_freeChunks[_freeCount++] = chunk;
+	}
+
+	/**
+	 * @return a buffer positioned at the start of the chunk
+	 */
+	private ByteBuffer buffer(int chunk) {
+		ByteBuffer buffer = _slabs[chunk / _chunksPerSlab].duplicate();
+		buffer.position((chunk % _chunksPerSlab) * CHUNK_SIZE);
+		return buffer;
+	}
+
+	private static class ContentInputStream extends InputStream {
+
+		private final Content _content;
+
+		private int _position = 0;
+
+		private boolean _closed = false;
+
+		ContentInputStream(Content content) {
+			_content = content;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (_closed)
+				throw new IOException("stream closed");
+			if (_position >= _content._length)
+				return -1;
+			if (len == 0)
+				return 0;
+			int read = 0;
+			while (read < len && _position < _content._length) {
+				int inChunk = _position % CHUNK_SIZE;
+				int n = Math.min(Math.min(len - read, CHUNK_SIZE - inChunk),
+						_content._length - _position);
+				ByteBuffer buffer = _content._cache.buffer(_content._chunks[_position
+						/ CHUNK_SIZE]);
+				buffer.position(buffer.position() + inChunk);
+				buffer.get(b, off + read, n);
+				read += n;
+				_position += n;
+			}
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return _closed ? 0 : _content._length - _position;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, _content._length - _position));
+			_position += (int) skipped;
+			return skipped;
+		}
+
+		@Override
+		public void close() {
+			if (!_closed) {
+				_closed = true;
+				_content._cache.release(_content);
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package net.sf.webdav.cache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+
+import net.sf.webdav.StoredObject;
+
+/**
+ * Helpers for the stored objects kept by the caching stores.
+ *
+ * @author Niko Berger
+ */
+final class StoredObjects {
+
+	private StoredObjects() {
+	}
+
+	/**
+	 * @return the ETag of the resource, or length and modification date if
+	 *         the store does not provide one
+	 */
+	static String getTag(StoredObject so) {
+		if (so.getEtag() != null)
+			return so.getEtag();
+		Date lastModified = so.getLastModified();
+		return so.getResourceLength() + "-"
+				+ (lastModified == null ? 0 : lastModified.getTime());
+	}
+
+	/**
+	 * The methods are free to modify the stored object they get, so every
+	 * caller gets its own copy.
+	 *
+	 * @return the copy, null if so is null
+	 */
+	static StoredObject copy(StoredObject so) {
+		if (so == null)
+			return null;
+		StoredObject copy = new StoredObject();
+		copy.setFolder(so.isFolder());
+		copy.setLastModified(so.getLastModified() == null ? null : new Date(so
+				.getLastModified().getTime()));
+		copy.setCreationDate(so.getCreationDate() == null ? null : new Date(so
+				.getCreationDate().getTime()));
+		copy.setResourceLength(so.getResourceLength());
+		copy.setMimeType(so.getMimeType());
+		copy.setEtag(so.getEtag());
+		if (so.getResourceTypes() != null)
+			copy.setResourceTypes(new ArrayList<>(so.getResourceTypes()));
+		if (so.getPrivileges() != null)
+			copy.setPrivileges(new ArrayList<>(so.getPrivileges()));
+		if (so.getProperties() != null)
+			copy.setProperties(new HashMap<>(so.getProperties()));
+		if (so.isNullResource())
+			copy.setNullResource(true);
+		return copy;
+	}
+}
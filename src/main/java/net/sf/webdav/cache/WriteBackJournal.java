@@ -0,0 +1,539 @@
+package net.sf.webdav.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.IWebdavStore;
+import net.sf.webdav.exceptions.AccessDeniedException;
+import net.sf.webdav.exceptions.ObjectAlreadyExistsException;
+import net.sf.webdav.exceptions.ObjectNotFoundException;
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * Durable queue of changes for {@link CachingWebdavStore} in write-back mode.
+ * Every change is appended to a journal file and forced to disk before it is
+ * acknowledged, a background thread applies the changes to the backing store
+ * in order, each in its own transaction. Content is kept in a data file per
+ * change until it was written, the data file has to be synced before it is
+ * appended, its directory is synced along with the journal.
+ * <p>
+ * Changes found in the journal on startup are applied again, so a change may
+ * reach the backing store more than once; creating what exists and removing
+ * what is gone are skipped. Content whose length does not match the journal
+ * (cut short by a crash) is parked instead of written back. The journal is truncated whenever the queue
+ * runs empty and rewritten without the applied changes when they pile up
+ * under steady load.
+ * <p>
+ * A change the backing store refuses (access denied) or keeps failing is
+ * parked: it is logged, its content is moved to the "parked" folder and the
+ * queue goes on with the next change.
+ *
+ * @author Niko Berger
+ */
+class WriteBackJournal {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(WriteBackJournal.class);
+
+	private static final long MAX_RETRY_DELAY = 30000;
+
+	/**
+	 * attempts before a failing change is parked
+	 */
+	private static final int MAX_ATTEMPTS = 10;
+
+	/**
+	 * applied changes kept in the journal before it is compacted
+	 */
+	private static final int COMPACT_AFTER = 1000;
+
+	enum Op {
+		CREATE_FOLDER, CREATE_RESOURCE, SET_CONTENT, REMOVE
+	}
+
+	static final class Change {
+
+		final long _seq;
+
+		final Op _op;
+
+		final String _path;
+
+		final String _contentType;
+
+		final String _characterEncoding;
+
+		final File _data;
+
+		/**
+		 * length of the data, -1 without data
+		 */
+		final long _length;
+
+		Change(long seq, Op op, String path, String contentType,
+				String characterEncoding, File data, long length) {
+			_seq = seq;
+			_op = op;
+			_path = path;
+			_contentType = contentType;
+			_characterEncoding = characterEncoding;
+			_data = data;
+			_length = length;
+		}
+	}
+
+	/**
+	 * told about every change once it reached the backing store or was given
+	 * up
+	 */
+	interface Listener {
+		void applied(Change change);
+
+		void parked(Change change);
+	}
+
+	private final File _dir;
+
+	private final File _dataDir;
+
+	private final IWebdavStore _backend;
+
+	private final Listener _listener;
+
+	private final File _file;
+
+	private FileChannel _journal;
+
+	private final Deque<Change> _queue = new ArrayDeque<>();
+
+	private long _nextSeq = 1;
+
+	/**
+	 * changes applied but still in the journal file
+	 */
+	private int _applied = 0;
+
+	/**
+	 * held while forcing or replacing the journal file, before the monitor
+	 */
+	private final Object _forceLock = new Object();
+
+	/**
+	 * sequence of the last change known to be on disk, guarded by _forceLock
+	 */
+	private long _forced = 0;
+
+	private volatile boolean _closed = false;
+
+	private Thread _flusher;
+
+	/**
+	 * Opens the journal in the directory and reads the changes not applied
+	 * yet, call {@link #start()} to begin applying them.
+	 */
+	WriteBackJournal(File dir, IWebdavStore backend, Listener listener)
+			throws IOException {
+		_dir = dir;
+		_dataDir = new File(dir, "data");
+		_dataDir.mkdirs();
+		File[] unqueued = _dataDir.listFiles();
+		if (unqueued != null)
+			for (File data : unqueued)
+				if (data.getName().startsWith("pending-"))
+					data.delete(); // written before a crash, never journaled
+		_backend = backend;
+		_listener = listener;
+		_file = new File(dir, "journal");
+		recover(_file);
+		_journal = open(_file);
+		_forced = _nextSeq - 1;
+	}
+
+	private static FileChannel open(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private void recover(File file) throws IOException {
+		if (!file.isFile())
+			return;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			while (true) {
+				Change change;
+				try {
+					long seq = in.readLong();
+					Op op = Op.values()[in.readByte()];
+					String path = in.readUTF();
+					String contentType = in.readUTF();
+					String characterEncoding = in.readUTF();
+					long length = in.readLong();
+					change = new Change(seq, op, path, contentType.isEmpty() ? null
+							: contentType, characterEncoding.isEmpty() ? null
+							: characterEncoding, op == Op.SET_CONTENT ? dataFile(seq)
+							: null, length);
+				} catch (EOFException e) {
+					break; // the last record was not completely written
+				}
+				_nextSeq = Math.max(_nextSeq, change._seq + 1);
+				if (change._data != null && (!change._data.isFile()
+						|| change._data.length() != change._length)) {
+					LOG.error("Content of " + change._path
+							+ " is missing or incomplete, parking it");
+					parkData(change);
+					continue;
+				}
+				_queue.add(change);
+			}
+		}
+		if (!_queue.isEmpty())
+			LOG.info("Writing back " + _queue.size() + " changes from " + _dir);
+	}
+
+	/**
+	 * @return the changes waiting, the oldest first
+	 */
+	synchronized List<Change> getPending() {
+		return new ArrayList<>(_queue);
+	}
+
+	/**
+	 * @return a new file for the content of the next change
+	 */
+	synchronized File newDataFile() {
+		return new File(_dataDir, "pending-" + System.nanoTime() + "-"
+				+ Thread.currentThread().getId());
+	}
+
+	/**
+	 * Writes the change to the journal and queues it. It is not durable
+	 * before {@link #force(Change)} returned.
+	 *
+	 * @param data
+	 *            the content of a SET_CONTENT change, already synced to disk,
+	 *            moved to the journal
+	 */
+	synchronized Change append(Op op, String path, String contentType,
+			String characterEncoding, File data) {
+		if (_closed)
+			throw new WebdavException("write-back journal is closed");
+		long seq = _nextSeq++;
+		File dataFile = null;
+		long length = -1;
+		if (data != null) {
+			length = data.length();
+			dataFile = dataFile(seq);
+			if (!data.renameTo(dataFile)) {
+				data.delete();
+				throw new WebdavException("unable to queue content of " + path);
+			}
+		}
+		Change change = new Change(seq, op, path, contentType,
+				characterEncoding, dataFile, length);
+		try {
+			write(_journal, change);
+		} catch (IOException e) {
+			if (dataFile != null)
+				dataFile.delete();
+			throw new WebdavException(e);
+		}
+		_queue.add(change);
+		notifyAll();
+		return change;
+	}
+
+	private static void write(FileChannel channel, Change change)
+			throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(record);
+		out.writeLong(change._seq);
+		out.writeByte(change._op.ordinal());
+		out.writeUTF(change._path);
+		out.writeUTF(change._contentType == null ? "" : change._contentType);
+		out.writeUTF(change._characterEncoding == null ? ""
+				: change._characterEncoding);
+		out.writeLong(change._length);
+		out.flush();
+		ByteBuffer buffer = ByteBuffer.wrap(record.toByteArray());
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * Forces the journal to disk up to the change. Changes appended
+	 * meanwhile by other threads are forced along, so concurrent writers
+	 * share one force. The data directory goes first, so the renamed data
+	 * files of the forced changes are there after a crash.
+	 */
+	void force(Change change) {
+		synchronized (_forceLock) {
+			if (_forced >= change._seq)
+				return;
+			FileChannel journal;
+			long appended;
+			synchronized (this) {
+				journal = _journal;
+				appended = _nextSeq - 1;
+			}
+			try {
+				syncDirectory(_dataDir);
+				journal.force(false);
+			} catch (IOException e) {
+				throw new WebdavException(e);
+			}
+			_forced = appended;
+		}
+	}
+
+	private static void syncDirectory(File dir) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			// directories can not be opened on every platform (i.e. Windows)
+			LOG.debug("Unable to sync " + dir + ": " + e);
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	synchronized void start() {
+		_flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "webdav-write-back");
+		_flusher.setDaemon(true);
+		_flusher.start();
+	}
+
+	/**
+	 * Waits until all queued changes are applied.
+	 *
+	 * @return true if the queue is empty
+	 */
+	synchronized boolean drain(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!_queue.isEmpty()) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				return false;
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Applies the waiting changes for at most the given time and stops the
+	 * background thread. What is left stays in the journal for the next start.
+	 */
+	void close(long timeoutMillis) {
+		drain(timeoutMillis);
+		Thread flusher;
+		synchronized (this) {
+			_closed = true;
+			notifyAll();
+			flusher = _flusher;
+		}
+		if (flusher != null) {
+			flusher.interrupt();
+			try {
+				flusher.join(timeoutMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			_journal.close();
+		} catch (IOException e) {
+			LOG.warn("Unable to close write-back journal: " + e);
+		}
+	}
+
+	private void flushLoop() {
+		long delay = 0;
+		int attempts = 0;
+		while (true) {
+			Change change;
+			synchronized (this) {
+				while (!_closed && _queue.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (_closed)
+					return;
+				change = _queue.peek();
+			}
+			try {
+				apply(change);
+				delay = 0;
+				attempts = 0;
+			} catch (RuntimeException | IOException e) {
+				if (e instanceof AccessDeniedException
+						|| ++attempts >= MAX_ATTEMPTS) {
+					park(change, e);
+					delay = 0;
+					attempts = 0;
+					continue;
+				}
+				delay = Math.min(MAX_RETRY_DELAY, Math.max(500, delay * 2));
+				LOG.warn("Writing back " + change._op + " " + change._path
+						+ " failed, retrying in " + delay + "ms: " + e);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				continue;
+			}
+			_listener.applied(change);
+			if (change._data != null)
+				change._data.delete();
+			done();
+		}
+	}
+
+	/**
+	 * Gives up a change, its content is kept in the parked folder.
+	 */
+	private void park(Change change, Exception e) {
+		LOG.error("Writing back " + change._op + " " + change._path
+				+ " failed permanently, parking it: " + e);
+		parkData(change);
+		_listener.parked(change);
+		done();
+	}
+
+	private void parkData(Change change) {
+		if (change._data != null && change._data.isFile()) {
+			File parked = new File(_dir, "parked");
+			parked.mkdirs();
+			if (!change._data.renameTo(new File(parked, change._seq + ".data")))
+				change._data.delete();
+		}
+	}
+
+	/**
+	 * Removes the head of the queue after it was applied or parked.
+	 */
+	private void done() {
+		synchronized (_forceLock) {
+			synchronized (this) {
+				_queue.poll();
+				_applied++;
+				if (_queue.isEmpty()) {
+					try {
+						_journal.truncate(0);
+						_applied = 0;
+					} catch (IOException e) {
+						LOG.warn("Unable to truncate write-back journal: " + e);
+					}
+				} else if (_applied >= COMPACT_AFTER && _applied > _queue.size()) {
+					compact();
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Replaces the journal with one holding only the waiting changes.
+	 */
+	private void compact() {
+		File compacted = new File(_dir, "journal.compact");
+		try {
+			try (FileChannel channel = FileChannel.open(compacted.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				for (Change change : _queue)
+					write(channel, change);
+				channel.force(false);
+			}
+			Files.move(compacted.toPath(), _file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			FileChannel old = _journal;
+			_journal = open(_file);
+			old.close();
+			_forced = _nextSeq - 1;
+			LOG.debug("Compacted write-back journal, dropped " + _applied
+					+ " applied changes");
+			_applied = 0;
+		} catch (IOException e) {
+			LOG.warn("Unable to compact write-back journal: " + e);
+			compacted.delete();
+		}
+	}
+
+	private void apply(Change change) throws IOException {
+		ITransaction transaction = _backend.begin(null);
+		boolean done = false;
+		try {
+			try {
+				switch (change._op) {
+				case CREATE_FOLDER:
+					if (_backend.getStoredObject(transaction, change._path, null) == null)
+						_backend.createFolder(transaction, change._path);
+					break;
+				case CREATE_RESOURCE:
+					if (_backend.getStoredObject(transaction, change._path, null) == null)
+						_backend.createResource(transaction, change._path);
+					break;
+				case SET_CONTENT:
+					try (InputStream in = new FileInputStream(change._data)) {
+						_backend.setResourceContent(transaction, change._path,
+								in, change._contentType, change._characterEncoding);
+					}
+					break;
+				case REMOVE:
+					if (_backend.getStoredObject(transaction, change._path, null) != null)
+						_backend.removeObject(transaction, change._path);
+					break;
+				}
+			} catch (ObjectAlreadyExistsException | ObjectNotFoundException e) {
+				// applied before the restart
+				LOG.debug("Write back of " + change._op + " " + change._path
+						+ " already applied: " + e);
+			}
+			_backend.commit(transaction);
+			done = true;
+		} finally {
+			if (!done)
+				_backend.rollback(transaction);
+		}
+	}
+
+	private File dataFile(long seq) {
+		return new File(_dataDir, seq + ".data");
+	}
+}
@@ -0,0 +1,190 @@
+package net.sf.webdav.carddav;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The <code>filter</code> of a CardDAV addressbook-query REPORT (RFC 6352
+ * section 10.5). Property filters with text matches and
+ * <code>is-not-defined</code> are supported, parameter filters are ignored,
+ * which only makes the result larger than asked for.
+ *
+ * @author Niko Berger
+ */
+public class AddressbookFilter {
+
+	private final boolean _allof;
+	private final List<PropFilter> _propFilters = new ArrayList<>();
+
+	/**
+	 * @param test
+	 *            value of the test attribute: "anyof" (default) or "allof"
+	 */
+	public AddressbookFilter(String test) {
+		_allof = "allof".equals(test);
+	}
+
+	public PropFilter addPropFilter(String name, String test) {
+		PropFilter propFilter = new PropFilter(name, "allof".equals(test));
+		_propFilters.add(propFilter);
+		return propFilter;
+	}
+
+	public List<PropFilter> getPropFilters() {
+		return _propFilters;
+	}
+
+	/**
+	 * @return true if the card passes the filter, an empty filter matches
+	 *         every card
+	 */
+	public boolean matches(VCard card) {
+		if (_propFilters.isEmpty())
+			return true;
+		for (PropFilter propFilter : _propFilters) {
+			boolean matches = propFilter.matches(card);
+			if (matches && !_allof)
+				return true;
+			if (!matches && _allof)
+				return false;
+		}
+		return _allof;
+	}
+
+	/**
+	 * Reads the filter from the <code>filter</code> element of a DOM.
+	 */
+	public static AddressbookFilter fromElement(Element filter) {
+		AddressbookFilter result = new AddressbookFilter(filter
+				.getAttribute("test"));
+		for (Node node = filter.getFirstChild(); node != null; node = node
+				.getNextSibling()) {
+			if (!isElement(node, "prop-filter"))
+				continue;
+			Element propElement = (Element) node;
+			PropFilter propFilter = result.addPropFilter(propElement
+					.getAttribute("name"), propElement.getAttribute("test"));
+			for (Node child = propElement.getFirstChild(); child != null; child = child
+					.getNextSibling()) {
+				if (isElement(child, "is-not-defined")) {
+					propFilter.setNotDefined();
+				} else if (isElement(child, "text-match")) {
+					Element match = (Element) child;
+					propFilter.addTextMatch(match.getTextContent(), match
+							.getAttribute("match-type"), match
+							.getAttribute("collation"), match
+							.getAttribute("negate-condition"));
+				}
+			}
+		}
+		return result;
+	}
+
+	private static boolean isElement(Node node, String localName) {
+		return node.getNodeType() == Node.ELEMENT_NODE
+				&& localName.equals(node.getLocalName());
+	}
+
+	public static class PropFilter {
+
+		private final String _name;
+		private final boolean _allof;
+		private boolean _notDefined;
+		private final List<TextMatch> _textMatches = new ArrayList<>();
+
+		PropFilter(String name, boolean allof) {
+			_name = name;
+			_allof = allof;
+		}
+
+		public String getName() {
+			return _name;
+		}
+
+		public void setNotDefined() {
+			_notDefined = true;
+		}
+
+		/**
+		 * @param matchType
+		 *            "equals", "contains" (default), "starts-with" or
+		 *            "ends-with"
+		 * @param collation
+		 *            "i;octet" or "i;unicode-casemap" (default)
+		 * @param negate
+		 *            "yes" to invert the match
+		 */
+		public void addTextMatch(String text, String matchType,
+				String collation, String negate) {
+			_textMatches.add(new TextMatch(text, matchType, collation, negate));
+		}
+
+		boolean matches(VCard card) {
+			List<String> values = card.getValues(_name);
+			if (_notDefined)
+				return values.isEmpty();
+			if (_textMatches.isEmpty())
+				return !values.isEmpty();
+			for (TextMatch textMatch : _textMatches) {
+				boolean matches = textMatch.matches(values);
+				if (matches && !_allof)
+					return true;
+				if (!matches && _allof)
+					return false;
+			}
+			return _allof;
+		}
+	}
+
+	static class TextMatch {
+
+		private final String _text;
+		private final String _matchType;
+		private final boolean _caseless;
+		private final boolean _negate;
+
+		TextMatch(String text, String matchType, String collation,
+				String negate) {
+			_caseless = !"i;octet".equals(collation);
+			_text = _caseless ? fold(text) : text;
+			_matchType = matchType == null || matchType.isEmpty() ? "contains"
+					: matchType;
+			_negate = "yes".equals(negate);
+		}
+
+		private static String fold(String value) {
+			return value.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+		}
+
+		/**
+		 * a multi-valued property matches if any of its values does
+		 */
+		boolean matches(List<String> values) {
+			boolean matches = false;
+			for (String value : values) {
+				if (matches(_caseless ? fold(value) : value)) {
+					matches = true;
+					break;
+				}
+			}
+			return matches != _negate;
+		}
+
+		private boolean matches(String value) {
+			switch (_matchType) {
+			case "equals":
+				return value.equals(_text);
+			case "starts-with":
+				return value.startsWith(_text);
+			case "ends-with":
+				return value.endsWith(_text);
+			default:
+				return value.contains(_text);
+			}
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package net.sf.webdav.carddav;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The address book homes of all users below one folder, laid out as
+ * <code>&lt;folder&gt;/&lt;user&gt;/&lt;addressbook&gt;/&lt;card&gt;</code>.
+ * A home is read from its folder on first access and kept in a cache of the
+ * most recently used homes; the cards of an address book are only indexed
+ * when they are first needed. Evicted homes are simply read again, so a
+ * single store can serve many users without keeping every tree in memory.
+ * The card indexes are shared while anyone still uses them: a home read
+ * again while a request still writes through the evicted one gets the same
+ * index, so no write is missed.
+ * <p>
+ * Every user has a "default" address book, its folder is created with the
+ * first card.
+ *
+ * @author Niko Berger
+ */
+public class AddressbookHomes {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(AddressbookHomes.class);
+
+	public static final String DEFAULT_ADDRESSBOOK = "default";
+
+	private final File _folder;
+	private final String _baseUrl;
+	private final Map<String, DavUser> _homes;
+
+	/**
+	 * indexes by folder, they are dropped once no address book uses them
+	 */
+	private final Map<File, IndexReference> _indexes = new HashMap<>();
+	private final ReferenceQueue<VCardIndex> _released = new ReferenceQueue<>();
+
+	private static final class IndexReference extends
+			WeakReference<VCardIndex> {
+
+		final File _folder;
+
+		IndexReference(File folder, VCardIndex index,
+				ReferenceQueue<VCardIndex> queue) {
+			super(index, queue);
+			_folder = folder;
+		}
+	}
+
+	/**
+	 * @param folder
+	 *            folder holding one folder per user
+	 * @param baseUrl
+	 *            url of the folder, the parent of the home hrefs
+	 * @param maxCached
+	 *            number of homes kept in memory
+	 */
+	public AddressbookHomes(File folder, String baseUrl, final int maxCached) {
+		_folder = folder;
+		_baseUrl = baseUrl;
+		_homes = new LinkedHashMap<String, DavUser>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DavUser> eldest) {
+				return size() > maxCached;
+			}
+		};
+	}
+
+	/**
+	 * @return the home of the user, null if the name can not be one
+	 */
+	public synchronized DavUser getHome(String user) {
+		if (!isValidName(user))
+			return null;
+		DavUser home = _homes.get(user);
+		if (home == null) {
+			home = load(user);
+			_homes.put(user, home);
+		}
+		return home;
+	}
+
+	/**
+	 * @return the address book or null if there is none with that name
+	 */
+	public DavAddressBook getAddressBook(String user, String name) {
+		DavUser home = getHome(user);
+		return home == null ? null : home.getAddressBook(name);
+	}
+
+	/**
+	 * Creates the folder of a new address book.
+	 *
+	 * @return the address book, null if the name is not valid or the folder
+	 *         could not be created
+	 */
+	public synchronized DavAddressBook createAddressBook(String user,
+			String name) {
+		DavUser home = getHome(user);
+		if (home == null || !isValidName(name))
+			return null;
+		DavAddressBook addressBook = home.getAddressBook(name);
+		if (addressBook == null) {
+			File folder = new File(new File(_folder, user), name);
+			if (!folder.mkdirs() && !folder.isDirectory())
+				return null;
+			addressBook = new DavAddressBook(name, home, folder, this);
+		}
+		return addressBook;
+	}
+
+	/**
+	 * Forgets an address book after its folder was deleted.
+	 */
+	public synchronized void removeAddressBook(String user, String name) {
+		DavUser home = _homes.get(user);
+		if (home != null)
+			home.removeAddressBook(name);
+		synchronized (_indexes) {
+			_indexes.remove(new File(new File(_folder, user), name));
+		}
+	}
+
+	/**
+	 * @return the index of the cards in the folder, shared by all address
+	 *         books of that folder that are still in use
+	 */
+	VCardIndex getIndex(File folder) {
+		VCardIndex index;
+		synchronized (_indexes) {
+			IndexReference released;
+			while ((released = (IndexReference) _released.poll()) != null) {
+				if (_indexes.get(released._folder) == released)
+					_indexes.remove(released._folder);
+			}
+			IndexReference reference = _indexes.get(folder);
+			index = reference == null ? null : reference.get();
+			if (index == null) {
+				index = new VCardIndex(folder);
+				_indexes.put(folder, new IndexReference(folder, index,
+						_released));
+			}
+		}
+		index.loadOnce();
+		return index;
+	}
+
+	/**
+	 * @return number of homes in memory
+	 */
+	public synchronized int size() {
+		return _homes.size();
+	}
+
+	private DavUser load(String user) {
+		DavUser home = new DavUser(user, _baseUrl);
+		File[] folders = new File(_folder, user).listFiles();
+		if (folders != null) {
+			for (File folder : folders) {
+				if (folder.isDirectory() && isValidName(folder.getName()))
+					new DavAddressBook(folder.getName(), home, folder, this);
+			}
+		}
+		if (home.getAddressBook(DEFAULT_ADDRESSBOOK) == null)
+			new DavAddressBook(DEFAULT_ADDRESSBOOK, home, new File(new File(
+					_folder, user), DEFAULT_ADDRESSBOOK), this);
+		LOG.trace("Loaded address book home of " + user);
+		return home;
+	}
+
+	/**
+	 * @return true if the name is usable as a folder name
+	 */
+	static boolean isValidName(String name) {
+		return name != null && !name.isEmpty() && !name.startsWith(".")
+				&& name.indexOf('/') == -1 && name.indexOf('\\') == -1;
+	}
+}
@@ -0,0 +1,126 @@
+package net.sf.webdav.carddav;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Change tags (<code>CS:getctag</code>) of collections: a counter per
+ * collection that is bumped on every write to one of its members, so clients
+ * only have to list a collection when its tag changed.
+ * <p>
+ * The tags are kept in memory and only written to the file on
+ * {@link #flush()} when they changed, the store flushes at the end of a
+ * transaction. Tags start no lower than the time they were loaded, so tags
+ * handed out but not flushed before a crash, or a lost file, make clients
+ * resync instead of missing changes.
+ *
+ * @author Niko Berger
+ */
+public class CollectionTags {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(CollectionTags.class);
+
+	private final File _file;
+	private final Map<String, Long> _tags = new HashMap<>();
+	private final long _base;
+	private boolean _dirty;
+
+	/**
+	 * held while writing the file, concurrent flushes share one temp file
+	 */
+	private final Object _writeLock = new Object();
+
+	/**
+	 * @param file
+	 *            where the tags are kept, null to keep them in memory only
+	 */
+	public CollectionTags(File file) {
+		_file = file;
+		_base = System.currentTimeMillis();
+		if (file != null && file.exists())
+			load();
+	}
+
+	private void load() {
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(_file.toPath())) {
+			properties.load(in);
+		} catch (IOException e) {
+			LOG.warn("Unable to read " + _file + ", starting with new tags: " + e);
+			return;
+		}
+		for (String collection : properties.stringPropertyNames()) {
+			try {
+				_tags.put(collection, Math.max(_base, Long.parseLong(properties
+						.getProperty(collection))));
+			} catch (NumberFormatException e) {
+				// dropped, gets a new tag
+			}
+		}
+	}
+
+	/**
+	 * @return the current tag of the collection
+	 */
+	public synchronized String get(String collection) {
+		Long tag = _tags.get(collection);
+		if (tag == null) {
+			tag = _base;
+			_tags.put(collection, tag);
+			_dirty = true;
+		}
+		return String.valueOf(tag);
+	}
+
+	/**
+	 * Called after a member of the collection was created, changed or
+	 * removed.
+	 */
+	public synchronized void bump(String collection) {
+		Long tag = _tags.get(collection);
+		_tags.put(collection, tag == null ? _base + 1 : tag + 1);
+		_dirty = true;
+	}
+
+	/**
+	 * Writes the tags if they changed since the last flush.
+	 */
+	public void flush() {
+		if (_file == null)
+			return;
+		synchronized (_writeLock) {
+			// taken with the write lock held, so a newer state is never
+			// overwritten by an older one
+			Properties properties = new Properties();
+			synchronized (this) {
+				if (!_dirty)
+					return;
+				for (Map.Entry<String, Long> entry : _tags.entrySet())
+					properties.setProperty(entry.getKey(), String.valueOf(entry
+							.getValue()));
+				_dirty = false;
+			}
+			File tmp = new File(_file.getPath() + ".tmp");
+			try {
+				try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+					properties.store(out, null);
+				}
+				Files.move(tmp.toPath(), _file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				LOG.warn("Unable to write " + _file + ": " + e);
+				synchronized (this) {
+					_dirty = true;
+				}
+			}
+		}
+	}
+}
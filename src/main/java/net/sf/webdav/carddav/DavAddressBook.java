@@ -1,5 +1,6 @@
 package net.sf.webdav.carddav;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -22,11 +23,60 @@ public class DavAddressBook extends ObjectTree {
 		privileges.add(DavPrivileges.READ_CURRENT_USER_PRIVILEGE_SET);
 	}
 	
+	private File folder;
+
+	// parsed on first use
+	private VCardIndex index;
+
+	private AddressbookHomes homes;
+
 	public DavAddressBook(String name, DavUser parent) {
 		super(name, parent);
 		this.setPrivileges(privileges);
 		this.getResourceTypes().add("urn:ietf:params:xml:ns:carddav:addressbook");
 	}
 
+	/**
+	 * @param folder
+	 *            the folder holding the cards, it does not have to exist yet
+	 */
+	public DavAddressBook(String name, DavUser parent, File folder) {
+		this(name, parent);
+		this.folder = folder;
+	}
+
+	/**
+	 * @param homes
+	 *            the homes sharing the index with address books of the same
+	 *            folder read again after eviction
+	 */
+	DavAddressBook(String name, DavUser parent, File folder,
+			AddressbookHomes homes) {
+		this(name, parent, folder);
+		this.homes = homes;
+	}
+
+	/**
+	 * @return the folder holding the cards, null if the address book is not
+	 *         backed by one
+	 */
+	public File getFolder() {
+		return folder;
+	}
+
+	/**
+	 * @return the index of the cards in the folder, loaded on the first call
+	 */
+	public synchronized VCardIndex getIndex() {
+		if (index == null) {
+			if (homes != null) {
+				index = homes.getIndex(folder);
+			} else {
+				index = new VCardIndex(folder);
+				index.load();
+			}
+		}
+		return index;
+	}
 
 }
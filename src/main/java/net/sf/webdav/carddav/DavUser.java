@@ -1,6 +1,7 @@
 package net.sf.webdav.carddav;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import net.sf.webdav.DavPrivileges;
@@ -33,4 +34,31 @@ public class DavUser extends ObjectTree {
 		this.setPrivileges(privileges);
 	}
 
+	/**
+	 * @return the address book with the given name (ignoring case) or null
+	 */
+	public DavAddressBook getAddressBook(String name) {
+		ObjectTree child = getChild(name);
+		return child instanceof DavAddressBook ? (DavAddressBook) child : null;
+	}
+
+	/**
+	 * @return names of the address books, sorted
+	 */
+	public List<String> getAddressBookNames() {
+		List<String> names = new ArrayList<>();
+		for (ObjectTree child : getChildren()) {
+			if (child instanceof DavAddressBook)
+				names.add(child.getName());
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	public void removeAddressBook(String name) {
+		DavAddressBook addressBook = getAddressBook(name);
+		if (addressBook != null)
+			removeChild(addressBook);
+	}
+
 }
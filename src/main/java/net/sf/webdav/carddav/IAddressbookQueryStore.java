@@ -0,0 +1,28 @@
+package net.sf.webdav.carddav;
+
+import java.util.List;
+
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * Optional extension of {@link net.sf.webdav.IWebdavStore} for stores that
+ * can evaluate CardDAV addressbook-query filters themselves. REPORT then
+ * only lists the matching cards instead of the whole address book.
+ *
+ * @author Niko Berger
+ */
+public interface IAddressbookQueryStore {
+
+	/**
+	 * @param addressbookUri
+	 *            URI of the address book collection
+	 * @param filter
+	 *            the filter of the request
+	 * @return URIs of the matching cards, null if the collection can not be
+	 *         queried
+	 */
+	List<String> queryAddressbook(ITransaction transaction,
+			String addressbookUri, AddressbookFilter filter)
+			throws WebdavException;
+}
@@ -0,0 +1,166 @@
+package net.sf.webdav.carddav;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A vCard file as kept by {@link VCardIndex}: the file attributes needed for
+ * PROPFIND/REPORT and the values of its text properties for evaluating
+ * addressbook-query filters. The content itself is not kept, address data is
+ * read from the file.
+ *
+ * @author Niko Berger
+ */
+public class VCard {
+
+	/**
+	 * binary properties, they are never filtered on and only waste memory
+	 */
+	private static final Set<String> SKIPPED = new HashSet<>(
+			Arrays.asList("PHOTO", "LOGO", "SOUND", "KEY"));
+
+	private final long _lastModified;
+	private final long _length;
+	private final Map<String, List<String>> _properties;
+
+	private VCard(long lastModified, long length,
+			Map<String, List<String>> properties) {
+		_lastModified = lastModified;
+		_length = length;
+		_properties = properties;
+	}
+
+	/**
+	 * @param content
+	 *            the vCard text
+	 * @param lastModified
+	 *            modification time of the file
+	 * @param length
+	 *            file size in bytes
+	 */
+	public static VCard parse(String content, long lastModified, long length) {
+		Map<String, List<String>> properties = new HashMap<>();
+		for (String line : unfold(content)) {
+			int colon = valueStart(line);
+			if (colon < 0)
+				continue;
+			String name = line.substring(0, colon);
+			int semicolon = name.indexOf(';');
+			if (semicolon >= 0)
+				name = name.substring(0, semicolon);
+			int dot = name.indexOf('.');
+			if (dot >= 0)
+				name = name.substring(dot + 1); // group prefix
+			name = name.toUpperCase(Locale.ROOT);
+			if (SKIPPED.contains(name) || name.equals("BEGIN")
+					|| name.equals("END") || isInlineBinary(line, colon))
+				continue;
+			List<String> values = properties.get(name);
+			if (values == null) {
+				values = new ArrayList<>(1);
+				properties.put(name, values);
+			}
+			values.add(unescape(line.substring(colon + 1)));
+		}
+		return new VCard(lastModified, length, properties);
+	}
+
+	/**
+	 * @return true if the parameters mark the value as base64, i.e. in
+	 *         custom properties
+	 */
+	private static boolean isInlineBinary(String line, int colon) {
+		String parameters = line.substring(0, colon).toUpperCase(Locale.ROOT);
+		return parameters.contains(";ENCODING=B")
+				|| parameters.contains(";VALUE=BINARY");
+	}
+
+	/**
+	 * joins folded lines (continuations start with a space or tab)
+	 */
+	private static List<String> unfold(String content) {
+		List<String> lines = new ArrayList<>();
+		StringBuilder current = null;
+		for (String line : content.split("\r?\n")) {
+			if (!line.isEmpty()
+					&& (line.charAt(0) == ' ' || line.charAt(0) == '\t')
+					&& current != null) {
+				current.append(line, 1, line.length());
+			} else {
+				if (current != null)
+					lines.add(current.toString());
+				current = new StringBuilder(line);
+			}
+		}
+		if (current != null)
+			lines.add(current.toString());
+		return lines;
+	}
+
+	/**
+	 * @return index of the colon separating name and parameters from the
+	 *         value, colons in quoted parameter values are skipped
+	 */
+	private static int valueStart(String line) {
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"')
+				quoted = !quoted;
+			else if (c == ':' && !quoted)
+				return i;
+		}
+		return -1;
+	}
+
+	private static String unescape(String value) {
+		if (value.indexOf('\\') < 0)
+			return value;
+		StringBuilder sb = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				char next = value.charAt(++i);
+				sb.append(next == 'n' || next == 'N' ? '\n' : next);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	public long getLastModified() {
+		return _lastModified;
+	}
+
+	public long getLength() {
+		return _length;
+	}
+
+	/**
+	 * @param name
+	 *            property name, i.e. "EMAIL"
+	 * @return all values of the property, empty if it is not defined
+	 */
+	public List<String> getValues(String name) {
+		List<String> values = _properties.get(name.toUpperCase(Locale.ROOT));
+		return values == null ? Collections.<String> emptyList() : values;
+	}
+
+	public String getUid() {
+		List<String> values = getValues("UID");
+		return values.isEmpty() ? null : values.get(0);
+	}
+
+	public String getFormattedName() {
+		List<String> values = getValues("FN");
+		return values.isEmpty() ? null : values.get(0);
+	}
+}
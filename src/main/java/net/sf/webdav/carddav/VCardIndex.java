@@ -0,0 +1,156 @@
+package net.sf.webdav.carddav;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the vCards in an address book folder. It is built
+ * once from the folder and kept current by the store on every write and
+ * delete. Listings and queries check the modification time of the folder
+ * first and pick up files added or removed behind the store's back; a file
+ * rewritten in place is only noticed with the next change of the folder.
+ * ETags and addressbook-query filters are then answered without reading
+ * the files, only the address data of the matching cards is read.
+ *
+ * @author Niko Berger
+ */
+public class VCardIndex {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(VCardIndex.class);
+
+	private final File _folder;
+	private final Map<String, VCard> _cards = new ConcurrentHashMap<>();
+	private boolean _loaded;
+
+	/**
+	 * modification time of the folder when it was last read
+	 */
+	private long _folderModified;
+
+	/**
+	 * @param folder
+	 *            the folder holding the vCard files
+	 */
+	public VCardIndex(File folder) {
+		_folder = folder;
+	}
+
+	/**
+	 * (Re)reads every file in the folder.
+	 */
+	public synchronized void load() {
+		_loaded = true;
+		_cards.clear();
+		_folderModified = _folder.lastModified();
+		File[] files = _folder.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			// dot files are the store's own, i.e. the ctags
+			if (file.isFile() && !file.getName().startsWith("."))
+				update(file.getName());
+		}
+		LOG.debug("Indexed " + _cards.size() + " vCards in " + _folder);
+	}
+
+	/**
+	 * Reads the folder unless that was done before.
+	 */
+	public synchronized void loadOnce() {
+		if (!_loaded)
+			load();
+	}
+
+	/**
+	 * Picks up the files added, removed or replaced since the folder was
+	 * last read, if the folder changed.
+	 */
+	synchronized void refresh() {
+		long modified = _folder.lastModified();
+		if (!_loaded || modified == _folderModified)
+			return;
+		_folderModified = modified;
+		File[] files = _folder.listFiles();
+		if (files == null) {
+			_cards.clear();
+			return;
+		}
+		Set<String> names = new HashSet<>();
+		for (File file : files) {
+			String name = file.getName();
+			if (!file.isFile() || name.startsWith("."))
+				continue;
+			names.add(name);
+			VCard card = _cards.get(name);
+			if (card == null || card.getLastModified() != file.lastModified()
+					|| card.getLength() != file.length())
+				update(name);
+		}
+		_cards.keySet().retainAll(names);
+	}
+
+	/**
+	 * Reads the file with the given name after it was written.
+	 */
+	public void update(String name) {
+		File file = new File(_folder, name);
+		try {
+			long lastModified = file.lastModified();
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			_cards.put(name, VCard.parse(new String(bytes,
+					StandardCharsets.UTF_8), lastModified, bytes.length));
+		} catch (IOException e) {
+			LOG.warn("Unable to index " + file + ": " + e);
+			_cards.remove(name);
+		}
+	}
+
+	public void remove(String name) {
+		_cards.remove(name);
+	}
+
+	/**
+	 * @return the card or null if there is no file with that name
+	 */
+	public VCard get(String name) {
+		return _cards.get(name);
+	}
+
+	public int size() {
+		return _cards.size();
+	}
+
+	/**
+	 * @return names of all indexed files, sorted
+	 */
+	public List<String> getNames() {
+		refresh();
+		List<String> names = new ArrayList<>(_cards.keySet());
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * @return names of the files whose card passes the filter, sorted
+	 */
+	public List<String> query(AddressbookFilter filter) {
+		refresh();
+		List<String> names = new ArrayList<>();
+		for (Map.Entry<String, VCard> entry : _cards.entrySet()) {
+			if (filter.matches(entry.getValue()))
+				names.add(entry.getKey());
+		}
+		Collections.sort(names);
+		return names;
+	}
+}
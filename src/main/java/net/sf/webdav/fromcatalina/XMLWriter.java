@@ -17,6 +17,7 @@
 package net.sf.webdav.fromcatalina;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.Writer;
 import java.util.Iterator;
 import java.util.Map;
@@ -67,6 +68,13 @@ public class XMLWriter {
      */
     protected boolean _isRootElement = true;
 
+    /**
+     * Number of buffered characters after which the buffer is written to the
+     * writer at the next closing element. 0 keeps the whole document until
+     * sendData() is called.
+     */
+    protected int _flushThreshold = 0;
+
     // ----------------------------------------------------------- Constructors
 
     /**
@@ -86,6 +94,25 @@ public class XMLWriter {
 
     // --------------------------------------------------------- Public Methods
 
+    /**
+     * @return the writer the document is sent to, null if it is only
+     *         collected in memory
+     */
+    public Writer getWriter() {
+        return _writer;
+    }
+
+    /**
+     * Lets the document stream to the writer while it is generated instead
+     * of keeping all of it in memory.
+     * 
+     * @param flushThreshold
+     *      number of characters to buffer, 0 to buffer everything
+     */
+    public void setFlushThreshold(int flushThreshold) {
+        _flushThreshold = flushThreshold;
+    }
+
     /**
      * Retrieve generated XML.
      * 
@@ -165,6 +192,7 @@ public class XMLWriter {
             break;
         case CLOSING:
             _buffer.append("</" + name + ">\n");
+            writeIfFull();
             break;
         case NO_CONTENT:
         default:
@@ -200,6 +228,18 @@ public class XMLWriter {
         _buffer.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n");
     }
 
+    private void writeIfFull() {
+        if (_flushThreshold > 0 && _writer != null
+                && _buffer.length() >= _flushThreshold) {
+            try {
+                _writer.write(_buffer.toString());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            _buffer.setLength(0);
+        }
+    }
+
     /**
      * Send data and reinitializes buffer.
      */
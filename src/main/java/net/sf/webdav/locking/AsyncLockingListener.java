@@ -0,0 +1,296 @@
+package net.sf.webdav.locking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.webdav.ILockingListener;
+import net.sf.webdav.ITransaction;
+
+/**
+ * Hands lock and unlock events to another {@link ILockingListener} on
+ * background threads. {@link ResourceLocks} calls its listener while holding
+ * its monitor, so a slow listener (e.g. one writing an audit log to a
+ * database) would otherwise stall every request.
+ * <p>
+ * Events are spread over the threads by path, so the events of one path are
+ * always delivered in order. Each thread takes up to <code>batchSize</code>
+ * waiting events at once and passes them to {@link #deliver(List)}, override
+ * it to write a batch in one go. The transaction passed with an event may
+ * already be finished when the event is delivered.
+ *
+ * @author Niko Berger
+ */
+public class AsyncLockingListener implements ILockingListener {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(AsyncLockingListener.class);
+
+	/**
+	 * what happens to an event when the queue of its thread is full
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * wait for space in the queue, the caller holds the ResourceLocks
+		 * monitor while waiting
+		 */
+		BLOCK,
+		/**
+		 * drop the new event
+		 */
+		DROP_NEWEST,
+		/**
+		 * drop the oldest waiting event to make space for the new one
+		 */
+		DROP_OLDEST
+	}
+
+	public static class LockingEvent {
+
+		private final ITransaction _transaction;
+
+		private final String _resourceUri;
+
+		private final boolean _lock;
+
+		LockingEvent(ITransaction transaction, String resourceUri, boolean lock) {
+			_transaction = transaction;
+			_resourceUri = resourceUri;
+			_lock = lock;
+		}
+
+		public ITransaction getTransaction() {
+			return _transaction;
+		}
+
+		public String getResourceUri() {
+			return _resourceUri;
+		}
+
+		/**
+		 * @return true for a lock, false for an unlock
+		 */
+		public boolean isLock() {
+			return _lock;
+		}
+	}
+
+	private final ILockingListener _listener;
+
+	private final int _batchSize;
+
+	private final OverflowPolicy _overflow;
+
+	private final List<BlockingQueue<LockingEvent>> _queues;
+
+	private final List<Thread> _threads;
+
+	private final AtomicLong _dropped = new AtomicLong();
+
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param listener
+	 *            the listener receiving the events
+	 * @param queueSize
+	 *            events waiting per thread before the overflow policy applies
+	 * @param batchSize
+	 *            maximum number of events delivered at once
+	 * @param threads
+	 *            number of delivering threads
+	 * @param overflow
+	 *            what to do when a queue is full
+	 */
+	public AsyncLockingListener(ILockingListener listener, int queueSize,
+			int batchSize, int threads, OverflowPolicy overflow) {
+		_listener = listener;
+		_batchSize = Math.max(1, batchSize);
+		_overflow = overflow;
+		threads = Math.max(1, threads);
+		List<BlockingQueue<LockingEvent>> queues = new ArrayList<>(threads);
+		List<Thread> workers = new ArrayList<>(threads);
+		for (int i = 0; i < threads; i++) {
+			final BlockingQueue<LockingEvent> queue = new ArrayBlockingQueue<>(
+					Math.max(1, queueSize));
+			queues.add(queue);
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drain(queue);
+				}
+			}, "webdav-locking-listener-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+		}
+		_queues = Collections.unmodifiableList(queues);
+		_threads = Collections.unmodifiableList(workers);
+		for (Thread worker : _threads)
+			worker.start();
+	}
+
+	@Override
+	public void onLockResource(ITransaction transaction, String resourceUri) {
+		enqueue(new LockingEvent(transaction, resourceUri, true));
+	}
+
+	@Override
+	public void onUnlockResource(ITransaction transaction, String resourceUri) {
+		enqueue(new LockingEvent(transaction, resourceUri, false));
+	}
+
+	/**
+	 * @return number of events dropped because a queue was full
+	 */
+	public long getDropped() {
+		return _dropped.get();
+	}
+
+	/**
+	 * @return number of events waiting for delivery
+	 */
+	public int getPending() {
+		int pending = 0;
+		for (BlockingQueue<LockingEvent> queue : _queues)
+			pending += queue.size();
+		return pending;
+	}
+
+	/**
+	 * Delivers the waiting events and stops the threads. Events arriving
+	 * afterwards are delivered on the calling thread.
+	 *
+	 * @param timeoutMillis
+	 *            how long to wait for the waiting events
+	 * @return true if all waiting events were delivered in time
+	 */
+	public boolean close(long timeoutMillis) {
+		_closed = true;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try {
+			for (Thread worker : _threads) {
+				worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Thread worker : _threads) {
+			if (worker.isAlive()) {
+				worker.interrupt();
+			}
+		}
+		return getPending() == 0;
+	}
+
+	/**
+	 * Passes the events to the listener one by one. Called on one of the
+	 * background threads, all events of one path go to the same thread.
+	 *
+	 * @param batch
+	 *            events in the order they happened
+	 */
+	protected void deliver(List<LockingEvent> batch) {
+		for (LockingEvent event : batch) {
+			try {
+				if (event.isLock())
+					_listener.onLockResource(event.getTransaction(),
+							event.getResourceUri());
+				else
+					_listener.onUnlockResource(event.getTransaction(),
+							event.getResourceUri());
+			} catch (RuntimeException e) {
+				LOG.warn("Locking listener failed for " + event.getResourceUri(), e);
+			}
+		}
+	}
+
+	private void enqueue(LockingEvent event) {
+		if (_closed) {
+			deliver(Collections.singletonList(event));
+			return;
+		}
+		String uri = event.getResourceUri();
+		int index = ((uri == null ? 0 : uri.hashCode()) & 0x7fffffff)
+				% _queues.size();
+		BlockingQueue<LockingEvent> queue = _queues.get(index);
+		switch (_overflow) {
+		case BLOCK:
+			try {
+				while (!queue.offer(event, 100, TimeUnit.MILLISECONDS)) {
+					// the worker may have stopped with a full queue
+					if (_closed)
+						deliverLeftovers(index);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped(event);
+			}
+			break;
+		case DROP_OLDEST:
+			while (!queue.offer(event)) {
+				LockingEvent oldest = queue.poll();
+				if (oldest != null)
+					dropped(oldest);
+			}
+			break;
+		default:
+			if (!queue.offer(event))
+				dropped(event);
+		}
+		// close() came in between the check and the offer, the worker may
+		// have seen an empty queue and stopped already
+		if (_closed)
+			deliverLeftovers(index);
+	}
+
+	/**
+	 * Delivers what is left in a queue after its worker stopped, on the
+	 * calling thread.
+	 */
+	private void deliverLeftovers(int index) {
+		try {
+			_threads.get(index).join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		BlockingQueue<LockingEvent> queue = _queues.get(index);
+		// keeps the leftovers of concurrent callers in order
+		synchronized (queue) {
+			List<LockingEvent> batch = new ArrayList<>();
+			queue.drainTo(batch);
+			if (!batch.isEmpty())
+				deliver(batch);
+		}
+	}
+
+	private void dropped(LockingEvent event) {
+		if (_dropped.getAndIncrement() == 0)
+			LOG.warn("Locking listener queue is full, dropping events");
+		LOG.debug("Dropped locking event for " + event.getResourceUri());
+	}
+
+	private void drain(BlockingQueue<LockingEvent> queue) {
+		List<LockingEvent> batch = new ArrayList<>(_batchSize);
+		while (!_closed || !queue.isEmpty()) {
+			try {
+				LockingEvent first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, _batchSize - 1);
+			try {
+				deliver(batch);
+			} catch (RuntimeException e) {
+				LOG.warn("Locking listener failed", e);
+			}
+			batch.clear();
+		}
+	}
+}
@@ -1,5 +1,9 @@
 package net.sf.webdav.locking;
 
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import net.sf.webdav.ILockingListener;
@@ -18,8 +22,17 @@ public class LockedObject {
     private String _path;
     private final ILockingListener _lockingListener;
 
+    /**
+     * created on the first call to getID(), most LockedObjects are parents of
+     * a lock and never need one
+     */
     private String _id;
 
+    /**
+     * true if this is stored with the temporary locks
+     */
+    private final boolean _temporary;
+
     /**
      * Describing the depth of a locked collection. If the locked resource is
      * not a collection, depth is 0 / doesn't matter.
@@ -35,16 +48,26 @@ public class LockedObject {
      * owner of the lock. shared locks can have multiple owners. is null if no
      * owner is present
      */
-    // protected String[] _owner = null;
-    protected String[] _owner = null;
+    protected Set<String> _owner = null;
 
     /**
-     * children of that lock
+     * children of that lock by their path. is null if there are no children
      */
-    protected LockedObject[] _children = null;
+    protected Map<String, LockedObject> _children = null;
 
     protected LockedObject _parent = null;
 
+    /**
+     * number of LockedObjects with an owner below this one
+     */
+    protected int _locksBelow = 0;
+
+    /**
+     * set once this is removed from the tree, its children might still point
+     * to it
+     */
+    private boolean _removed = false;
+
     /**
      * weather the lock is exclusive or not. if owner=null the exclusive value
      * doesn't matter
@@ -64,18 +87,17 @@ public class LockedObject {
      */
     public LockedObject(ResourceLocks resLocks, String path, boolean temporary, ILockingListener lockingListener) {
         _path = path;
-        _id = UUID.randomUUID().toString();
         _resourceLocks = resLocks;
         _lockingListener = lockingListener;
+        _temporary = temporary;
 
         if (!temporary) {
             _resourceLocks._locks.put(path, this);
-            _resourceLocks._locksByID.put(_id, this);
         } else {
             _resourceLocks._tempLocks.put(path, this);
-            _resourceLocks._tempLocksByID.put(_id, this);
         }
         _resourceLocks._cleanupCounter++;
+        _resourceLocks.expiresAt(temporary, _expiresAt);
     }
 
     /**
@@ -86,28 +108,14 @@ public class LockedObject {
      * @return true if the owner was added, false otherwise
      */
     public boolean addLockedObjectOwner(String owner) {
-
-        if (_owner == null) {
-            _owner = new String[1];
-        } else {
-
-            int size = _owner.length;
-            String[] newLockObjectOwner = new String[size + 1];
-
-            // check if the owner is already here (that should actually not
-            // happen)
-            for (int i = 0; i < size; i++) {
-                if (_owner[i].equals(owner)) {
-                    return false;
-                }
+        synchronized (_resourceLocks) {
+            if (_owner == null) {
+                _owner = new LinkedHashSet<String>();
+                countLocksBelow(1);
             }
-
-            System.arraycopy(_owner, 0, newLockObjectOwner, 0, size);
-            _owner = newLockObjectOwner;
+            // the owner should actually not be here already
+            return _owner.add(owner);
         }
-
-        _owner[_owner.length - 1] = owner;
-        return true;
     }
 
     /**
@@ -117,34 +125,32 @@ public class LockedObject {
      *      string that represents the owner
      */
     public void removeLockedObjectOwner(String owner) {
-
-        try {
+        synchronized (_resourceLocks) {
             if (_owner != null) {
-                int size = _owner.length;
-                for (int i = 0; i < size; i++) {
-                    // check every owner if it is the requested one
-                    if (_owner[i].equals(owner)) {
-                        // remove the owner
-                    	size -= 1;
-                        String[] newLockedObjectOwner = new String[size];
-                        for (int j = 0; j < size; j++) {
-                            if (j < i) {
-                                newLockedObjectOwner[j] = _owner[j];
-                            } else {
-                                newLockedObjectOwner[j] = _owner[j + 1];
-                            }
-                        }
-                        _owner = newLockedObjectOwner;
-
-                    }
-                }
-                if (_owner.length == 0) {
+                _owner.remove(owner);
+                if (_owner.isEmpty()) {
                     _owner = null;
+                    countLocksBelow(-1);
                 }
             }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            System.out.println("LockedObject.removeLockedObjectOwner()");
-            System.out.println(e.toString());
+        }
+    }
+
+    /**
+     * updates the number of locks below of all parents
+     * 
+     * @param delta
+     *      the number of locks added or removed
+     */
+    private void countLocksBelow(int delta) {
+        if (_removed) {
+            return;
+        }
+        for (LockedObject parent = _parent; parent != null; parent = parent._parent) {
+            parent._locksBelow += delta;
+            if (parent._removed) {
+                break;
+            }
         }
     }
 
@@ -156,13 +162,26 @@ public class LockedObject {
      */
     public void addChild(LockedObject newChild) {
         if (_children == null) {
-            _children = new LockedObject[0];
+            _children = new HashMap<String, LockedObject>();
+        }
+        _children.put(newChild.getPath(), newChild);
+    }
+
+    /**
+     * removes this lock from the children of its parent
+     */
+    private void removeFromParent() {
+        int locks = _locksBelow + (_owner != null ? 1 : 0);
+        if (locks != 0) {
+            countLocksBelow(-locks);
+        }
+        _removed = true;
+        if (_parent != null && _parent._children != null) {
+            _parent._children.remove(getPath());
+            if (_parent._children.isEmpty()) {
+                _parent._children = null;
+            }
         }
-        int size = _children.length;
-        LockedObject[] newChildren = new LockedObject[size + 1];
-        System.arraycopy(_children, 0, newChildren, 0, size);
-        newChildren[size] = newChild;
-        _children = newChildren;
     }
 
     /**
@@ -174,28 +193,12 @@ public class LockedObject {
     public void removeLockedObject(ITransaction transaction) {
         if (this != _resourceLocks._root && !this.getPath().equals("/")) {
 
-            int size = _parent._children.length;
-            for (int i = 0; i < size; i++) {
-                if (_parent._children[i].equals(this)) {
-                    LockedObject[] newChildren = new LockedObject[size - 1];
-                    for (int i2 = 0; i2 < (size - 1); i2++) {
-                        if (i2 < i) {
-                            newChildren[i2] = _parent._children[i2];
-                        } else {
-                            newChildren[i2] = _parent._children[i2 + 1];
-                        }
-                    }
-                    if (newChildren.length != 0) {
-                        _parent._children = newChildren;
-                    } else {
-                        _parent._children = null;
-                    }
-                    break;
-                }
-            }
+            removeFromParent();
 
             // removing from hashtable
-            _resourceLocks._locksByID.remove(getID());
+            if (_id != null) {
+                _resourceLocks._locksByID.remove(_id);
+            }
             _resourceLocks._locks.remove(getPath());
             if (_lockingListener!=null) {
                 _lockingListener.onUnlockResource(transaction, getPath());
@@ -214,28 +217,12 @@ public class LockedObject {
         if (this != _resourceLocks._tempRoot) {
             // removing from tree
             if (_parent != null && _parent._children != null) {
-                int size = _parent._children.length;
-                for (int i = 0; i < size; i++) {
-                    if (_parent._children[i].equals(this)) {
-                        LockedObject[] newChildren = new LockedObject[size - 1];
-                        for (int i2 = 0; i2 < (size - 1); i2++) {
-                            if (i2 < i) {
-                                newChildren[i2] = _parent._children[i2];
-                            } else {
-                                newChildren[i2] = _parent._children[i2 + 1];
-                            }
-                        }
-                        if (newChildren.length != 0) {
-                            _parent._children = newChildren;
-                        } else {
-                            _parent._children = null;
-                        }
-                        break;
-                    }
-                }
+                removeFromParent();
 
                 // removing from hashtable
-                _resourceLocks._tempLocksByID.remove(getID());
+                if (_id != null) {
+                    _resourceLocks._tempLocksByID.remove(_id);
+                }
                 _resourceLocks._tempLocks.remove(getPath());
 
                 // now the garbage collector has some work to do
@@ -303,14 +290,12 @@ public class LockedObject {
                 // no owner, checking children
 
                 if (depth != 0) {
-                    boolean canLock = true;
-                    int limit = _children.length;
-                    for (int i = 0; i < limit; i++) {
-                        if (!_children[i].checkChildren(exclusive, depth - 1)) {
-                            canLock = false;
+                    for (LockedObject child : _children.values()) {
+                        if (!child.checkChildren(exclusive, depth - 1)) {
+                            return false;
                         }
                     }
-                    return canLock;
+                    return true;
                 } else {
                     // depth == 0 -> we don't care for children
                     return true;
@@ -329,7 +314,31 @@ public class LockedObject {
      * @param timeout
      */
     public void refreshTimeout(int timeout) {
-        _expiresAt = System.currentTimeMillis() + (timeout * 1000);
+        setExpiresAt(System.currentTimeMillis() + (timeout * 1000));
+        extendParentTimeouts();
+    }
+
+    /**
+     * makes sure the parents do not expire before this LockedObject, they
+     * would take the locks below them along
+     */
+    void extendParentTimeouts() {
+        for (LockedObject parent = _parent; parent != null; parent = parent._parent) {
+            if (parent._expiresAt < _expiresAt) {
+                parent.setExpiresAt(_expiresAt);
+            }
+        }
+    }
+
+    /**
+     * Sets the time the LockedObject expires at
+     * 
+     * @param expiresAt
+     *      time in ms
+     */
+    void setExpiresAt(long expiresAt) {
+        _expiresAt = expiresAt;
+        _resourceLocks.expiresAt(_temporary, expiresAt);
     }
 
     /**
@@ -359,7 +368,15 @@ public class LockedObject {
      * 
      * @return locktoken
      */
-    public String getID() {
+    public synchronized String getID() {
+        if (_id == null) {
+            _id = UUID.randomUUID().toString();
+            if (!_temporary) {
+                _resourceLocks._locksByID.put(_id, this);
+            } else {
+                _resourceLocks._tempLocksByID.put(_id, this);
+            }
+        }
         return _id;
     }
 
@@ -369,7 +386,8 @@ public class LockedObject {
      * @return owners
      */
     public String[] getOwner() {
-        return _owner;
+        Set<String> owner = _owner;
+        return owner == null ? null : owner.toArray(new String[owner.size()]);
     }
 
     /**
@@ -417,6 +435,15 @@ public class LockedObject {
         return _type;
     }
 
+    /**
+     * Gets the number of locks on the resources below this one
+     * 
+     * @return number of locks
+     */
+    public int getLocksBelow() {
+        return _locksBelow;
+    }
+
     /**
      * Gets the depth of the lock
      * 
@@ -16,9 +16,13 @@
 
 package net.sf.webdav.locking;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.List;
 
+import net.sf.webdav.DavPath;
 import net.sf.webdav.ILockingListener;
 import net.sf.webdav.ITransaction;
 import net.sf.webdav.exceptions.LockFailedException;
@@ -74,6 +78,14 @@ public class ResourceLocks implements IResourceLocks {
 
     private boolean _temporary = true;
 
+    /**
+     * no LockedObject in _locks (_tempLocks) expires before, checkTimeouts()
+     * does not need to look at them until then
+     */
+    private long _nextExpiry = 0;
+
+    private long _nextTempExpiry = 0;
+
     public ResourceLocks(ILockingListener lockingListener) {
         _lockingListener = lockingListener;
         _root = new LockedObject(this, "/", true, _lockingListener);
@@ -91,10 +103,12 @@ public class ResourceLocks implements IResourceLocks {
         LockedObject lo = null;
 
         if (temporary) {
-            lo = generateTempLockedObjects(transaction, path);
+            lo = generateTempLockedObjects(transaction, path,
+                    DavPath.valueOf(path));
             lo._type = "read";
         } else {
-            lo = generateLockedObjects(transaction, path);
+            lo = generateLockedObjects(transaction, path,
+                    DavPath.valueOf(path));
             lo._type = "write";
         }
 
@@ -102,19 +116,8 @@ public class ResourceLocks implements IResourceLocks {
 
             lo._exclusive = exclusive;
             lo._lockDepth = depth;
-            lo._expiresAt = System.currentTimeMillis() + (timeout * 1000);
-            if (lo._parent != null) {
-                lo._parent._expiresAt = lo._expiresAt;
-                if (lo._parent.equals(_root)) {
-                    LockedObject rootLo = getLockedObjectByPath(transaction,
-                            _root.getPath());
-                    rootLo._expiresAt = lo._expiresAt;
-                } else if (lo._parent.equals(_tempRoot)) {
-                    LockedObject tempRootLo = getTempLockedObjectByPath(
-                            transaction, _tempRoot.getPath());
-                    tempRootLo._expiresAt = lo._expiresAt;
-                }
-            }
+            lo.setExpiresAt(System.currentTimeMillis() + (timeout * 1000));
+            lo.extendParentTimeouts();
             if (lo.addLockedObjectOwner(owner)) {
                 return true;
             } else {
@@ -185,24 +188,54 @@ public class ResourceLocks implements IResourceLocks {
     }
 
     public synchronized void checkTimeouts(ITransaction transaction, boolean temporary) {
+        long now = System.currentTimeMillis();
+        long nextExpiry = Long.MAX_VALUE;
         if (!temporary) {
+            if (_nextExpiry >= now) {
+                return;
+            }
             Enumeration<LockedObject> lockedObjects = _locks.elements();
             while (lockedObjects.hasMoreElements()) {
                 LockedObject currentLockedObject = lockedObjects.nextElement();
 
-                if (currentLockedObject._expiresAt < System.currentTimeMillis()) {
+                if (currentLockedObject._expiresAt < now) {
                     currentLockedObject.removeLockedObject(transaction);
+                } else {
+                    nextExpiry = Math.min(nextExpiry, currentLockedObject._expiresAt);
                 }
             }
+            _nextExpiry = nextExpiry;
         } else {
+            if (_nextTempExpiry >= now) {
+                return;
+            }
             Enumeration<LockedObject> lockedObjects = _tempLocks.elements();
             while (lockedObjects.hasMoreElements()) {
                 LockedObject currentLockedObject = lockedObjects.nextElement();
 
-                if (currentLockedObject._expiresAt < System.currentTimeMillis()) {
+                if (currentLockedObject._expiresAt < now) {
                     currentLockedObject.removeTempLockedObject();
+                } else {
+                    nextExpiry = Math.min(nextExpiry, currentLockedObject._expiresAt);
                 }
             }
+            _nextTempExpiry = nextExpiry;
+        }
+    }
+
+    /**
+     * called whenever a LockedObject gets a new expiry time
+     * 
+     * @param temporary
+     *      whether the LockedObject is stored with the temporary locks
+     * @param expiresAt
+     *      the new expiry time
+     */
+    synchronized void expiresAt(boolean temporary, long expiresAt) {
+        if (temporary) {
+            _nextTempExpiry = Math.min(_nextTempExpiry, expiresAt);
+        } else {
+            _nextExpiry = Math.min(_nextExpiry, expiresAt);
         }
     }
 
@@ -233,6 +266,43 @@ public class ResourceLocks implements IResourceLocks {
         }
     }
 
+    /**
+     * Gets the locks on the resources below path, the lock on path itself is
+     * not included. Every LockedObject knows the number of locks below it, so
+     * this is a single lookup if there are none and only walks the branches
+     * holding locks otherwise.
+     * 
+     * @param transaction
+     * @param path
+     *      the folder
+     * @return the locks below path, empty if there are none
+     */
+    public synchronized List<LockedObject> getLocksBelow(
+            ITransaction transaction, String path) {
+        checkTimeouts(transaction, !_temporary);
+        LockedObject lo = _locks.get(path);
+        if (lo == null || lo._locksBelow == 0) {
+            return Collections.emptyList();
+        }
+        List<LockedObject> locks = new ArrayList<LockedObject>(lo._locksBelow);
+        collectLocksBelow(lo, locks);
+        return locks;
+    }
+
+    private void collectLocksBelow(LockedObject lo, List<LockedObject> locks) {
+        if (lo._children == null) {
+            return;
+        }
+        for (LockedObject child : lo._children.values()) {
+            if (child._owner != null) {
+                locks.add(child);
+            }
+            if (child._locksBelow > 0) {
+                collectLocksBelow(child, locks);
+            }
+        }
+    }
+
     public LockedObject getTempLockedObjectByID(ITransaction transaction,
             String id) {
         if (_tempLocksByID.containsKey(id)) {
@@ -258,20 +328,22 @@ public class ResourceLocks implements IResourceLocks {
      * @param transaction
      * @param path
      *      path to the (new) LockedObject
+     * @param davPath
+     *      the parsed path, used to walk up to the parents
      * @return the LockedObject for path.
      */
     private LockedObject generateLockedObjects(ITransaction transaction,
-            String path) {
+            String path, DavPath davPath) {
         if (!_locks.containsKey(path)) {
             if (_lockingListener != null) {
                 _lockingListener.onLockResource(transaction,path);
             }
             LockedObject returnObject = new LockedObject(this, path,
                     !_temporary, _lockingListener);
-            String parentPath = getParentPath(path);
+            DavPath parentPath = davPath.parent();
             if (parentPath != null) {
                 LockedObject parentLockedObject = generateLockedObjects(
-                        transaction, parentPath);
+                        transaction, parentPath.toString(), parentPath);
                 parentLockedObject.addChild(returnObject);
                 returnObject._parent = parentLockedObject;
             }
@@ -290,16 +362,18 @@ public class ResourceLocks implements IResourceLocks {
      * @param transaction
      * @param path
      *      path to the (new) LockedObject
+     * @param davPath
+     *      the parsed path, used to walk up to the parents
      * @return the LockedObject for path.
      */
     private LockedObject generateTempLockedObjects(ITransaction transaction,
-            String path) {
+            String path, DavPath davPath) {
         if (!_tempLocks.containsKey(path)) {
             LockedObject returnObject = new LockedObject(this, path, _temporary, _lockingListener);
-            String parentPath = getParentPath(path);
+            DavPath parentPath = davPath.parent();
             if (parentPath != null) {
                 LockedObject parentLockedObject = generateTempLockedObjects(
-                        transaction, parentPath);
+                        transaction, parentPath.toString(), parentPath);
                 parentLockedObject.addChild(returnObject);
                 returnObject._parent = parentLockedObject;
             }
@@ -340,15 +414,11 @@ public class ResourceLocks implements IResourceLocks {
             }
         } else {
             boolean canDelete = true;
-            int limit = lo._children.length;
-            for (int i = 0; i < limit; i++) {
-                if (!cleanLockedObjects(transaction, lo._children[i], temporary)) {
+            // cleaning removes the children from the map
+            for (LockedObject child : new ArrayList<LockedObject>(
+                    lo._children.values())) {
+                if (!cleanLockedObjects(transaction, child, temporary)) {
                     canDelete = false;
-                } else {
-
-                    // because the deleting shifts the array
-                    i--;
-                    limit--;
                 }
             }
             if (canDelete) {
@@ -368,26 +438,4 @@ public class ResourceLocks implements IResourceLocks {
         }
     }
 
-    /**
-     * creates the parent path from the given path by removing the last '/' and
-     * everything after that
-     * 
-     * @param path
-     *      the path
-     * @return parent path
-     */
-    private String getParentPath(String path) {
-        int slash = path.lastIndexOf('/');
-        if (slash == -1) {
-            return null;
-        } else {
-            if (slash == 0) {
-                // return "root" if parent path is empty string
-                return "/";
-            } else {
-                return path.substring(0, slash);
-            }
-        }
-    }
-
 }
@@ -17,17 +17,22 @@
 package net.sf.webdav.methods;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -35,10 +40,15 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 import net.sf.webdav.DavExtensionConfig;
+import net.sf.webdav.DavPath;
 import net.sf.webdav.IMethodExecutor;
 import net.sf.webdav.ITransaction;
 import net.sf.webdav.StoredObject;
@@ -48,11 +58,17 @@ import net.sf.webdav.fromcatalina.URLEncoder;
 import net.sf.webdav.fromcatalina.XMLWriter;
 import net.sf.webdav.locking.IResourceLocks;
 import net.sf.webdav.locking.LockedObject;
+import net.sf.webdav.locking.ResourceLocks;
+import net.sf.webdav.xml.DavRequest;
+import net.sf.webdav.xml.DavRequestParser;
+import net.sf.webdav.xml.DocumentParser;
+import net.sf.webdav.xml.RequestTooLargeException;
 
 public abstract class AbstractMethod implements IMethodExecutor {
 
     private static final Queue<DateFormat> thLastmodifiedDateFormat = new ConcurrentLinkedQueue<>();
     private static final Queue<DateFormat> thCreationDateFormat = new ConcurrentLinkedQueue<>();
+    private static final DocumentParser DOCUMENT_PARSER = new DocumentParser(32);
 
     /**
      * Array containing the safe characters set.
@@ -117,6 +133,121 @@ public abstract class AbstractMethod implements IMethodExecutor {
      */
     protected static final int TEMP_TIMEOUT = 10;
 
+    /**
+     * characters of generated xml buffered before they are written to the
+     * response, when xml responses are streamed
+     */
+    protected static final int XML_FLUSH_THRESHOLD = 8192;
+
+    /**
+     * deflate level of xml responses, -1 disables compression and streaming
+     */
+    protected int _compressionLevel = -1;
+
+    /**
+     * xml responses up to this size are sent uncompressed
+     */
+    protected int _compressionMinSize = 1024;
+
+    /**
+     * streaming parser for request bodies, null to build a DOM
+     */
+    protected DavRequestParser _requestParser;
+
+    /**
+     * Enables gzip compression of the multistatus responses for clients
+     * sending <code>Accept-Encoding: gzip</code>. The xml is streamed to the
+     * response while it is generated instead of being built in memory.
+     * 
+     * @param level
+     *      deflate level 0-9, -1 to disable
+     * @param minSize
+     *      responses up to this many bytes are not compressed
+     */
+    public void setResponseCompression(int level, int minSize) {
+        _compressionLevel = level;
+        _compressionMinSize = minSize;
+    }
+
+    /**
+     * @return the writer for an xml response: gzip compressed if enabled and
+     *         accepted by the client, the response writer otherwise
+     */
+    protected Writer getXmlWriter(HttpServletRequest req,
+            HttpServletResponse resp) throws IOException {
+        if (_compressionLevel < 0)
+            return resp.getWriter();
+        resp.addHeader("Vary", "Accept-Encoding");
+        if (!acceptsGzip(req.getHeader("Accept-Encoding")))
+            return resp.getWriter();
+        return new GzipWriter(new GzipResponseStream(resp, _compressionLevel,
+                _compressionMinSize));
+    }
+
+    /**
+     * Creates the writer for the multistatus response, streaming if the
+     * response is gzip compressed. Uncompressed responses are buffered, so
+     * an error can still be sent instead.
+     */
+    protected XMLWriter createXmlWriter(HttpServletRequest req,
+            HttpServletResponse resp, Map<String, String> namespaces)
+            throws IOException {
+        Writer writer = getXmlWriter(req, resp);
+        XMLWriter generatedXML = new XMLWriter(writer, namespaces);
+        if (writer instanceof GzipWriter)
+            generatedXML.setFlushThreshold(XML_FLUSH_THRESHOLD);
+        return generatedXML;
+    }
+
+    /**
+     * Sends the rest of the document and ends compression.
+     */
+    protected static void finishXml(XMLWriter generatedXML) throws IOException {
+        generatedXML.sendData();
+        if (generatedXML.getWriter() instanceof GzipWriter)
+            generatedXML.getWriter().close();
+    }
+
+    /**
+     * @param acceptEncoding
+     *      the Accept-Encoding header, may be null
+     * @return true if gzip is acceptable and not excluded with q=0
+     */
+    protected static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            if (!"gzip".equalsIgnoreCase(name) && !"x-gzip".equalsIgnoreCase(name)
+                    && !"*".equals(name))
+                continue;
+            boolean excluded = false;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        excluded = Float.parseFloat(param.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        excluded = true;
+                    }
+                }
+            }
+            return !excluded;
+        }
+        return false;
+    }
+
+    /**
+     * UTF-8 writer on top of the gzip stream, closing it finishes the
+     * compressed body
+     */
+    private static class GzipWriter extends OutputStreamWriter {
+        GzipWriter(OutputStream out) {
+            super(out, StandardCharsets.UTF_8);
+        }
+    }
+
     public String lastModifiedDateFormat(final Date date) {
         DateFormat df = thLastmodifiedDateFormat.poll();
         try {
@@ -194,38 +325,67 @@ public abstract class AbstractMethod implements IMethodExecutor {
     }
 
     /**
-     * removes a / at the end of the path string, if present
+     * removes a / at the end of the path string and duplicate /, if present
      * 
      * @param path
      *      the path
-     * @return the path without trailing /
+     * @return the path with a leading and without trailing /
      */
     protected String getCleanPath(String path) {
-    	if(path.startsWith("//"))
-    		path = path.substring(1);
-
-        if (path.endsWith("/") && path.length() > 1)
-            path = path.substring(0, path.length() - 1);
-        
-        if(!path.startsWith("/"))
-        	return "/" + path; 
-        return path;
+        return DavPath.valueOf(path).toString();
+    }
+
+    /**
+     * Parses request bodies with the given streaming parser instead of
+     * building a DOM.
+     * 
+     * @param requestParser
+     *      the parser, null to use the DOM
+     */
+    public void setRequestParser(DavRequestParser requestParser) {
+        _requestParser = requestParser;
+    }
+
+    /**
+     * Reads the request body with the streaming parser. Sends 413 if the body
+     * is too large and 400 if it is not well-formed.
+     * 
+     * @return the request or null if an error was sent
+     */
+    protected DavRequest parseRequest(HttpServletRequest req,
+            HttpServletResponse resp) throws IOException {
+        long maxBodySize = _requestParser.getMaxBodySize();
+        if (maxBodySize > 0 && req.getContentLength() > maxBodySize) {
+            resp.sendError(WebdavStatus.SC_REQUEST_TOO_LONG);
+            return null;
+        }
+        try {
+            return _requestParser.parse(req.getInputStream());
+        } catch (RequestTooLargeException e) {
+            resp.sendError(WebdavStatus.SC_REQUEST_TOO_LONG);
+        } catch (XMLStreamException e) {
+            resp.sendError(WebdavStatus.SC_BAD_REQUEST);
+        }
+        return null;
     }
 
     /**
      * Return JAXP document builder instance.
      */
     protected DocumentBuilder getDocumentBuilder() throws ServletException {
-        DocumentBuilder documentBuilder = null;
-        DocumentBuilderFactory documentBuilderFactory = null;
         try {
-            documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            documentBuilderFactory.setNamespaceAware(true);
-            documentBuilder = documentBuilderFactory.newDocumentBuilder();
+            return DOCUMENT_PARSER.newDocumentBuilder();
         } catch (ParserConfigurationException e) {
             throw new ServletException("jaxp failed");
         }
-        return documentBuilder;
+    }
+
+    /**
+     * Parses the request body into a DOM with a pooled document builder.
+     */
+    protected Document parseDocument(HttpServletRequest req)
+            throws IOException, SAXException {
+        return DOCUMENT_PARSER.parse(new InputSource(req.getInputStream()));
     }
 
     /**
@@ -258,6 +418,48 @@ public abstract class AbstractMethod implements IMethodExecutor {
         return URL_ENCODER.encode(path);
     }
 
+    /**
+     * Escapes text for XML and HTML element content and attribute values.
+     * 
+     * @return the text itself if nothing has to be escaped, "" for null
+     */
+    protected static String escapeXml(String text) {
+        if (text == null)
+            return "";
+        StringBuilder sb = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement;
+            switch (c) {
+            case '<':
+                replacement = "&lt;";
+                break;
+            case '>':
+                replacement = "&gt;";
+                break;
+            case '&':
+                replacement = "&amp;";
+                break;
+            case '"':
+                replacement = "&quot;";
+                break;
+            default:
+                replacement = null;
+            }
+            if (replacement != null && sb == null) {
+                sb = new StringBuilder(text.length() + 16);
+                sb.append(text, 0, i);
+            }
+            if (sb != null) {
+                if (replacement != null)
+                    sb.append(replacement);
+                else
+                    sb.append(c);
+            }
+        }
+        return sb == null ? text : sb.toString();
+    }
+
     /**
      * Get the ETag associated with a file.
      * 
@@ -271,19 +473,17 @@ public abstract class AbstractMethod implements IMethodExecutor {
     	String et = so.getEtag();
     	if(et != null)
     		return et;
-    	
-        String resourceLength = "";
-        String lastModified = "";
-
-        if (so.isResource()) {
-            resourceLength = String.valueOf(so.getResourceLength());
-            lastModified = String.valueOf(so.getLastModified().getTime());
-        }
 
+        // single builder, no intermediate strings (called for every resource in a PROPFIND)
+        StringBuilder sb = new StringBuilder(40);
         if (format == DavExtensionConfig.ETAG_W)
-        	return "W/\"" + resourceLength + "-" + lastModified + "\"";
+        	sb.append("W/");
+        sb.append('"');
+        if (so.isResource())
+            sb.append(so.getResourceLength()).append('-').append(so.getLastModified().getTime());
         else
-        	return "\"" + resourceLength + "-" + lastModified + "\"";
+            sb.append('-');
+        return sb.append('"').toString();
 
     }
 
@@ -321,6 +521,39 @@ public abstract class AbstractMethod implements IMethodExecutor {
         return ids;
     }
 
+    /**
+     * @return the lock tokens of all lists in the If header, null without If
+     *         header. Resource tags and entity tags are skipped.
+     */
+    protected Set<String> getLockIdsFromIfHeader(HttpServletRequest req) {
+        String header = req.getHeader("If");
+        if (header == null || header.equals(""))
+            return null;
+
+        Set<String> ids = new HashSet<String>();
+        boolean inList = false;
+        for (int i = 0; i < header.length(); i++) {
+            char c = header.charAt(i);
+            if (c == '(') {
+                inList = true;
+            } else if (c == ')') {
+                inList = false;
+            } else if (c == '<' || c == '[') {
+                int end = header.indexOf(c == '<' ? '>' : ']', i);
+                if (end == -1)
+                    break;
+                if (c == '<' && inList) {
+                    String id = header.substring(i + 1, end);
+                    if (id.indexOf("locktoken:") != -1)
+                        id = id.substring(id.indexOf(':') + 1);
+                    ids.add(id);
+                }
+                i = end;
+            }
+        }
+        return ids;
+    }
+
     protected String getLockIdFromLockTokenHeader(HttpServletRequest req) {
         String id = req.getHeader("Lock-Token");
 
@@ -389,6 +622,37 @@ public abstract class AbstractMethod implements IMethodExecutor {
         return true;
     }
 
+    /**
+     * checks if the resources below path can be changed, e.g. before deleting
+     * or moving a folder. Shared locks do not matter, the tokens of exclusive
+     * locks have to be in the If header.
+     * 
+     * @param transaction
+     * @param req
+     *      Servlet request
+     * @param resourceLocks
+     * @param path
+     *      the folder
+     * @return true if no lock below path forbids the change
+     */
+    protected boolean checkLocksBelow(ITransaction transaction,
+            HttpServletRequest req, ResourceLocks resourceLocks, String path) {
+
+        Set<String> lockTokens = null;
+        for (LockedObject lo : resourceLocks.getLocksBelow(transaction, path)) {
+            if (lo.isShared())
+                continue;
+            if (lockTokens == null) {
+                lockTokens = getLockIdsFromIfHeader(req);
+                if (lockTokens == null)
+                    return false;
+            }
+            if (!lockTokens.contains(lo.getID()))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Send a multistatus element containing a complete error report to the
      * client. If the errorList contains only one error, send the error
@@ -542,52 +806,6 @@ public abstract class AbstractMethod implements IMethodExecutor {
      *      Relative path to be normalized
      */
     public static String normalize(String path) {
-
-        if (path == null)
-            return null;
-
-        // Create a place for the normalized path
-        String normalized = path;
-
-        if (normalized.equals("/."))
-            return "/";
-
-        // Add a leading "/" if necessary
-        if (!normalized.startsWith("/"))
-            normalized = "/" + normalized;
-
-        // Resolve occurrences of "//" in the normalized path
-        while (true) {
-            int index = normalized.indexOf("//");
-            if (index < 0)
-                break;
-            normalized = normalized.substring(0, index)
-                    + normalized.substring(index + 1);
-        }
-
-        // Resolve occurrences of "/./" in the normalized path
-        while (true) {
-            int index = normalized.indexOf("/./");
-            if (index < 0)
-                break;
-            normalized = normalized.substring(0, index)
-                    + normalized.substring(index + 2);
-        }
-
-        // Resolve occurrences of "/../" in the normalized path
-        while (true) {
-            int index = normalized.indexOf("/../");
-            if (index < 0)
-                break;
-            if (index == 0)
-                return (null); // Trying to go outside our context
-            int index2 = normalized.lastIndexOf('/', index - 1);
-            normalized = normalized.substring(0, index2)
-                    + normalized.substring(index + 3);
-        }
-
-        // Return the normalized path that we have completed
-        return (normalized);
-
+        return DavPath.normalize(path);
     }
 }
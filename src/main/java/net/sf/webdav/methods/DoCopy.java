@@ -33,6 +33,7 @@ import net.sf.webdav.exceptions.ObjectNotFoundException;
 import net.sf.webdav.exceptions.WebdavException;
 import net.sf.webdav.fromcatalina.RequestUtil;
 import net.sf.webdav.locking.ResourceLocks;
+import net.sf.webdav.props.IPropertyStore;
 
 public class DoCopy extends AbstractMethod {
 
@@ -43,6 +44,7 @@ public class DoCopy extends AbstractMethod {
     private ResourceLocks _resourceLocks;
     private DoDelete _doDelete;
     private boolean _readOnly;
+    private IPropertyStore _propertyStore;
 
     public DoCopy(IWebdavStore store, ResourceLocks resourceLocks,
             DoDelete doDelete, boolean readOnly) {
@@ -52,6 +54,14 @@ public class DoCopy extends AbstractMethod {
         _readOnly = readOnly;
     }
 
+    /**
+     * @param propertyStore
+     *      dead properties to keep in sync, may be null
+     */
+    public void setPropertyStore(IPropertyStore propertyStore) {
+        _propertyStore = propertyStore;
+    }
+
     public void execute(ITransaction transaction, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
@@ -138,6 +148,11 @@ public class DoCopy extends AbstractMethod {
             return false; // destination is locked
         }
 
+        if (!checkLocksBelow(transaction, req, _resourceLocks, destinationPath)) {
+            resp.setStatus(WebdavStatus.SC_LOCKED);
+            return false; // a resource in the destination is locked
+        }
+
         // Parsing overwrite header
 
         boolean overwrite = true;
@@ -195,6 +210,8 @@ public class DoCopy extends AbstractMethod {
 
                 }
                 copy(transaction, path, destinationPath, errorList, req, resp);
+                if (_propertyStore != null)
+                    _propertyStore.copyProperties(transaction, path, destinationPath);
 
                 if (!errorList.isEmpty()) {
                     sendReport(req, resp, errorList);
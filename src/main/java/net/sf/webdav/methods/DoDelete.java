@@ -32,6 +32,7 @@ import net.sf.webdav.exceptions.ObjectAlreadyExistsException;
 import net.sf.webdav.exceptions.ObjectNotFoundException;
 import net.sf.webdav.exceptions.WebdavException;
 import net.sf.webdav.locking.ResourceLocks;
+import net.sf.webdav.props.IPropertyStore;
 
 public class DoDelete extends AbstractMethod {
 
@@ -42,6 +43,7 @@ public class DoDelete extends AbstractMethod {
     private final IWebdavStore _store;
     private final ResourceLocks _resourceLocks;
     private final boolean _readOnly;
+    private IPropertyStore _propertyStore;
 
     public DoDelete(IWebdavStore store, ResourceLocks resourceLocks,
             boolean readOnly) {
@@ -50,6 +52,14 @@ public class DoDelete extends AbstractMethod {
         _readOnly = readOnly;
     }
 
+    /**
+     * @param propertyStore
+     *      dead properties to keep in sync, may be null
+     */
+    public void setPropertyStore(IPropertyStore propertyStore) {
+        _propertyStore = propertyStore;
+    }
+
     public void execute(ITransaction transaction, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
@@ -68,6 +78,11 @@ public class DoDelete extends AbstractMethod {
                 return; // resource is locked
             }
 
+            if (!checkLocksBelow(transaction, req, _resourceLocks, path)) {
+                resp.setStatus(WebdavStatus.SC_LOCKED);
+                return; // a resource in the folder is locked
+            }
+
             String tempLockOwner = "doDelete" + System.currentTimeMillis()
                     + req.toString();
             if (_resourceLocks.lock(transaction, path, tempLockOwner, false, 0,
@@ -130,10 +145,14 @@ public class DoDelete extends AbstractMethod {
 
                 if (so.isResource()) {
                     _store.removeObject(transaction, path);
+                    if (_propertyStore != null)
+                        _propertyStore.removeProperties(transaction, path);
                 } else {
                     if (so.isFolder()) {
                         deleteFolder(transaction, path, errorList, req, resp);
                         _store.removeObject(transaction, path);
+                        if (_propertyStore != null)
+                            _propertyStore.removeProperties(transaction, path);
                     } else {
                         resp.sendError(WebdavStatus.SC_NOT_FOUND);
                     }
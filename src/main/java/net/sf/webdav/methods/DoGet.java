@@ -15,17 +15,23 @@
  */
 package net.sf.webdav.methods;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.sf.webdav.IFolderListingStore;
 import net.sf.webdav.IMimeTyper;
 import net.sf.webdav.ITransaction;
 import net.sf.webdav.IWebdavStore;
@@ -38,6 +44,13 @@ public class DoGet extends DoHead {
     private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
             .getLogger(DoGet.class);
 
+    private final ThreadLocal<Map<Locale, DateFormat>> _dateFormats = ThreadLocal
+            .withInitial(HashMap::new);
+
+    protected IFolderListingStore _folderListingStore;
+
+    protected int _folderPageSize = 1000;
+
     public DoGet(IWebdavStore store, String dftIndexFile, String insteadOf404,
             ResourceLocks resourceLocks, IMimeTyper mimeTyper,
             int contentLengthHeader) {
@@ -46,6 +59,21 @@ public class DoGet extends DoHead {
 
     }
 
+    /**
+     * Sets how the HTML listing of a folder is built.
+     * 
+     * @param folderListingStore
+     *      store listing the members of a folder with their metadata, null
+     *      to call getStoredObject for every member shown
+     * @param pageSize
+     *      members shown per page, 0 to show all at once
+     */
+    public void setFolderListing(IFolderListingStore folderListingStore,
+            int pageSize) {
+        _folderListingStore = folderListingStore;
+        _folderPageSize = pageSize;
+    }
+
     protected void doBody(ITransaction transaction, HttpServletResponse resp,
             String path) {
 
@@ -60,35 +88,52 @@ public class DoGet extends DoHead {
             }
             OutputStream out = resp.getOutputStream();
             InputStream in = _store.getResourceContent(transaction, path);
-            try {
-                int read = -1;
-                byte[] copyBuffer = new byte[BUF_SIZE];
+            sendContent(in, out);
+        } catch (Exception e) {
+            LOG.trace(e.toString());
+        }
+    }
 
-                while ((read = in.read(copyBuffer, 0, copyBuffer.length)) != -1) {
-                    out.write(copyBuffer, 0, read);
-                }
-            } finally {
-                // flushing causes a IOE if a file is opened on the webserver
-                // client disconnected before server finished sending response
-                try {
-                    in.close();
-                } catch (Exception e) {
-                    LOG.warn("Closing InputStream causes Exception!\n"
-                            + e.toString());
-                }
-                try {
-                    out.flush();
-                    out.close();
-                } catch (Exception e) {
-                    LOG.warn("Flushing OutputStream causes Exception!\n"
-                            + e.toString());
-                }
-            }
+    protected void doEncodedBody(ITransaction transaction,
+            HttpServletResponse resp, String path, String encoding) {
+        try {
+            OutputStream out = resp.getOutputStream();
+            InputStream in = _encodedContentStore.getEncodedContent(
+                    transaction, path, encoding);
+            sendContent(in, out);
         } catch (Exception e) {
             LOG.trace(e.toString());
         }
     }
 
+    private void sendContent(InputStream in, OutputStream out)
+            throws IOException {
+        try {
+            int read = -1;
+            byte[] copyBuffer = new byte[BUF_SIZE];
+
+            while ((read = in.read(copyBuffer, 0, copyBuffer.length)) != -1) {
+                out.write(copyBuffer, 0, read);
+            }
+        } finally {
+            // flushing causes a IOE if a file is opened on the webserver
+            // client disconnected before server finished sending response
+            try {
+                in.close();
+            } catch (Exception e) {
+                LOG.warn("Closing InputStream causes Exception!\n"
+                        + e.toString());
+            }
+            try {
+                out.flush();
+                out.close();
+            } catch (Exception e) {
+                LOG.warn("Flushing OutputStream causes Exception!\n"
+                        + e.toString());
+            }
+        }
+    }
+
     protected void folderBody(ITransaction transaction, String path,
             HttpServletResponse resp, HttpServletRequest req)
             throws IOException {
@@ -108,99 +153,201 @@ public class DoGet extends DoHead {
             }
 
             if (so.isFolder()) {
-                // TODO some folder response (for browsers, DAV tools
-                // use propfind) in html?
-                Locale locale = req.getLocale();
-                DateFormat shortDF = getDateTimeFormat(locale);
-                resp.setContentType("text/html");
-                resp.setCharacterEncoding("UTF8");
-                OutputStream out = resp.getOutputStream();
-                String[] children = _store.getChildrenNames(transaction, path);
+                String folder = path.endsWith("/") ? path : path + "/";
+                Map<String, StoredObject> listed = null;
+                String[] children;
+                if (_folderListingStore != null) {
+                    listed = _folderListingStore.listChildren(transaction, path);
+                    children = listed == null ? null : listed.keySet().toArray(
+                            new String[listed.size()]);
+                } else {
+                    children = _store.getChildrenNames(transaction, path);
+                }
                 // Make sure it's not null
                 children = children == null ? new String[] {} : children;
                 // Sort by name
                 Arrays.sort(children);
-                StringBuilder childrenTemp = new StringBuilder();
-                childrenTemp.append("<html><head><title>Content of folder");
-                childrenTemp.append(path);
-                childrenTemp.append("</title><style type=\"text/css\">");
-                childrenTemp.append(getCSS());
-                childrenTemp.append("</style></head>");
-                childrenTemp.append("<body>");
-                childrenTemp.append(getHeader(transaction, path, resp, req));
-                childrenTemp.append("<table>");
-                childrenTemp.append("<tr><th>Name</th><th>Size</th><th>Created</th><th>Modified</th></tr>");
-                childrenTemp.append("<tr>");
-                childrenTemp.append("<td colspan=\"4\"><a href=\"../\">Parent</a></td></tr>");
-                boolean isEven= false;
-                for (String child : children)
-                {
-                    isEven= !isEven;
-                    childrenTemp.append("<tr class=\"");
-                    childrenTemp.append(isEven ? "even" : "odd");
-                    childrenTemp.append("\">");
-                    childrenTemp.append("<td>");
-                    childrenTemp.append("<a href=\"");
-                    childrenTemp.append(child);
-                    StoredObject obj= _store.getStoredObject(transaction, path+"/"+child, null);
-                    if (obj == null)
-                    {
-                        LOG.error("Should not return null for "+path+"/"+child);
-                    }
-                    if (obj != null && obj.isFolder())
-                    {
-                        childrenTemp.append("/");
-                    }
-                    childrenTemp.append("\">");
-                    childrenTemp.append(child);
-                    childrenTemp.append("</a></td>");
-                    if (obj != null && obj.isFolder())
-                    {
-                        childrenTemp.append("<td>Folder</td>");
-                    }
-                    else
-                    {
-                        childrenTemp.append("<td>");
-                        if (obj != null )
-                        {
-                            childrenTemp.append(obj.getResourceLength());
-                        }
-                        else
-                        {
-                            childrenTemp.append("Unknown");
+
+                // only the members of the requested page are looked at
+                int page = 1;
+                int pages = 1;
+                int from = 0;
+                int to = children.length;
+                if (_folderPageSize > 0 && children.length > _folderPageSize) {
+                    pages = (children.length + _folderPageSize - 1) / _folderPageSize;
+                    page = Math.max(1, Math.min(pages, getPage(req)));
+                    from = (page - 1) * _folderPageSize;
+                    to = Math.min(children.length, from + _folderPageSize);
+                }
+                StoredObject[] objects = new StoredObject[to - from];
+                for (int i = from; i < to; i++) {
+                    objects[i - from] = listed != null ? listed.get(children[i])
+                            : _store.getStoredObject(transaction, folder
+                                    + children[i], null);
+                    if (objects[i - from] == null)
+                        LOG.error("Should not return null for " + folder + children[i]);
+                }
+
+                Locale locale = req.getLocale();
+                if (locale == null)
+                    locale = Locale.getDefault();
+                // the page changes with any member shown on it
+                long lastModified = so.getLastModified() == null ? 0 : so
+                        .getLastModified().getTime();
+                long hash = 31L * locale.hashCode() + page * 31L + pages;
+                for (int i = from; i < to; i++) {
+                    StoredObject obj = objects[i - from];
+                    hash = 31 * hash + children[i].hashCode();
+                    if (obj != null) {
+                        hash = 31 * hash + (obj.isFolder() ? 1 : obj.getResourceLength());
+                        if (obj.getLastModified() != null) {
+                            hash = 31 * hash + obj.getLastModified().getTime();
+                            lastModified = Math.max(lastModified, obj
+                                    .getLastModified().getTime());
                         }
-                        childrenTemp.append(" Bytes</td>");
                     }
-                    if (obj != null && obj.getCreationDate() != null)
-                    {
-                        childrenTemp.append("<td>");
-                        childrenTemp.append(shortDF.format(obj.getCreationDate()));
-                        childrenTemp.append("</td>");
+                }
+                String eTag = "W/\"" + Long.toHexString(hash) + "\"";
+                resp.setHeader("ETag", eTag);
+                if (isNotModified(req, eTag, lastModified)) {
+                    resp.setStatus(WebdavStatus.SC_NOT_MODIFIED);
+                    return;
+                }
+                if (lastModified > 0)
+                    resp.setDateHeader("Last-Modified", lastModified);
+
+                DateFormat shortDF = getCachedDateTimeFormat(locale);
+                resp.setContentType("text/html");
+                resp.setCharacterEncoding("UTF8");
+                // streamed, a large folder is never held in memory
+                Writer out = new BufferedWriter(new OutputStreamWriter(resp
+                        .getOutputStream(), StandardCharsets.UTF_8), 8192);
+                out.write("<html><head><title>Content of folder");
+                out.write(escapeXml(path));
+                out.write("</title><style type=\"text/css\">");
+                out.write(getCSS());
+                out.write("</style></head>");
+                out.write("<body>");
+                out.write(getHeader(transaction, path, resp, req));
+                if (pages > 1)
+                    writePageLinks(out, page, pages);
+                out.write("<table>");
+                out.write("<tr><th>Name</th><th>Size</th><th>Created</th><th>Modified</th></tr>");
+                out.write("<tr>");
+                out.write("<td colspan=\"4\"><a href=\"../\">Parent</a></td></tr>");
+                boolean isEven = false;
+                for (int i = from; i < to; i++) {
+                    String child = escapeXml(children[i]);
+                    StoredObject obj = objects[i - from];
+                    isEven = !isEven;
+                    out.write("<tr class=\"");
+                    out.write(isEven ? "even" : "odd");
+                    out.write("\">");
+                    out.write("<td>");
+                    out.write("<a href=\"");
+                    out.write(child);
+                    if (obj != null && obj.isFolder()) {
+                        out.write("/");
                     }
-                    else
-                    {
-                        childrenTemp.append("<td></td>");
+                    out.write("\">");
+                    out.write(child);
+                    out.write("</a></td>");
+                    if (obj != null && obj.isFolder()) {
+                        out.write("<td>Folder</td>");
+                    } else {
+                        out.write("<td>");
+                        if (obj != null) {
+                            out.write(Long.toString(obj.getResourceLength()));
+                        } else {
+                            out.write("Unknown");
+                        }
+                        out.write(" Bytes</td>");
                     }
-                    if (obj != null  && obj.getLastModified() != null)
-                    {
-                        childrenTemp.append("<td>");
-                        childrenTemp.append(shortDF.format(obj.getLastModified()));
-                        childrenTemp.append("</td>");
+                    out.write("<td>");
+                    if (obj != null && obj.getCreationDate() != null) {
+                        out.write(shortDF.format(obj.getCreationDate()));
                     }
-                    else
-                    {
-                        childrenTemp.append("<td></td>");
+                    out.write("</td><td>");
+                    if (obj != null && obj.getLastModified() != null) {
+                        out.write(shortDF.format(obj.getLastModified()));
                     }
-                    childrenTemp.append("</tr>");
+                    out.write("</td>");
+                    out.write("</tr>");
                 }
-                childrenTemp.append("</table>");
-                childrenTemp.append(getFooter(transaction, path, resp, req));
-                childrenTemp.append("</body></html>");
-                out.write(childrenTemp.toString().getBytes(StandardCharsets.UTF_8));
+                out.write("</table>");
+                if (pages > 1)
+                    writePageLinks(out, page, pages);
+                out.write(getFooter(transaction, path, resp, req));
+                out.write("</body></html>");
+                out.flush();
             }
         }
     }
 
+    /**
+     * @return the requested page of the folder listing, 1 if none or an
+     *         invalid one was requested
+     */
+    private static int getPage(HttpServletRequest req) {
+        String page = req.getParameter("page");
+        if (page == null)
+            return 1;
+        try {
+            return Integer.parseInt(page.trim());
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    private static boolean isNotModified(HttpServletRequest req, String eTag,
+            long lastModified) {
+        String eTagMatch = req.getHeader("If-None-Match");
+        if (eTagMatch != null)
+            return matchesETag(eTagMatch, eTag);
+        if (lastModified <= 0)
+            return false;
+        try {
+            long since = req.getDateHeader("If-Modified-Since");
+            // the header has a resolution of seconds
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void writePageLinks(Writer out, int page, int pages)
+            throws IOException {
+        out.write("<p>Page ");
+        out.write(Integer.toString(page));
+        out.write(" of ");
+        out.write(Integer.toString(pages));
+        if (page > 1) {
+            out.write(" <a href=\"?page=");
+            out.write(Integer.toString(page - 1));
+            out.write("\">Previous</a>");
+        }
+        if (page < pages) {
+            out.write(" <a href=\"?page=");
+            out.write(Integer.toString(page + 1));
+            out.write("\">Next</a>");
+        }
+        out.write("</p>");
+    }
+
+    /**
+     * DateFormats are expensive to create and not thread safe, each thread
+     * keeps the ones it created per locale.
+     */
+    private DateFormat getCachedDateTimeFormat(Locale locale) {
+        Map<Locale, DateFormat> formats = _dateFormats.get();
+        DateFormat format = formats.get(locale);
+        if (format == null) {
+            format = getDateTimeFormat(locale);
+            formats.put(locale, format);
+        }
+        return format;
+    }
+
     /**
      * Return the CSS styles used to display the HTML representation
      * of the webdav content.
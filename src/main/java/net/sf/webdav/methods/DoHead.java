@@ -21,6 +21,7 @@ import java.io.IOException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.sf.webdav.IEncodedContentStore;
 import net.sf.webdav.IMimeTyper;
 import net.sf.webdav.ITransaction;
 import net.sf.webdav.IWebdavStore;
@@ -31,6 +32,7 @@ import net.sf.webdav.exceptions.LockFailedException;
 import net.sf.webdav.exceptions.ObjectAlreadyExistsException;
 import net.sf.webdav.exceptions.WebdavException;
 import net.sf.webdav.locking.ResourceLocks;
+import net.sf.webdav.trace.RequestTrace;
 
 public class DoHead extends AbstractMethod {
 
@@ -40,6 +42,7 @@ public class DoHead extends AbstractMethod {
     protected final ResourceLocks _resourceLocks;
     protected final IMimeTyper _mimeTyper;
     protected final int _contentLength;
+    protected IEncodedContentStore _encodedContentStore;
 
     private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
             .getLogger(DoHead.class);
@@ -55,6 +58,18 @@ public class DoHead extends AbstractMethod {
         _contentLength = contentLengthHeader;
     }
 
+    /**
+     * Enables serving precompressed content to clients sending
+     * Accept-Encoding: gzip.
+     * 
+     * @param encodedContentStore
+     *      the store with the compressed copies or null to always send the
+     *      content as is
+     */
+    public void setEncodedContentStore(IEncodedContentStore encodedContentStore) {
+        _encodedContentStore = encodedContentStore;
+    }
+
     public void execute(ITransaction transaction, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
 
@@ -103,9 +118,24 @@ public class DoHead extends AbstractMethod {
                     TEMP_TIMEOUT, TEMPORARY)) {
                 try {
 
+                    // the gzip copy is only sent (and its ETag only valid)
+                    // if the client accepts it
+                    long encodedLength = -1;
+                    if (_encodedContentStore != null && so.isResource()
+                            && acceptsGzip(req.getHeader("Accept-Encoding")))
+                        encodedLength = _encodedContentStore.getEncodedLength(
+                                transaction, path, "gzip");
+
                     String eTagMatch = req.getHeader("If-None-Match");
                     if (eTagMatch != null) {
-                        if (eTagMatch.equals(getETag(so, _store.getConfig().getEtagFormat()))) {
+                        String eTag = getETag(so, _store.getConfig().getEtagFormat());
+                        if (encodedLength >= 0)
+                            eTag = getEncodedETag(eTag, "gzip");
+                        if (matchesETag(eTagMatch, eTag)) {
+                            // a cache needs both to keep the right variant
+                            if (_encodedContentStore != null)
+                                resp.addHeader("Vary", "Accept-Encoding");
+                            resp.addHeader("ETag", eTag);
                             resp.setStatus(WebdavStatus.SC_NOT_MODIFIED);
                             return;
                         }
@@ -123,10 +153,20 @@ public class DoHead extends AbstractMethod {
                             resp.setDateHeader("last-modified", lastModified);
 
                             String eTag = getETag(so, _store.getConfig().getEtagFormat());
-                            resp.addHeader("ETag", eTag);
-
                             long resourceLength = so.getResourceLength();
 
+                            String contentEncoding = null;
+                            if (_encodedContentStore != null) {
+                                resp.addHeader("Vary", "Accept-Encoding");
+                                if (encodedLength >= 0) {
+                                    contentEncoding = "gzip";
+                                    resourceLength = encodedLength;
+                                    eTag = getEncodedETag(eTag, contentEncoding);
+                                    resp.setHeader("Content-Encoding", contentEncoding);
+                                }
+                            }
+                            resp.addHeader("ETag", eTag);
+
                             if (_contentLength == 1) {
                                 if (resourceLength > 0) {
                                     if (resourceLength <= Integer.MAX_VALUE) {
@@ -153,10 +193,24 @@ public class DoHead extends AbstractMethod {
                                 }
                             }
 
-                            doBody(transaction, resp, path);
+                            RequestTrace.Span span = RequestTrace.start("get.body");
+                            try {
+                                if (contentEncoding != null)
+                                    doEncodedBody(transaction, resp, path,
+                                            contentEncoding);
+                                else
+                                    doBody(transaction, resp, path);
+                            } finally {
+                                span.end();
+                            }
                         }
                     } else {
-                        folderBody(transaction, path, resp, req);
+                        RequestTrace.Span span = RequestTrace.start("get.folder");
+                        try {
+                            folderBody(transaction, path, resp, req);
+                        } finally {
+                            span.end();
+                        }
                     }
                 } catch (AccessDeniedException e) {
                     resp.sendError(WebdavStatus.SC_FORBIDDEN);
@@ -191,4 +245,48 @@ public class DoHead extends AbstractMethod {
             String path) throws IOException {
         // no body for HEAD
     }
+
+    protected void doEncodedBody(ITransaction transaction,
+            HttpServletResponse resp, String path, String encoding)
+            throws IOException {
+        // no body for HEAD
+    }
+
+    /**
+     * @param ifNoneMatch
+     *      value of an If-None-Match header, a list of entity tags or "*"
+     * @return true if one of the listed tags matches the given one. The
+     *         comparison is weak, a "W/" prefix on either side is ignored
+     */
+    protected static boolean matchesETag(String ifNoneMatch, String eTag) {
+        String opaque = eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+        int start = 0;
+        boolean quoted = false;
+        for (int i = 0; i <= ifNoneMatch.length(); i++) {
+            if (i < ifNoneMatch.length()) {
+                char c = ifNoneMatch.charAt(i);
+                if (c == '"')
+                    quoted = !quoted;
+                if (c != ',' || quoted)
+                    continue;
+            }
+            String tag = ifNoneMatch.substring(start, i).trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(opaque))
+                return true;
+            start = i + 1;
+        }
+        return false;
+    }
+
+    /**
+     * @return the ETag of the encoded representation, it must differ from
+     *         the one of the plain content
+     */
+    protected static String getEncodedETag(String eTag, String encoding) {
+        if (eTag.endsWith("\""))
+            return eTag.substring(0, eTag.length() - 1) + "-" + encoding + "\"";
+        return eTag + "-" + encoding;
+    }
 }
@@ -22,14 +22,12 @@ import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.DocumentBuilder;
 
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import net.sf.webdav.ILockingListener;
@@ -42,6 +40,7 @@ import net.sf.webdav.exceptions.WebdavException;
 import net.sf.webdav.fromcatalina.XMLWriter;
 import net.sf.webdav.locking.IResourceLocks;
 import net.sf.webdav.locking.LockedObject;
+import net.sf.webdav.xml.DavRequest;
 
 public class DoLock extends AbstractMethod {
 
@@ -311,8 +310,9 @@ public class DoLock extends AbstractMethod {
 
                     throw new LockFailedException();
                 }
-            } else {
-                // information for LOCK could not be read successfully
+            } else if (_requestParser == null || !resp.isCommitted()) {
+                // information for LOCK could not be read successfully, the
+                // streaming parser already answered a malformed body
                 resp.setContentType("text/xml; charset=UTF-8");
                 resp.sendError(WebdavStatus.SC_BAD_REQUEST);
             }
@@ -326,13 +326,22 @@ public class DoLock extends AbstractMethod {
                                        HttpServletRequest req, HttpServletResponse resp, State state)
             throws ServletException, IOException {
 
-        Node lockInfoNode = null;
-        DocumentBuilder documentBuilder = null;
+        if (_requestParser != null) {
+            DavRequest davRequest = parseRequest(req, resp);
+            if (davRequest == null || davRequest.getLockScope() == null
+                    || davRequest.getLockType() == null
+                    || davRequest.getLockOwner() == null) {
+                return false;
+            }
+            state._exclusive = davRequest.getLockScope().equals("exclusive");
+            state._type = davRequest.getLockType();
+            state._lockOwner = davRequest.getLockOwner();
+            return true;
+        }
 
-        documentBuilder = getDocumentBuilder();
+        Node lockInfoNode = null;
         try {
-            Document document = documentBuilder.parse(new InputSource(req
-                    .getInputStream()));
+            Document document = parseDocument(req);
 
             // Get the root element of the document
             Element rootElement = document.getDocumentElement();
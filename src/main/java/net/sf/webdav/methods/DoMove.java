@@ -30,6 +30,7 @@ import net.sf.webdav.exceptions.LockFailedException;
 import net.sf.webdav.exceptions.ObjectAlreadyExistsException;
 import net.sf.webdav.exceptions.WebdavException;
 import net.sf.webdav.locking.ResourceLocks;
+import net.sf.webdav.props.IPropertyStore;
 
 public class DoMove extends AbstractMethod {
 
@@ -41,6 +42,7 @@ public class DoMove extends AbstractMethod {
     private final DoDelete _doDelete;
     private final DoCopy _doCopy;
     private final boolean _readOnly;
+    private IPropertyStore _propertyStore;
 
     public DoMove(ResourceLocks resourceLocks, IWebdavStore store, DoDelete doDelete,
                   DoCopy doCopy, boolean readOnly) {
@@ -51,6 +53,15 @@ public class DoMove extends AbstractMethod {
         _store = store;
     }
 
+    /**
+     * @param propertyStore
+     *      dead properties to move along with stores supporting move, may be
+     *      null. Without move support copy and delete take care of them
+     */
+    public void setPropertyStore(IPropertyStore propertyStore) {
+        _propertyStore = propertyStore;
+    }
+
     public void execute(ITransaction transaction, HttpServletRequest req,
                         HttpServletResponse resp) throws IOException, LockFailedException {
 
@@ -60,7 +71,8 @@ public class DoMove extends AbstractMethod {
             String sourcePath = getRelativePath(req);
             Map<String, Integer> errorList = new HashMap<>();
 
-            if (!checkLocks(transaction, req, resp, _resourceLocks, sourcePath)) {
+            if (!checkLocks(transaction, req, resp, _resourceLocks, sourcePath)
+                    || !checkLocksBelow(transaction, req, _resourceLocks, sourcePath)) {
                 resp.setStatus(WebdavStatus.SC_LOCKED);
                 return;
             }
@@ -85,7 +97,10 @@ public class DoMove extends AbstractMethod {
                 try {
 
                     if(_store.supportsMoveOperation()){
-                        _store.moveResource(transaction, sourcePath, parseDestinationPath(req, destinationPath));
+                        String targetPath = parseDestinationPath(req, destinationPath);
+                        _store.moveResource(transaction, sourcePath, targetPath);
+                        if (_propertyStore != null)
+                            _propertyStore.moveProperties(transaction, sourcePath, targetPath);
                     }else{
                         if (_doCopy.copyResource(transaction, req, resp)) {
 
@@ -16,22 +16,21 @@
 package net.sf.webdav.methods;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Vector;
 
-import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.DocumentBuilder;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.xml.sax.InputSource;
 
 import net.sf.webdav.DavExtensionConfig;
+import net.sf.webdav.DavPath;
 import net.sf.webdav.IMimeTyper;
 import net.sf.webdav.ITransaction;
 import net.sf.webdav.IWebdavStore;
@@ -45,6 +44,9 @@ import net.sf.webdav.fromcatalina.XMLHelper;
 import net.sf.webdav.fromcatalina.XMLWriter;
 import net.sf.webdav.locking.LockedObject;
 import net.sf.webdav.locking.ResourceLocks;
+import net.sf.webdav.props.IPropertyStore;
+import net.sf.webdav.trace.RequestTrace;
+import net.sf.webdav.xml.DavRequest;
 
 public class DoPropfind extends AbstractMethod {
 
@@ -74,6 +76,7 @@ public class DoPropfind extends AbstractMethod {
     private final IWebdavStore _store;
     private final ResourceLocks _resourceLocks;
     private final IMimeTyper _mimeTyper;
+    private IPropertyStore _propertyStore;
 
     private int _depth;
 
@@ -84,6 +87,14 @@ public class DoPropfind extends AbstractMethod {
         _mimeTyper = mimeTyper;
     }
 
+    /**
+     * @param propertyStore
+     *      where dead properties set by PROPPATCH are read from, may be null
+     */
+    public void setPropertyStore(IPropertyStore propertyStore) {
+        _propertyStore = propertyStore;
+    }
+
     public void execute(ITransaction transaction, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
@@ -112,11 +123,26 @@ public class DoPropfind extends AbstractMethod {
                 int propertyFindType = FIND_ALL_PROP;
                 Node propNode = null;
 
-                if (req.getContentLength() != 0) {
-                    DocumentBuilder documentBuilder = getDocumentBuilder();
+                if (_requestParser != null && req.getContentLength() != 0) {
+                    RequestTrace.Span parseSpan = RequestTrace.start("xml.parse");
+                    DavRequest davRequest;
+                    try {
+                        davRequest = parseRequest(req, resp);
+                    } finally {
+                        parseSpan.end();
+                    }
+                    if (davRequest == null)
+                        return;
+                    if (davRequest.getProperties() != null) {
+                        propertyFindType = FIND_BY_PROPERTY;
+                        properties = new Vector<>(davRequest.getProperties());
+                    } else if (davRequest.isPropname()) {
+                        propertyFindType = FIND_PROPERTY_NAMES;
+                    }
+                } else if (req.getContentLength() != 0) {
+                    RequestTrace.Span parseSpan = RequestTrace.start("xml.parse");
                     try {
-                        Document document = documentBuilder
-                                .parse(new InputSource(req.getInputStream()));
+                        Document document = parseDocument(req);
                         // Get the root element of the document
                         Element rootElement = document.getDocumentElement();
 
@@ -134,6 +160,8 @@ public class DoPropfind extends AbstractMethod {
                     } catch (Exception e) {
                         resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
                         return;
+                    } finally {
+                        parseSpan.end();
                     }
                 } else {
                     // no content, which means it is a allprop request
@@ -145,7 +173,7 @@ public class DoPropfind extends AbstractMethod {
                 _store.addNamespace(namespaces);
 
 
-                if (propertyFindType == FIND_BY_PROPERTY) {
+                if (propNode != null) {
                     propertyFindType = 0;
                     properties = XMLHelper.getPropertiesFromXML(propNode);
                 } 
@@ -155,8 +183,7 @@ public class DoPropfind extends AbstractMethod {
                 resp.addHeader("DAV", _store.getConfig().getDavHeader());
 
                 // Create multistatus object
-                XMLWriter generatedXML = new XMLWriter(resp.getWriter(),
-                        namespaces);
+                XMLWriter generatedXML = createXmlWriter(req, resp, namespaces);
                 generatedXML.writeXMLHeader();
                 generatedXML.writeElement("DAV::multistatus", XMLWriter.OPENING);
                 
@@ -168,26 +195,35 @@ public class DoPropfind extends AbstractMethod {
                 }
                 
                 if (_depth == 0) {
-                    parseProperties(transaction, req, generatedXML, path,
-                            propertyFindType, properties, _mimeTyper
-                                    .getMimeType(transaction, path));
+                    RequestTrace.Span span = RequestTrace.start("propfind.resource");
+                    try {
+                        parseProperties(transaction, req, generatedXML, path,
+                                propertyFindType, properties, _mimeTyper
+                                        .getMimeType(transaction, path),
+                                getDeadProperties(transaction, path));
+                    } finally {
+                        span.end();
+                    }
                 } else {
                     recursiveParseProperties(transaction, path, req,
                             generatedXML, propertyFindType, properties, _depth,
-                            _mimeTyper.getMimeType(transaction, path));
+                            _mimeTyper.getMimeType(transaction, path),
+                            getDeadProperties(transaction, path));
                 }
                 generatedXML
                         .writeElement("DAV::multistatus", XMLWriter.CLOSING);
 
-                generatedXML.sendData();
+                RequestTrace.Span sendSpan = RequestTrace.start("xml.send");
+                try {
+                    finishXml(generatedXML);
+                } finally {
+                    sendSpan.end();
+                }
             } catch (AccessDeniedException e) {
                 resp.sendError(WebdavStatus.SC_FORBIDDEN);
             } catch (WebdavException e) {
                 LOG.warn("Sending internal error!",e);
                 resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
-            } catch (ServletException e) {
-                LOG.warn("Sending internal error!", e);
-                resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
             } finally {
                 _resourceLocks.unlockTemporaryLockedObjects(transaction, path,
                         tempLockOwner);
@@ -211,16 +247,23 @@ public class DoPropfind extends AbstractMethod {
      * @param properties
      * @param depth
      *      depth of the propfind
+     * @param deadProperties
+     *      dead properties of the current path, null without property store
      * @throws IOException
      *      if an error in the underlying store occurs
      */
     private void recursiveParseProperties(ITransaction transaction,
             String currentPath, HttpServletRequest req, XMLWriter generatedXML,
             int propertyFindType, Vector<String> properties, int depth,
-            String mimeType) throws WebdavException {
-
-        parseProperties(transaction, req, generatedXML, currentPath,
-                propertyFindType, properties, mimeType);
+            String mimeType, Map<String, String> deadProperties) throws WebdavException {
+
+        RequestTrace.Span span = RequestTrace.start("propfind.resource");
+        try {
+            parseProperties(transaction, req, generatedXML, currentPath,
+                    propertyFindType, properties, mimeType, deadProperties);
+        } finally {
+            span.end();
+        }
 
         if (depth > 0) {
             // no need to get name if depth is already zero
@@ -228,15 +271,23 @@ public class DoPropfind extends AbstractMethod {
             names = names == null ? new String[] {} : names;
             String newPath = null;
 
+            // dead properties of all children with a single lookup
+            Map<String, Map<String, String>> childProperties = null;
+            if (_propertyStore != null && names.length > 0)
+                childProperties = _propertyStore.getChildProperties(transaction, currentPath);
+
+            DavPath parentPath = DavPath.valueOf(currentPath);
             for (String name : names) {
-                newPath = currentPath;
-                if (!(newPath.endsWith("/"))) {
-                    newPath += "/";
+                newPath = parentPath.child(name).toString();
+                Map<String, String> childDead = null;
+                if (childProperties != null) {
+                    childDead = childProperties.get(name);
+                    if (childDead == null)
+                        childDead = Collections.emptyMap();
                 }
-                newPath += name;
                 recursiveParseProperties(transaction, newPath, req,
                         generatedXML, propertyFindType, properties, depth - 1,
-                        mimeType);
+                        mimeType, childDead);
             }
         }
     }
@@ -255,10 +306,13 @@ public class DoPropfind extends AbstractMethod {
      * @param propertiesVector
      *      If the propfind type is find properties by name, then this Vector
      *      contains those properties
+     * @param deadProperties
+     *      properties set by PROPPATCH, null without property store
      */
     private void parseProperties(ITransaction transaction,
             HttpServletRequest req, XMLWriter generatedXML, String path,
-            int type, Vector<String> propertiesVector, String mimeType)
+            int type, Vector<String> propertiesVector, String mimeType,
+            Map<String, String> deadProperties)
             throws WebdavException {
     	
         StoredObject so = _store.getStoredObject(transaction, path, propertiesVector);
@@ -371,6 +425,10 @@ public class DoPropfind extends AbstractMethod {
             writeLockDiscoveryElements(transaction, generatedXML, path);
 
             generatedXML.writeProperty("DAV::source", "");
+            if (deadProperties != null) {
+                for (Map.Entry<String, String> dead : deadProperties.entrySet())
+                    generatedXML.writeProperty(dead.getKey(), dead.getValue());
+            }
             generatedXML.writeElement("DAV::prop", XMLWriter.CLOSING);
             generatedXML.writeElement("DAV::status", XMLWriter.OPENING);
             generatedXML.writeText(status);
@@ -406,6 +464,10 @@ public class DoPropfind extends AbstractMethod {
                     XMLWriter.NO_CONTENT);
             generatedXML.writeElement("DAV::source", XMLWriter.NO_CONTENT);
             generatedXML.writeElement("DAV::current-user-principal", XMLWriter.NO_CONTENT);
+            if (deadProperties != null) {
+                for (String dead : deadProperties.keySet())
+                    generatedXML.writeElement(dead, XMLWriter.NO_CONTENT);
+            }
             
             generatedXML.writeElement("DAV::prop", XMLWriter.CLOSING);
             generatedXML.writeElement("DAV::status", XMLWriter.OPENING);
@@ -527,6 +589,8 @@ public class DoPropfind extends AbstractMethod {
                     generatedXML.writeElement("DAV::supported-report-set",
                             XMLWriter.CLOSING);
 
+                } else if (deadProperties != null && deadProperties.containsKey(property)) {
+                    generatedXML.writeProperty(property, deadProperties.get(property));
                 } else {
                     propertiesNotFound.addElement(property);
                 }
@@ -592,6 +656,13 @@ public class DoPropfind extends AbstractMethod {
         
     }
     
+    private Map<String, String> getDeadProperties(ITransaction transaction,
+            String path) {
+        if (_propertyStore == null)
+            return null;
+        return _propertyStore.getProperties(transaction, path);
+    }
+
     private void writeSupportedLockElements(ITransaction transaction,
             XMLWriter generatedXML, String path) {
 
@@ -2,20 +2,19 @@ package net.sf.webdav.methods;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 
-import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.DocumentBuilder;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.xml.sax.InputSource;
+import org.w3c.dom.NodeList;
 
 import net.sf.webdav.ITransaction;
 import net.sf.webdav.IWebdavStore;
@@ -28,6 +27,8 @@ import net.sf.webdav.fromcatalina.XMLHelper;
 import net.sf.webdav.fromcatalina.XMLWriter;
 import net.sf.webdav.locking.LockedObject;
 import net.sf.webdav.locking.ResourceLocks;
+import net.sf.webdav.props.IPropertyStore;
+import net.sf.webdav.xml.DavRequest;
 
 public class DoProppatch extends AbstractMethod {
 
@@ -37,6 +38,7 @@ public class DoProppatch extends AbstractMethod {
     private final boolean _readOnly;
     private final IWebdavStore _store;
     private final ResourceLocks _resourceLocks;
+    private IPropertyStore _propertyStore;
 
     public DoProppatch(IWebdavStore store, ResourceLocks resLocks,
             boolean readOnly) {
@@ -45,6 +47,15 @@ public class DoProppatch extends AbstractMethod {
         _resourceLocks = resLocks;
     }
 
+    /**
+     * @param propertyStore
+     *      where dead properties are stored. without a property store
+     *      PROPPATCH only pretends to succeed
+     */
+    public void setPropertyStore(IPropertyStore propertyStore) {
+        _propertyStore = propertyStore;
+    }
+
     public void execute(ITransaction transaction, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
@@ -69,8 +80,8 @@ public class DoProppatch extends AbstractMethod {
             return; // resource is locked
         }
 
-        // TODO for now, PROPPATCH just sends a valid response, stating that
-        // everything is fine, but doesn't do anything.
+        // without a property store PROPPATCH just sends a valid response,
+        // stating that everything is fine, but doesn't do anything.
 
         // Retrieve the resources
         String tempLockOwner = "doProppatch" + System.currentTimeMillis()
@@ -120,12 +131,20 @@ public class DoProppatch extends AbstractMethod {
 
                 Node tosetNode = null;
                 Node toremoveNode = null;
+                Map<String, String> tosetValues = new LinkedHashMap<>();
 
-                if (req.getContentLength() != 0) {
-                    DocumentBuilder documentBuilder = getDocumentBuilder();
+                if (_requestParser != null && req.getContentLength() != 0) {
+                    DavRequest davRequest = parseRequest(req, resp);
+                    if (davRequest == null)
+                        return;
+                    tosetValues.putAll(davRequest.getPropertiesToSet());
+                    toset = new Vector<>(tosetValues.keySet());
+                    toremove = davRequest.getPropertiesToRemove();
+                    tochange.addAll(toset);
+                    tochange.addAll(toremove);
+                } else if (req.getContentLength() != 0) {
                     try {
-                        Document document = documentBuilder
-                                .parse(new InputSource(req.getInputStream()));
+                        Document document = parseDocument(req);
                         // Get the root element of the document
                         Element rootElement = document.getDocumentElement();
 
@@ -149,6 +168,15 @@ public class DoProppatch extends AbstractMethod {
                 if (tosetNode != null) {
                     toset = XMLHelper.getPropertiesFromXML(tosetNode);
                     tochange.addAll(toset);
+                    NodeList childList = tosetNode.getChildNodes();
+                    for (int i = 0; i < childList.getLength(); i++) {
+                        Node currentNode = childList.item(i);
+                        if (currentNode.getNodeType() == Node.ELEMENT_NODE) {
+                            tosetValues.put(currentNode.getNamespaceURI() + ":"
+                                    + currentNode.getLocalName(),
+                                    currentNode.getTextContent());
+                        }
+                    }
                 }
 
                 if (toremoveNode != null) {
@@ -156,6 +184,12 @@ public class DoProppatch extends AbstractMethod {
                     tochange.addAll(toremove);
                 }
 
+                Map<String, Integer> propertyStatus = new HashMap<>();
+                if (_propertyStore != null) {
+                    storeProperties(transaction, path, tosetValues, toremove,
+                            tochange, propertyStatus);
+                }
+
                 resp.setStatus(WebdavStatus.SC_MULTI_STATUS);
                 resp.setContentType("text/xml; charset=UTF-8");
 
@@ -196,7 +230,12 @@ public class DoProppatch extends AbstractMethod {
                     generatedXML.writeElement("DAV::prop", XMLWriter.CLOSING);
 
                     generatedXML.writeElement("DAV::status", XMLWriter.OPENING);
-                    generatedXML.writeText(status);
+                    Integer propStatus = propertyStatus.get(property);
+                    if (propStatus == null)
+                        generatedXML.writeText(status);
+                    else
+                        generatedXML.writeText("HTTP/1.1 " + propStatus + " "
+                                + WebdavStatus.getStatusText(propStatus));
                     generatedXML.writeElement("DAV::status", XMLWriter.CLOSING);
 
                     generatedXML.writeElement("DAV::propstat",
@@ -213,9 +252,6 @@ public class DoProppatch extends AbstractMethod {
                 resp.sendError(WebdavStatus.SC_FORBIDDEN);
             } catch (WebdavException e) {
                 resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
-            } catch (ServletException e) {
-                e.printStackTrace(); // To change body of catch statement use
-                // File | Settings | File Templates.
             } finally {
                 _resourceLocks.unlockTemporaryLockedObjects(transaction, path,
                         tempLockOwner);
@@ -224,4 +260,40 @@ public class DoProppatch extends AbstractMethod {
             resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
         }
     }
+
+    /**
+     * Applies the PROPPATCH to the property store. Properties in the DAV:
+     * namespace are computed by the server and can not be changed. Since
+     * PROPPATCH is atomic nothing is stored if any of them is part of the
+     * request: the protected ones get 403, all others 424.
+     * 
+     * @param tosetValues
+     *      the properties to set with their unescaped text
+     * @param propertyStatus
+     *      filled with the status of each property that did not succeed
+     */
+    private void storeProperties(ITransaction transaction, String path,
+            Map<String, String> tosetValues, List<String> toremove,
+            List<String> tochange,
+            Map<String, Integer> propertyStatus) throws WebdavException {
+
+        for (String property : tochange) {
+            if (property.startsWith("DAV::"))
+                propertyStatus.put(property, WebdavStatus.SC_FORBIDDEN);
+        }
+        if (!propertyStatus.isEmpty()) {
+            for (String property : tochange) {
+                if (!propertyStatus.containsKey(property))
+                    propertyStatus.put(property,
+                            WebdavStatus.SC_FAILED_DEPENDENCY);
+            }
+            return;
+        }
+
+        Map<String, String> toset = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : tosetValues.entrySet()) {
+            toset.put(entry.getKey(), escapeXml(entry.getValue()));
+        }
+        _propertyStore.setProperties(transaction, path, toset, toremove);
+    }
 }
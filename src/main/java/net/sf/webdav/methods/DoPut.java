@@ -26,11 +26,16 @@ import net.sf.webdav.ITransaction;
 import net.sf.webdav.IWebdavStore;
 import net.sf.webdav.StoredObject;
 import net.sf.webdav.WebdavStatus;
+import net.sf.webdav.async.AsyncUpload;
+import net.sf.webdav.async.IAsyncContentStore;
+import net.sf.webdav.async.IContentSink;
 import net.sf.webdav.exceptions.AccessDeniedException;
 import net.sf.webdav.exceptions.LockFailedException;
 import net.sf.webdav.exceptions.WebdavException;
 import net.sf.webdav.locking.IResourceLocks;
 import net.sf.webdav.locking.LockedObject;
+import net.sf.webdav.upload.ContentRange;
+import net.sf.webdav.upload.IStagedContentStore;
 
 public class DoPut extends AbstractMethod {
 
@@ -41,7 +46,9 @@ public class DoPut extends AbstractMethod {
     private final IResourceLocks _resourceLocks;
     private final boolean _readOnly;
     private final boolean _lazyFolderCreationOnPut;
-
+    private IAsyncContentStore _asyncContentStore;
+    private int _asyncBufferSize;
+    private IStagedContentStore _stagedContentStore;
 
     public DoPut(IWebdavStore store, IResourceLocks resLocks, boolean readOnly,
             boolean lazyFolderCreationOnPut) {
@@ -51,6 +58,36 @@ public class DoPut extends AbstractMethod {
         _lazyFolderCreationOnPut = lazyFolderCreationOnPut;
     }
 
+    /**
+     * Enables non-blocking uploads for requests running in async mode: the
+     * body is read with a ReadListener and handed to the sink of the given
+     * store, the transaction is committed once it is stored.
+     * 
+     * @param asyncContentStore
+     *      the store receiving the content or null to always block
+     * @param bufferSize
+     *      transfer buffer size per upload
+     */
+    public void setAsyncContentStore(IAsyncContentStore asyncContentStore,
+            int bufferSize) {
+        _asyncContentStore = asyncContentStore;
+        _asyncBufferSize = bufferSize;
+    }
+
+    /**
+     * Enables resumable uploads: a PUT with a Content-Range header stores a
+     * part of the content, the resource is replaced once all parts arrived.
+     * Incomplete uploads are answered with 308 and a Range header telling the
+     * client where to resume, <code>Content-Range: bytes *&#47;total</code>
+     * only asks for that.
+     * 
+     * @param stagedContentStore
+     *      the store keeping the parts or null to reject partial PUT
+     */
+    public void setStagedContentStore(IStagedContentStore stagedContentStore) {
+        _stagedContentStore = stagedContentStore;
+    }
+
     public void execute(ITransaction transaction, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
@@ -78,6 +115,7 @@ public class DoPut extends AbstractMethod {
             if (_resourceLocks.lock(transaction, path, tempLockOwner, false, 0,
                     TEMP_TIMEOUT, TEMPORARY)) {
                 StoredObject parentSo, so = null;
+                boolean asyncUpload = false;
                 try {
                     parentSo = _store.getStoredObject(transaction, parentPath, null);
                     if (parentPath != null && parentSo != null
@@ -96,10 +134,30 @@ public class DoPut extends AbstractMethod {
                         return;
                     }
 
+                    ContentRange range = null;
+                    if (_stagedContentStore != null) {
+                        String contentRange = req.getHeader("Content-Range");
+                        if (contentRange != null) {
+                            range = ContentRange.parse(contentRange);
+                            if (range == null) {
+                                resp.sendError(WebdavStatus.SC_BAD_REQUEST);
+                                return;
+                            }
+                            if (range.isQuery()) {
+                                sendResumeIncomplete(resp, _stagedContentStore
+                                        .getStagedLength(transaction, path));
+                                return;
+                            }
+                        }
+                    }
+
                     so = _store.getStoredObject(transaction, path, null);
 
                     if (so == null) {
-                        _store.createResource(transaction, path);
+                        // a resumable upload creates the resource with its
+                        // last part
+                        if (range == null)
+                            _store.createResource(transaction, path);
                         // resp.setStatus(WebdavStatus.SC_CREATED);
                     } else {
                         // This has already been created, just update the data
@@ -146,6 +204,22 @@ public class DoPut extends AbstractMethod {
                     // User-Agent workarounds
                     doUserAgentWorkaround(resp, userAgent);
 
+                    if (range != null) {
+                        putRange(transaction, req, resp, path, range);
+                        return;
+                    }
+                    if (_stagedContentStore != null)
+                        _stagedContentStore.discardStagedContent(transaction,
+                                path);
+
+                    if (_asyncContentStore != null && req.isAsyncStarted()) {
+                        // the temporary lock is released once the body is stored
+                        startAsyncUpload(transaction, req, resp, path,
+                                tempLockOwner);
+                        asyncUpload = true;
+                        return;
+                    }
+
                     // setting resourceContent
                     long resourceLength = _store
                             .setResourceContent(transaction, path, req
@@ -161,8 +235,9 @@ public class DoPut extends AbstractMethod {
                 } catch (WebdavException e) {
                     resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
                 } finally {
-                    _resourceLocks.unlockTemporaryLockedObjects(transaction,
-                            path, tempLockOwner);
+                    if (!asyncUpload)
+                        _resourceLocks.unlockTemporaryLockedObjects(
+                                transaction, path, tempLockOwner);
                 }
             } else {
                 resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
@@ -173,6 +248,86 @@ public class DoPut extends AbstractMethod {
 
     }
 
+    /**
+     * Stages one part of a resumable upload, replaces the resource once the
+     * last byte arrived.
+     */
+    private void putRange(ITransaction transaction, HttpServletRequest req,
+            HttpServletResponse resp, String path, ContentRange range)
+            throws IOException {
+        long staged = Math.max(0, _stagedContentStore.getStagedLength(
+                transaction, path));
+        if (range.getFirst() > staged) {
+            // a part went missing, tell the client where to continue
+            setRangeHeader(resp, staged);
+            resp.sendError(WebdavStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        long contentLength = req.getContentLengthLong();
+        if (contentLength >= 0 && contentLength != range.getLength()) {
+            resp.sendError(WebdavStatus.SC_BAD_REQUEST);
+            return;
+        }
+
+        staged = _stagedContentStore.writeStagedContent(transaction, path,
+                range.getFirst(), req.getInputStream(), range.getLength());
+        if (range.getTotal() < 0 || staged < range.getTotal()) {
+            sendResumeIncomplete(resp, staged);
+        } else if (staged == range.getTotal()) {
+            if (_store.getStoredObject(transaction, path, null) == null)
+                _store.createResource(transaction, path);
+            _stagedContentStore.commitStagedContent(transaction, path);
+        } else {
+            // the parts do not add up to the announced length
+            _stagedContentStore.discardStagedContent(transaction, path);
+            resp.sendError(WebdavStatus.SC_BAD_REQUEST);
+        }
+    }
+
+    private void sendResumeIncomplete(HttpServletResponse resp, long staged) {
+        setRangeHeader(resp, staged);
+        resp.setStatus(WebdavStatus.SC_RESUME_INCOMPLETE);
+    }
+
+    private void setRangeHeader(HttpServletResponse resp, long staged) {
+        if (staged > 0)
+            resp.setHeader("Range", "bytes=0-" + (staged - 1));
+    }
+
+    private void startAsyncUpload(final ITransaction transaction,
+            HttpServletRequest req, final HttpServletResponse resp,
+            final String path, final String tempLockOwner) throws IOException {
+        IContentSink sink = _asyncContentStore.openResourceContent(
+                transaction, path, null, null);
+        AsyncUpload upload;
+        try {
+            upload = AsyncUpload.start(req, sink, _asyncBufferSize);
+        } catch (IOException | RuntimeException e) {
+            sink.abort();
+            throw e;
+        }
+        upload.whenDone(new AsyncUpload.Listener() {
+            public void uploadFinished(AsyncUpload upload) {
+                try {
+                    Throwable failure = upload.getFailure();
+                    if (failure != null) {
+                        LOG.error("DoPut: upload of " + path + " failed: "
+                                + failure);
+                        if (!resp.isCommitted())
+                            resp.sendError(failure instanceof AccessDeniedException
+                                    ? WebdavStatus.SC_FORBIDDEN
+                                    : WebdavStatus.SC_INTERNAL_SERVER_ERROR);
+                    }
+                } catch (IOException e) {
+                    LOG.debug("DoPut: unable to report failed upload: " + e);
+                } finally {
+                    _resourceLocks.unlockTemporaryLockedObjects(transaction,
+                            path, tempLockOwner);
+                }
+            }
+        });
+    }
+
     /**
      * @param resp
      * @param userAgent
@@ -19,24 +19,25 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 
-import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.DocumentBuilder;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.xml.sax.InputSource;
 
+import net.sf.webdav.DavPath;
 import net.sf.webdav.ITransaction;
 import net.sf.webdav.IWebdavStore;
 import net.sf.webdav.StoredObject;
 import net.sf.webdav.WebdavStatus;
+import net.sf.webdav.carddav.AddressbookFilter;
+import net.sf.webdav.carddav.IAddressbookQueryStore;
 import net.sf.webdav.exceptions.AccessDeniedException;
 import net.sf.webdav.exceptions.LockFailedException;
 import net.sf.webdav.exceptions.WebdavException;
@@ -45,6 +46,9 @@ import net.sf.webdav.fromcatalina.XMLHelper;
 import net.sf.webdav.fromcatalina.XMLWriter;
 import net.sf.webdav.locking.LockedObject;
 import net.sf.webdav.locking.ResourceLocks;
+import net.sf.webdav.sync.ChangeJournal;
+import net.sf.webdav.trace.RequestTrace;
+import net.sf.webdav.xml.DavRequest;
 
 /**
  * REPORT is part of the versioning extension. (see http://tools.ietf.org/html/rfc3253#section-3.6).
@@ -81,6 +85,8 @@ public class DoReport extends AbstractMethod {
     
     private final IWebdavStore _store;
     private final ResourceLocks _resourceLocks;
+    private IAddressbookQueryStore _addressbookQueryStore;
+    private ChangeJournal _changeJournal;
 
     private int _depth;
 
@@ -89,6 +95,24 @@ public class DoReport extends AbstractMethod {
         _resourceLocks = resLocks;
     }
 
+    /**
+     * @param addressbookQueryStore
+     *      evaluates addressbook-query filters, may be null to report every
+     *      card of the address book
+     */
+    public void setAddressbookQueryStore(
+            IAddressbookQueryStore addressbookQueryStore) {
+        _addressbookQueryStore = addressbookQueryStore;
+    }
+
+    /**
+     * @param changeJournal
+     *      answers sync-collection reports, null if they are not supported
+     */
+    public void setChangeJournal(ChangeJournal changeJournal) {
+        _changeJournal = changeJournal;
+    }
+
     public void execute(ITransaction transaction, HttpServletRequest req,
             HttpServletResponse resp) throws IOException, LockFailedException {
         LOG.trace("-- " + this.getClass().getName());
@@ -125,12 +149,37 @@ public class DoReport extends AbstractMethod {
                 int propertyFindType = FIND_ALL_PROP;
                 Node propNode = null;
                 Element rootElement = null;
-
-                if (req.getContentLength() != 0) {
-                    DocumentBuilder documentBuilder = getDocumentBuilder();
+                String reportName = null;
+                List<String> hrefs = new ArrayList<String>();
+                AddressbookFilter filter = null;
+                String syncToken = null;
+                String syncLevel = null;
+
+                if (_requestParser != null && req.getContentLength() != 0) {
+                    RequestTrace.Span parseSpan = RequestTrace.start("xml.parse");
+                    DavRequest davRequest;
                     try {
-                        Document document = documentBuilder
-                                .parse(new InputSource(req.getInputStream()));
+                        davRequest = parseRequest(req, resp);
+                    } finally {
+                        parseSpan.end();
+                    }
+                    if (davRequest == null)
+                        return;
+                    reportName = davRequest.getRootName();
+                    hrefs.addAll(davRequest.getHrefs());
+                    filter = davRequest.getAddressbookFilter();
+                    syncToken = davRequest.getSyncToken();
+                    syncLevel = davRequest.getSyncLevel();
+                    if (davRequest.getProperties() != null) {
+                        propertyFindType = FIND_BY_PROPERTY;
+                        properties = new Vector<>(davRequest.getProperties());
+                    } else if (davRequest.isPropname()) {
+                        propertyFindType = FIND_PROPERTY_NAMES;
+                    }
+                } else if (req.getContentLength() != 0) {
+                    RequestTrace.Span parseSpan = RequestTrace.start("xml.parse");
+                    try {
+                        Document document = parseDocument(req);
                         // Get the root element of the document
                         rootElement = document.getDocumentElement();
 
@@ -148,6 +197,8 @@ public class DoReport extends AbstractMethod {
                     } catch (Exception e) {
                         resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
                         return;
+                    } finally {
+                        parseSpan.end();
                     }
                 } else {
                     // no content, which means it is a allprop request
@@ -159,34 +210,62 @@ public class DoReport extends AbstractMethod {
                 _store.addNamespace(namespaces);
 
 
-                if (propertyFindType == FIND_BY_PROPERTY) {
+                if (propNode != null) {
                     properties = XMLHelper.getPropertiesFromXML(propNode);
                 } 
                 
                 // collect report paths (firect child of root)
-                List<String> reportPaths = new ArrayList<String>();
                 if(rootElement != null) {
+                	 reportName = rootElement.getLocalName();
+                	 Node filterNode = XMLHelper.findSubElement(rootElement, "filter");
+                	 if (filterNode != null)
+                		 filter = AddressbookFilter.fromElement((Element) filterNode);
+                	 Node syncNode = XMLHelper.findSubElement(rootElement, "sync-token");
+                	 if (syncNode != null)
+                		 syncToken = syncNode.getTextContent().trim();
+                	 syncNode = XMLHelper.findSubElement(rootElement, "sync-level");
+                	 if (syncNode != null)
+                		 syncLevel = syncNode.getTextContent().trim();
                 	 Node child = rootElement.getFirstChild();
-                	 String relPath = req.getServletContext().getContextPath() + req.getServletPath();
-                	 
                      while (child != null) {
                          if ((child.getNodeType() == Node.ELEMENT_NODE)
                                  && (child.getLocalName().equals("href"))) {
-                        	 // TODO clean up path to allow getting
-                        	 String href = child.getTextContent();
-                        	 
-                        	 if(href.startsWith(relPath)) {
-                        		 href = href.substring(relPath.length());
-                        	 }
-                        			 
-                        	 reportPaths.add(getCleanPath(href));
+                        	 hrefs.add(child.getTextContent());
                          }
                          child = child.getNextSibling();
                      }
                 }
+                if (_changeJournal != null && "sync-collection".equals(reportName)) {
+                    syncCollection(transaction, req, resp, so, path, syncToken,
+                            syncLevel, propertyFindType, properties, namespaces);
+                    return;
+                }
+                List<String> reportPaths = new ArrayList<String>();
+                if(!hrefs.isEmpty()) {
+                	 String relPath = req.getServletContext().getContextPath() + req.getServletPath();
+                	 for (String href : hrefs) {
+                    	 // TODO clean up path to allow getting
+                    	 if(href.startsWith(relPath)) {
+                    		 href = href.substring(relPath.length());
+                    	 }
+                    	 reportPaths.add(getCleanPath(href));
+                	 }
+                }
+                int depth = _depth;
+                boolean queried = false;
+                if(reportPaths.isEmpty() && filter != null && _addressbookQueryStore != null
+                		&& "addressbook-query".equals(reportName)) {
+                	// the store filters: report exactly the matching cards
+                	List<String> matches = _addressbookQueryStore.queryAddressbook(transaction, path, filter);
+                	if(matches != null) {
+                		reportPaths.addAll(matches);
+                		depth = 0;
+                		queried = true;
+                	}
+                }
                 // in case we got no direct hrefs -> get report on the path itself
-                if(reportPaths.isEmpty()) {
-                	List<String> subpath = _store.getReportSubEntries(rootElement.getLocalName(), path);
+                if(reportPaths.isEmpty() && !queried) {
+                	List<String> subpath = _store.getReportSubEntries(reportName, path);
                 	if(subpath != null) {
                 		reportPaths.addAll(subpath);
                 	} else {
@@ -199,32 +278,38 @@ public class DoReport extends AbstractMethod {
                 resp.addHeader("DAV", _store.getConfig().getDavHeader());
 
                 // Create multistatus object
-                XMLWriter generatedXML = new XMLWriter(resp.getWriter(),
-                        namespaces);
+                XMLWriter generatedXML = createXmlWriter(req, resp, namespaces);
                 generatedXML.writeXMLHeader();
                 generatedXML
                         .writeElement("DAV::multistatus", XMLWriter.OPENING);
                 for(String curPath : reportPaths) {
-	                if (_depth == 0) {
-	                    parseProperties(transaction, req, generatedXML, curPath,
-	                            propertyFindType, properties);
+	                if (depth == 0) {
+	                    RequestTrace.Span span = RequestTrace.start("report.resource");
+	                    try {
+	                        parseProperties(transaction, req, generatedXML, curPath,
+	                                propertyFindType, properties);
+	                    } finally {
+	                        span.end();
+	                    }
 	                } else {
 	                    recursiveParseProperties(transaction, curPath, req,
-	                            generatedXML, propertyFindType, properties, _depth);
+	                            generatedXML, propertyFindType, properties, depth);
 	                }
                 }
                 generatedXML
                         .writeElement("DAV::multistatus", XMLWriter.CLOSING);
 
-                generatedXML.sendData();
+                RequestTrace.Span sendSpan = RequestTrace.start("xml.send");
+                try {
+                    finishXml(generatedXML);
+                } finally {
+                    sendSpan.end();
+                }
             } catch (AccessDeniedException e) {
                 resp.sendError(WebdavStatus.SC_FORBIDDEN);
             } catch (WebdavException e) {
                 LOG.warn("Sending internal error!",e);
                 resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
-            } catch (ServletException e) {
-                LOG.warn("Sending internal error!", e);
-                resp.sendError(WebdavStatus.SC_INTERNAL_SERVER_ERROR);
             } finally {
                 _resourceLocks.unlockTemporaryLockedObjects(transaction, path,
                         tempLockOwner);
@@ -236,6 +321,129 @@ public class DoReport extends AbstractMethod {
         }
     }
 
+    /**
+     * sync-collection (RFC 6578): reports the members of the collection
+     * changed since the token of the request with the token of the current
+     * state. Without a token all members are reported. Only sync-level 1 is
+     * supported.
+     */
+    private void syncCollection(ITransaction transaction,
+            HttpServletRequest req, HttpServletResponse resp, StoredObject so,
+            String path, String syncToken, String syncLevel,
+            int propertyFindType, Vector<String> properties,
+            HashMap<String, String> namespaces) throws IOException {
+        if (!so.isFolder()) {
+            resp.sendError(WebdavStatus.SC_FORBIDDEN);
+            return;
+        }
+        if ("infinite".equals(syncLevel)) {
+            sendPrecondition(req, resp, namespaces, "DAV::sync-traversal-supported");
+            return;
+        }
+
+        Map<String, Boolean> members;
+        String newToken;
+        if (syncToken == null || syncToken.isEmpty()) {
+            // take the token first: a change while listing is reported again
+            newToken = _changeJournal.getToken();
+            members = new LinkedHashMap<>();
+            String[] names = _store.getChildrenNames(transaction, path);
+            if (names != null)
+                for (String name : names)
+                    members.put(name, Boolean.FALSE);
+        } else {
+            ChangeJournal.Changes changes = _changeJournal.getChanges(path, syncToken);
+            if (changes == null) {
+                sendPrecondition(req, resp, namespaces, "DAV::valid-sync-token");
+                return;
+            }
+            members = changes.getMembers();
+            newToken = changes.getToken();
+        }
+
+        resp.setStatus(WebdavStatus.SC_MULTI_STATUS);
+        resp.setContentType("text/xml; charset=UTF-8");
+        resp.addHeader("DAV", _store.getConfig().getDavHeader());
+
+        XMLWriter generatedXML = createXmlWriter(req, resp, namespaces);
+        generatedXML.writeXMLHeader();
+        generatedXML.writeElement("DAV::multistatus", XMLWriter.OPENING);
+        String prefix = path.endsWith("/") ? path : path + "/";
+        for (Map.Entry<String, Boolean> member : members.entrySet()) {
+            String memberPath = prefix + member.getKey();
+            if (member.getValue()
+                    || _store.getStoredObject(transaction, memberPath, null) == null) {
+                String status = "HTTP/1.1 " + WebdavStatus.SC_NOT_FOUND + " "
+                        + WebdavStatus.getStatusText(WebdavStatus.SC_NOT_FOUND);
+                generatedXML.writeElement("DAV::response", XMLWriter.OPENING);
+                generatedXML.writeElement("DAV::href", XMLWriter.OPENING);
+                generatedXML.writeText(rewriteUrl(getHref(req, memberPath, false)));
+                generatedXML.writeElement("DAV::href", XMLWriter.CLOSING);
+                generatedXML.writeElement("DAV::status", XMLWriter.OPENING);
+                generatedXML.writeText(status);
+                generatedXML.writeElement("DAV::status", XMLWriter.CLOSING);
+                generatedXML.writeElement("DAV::response", XMLWriter.CLOSING);
+            } else {
+                RequestTrace.Span span = RequestTrace.start("report.resource");
+                try {
+                    parseProperties(transaction, req, generatedXML, memberPath,
+                            propertyFindType, properties);
+                } finally {
+                    span.end();
+                }
+            }
+        }
+        generatedXML.writeElement("DAV::sync-token", XMLWriter.OPENING);
+        generatedXML.writeText(newToken);
+        generatedXML.writeElement("DAV::sync-token", XMLWriter.CLOSING);
+        generatedXML.writeElement("DAV::multistatus", XMLWriter.CLOSING);
+
+        RequestTrace.Span sendSpan = RequestTrace.start("xml.send");
+        try {
+            finishXml(generatedXML);
+        } finally {
+            sendSpan.end();
+        }
+    }
+
+    /**
+     * Sends a 403 naming the failed precondition in a DAV:error body.
+     */
+    private void sendPrecondition(HttpServletRequest req,
+            HttpServletResponse resp, HashMap<String, String> namespaces,
+            String precondition) throws IOException {
+        resp.setStatus(WebdavStatus.SC_FORBIDDEN);
+        resp.setContentType("text/xml; charset=UTF-8");
+        XMLWriter generatedXML = createXmlWriter(req, resp, namespaces);
+        generatedXML.writeXMLHeader();
+        generatedXML.writeElement("DAV::error", XMLWriter.OPENING);
+        generatedXML.writeElement(precondition, XMLWriter.NO_CONTENT);
+        generatedXML.writeElement("DAV::error", XMLWriter.CLOSING);
+        finishXml(generatedXML);
+    }
+
+    /**
+     * @return href of the path below the servlet, folders end with a slash
+     */
+    private String getHref(HttpServletRequest req, String path,
+            boolean isFolder) {
+        String href = req.getContextPath();
+        String servletPath = req.getServletPath();
+        if (servletPath != null) {
+            if ((href.endsWith("/")) && (servletPath.startsWith("/")))
+                href += servletPath.substring(1);
+            else
+                href += servletPath;
+        }
+        if ((href.endsWith("/")) && (path.startsWith("/")))
+            href += path.substring(1);
+        else
+            href += path;
+        if ((isFolder) && (!href.endsWith("/")))
+            href += "/";
+        return href;
+    }
+
     /**
      * goes recursive through all folders. used by propfind
      * 
@@ -256,8 +464,13 @@ public class DoReport extends AbstractMethod {
             int propertyFindType, Vector<String> properties, int depth
             ) throws WebdavException {
 
-        parseProperties(transaction, req, generatedXML, currentPath,
-                propertyFindType, properties);
+        RequestTrace.Span span = RequestTrace.start("report.resource");
+        try {
+            parseProperties(transaction, req, generatedXML, currentPath,
+                    propertyFindType, properties);
+        } finally {
+            span.end();
+        }
 
         if (depth > 0) {
             // no need to get name if depth is already zero
@@ -265,12 +478,9 @@ public class DoReport extends AbstractMethod {
             names = names == null ? new String[] {} : names;
             String newPath = null;
 
+            DavPath parentPath = DavPath.valueOf(currentPath);
             for (String name : names) {
-                newPath = currentPath;
-                if (!(newPath.endsWith("/"))) {
-                    newPath += "/";
-                }
-                newPath += name;
+                newPath = parentPath.child(name).toString();
                 recursiveParseProperties(transaction, newPath, req,
                         generatedXML, propertyFindType, properties, depth - 1);
             }
@@ -318,22 +528,7 @@ public class DoReport extends AbstractMethod {
         // Generating href element
         generatedXML.writeElement("DAV::href", XMLWriter.OPENING);
 
-        String href = req.getContextPath();
-        String servletPath = req.getServletPath();
-        if (servletPath != null) {
-            if ((href.endsWith("/")) && (servletPath.startsWith("/")))
-                href += servletPath.substring(1);
-            else
-                href += servletPath;
-        }
-        if ((href.endsWith("/")) && (path.startsWith("/")))
-            href += path.substring(1);
-        else
-            href += path;
-        if ((isFolder) && (!href.endsWith("/")))
-            href += "/";
-
-        generatedXML.writeText(rewriteUrl(href));
+        generatedXML.writeText(rewriteUrl(getHref(req, path, isFolder)));
 
         generatedXML.writeElement("DAV::href", XMLWriter.CLOSING);
 
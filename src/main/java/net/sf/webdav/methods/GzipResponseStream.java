@@ -0,0 +1,93 @@
+package net.sf.webdav.methods;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Response body stream that starts gzip compression once more than
+ * <code>minSize</code> bytes have been written. Smaller bodies are sent as
+ * is, since compressing them costs more than it saves. Compressed data is
+ * passed on as it is produced, so compression overlaps generation.
+ *
+ * @author Niko Berger
+ */
+class GzipResponseStream extends OutputStream {
+
+	private final HttpServletResponse _resp;
+	private final int _level;
+	private byte[] _pending;
+	private int _count;
+	private OutputStream _out;
+
+	/**
+	 * @param level
+	 *            deflate level (0-9)
+	 * @param minSize
+	 *            bodies up to this size are not compressed
+	 */
+	GzipResponseStream(HttpServletResponse resp, int level, int minSize) {
+		_resp = resp;
+		_level = level;
+		_pending = new byte[minSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (_out == null) {
+			if (_count + len <= _pending.length) {
+				System.arraycopy(b, off, _pending, _count, len);
+				_count += len;
+				return;
+			}
+			startCompression();
+		}
+		_out.write(b, off, len);
+	}
+
+	private void startCompression() throws IOException {
+		_resp.setHeader("Content-Encoding", "gzip");
+		_out = new GZIPOutputStream(_resp.getOutputStream(), 8192) {
+			{
+				def.setLevel(_level);
+			}
+		};
+		_out.write(_pending, 0, _count);
+		_pending = null;
+	}
+
+	/**
+	 * Only flushes compressed output, a flush before the size threshold is
+	 * reached would prevent compression.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (_out != null)
+			_out.flush();
+	}
+
+	/**
+	 * Writes the gzip trailer or the uncompressed body, the response stream
+	 * itself stays open.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (_out instanceof GZIPOutputStream) {
+			((GZIPOutputStream) _out).finish();
+			_out.flush();
+		} else if (_out == null) {
+			OutputStream out = _resp.getOutputStream();
+			_resp.setContentLength(_count);
+			out.write(_pending, 0, _count);
+			out.flush();
+			_out = out;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package net.sf.webdav.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Request wrapper counting the body bytes read by the method executors.
+ *
+ * @author Niko Berger
+ */
+public class CountingRequestWrapper extends HttpServletRequestWrapper {
+
+	private CountingInputStream _in;
+
+	public CountingRequestWrapper(HttpServletRequest request) {
+		super(request);
+	}
+
+	@Override
+	public ServletInputStream getInputStream() throws IOException {
+		if (_in == null)
+			_in = new CountingInputStream(super.getInputStream());
+		return _in;
+	}
+
+	/**
+	 * @return number of bytes read from the request body so far
+	 */
+	public long getBytesRead() {
+		return _in == null ? 0 : _in._count;
+	}
+
+	private static class CountingInputStream extends ServletInputStream {
+		private final ServletInputStream _delegate;
+		private long _count;
+
+		CountingInputStream(ServletInputStream delegate) {
+			_delegate = delegate;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = _delegate.read();
+			if (b >= 0)
+				_count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = _delegate.read(b, off, len);
+			if (read > 0)
+				_count += read;
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return _delegate.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			_delegate.close();
+		}
+
+		@Override
+		public boolean isFinished() {
+			return _delegate.isFinished();
+		}
+
+		@Override
+		public boolean isReady() {
+			return _delegate.isReady();
+		}
+
+		@Override
+		public void setReadListener(ReadListener readListener) {
+			_delegate.setReadListener(readListener);
+		}
+	}
+}
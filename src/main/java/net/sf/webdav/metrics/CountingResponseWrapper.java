@@ -0,0 +1,152 @@
+package net.sf.webdav.metrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper remembering the status code and counting the body bytes
+ * written. Output written through {@link #getWriter()} is counted in
+ * characters, which matches the byte count for the (mostly ASCII) XML
+ * responses.
+ *
+ * @author Niko Berger
+ */
+public class CountingResponseWrapper extends HttpServletResponseWrapper {
+
+	private int _status = SC_OK;
+	private CountingOutputStream _out;
+	private PrintWriter _writer;
+	private long _chars;
+
+	public CountingResponseWrapper(HttpServletResponse response) {
+		super(response);
+	}
+
+	@Override
+	public void setStatus(int sc) {
+		_status = sc;
+		super.setStatus(sc);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public void setStatus(int sc, String sm) {
+		_status = sc;
+		super.setStatus(sc, sm);
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException {
+		_status = sc;
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+		_status = sc;
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException {
+		_status = SC_FOUND;
+		super.sendRedirect(location);
+	}
+
+	@Override
+	public int getStatus() {
+		return _status;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (_out == null)
+			_out = new CountingOutputStream(super.getOutputStream());
+		return _out;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (_writer == null) {
+			final PrintWriter delegate = super.getWriter();
+			_writer = new PrintWriter(new Writer() {
+				@Override
+				public void write(char[] cbuf, int off, int len) {
+					_chars += len;
+					delegate.write(cbuf, off, len);
+				}
+
+				@Override
+				public void write(String str, int off, int len) {
+					_chars += len;
+					delegate.write(str, off, len);
+				}
+
+				@Override
+				public void flush() {
+					delegate.flush();
+				}
+
+				@Override
+				public void close() {
+					delegate.close();
+				}
+			});
+		}
+		return _writer;
+	}
+
+	/**
+	 * @return number of bytes (or characters) written to the body so far
+	 */
+	public long getBytesWritten() {
+		return (_out == null ? 0 : _out._count) + _chars;
+	}
+
+	private static class CountingOutputStream extends ServletOutputStream {
+		private final ServletOutputStream _delegate;
+		private long _count;
+
+		CountingOutputStream(ServletOutputStream delegate) {
+			_delegate = delegate;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			_delegate.write(b);
+			_count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			_delegate.write(b, off, len);
+			_count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			_delegate.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			_delegate.close();
+		}
+
+		@Override
+		public boolean isReady() {
+			return _delegate.isReady();
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			_delegate.setWriteListener(writeListener);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package net.sf.webdav.metrics;
+
+/**
+ * Receiver for server side measurements. An implementation is handed to the
+ * {@link net.sf.webdav.WebDavServletBean} and gets called for every request,
+ * store call and lock operation. All methods are called concurrently from the
+ * request threads and must not block.
+ *
+ * @author Niko Berger
+ */
+public interface IWebdavMetrics {
+
+	/**
+	 * Called when a request starts executing.
+	 *
+	 * @param method
+	 *            the http method (i.e. PROPFIND)
+	 */
+	void requestStarted(String method);
+
+	/**
+	 * Called when a request is done, successful or not.
+	 *
+	 * @param method
+	 *            the http method (i.e. PROPFIND)
+	 * @param status
+	 *            the status code sent to the client
+	 * @param durationNanos
+	 *            time spent executing the request
+	 * @param bytesIn
+	 *            number of body bytes read from the request
+	 * @param bytesOut
+	 *            number of body bytes written to the response
+	 */
+	void requestFinished(String method, int status, long durationNanos,
+			long bytesIn, long bytesOut);
+
+	/**
+	 * Called after each call into the {@link net.sf.webdav.IWebdavStore}.
+	 *
+	 * @param operation
+	 *            name of the store method (i.e. getStoredObject)
+	 * @param durationNanos
+	 *            time spent in the store
+	 * @param failed
+	 *            true if the store threw an exception
+	 */
+	void storeCall(String operation, long durationNanos, boolean failed);
+
+	/**
+	 * Called after trying to acquire a (temporary or real) lock.
+	 *
+	 * @param durationNanos
+	 *            time spent waiting for and evaluating the lock
+	 * @param acquired
+	 *            true if the lock was granted
+	 */
+	void lockWait(long durationNanos, boolean acquired);
+
+	/**
+	 * Called when a lock is released.
+	 *
+	 * @param durationNanos
+	 *            time the lock was held
+	 */
+	void lockHeld(long durationNanos);
+
+	/**
+	 * Life cycle method, called by the servlet's destroy() method.
+	 */
+	void destroy();
+}
@@ -0,0 +1,152 @@
+package net.sf.webdav.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToLongFunction;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * {@link SimpleWebdavMetrics} which registers itself with the platform MBean
+ * server as <code>net.sf.webdav:type=WebdavMetrics,name=&lt;name&gt;</code>.
+ * Registration failures are logged and do not prevent collecting.
+ *
+ * @author Niko Berger
+ */
+public class JmxWebdavMetrics extends SimpleWebdavMetrics implements
+		WebdavMetricsMXBean {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(JmxWebdavMetrics.class);
+
+	private ObjectName _objectName;
+
+	public JmxWebdavMetrics(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(
+					"net.sf.webdav:type=WebdavMetrics,name="
+							+ ObjectName.quote(name == null ? "webdav" : name));
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(this, objectName);
+			_objectName = objectName;
+		} catch (Exception e) {
+			LOG.warn("Unable to register webdav metrics with JMX: " + e);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (_objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						_objectName);
+			} catch (Exception e) {
+				LOG.warn("Unable to unregister webdav metrics: " + e);
+			}
+			_objectName = null;
+		}
+		super.destroy();
+	}
+
+	private Map<String, Long> perMethod(ToLongFunction<MethodStats> value) {
+		Map<String, Long> result = new TreeMap<>();
+		for (Map.Entry<String, MethodStats> e : getMethodStats().entrySet())
+			result.put(e.getKey(), value.applyAsLong(e.getValue()));
+		return result;
+	}
+
+	private Map<String, Long> perStoreCall(ToLongFunction<LatencyHistogram> value) {
+		Map<String, Long> result = new TreeMap<>();
+		for (Map.Entry<String, LatencyHistogram> e : getStoreCallStats().entrySet())
+			result.put(e.getKey(), value.applyAsLong(e.getValue()));
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getRequestCounts() {
+		return perMethod(s -> s.getLatency().getCount());
+	}
+
+	@Override
+	public Map<String, Long> getRequestsInFlight() {
+		return perMethod(MethodStats::getInFlight);
+	}
+
+	@Override
+	public Map<String, Long> getMeanLatencyMicros() {
+		return perMethod(s -> s.getLatency().getMeanMicros());
+	}
+
+	@Override
+	public Map<String, Long> getP99LatencyMicros() {
+		return perMethod(s -> s.getLatency().getPercentileMicros(99));
+	}
+
+	@Override
+	public Map<String, Long> getMaxLatencyMicros() {
+		return perMethod(s -> s.getLatency().getMaxMicros());
+	}
+
+	@Override
+	public Map<String, Long> getBytesIn() {
+		return perMethod(MethodStats::getBytesIn);
+	}
+
+	@Override
+	public Map<String, Long> getBytesOut() {
+		return perMethod(MethodStats::getBytesOut);
+	}
+
+	@Override
+	public Map<String, Long> getErrorCounts() {
+		Map<String, Long> result = new TreeMap<>();
+		for (Map.Entry<String, MethodStats> e : getMethodStats().entrySet()) {
+			for (Map.Entry<Integer, Long> status : e.getValue()
+					.getStatusCounts().entrySet()) {
+				if (status.getKey() >= 400)
+					result.put(e.getKey() + " " + status.getKey(),
+							status.getValue());
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getStoreCallCounts() {
+		return perStoreCall(LatencyHistogram::getCount);
+	}
+
+	@Override
+	public Map<String, Long> getStoreCallMeanMicros() {
+		return perStoreCall(LatencyHistogram::getMeanMicros);
+	}
+
+	@Override
+	public Map<String, Long> getStoreCallP99Micros() {
+		return perStoreCall(h -> h.getPercentileMicros(99));
+	}
+
+	@Override
+	public long getLockWaitMeanMicros() {
+		return getLockWait().getMeanMicros();
+	}
+
+	@Override
+	public long getLockWaitP99Micros() {
+		return getLockWait().getPercentileMicros(99);
+	}
+
+	@Override
+	public long getLockHoldMeanMicros() {
+		return getLockHold().getMeanMicros();
+	}
+
+	@Override
+	public long getLockHoldP99Micros() {
+		return getLockHold().getPercentileMicros(99);
+	}
+}
@@ -0,0 +1,101 @@
+package net.sf.webdav.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power of two buckets (in microseconds).
+ * Bucket <code>i</code> counts values in <code>[2^i, 2^(i+1))</code> microseconds, so
+ * percentiles are accurate within a factor of two which is plenty to spot slow
+ * methods. Recording does not allocate.
+ *
+ * @author Niko Berger
+ */
+public class LatencyHistogram {
+
+	/**
+	 * 2^31 us is roughly 35 minutes, everything above lands in the last bucket
+	 */
+	static final int BUCKETS = 32;
+
+	private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder _count = new LongAdder();
+	private final LongAdder _sumNanos = new LongAdder();
+	private final LongAccumulator _maxNanos = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * @param nanos
+	 *            the measured duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		_buckets.incrementAndGet(bucketOf(nanos / 1000));
+		_count.increment();
+		_sumNanos.add(nanos);
+		_maxNanos.accumulate(nanos);
+	}
+
+	static int bucketOf(long micros) {
+		if (micros <= 1)
+			return 0;
+		int bucket = 63 - Long.numberOfLeadingZeros(micros);
+		return bucket >= BUCKETS ? BUCKETS - 1 : bucket;
+	}
+
+	public long getCount() {
+		return _count.sum();
+	}
+
+	public long getMaxMicros() {
+		return _maxNanos.get() / 1000;
+	}
+
+	public long getMeanMicros() {
+		long count = _count.sum();
+		return count == 0 ? 0 : _sumNanos.sum() / count / 1000;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the upper bound (us) of the bucket containing the percentile, 0 if
+	 *         nothing was recorded
+	 */
+	public long getPercentileMicros(double percentile) {
+		long count = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = _buckets.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(count * percentile / 100d);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(1L << (i + 1), Math.max(getMaxMicros(), 1));
+		}
+		return getMaxMicros();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			_buckets.set(i, 0);
+		_count.reset();
+		_sumNanos.reset();
+		_maxNanos.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + " mean=" + getMeanMicros() + "us p50="
+				+ getPercentileMicros(50) + "us p99=" + getPercentileMicros(99)
+				+ "us max=" + getMaxMicros() + "us";
+	}
+}
@@ -0,0 +1,113 @@
+package net.sf.webdav.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sf.webdav.ILockingListener;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.exceptions.LockFailedException;
+import net.sf.webdav.locking.LockedObject;
+import net.sf.webdav.locking.ResourceLocks;
+
+/**
+ * {@link ResourceLocks} reporting lock contention to {@link IWebdavMetrics}.
+ * The wait time includes waiting for the monitor of the lock table, which is
+ * where concurrent requests queue up. Hold times are measured from the
+ * successful lock until the matching unlock.
+ *
+ * @author Niko Berger
+ */
+public class MeteredResourceLocks extends ResourceLocks {
+
+	/**
+	 * locks that time out are never unlocked, the oldest are forgotten first
+	 */
+	private static final int MAX_TRACKED = 10000;
+
+	private final IWebdavMetrics _metrics;
+
+	/**
+	 * keys: temp/real marker + owner + path, value: System.nanoTime() of the
+	 * lock, oldest first
+	 */
+	private final Map<String, Long> _lockedSince = new LinkedHashMap<String, Long>() {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_TRACKED;
+		}
+	};
+
+	public MeteredResourceLocks(ILockingListener lockingListener,
+			IWebdavMetrics metrics) {
+		super(lockingListener);
+		_metrics = metrics;
+	}
+
+	@Override
+	public boolean lock(ITransaction transaction, String path, String owner,
+			boolean exclusive, int depth, int timeout, boolean temporary)
+			throws LockFailedException {
+		long start = System.nanoTime();
+		boolean acquired = false;
+		try {
+			acquired = super.lock(transaction, path, owner, exclusive, depth,
+					timeout, temporary);
+			return acquired;
+		} finally {
+			long now = System.nanoTime();
+			_metrics.lockWait(now - start, acquired);
+			if (acquired) {
+				synchronized (_lockedSince) {
+					_lockedSince.putIfAbsent(key(temporary, owner, path), now);
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean unlock(ITransaction transaction, String id, String owner) {
+		boolean temporary = false;
+		LockedObject lo = getLockedObjectByID(transaction, id);
+		if (lo == null) {
+			lo = getTempLockedObjectByID(transaction, id);
+			temporary = lo != null;
+		}
+		String path = lo != null ? lo.getPath() : null;
+		boolean result = super.unlock(transaction, id, owner);
+		if (path != null && !isOwner(lo, owner))
+			released(key(temporary, owner, path));
+		return result;
+	}
+
+	private static boolean isOwner(LockedObject lo, String owner) {
+		String[] owners = lo.getOwner();
+		if (owners != null)
+			for (String o : owners)
+				if (o.equals(owner))
+					return true;
+		return false;
+	}
+
+	@Override
+	public void unlockTemporaryLockedObjects(ITransaction transaction,
+			String path, String owner) {
+		super.unlockTemporaryLockedObjects(transaction, path, owner);
+		released(key(true, owner, path));
+	}
+
+	private void released(String key) {
+		Long since;
+		synchronized (_lockedSince) {
+			since = _lockedSince.remove(key);
+		}
+		if (since != null)
+			_metrics.lockHeld(System.nanoTime() - since);
+	}
+
+	private static String key(boolean temporary, String owner, String path) {
+		return (temporary ? "t:" : "l:") + owner + '|' + path;
+	}
+}
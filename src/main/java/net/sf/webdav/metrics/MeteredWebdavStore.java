@@ -0,0 +1,243 @@
+package net.sf.webdav.metrics;
+
+import java.io.InputStream;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import net.sf.webdav.DelegatingWebdavStore;
+import net.sf.webdav.IFolderListingStore;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.IWebdavStore;
+import net.sf.webdav.StoredObject;
+
+/**
+ * Store wrapper timing every data access of the delegate and reporting it to
+ * {@link IWebdavMetrics#storeCall(String, long, boolean)}. Cheap calls without
+ * I/O (config, namespaces, principal handling) are passed through untimed.
+ *
+ * @author Niko Berger
+ */
+public class MeteredWebdavStore extends DelegatingWebdavStore {
+
+	private final IWebdavMetrics _metrics;
+
+	public MeteredWebdavStore(IWebdavStore delegate, IWebdavMetrics metrics) {
+		super(delegate);
+		_metrics = metrics;
+	}
+
+	private void record(String operation, long start, boolean failed) {
+		_metrics.storeCall(operation, System.nanoTime() - start, failed);
+	}
+
+	@Override
+	public ITransaction begin(Principal principal) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			ITransaction result = _delegate.begin(principal);
+			failed = false;
+			return result;
+		} finally {
+			record("begin", start, failed);
+		}
+	}
+
+	@Override
+	public void commit(ITransaction transaction) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			_delegate.commit(transaction);
+			failed = false;
+		} finally {
+			record("commit", start, failed);
+		}
+	}
+
+	@Override
+	public void rollback(ITransaction transaction) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			_delegate.rollback(transaction);
+			failed = false;
+		} finally {
+			record("rollback", start, failed);
+		}
+	}
+
+	@Override
+	public void createFolder(ITransaction transaction, String folderUri) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			_delegate.createFolder(transaction, folderUri);
+			failed = false;
+		} finally {
+			record("createFolder", start, failed);
+		}
+	}
+
+	@Override
+	public void createResource(ITransaction transaction, String resourceUri) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			_delegate.createResource(transaction, resourceUri);
+			failed = false;
+		} finally {
+			record("createResource", start, failed);
+		}
+	}
+
+	@Override
+	public InputStream getResourceContent(ITransaction transaction,
+			String resourceUri) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			InputStream result = _delegate.getResourceContent(transaction,
+					resourceUri);
+			failed = false;
+			return result;
+		} finally {
+			record("getResourceContent", start, failed);
+		}
+	}
+
+	@Override
+	public long setResourceContent(ITransaction transaction,
+			String resourceUri, InputStream content, String contentType,
+			String characterEncoding) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			long result = _delegate.setResourceContent(transaction,
+					resourceUri, content, contentType, characterEncoding);
+			failed = false;
+			return result;
+		} finally {
+			record("setResourceContent", start, failed);
+		}
+	}
+
+	@Override
+	public String[] getChildrenNames(ITransaction transaction, String folderUri) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			String[] result = _delegate.getChildrenNames(transaction, folderUri);
+			failed = false;
+			return result;
+		} finally {
+			record("getChildrenNames", start, failed);
+		}
+	}
+
+	@Override
+	public long getResourceLength(ITransaction transaction, String path) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			long result = _delegate.getResourceLength(transaction, path);
+			failed = false;
+			return result;
+		} finally {
+			record("getResourceLength", start, failed);
+		}
+	}
+
+	@Override
+	public void removeObject(ITransaction transaction, String uri) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			_delegate.removeObject(transaction, uri);
+			failed = false;
+		} finally {
+			record("removeObject", start, failed);
+		}
+	}
+
+	@Override
+	public StoredObject getStoredObject(ITransaction transaction, String uri,
+			Vector<String> properties) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			StoredObject result = _delegate.getStoredObject(transaction, uri,
+					properties);
+			failed = false;
+			return result;
+		} finally {
+			record("getStoredObject", start, failed);
+		}
+	}
+
+	@Override
+	public void moveResource(ITransaction transaction, String sourceUri,
+			String destinationUri) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			_delegate.moveResource(transaction, sourceUri, destinationUri);
+			failed = false;
+		} finally {
+			record("moveResource", start, failed);
+		}
+	}
+
+	@Override
+	public List<String> getReportSubEntries(String reportAction, String path) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			List<String> result = _delegate.getReportSubEntries(reportAction,
+					path);
+			failed = false;
+			return result;
+		} finally {
+			record("getReportSubEntries", start, failed);
+		}
+	}
+
+	@Override
+	public Map<String, String> getAdditionalProperties(String path,
+			Vector<String> properties) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Map<String, String> result = _delegate.getAdditionalProperties(path,
+					properties);
+			failed = false;
+			return result;
+		} finally {
+			record("getAdditionalProperties", start, failed);
+		}
+	}
+
+	/**
+	 * @return the folder listing timed like the calls of this store
+	 */
+	public IFolderListingStore metered(final IFolderListingStore store) {
+		return new IFolderListingStore() {
+			@Override
+			public Map<String, StoredObject> listChildren(
+					ITransaction transaction, String folderUri) {
+				long start = System.nanoTime();
+				boolean failed = true;
+				try {
+					Map<String, StoredObject> result = store.listChildren(
+							transaction, folderUri);
+					failed = false;
+					return result;
+				} finally {
+					record("listChildren", start, failed);
+				}
+			}
+		};
+	}
+}
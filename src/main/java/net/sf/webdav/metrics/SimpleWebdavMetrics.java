@@ -0,0 +1,184 @@
+package net.sf.webdav.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dependency free default implementation of {@link IWebdavMetrics}. Keeps
+ * everything in memory (lock-free counters and {@link LatencyHistogram}s) and
+ * offers snapshot getters which can be polled or exported (see
+ * {@link JmxWebdavMetrics}).
+ *
+ * @author Niko Berger
+ */
+public class SimpleWebdavMetrics implements IWebdavMetrics {
+
+	/**
+	 * Counters for a single http method
+	 */
+	public static class MethodStats {
+		private final AtomicLong _inFlight = new AtomicLong();
+		private final LatencyHistogram _latency = new LatencyHistogram();
+		private final LongAdder _bytesIn = new LongAdder();
+		private final LongAdder _bytesOut = new LongAdder();
+		private final ConcurrentMap<Integer, LongAdder> _statusCounts = new ConcurrentHashMap<>();
+
+		public long getInFlight() {
+			return _inFlight.get();
+		}
+
+		public LatencyHistogram getLatency() {
+			return _latency;
+		}
+
+		public long getBytesIn() {
+			return _bytesIn.sum();
+		}
+
+		public long getBytesOut() {
+			return _bytesOut.sum();
+		}
+
+		/**
+		 * @return number of responses per status code
+		 */
+		public Map<Integer, Long> getStatusCounts() {
+			Map<Integer, Long> result = new TreeMap<>();
+			for (Map.Entry<Integer, LongAdder> e : _statusCounts.entrySet())
+				result.put(e.getKey(), e.getValue().sum());
+			return result;
+		}
+
+		void reset() {
+			_latency.reset();
+			_bytesIn.reset();
+			_bytesOut.reset();
+			_statusCounts.clear();
+		}
+	}
+
+	private final ConcurrentMap<String, MethodStats> _methods = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, LatencyHistogram> _storeCalls = new ConcurrentHashMap<>();
+	private final LongAdder _storeErrors = new LongAdder();
+	private final LatencyHistogram _lockWait = new LatencyHistogram();
+	private final LatencyHistogram _lockHold = new LatencyHistogram();
+	private final LongAdder _lockFailures = new LongAdder();
+
+	@Override
+	public void requestStarted(String method) {
+		getMethodStats(method)._inFlight.incrementAndGet();
+	}
+
+	@Override
+	public void requestFinished(String method, int status, long durationNanos,
+			long bytesIn, long bytesOut) {
+		MethodStats stats = getMethodStats(method);
+		stats._inFlight.decrementAndGet();
+		stats._latency.record(durationNanos);
+		if (bytesIn > 0)
+			stats._bytesIn.add(bytesIn);
+		if (bytesOut > 0)
+			stats._bytesOut.add(bytesOut);
+		stats._statusCounts.computeIfAbsent(status, k -> new LongAdder())
+				.increment();
+	}
+
+	@Override
+	public void storeCall(String operation, long durationNanos, boolean failed) {
+		_storeCalls.computeIfAbsent(operation, k -> new LatencyHistogram())
+				.record(durationNanos);
+		if (failed)
+			_storeErrors.increment();
+	}
+
+	@Override
+	public void lockWait(long durationNanos, boolean acquired) {
+		_lockWait.record(durationNanos);
+		if (!acquired)
+			_lockFailures.increment();
+	}
+
+	@Override
+	public void lockHeld(long durationNanos) {
+		_lockHold.record(durationNanos);
+	}
+
+	@Override
+	public void destroy() {
+		// nothing to release
+	}
+
+	private MethodStats getMethodStats(String method) {
+		MethodStats stats = _methods.get(method);
+		if (stats == null)
+			stats = _methods.computeIfAbsent(method, k -> new MethodStats());
+		return stats;
+	}
+
+	/**
+	 * @return a sorted snapshot of the per-method statistics
+	 */
+	public Map<String, MethodStats> getMethodStats() {
+		return new TreeMap<>(_methods);
+	}
+
+	/**
+	 * @return a sorted snapshot of the per store-operation timings
+	 */
+	public Map<String, LatencyHistogram> getStoreCallStats() {
+		return new TreeMap<>(_storeCalls);
+	}
+
+	public long getStoreErrors() {
+		return _storeErrors.sum();
+	}
+
+	public LatencyHistogram getLockWait() {
+		return _lockWait;
+	}
+
+	public LatencyHistogram getLockHold() {
+		return _lockHold;
+	}
+
+	public long getLockFailures() {
+		return _lockFailures.sum();
+	}
+
+	/**
+	 * Clears all collected values (in-flight counters are kept)
+	 */
+	public void reset() {
+		for (MethodStats stats : _methods.values())
+			stats.reset();
+		_storeCalls.clear();
+		_storeErrors.reset();
+		_lockWait.reset();
+		_lockHold.reset();
+		_lockFailures.reset();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, MethodStats> e : getMethodStats().entrySet()) {
+			MethodStats s = e.getValue();
+			sb.append(e.getKey()).append(": ").append(s.getLatency())
+					.append(" inFlight=").append(s.getInFlight())
+					.append(" in=").append(s.getBytesIn()).append(" out=")
+					.append(s.getBytesOut()).append(" status=")
+					.append(s.getStatusCounts()).append('\n');
+		}
+		for (Map.Entry<String, LatencyHistogram> e : getStoreCallStats().entrySet())
+			sb.append("store.").append(e.getKey()).append(": ")
+					.append(e.getValue()).append('\n');
+		sb.append("lock.wait: ").append(_lockWait).append(" failed=")
+				.append(getLockFailures()).append('\n');
+		sb.append("lock.hold: ").append(_lockHold).append('\n');
+		return sb.toString();
+	}
+}
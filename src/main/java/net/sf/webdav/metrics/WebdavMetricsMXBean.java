@@ -0,0 +1,51 @@
+package net.sf.webdav.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view on the collected {@link SimpleWebdavMetrics}. Maps are keyed by http
+ * method or store operation, times are in microseconds.
+ *
+ * @author Niko Berger
+ */
+public interface WebdavMetricsMXBean {
+
+	Map<String, Long> getRequestCounts();
+
+	Map<String, Long> getRequestsInFlight();
+
+	Map<String, Long> getMeanLatencyMicros();
+
+	Map<String, Long> getP99LatencyMicros();
+
+	Map<String, Long> getMaxLatencyMicros();
+
+	Map<String, Long> getBytesIn();
+
+	Map<String, Long> getBytesOut();
+
+	/**
+	 * @return number of responses with status &gt;= 400, keyed by "METHOD status"
+	 */
+	Map<String, Long> getErrorCounts();
+
+	Map<String, Long> getStoreCallCounts();
+
+	Map<String, Long> getStoreCallMeanMicros();
+
+	Map<String, Long> getStoreCallP99Micros();
+
+	long getStoreErrors();
+
+	long getLockWaitMeanMicros();
+
+	long getLockWaitP99Micros();
+
+	long getLockFailures();
+
+	long getLockHoldMeanMicros();
+
+	long getLockHoldP99Micros();
+
+	void reset();
+}
@@ -0,0 +1,386 @@
+package net.sf.webdav.props;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.webdav.DavPath;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * Embedded {@link IPropertyStore} keeping the dead properties of all children
+ * of a folder in one compact binary file (<code>.davprops</code>). The files
+ * live in a separate directory tree mirroring the folder structure of the
+ * content store, so they never show up in listings. Folder names starting
+ * with <code>~</code> or the property file name get an extra <code>~</code>
+ * in the mirror, so a folder can not collide with a property file.
+ * <p>
+ * Decoded files are kept in an LRU cache per folder, so a depth 1 PROPFIND
+ * costs at most one file read no matter how many children the folder has.
+ * Updates replace the file atomically (write to temp file, then rename).
+ * <p>
+ * File format: magic, version, entry count, then per child: name, property
+ * count and name/value pairs. Strings are stored as length prefixed UTF-8.
+ *
+ * @author Niko Berger
+ */
+public class FilePropertyStore implements IPropertyStore {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(FilePropertyStore.class);
+
+	static final String FILE_NAME = ".davprops";
+
+	/**
+	 * "DAVP"
+	 */
+	private static final int MAGIC = 0x44415650;
+	private static final int VERSION = 1;
+
+	/**
+	 * name under which the properties of the root folder are kept
+	 */
+	private static final String SELF = "";
+
+	/**
+	 * prefix of mirror folder names that would otherwise collide
+	 */
+	private static final char ESCAPE = '~';
+
+	private static final int DEFAULT_CACHE_SIZE = 1024;
+
+	private final File _root;
+
+	/**
+	 * keys: folder path, value: immutable child name to properties map
+	 */
+	private final Map<String, Map<String, Map<String, String>>> _cache;
+
+	/**
+	 * bumped on every change, a load that ran across a change is not cached
+	 */
+	private final AtomicLong _version = new AtomicLong();
+
+	public FilePropertyStore(File root) {
+		this(root, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param root
+	 *            directory where the property files are stored
+	 * @param cacheSize
+	 *            number of folders to keep in memory
+	 */
+	public FilePropertyStore(File root, final int cacheSize) {
+		_root = root;
+		_cache = Collections.synchronizedMap(
+				new LinkedHashMap<String, Map<String, Map<String, String>>>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(
+							Map.Entry<String, Map<String, Map<String, String>>> eldest) {
+						return size() > cacheSize;
+					}
+				});
+	}
+
+	@Override
+	public Map<String, String> getProperties(ITransaction transaction,
+			String path) throws WebdavException {
+		path = normalize(path);
+		Map<String, String> props = loadFolder(parentOf(path)).get(nameOf(path));
+		return props == null ? Collections.<String, String> emptyMap() : props;
+	}
+
+	@Override
+	public Map<String, Map<String, String>> getChildProperties(
+			ITransaction transaction, String folderPath) throws WebdavException {
+		Map<String, Map<String, String>> folder = loadFolder(normalize(folderPath));
+		if (!folder.containsKey(SELF))
+			return folder;
+		Map<String, Map<String, String>> children = new HashMap<>(folder);
+		children.remove(SELF);
+		return children;
+	}
+
+	@Override
+	public synchronized void setProperties(ITransaction transaction,
+			String path, Map<String, String> set, Collection<String> remove)
+			throws WebdavException {
+		path = normalize(path);
+		String folder = parentOf(path);
+		String name = nameOf(path);
+		Map<String, Map<String, String>> entries = new HashMap<>(loadFolder(folder));
+		Map<String, String> props = entries.get(name);
+		props = props == null ? new HashMap<String, String>() : new HashMap<>(props);
+		if (remove != null)
+			props.keySet().removeAll(remove);
+		if (set != null)
+			props.putAll(set);
+		if (props.isEmpty())
+			entries.remove(name);
+		else
+			entries.put(name, Collections.unmodifiableMap(props));
+		writeFolder(folder, entries);
+	}
+
+	@Override
+	public synchronized void removeProperties(ITransaction transaction,
+			String path) throws WebdavException {
+		path = normalize(path);
+		removeEntry(path);
+		deleteTree(mirror(path));
+		invalidate(path);
+	}
+
+	@Override
+	public synchronized void copyProperties(ITransaction transaction,
+			String sourcePath, String destinationPath) throws WebdavException {
+		sourcePath = normalize(sourcePath);
+		destinationPath = normalize(destinationPath);
+		removeProperties(transaction, destinationPath);
+
+		Map<String, String> props = getProperties(transaction, sourcePath);
+		if (!props.isEmpty())
+			setProperties(transaction, destinationPath, props, null);
+		try {
+			copyTree(mirror(sourcePath), mirror(destinationPath));
+		} catch (IOException e) {
+			throw new WebdavException(e);
+		}
+		invalidate(destinationPath);
+	}
+
+	@Override
+	public synchronized void moveProperties(ITransaction transaction,
+			String sourcePath, String destinationPath) throws WebdavException {
+		sourcePath = normalize(sourcePath);
+		destinationPath = normalize(destinationPath);
+		removeProperties(transaction, destinationPath);
+
+		Map<String, String> props = getProperties(transaction, sourcePath);
+		if (!props.isEmpty())
+			setProperties(transaction, destinationPath, props, null);
+		removeEntry(sourcePath);
+
+		File source = mirror(sourcePath);
+		if (source.isDirectory()) {
+			File destination = mirror(destinationPath);
+			destination.getParentFile().mkdirs();
+			try {
+				Files.move(source.toPath(), destination.toPath());
+			} catch (IOException e) {
+				throw new WebdavException(e);
+			}
+		}
+		invalidate(sourcePath);
+		invalidate(destinationPath);
+	}
+
+	@Override
+	public void destroy() {
+		_cache.clear();
+	}
+
+	private void removeEntry(String path) throws WebdavException {
+		String folder = parentOf(path);
+		String name = nameOf(path);
+		Map<String, Map<String, String>> entries = loadFolder(folder);
+		if (entries.containsKey(name)) {
+			entries = new HashMap<>(entries);
+			entries.remove(name);
+			writeFolder(folder, entries);
+		}
+	}
+
+	private Map<String, Map<String, String>> loadFolder(String folder)
+			throws WebdavException {
+		Map<String, Map<String, String>> entries = _cache.get(folder);
+		if (entries != null)
+			return entries;
+
+		long version = _version.get();
+		entries = read(new File(mirror(folder), FILE_NAME));
+		synchronized (_cache) {
+			// a concurrent update wins over what we just read
+			Map<String, Map<String, String>> existing = _cache.get(folder);
+			if (existing != null)
+				return existing;
+			if (_version.get() == version)
+				_cache.put(folder, entries);
+		}
+		return entries;
+	}
+
+	private void writeFolder(String folder, Map<String, Map<String, String>> entries)
+			throws WebdavException {
+		File dir = mirror(folder);
+		File file = new File(dir, FILE_NAME);
+		try {
+			if (entries.isEmpty()) {
+				Files.deleteIfExists(file.toPath());
+			} else {
+				dir.mkdirs();
+				File tmp = new File(dir, FILE_NAME + ".tmp");
+				write(tmp, entries);
+				try {
+					Files.move(tmp.toPath(), file.toPath(),
+							StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmp.toPath(), file.toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		} catch (IOException e) {
+			LOG.error("Unable to store properties of " + folder, e);
+			throw new WebdavException(e);
+		}
+		synchronized (_cache) {
+			_version.incrementAndGet();
+			_cache.put(folder, Collections.unmodifiableMap(entries));
+		}
+	}
+
+	static Map<String, Map<String, String>> read(File file)
+			throws WebdavException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new WebdavException("invalid property file: " + file);
+			int entryCount = in.readInt();
+			Map<String, Map<String, String>> entries = new HashMap<>(entryCount * 2);
+			for (int i = 0; i < entryCount; i++) {
+				String name = readString(in);
+				int propCount = in.readInt();
+				Map<String, String> props = new HashMap<>(propCount * 2);
+				for (int j = 0; j < propCount; j++)
+					props.put(readString(in), readString(in));
+				entries.put(name, Collections.unmodifiableMap(props));
+			}
+			return Collections.unmodifiableMap(entries);
+		} catch (FileNotFoundException e) {
+			return Collections.emptyMap();
+		} catch (IOException e) {
+			throw new WebdavException(e);
+		}
+	}
+
+	static void write(File file, Map<String, Map<String, String>> entries)
+			throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Map<String, String>> entry : entries.entrySet()) {
+				writeString(out, entry.getKey());
+				out.writeInt(entry.getValue().size());
+				for (Map.Entry<String, String> prop : entry.getValue().entrySet()) {
+					writeString(out, prop.getKey());
+					writeString(out, prop.getValue());
+				}
+			}
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	/**
+	 * drops the cached folder and all cached sub folders
+	 */
+	private void invalidate(String path) {
+		String prefix = path.endsWith("/") ? path : path + "/";
+		synchronized (_cache) {
+			_version.incrementAndGet();
+			for (Iterator<String> it = _cache.keySet().iterator(); it.hasNext();) {
+				String folder = it.next();
+				if (folder.equals(path) || folder.startsWith(prefix))
+					it.remove();
+			}
+		}
+	}
+
+	private File mirror(String folder) {
+		if ("/".equals(folder))
+			return _root;
+		File dir = _root;
+		for (String name : folder.split("/")) {
+			if (name.isEmpty())
+				continue;
+			if (name.charAt(0) == ESCAPE || name.startsWith(FILE_NAME))
+				name = ESCAPE + name;
+			dir = new File(dir, name);
+		}
+		return dir;
+	}
+
+	private static String normalize(String path) throws WebdavException {
+		if (path == null || path.isEmpty())
+			return "/";
+		if (path.contains("/../") || path.endsWith("/..") || path.contains("\\"))
+			throw new WebdavException("invalid path: " + path);
+		return DavPath.valueOf(path).toString();
+	}
+
+	private static String parentOf(String path) {
+		int slash = path.lastIndexOf('/');
+		return slash <= 0 ? "/" : path.substring(0, slash);
+	}
+
+	private static String nameOf(String path) {
+		return "/".equals(path) ? SELF : path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				deleteTree(child);
+		file.delete();
+	}
+
+	private static void copyTree(File source, File destination)
+			throws IOException {
+		if (source.isDirectory()) {
+			destination.mkdirs();
+			File[] children = source.listFiles();
+			if (children != null)
+				for (File child : children)
+					copyTree(child, new File(destination, child.getName()));
+		} else if (source.isFile()) {
+			Files.copy(source.toPath(), destination.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package net.sf.webdav.props;
+
+import java.util.Collection;
+import java.util.Map;
+
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * Storage for dead properties (set by clients using PROPPATCH). Property names
+ * use the same "namespace:localname" notation as the rest of the servlet (i.e.
+ * <code>urn:schemas-microsoft-com::Win32FileAttributes</code>), values are
+ * stored as xml escaped text and written to the response as is.
+ * <p>
+ * Paths are the clean paths used by the method executors ("/folder/file").
+ *
+ * @author Niko Berger
+ */
+public interface IPropertyStore {
+
+	/**
+	 * @param path
+	 *            path of the resource
+	 * @return the dead properties of the resource, never null (read only)
+	 */
+	Map<String, String> getProperties(ITransaction transaction, String path)
+			throws WebdavException;
+
+	/**
+	 * Fetches the dead properties of all children of a folder in one go, used
+	 * by depth 1 PROPFIND instead of asking once per child.
+	 *
+	 * @param folderPath
+	 *            path of the folder
+	 * @return child name to properties; children without properties are
+	 *         missing; never null (read only)
+	 */
+	Map<String, Map<String, String>> getChildProperties(
+			ITransaction transaction, String folderPath) throws WebdavException;
+
+	/**
+	 * Sets and removes properties of a resource in one atomic step.
+	 *
+	 * @param set
+	 *            properties to add or replace, may be null
+	 * @param remove
+	 *            names of properties to remove, may be null
+	 */
+	void setProperties(ITransaction transaction, String path,
+			Map<String, String> set, Collection<String> remove)
+			throws WebdavException;
+
+	/**
+	 * Removes all properties of the resource and (for folders) everything
+	 * below it.
+	 */
+	void removeProperties(ITransaction transaction, String path)
+			throws WebdavException;
+
+	/**
+	 * Copies all properties of the resource and everything below it,
+	 * replacing the properties at the destination.
+	 */
+	void copyProperties(ITransaction transaction, String sourcePath,
+			String destinationPath) throws WebdavException;
+
+	/**
+	 * Moves all properties of the resource and everything below it.
+	 */
+	void moveProperties(ITransaction transaction, String sourcePath,
+			String destinationPath) throws WebdavException;
+
+	/**
+	 * Life cycle method, called by the servlet's destroy() method.
+	 */
+	void destroy();
+}
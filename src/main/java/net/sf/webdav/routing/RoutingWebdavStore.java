@@ -0,0 +1,778 @@
+package net.sf.webdav.routing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.sf.webdav.DavExtensionConfig;
+import net.sf.webdav.IEncodedContentStore;
+import net.sf.webdav.IFolderListingStore;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.IWebdavStore;
+import net.sf.webdav.StoredObject;
+import net.sf.webdav.async.FileChannelSink;
+import net.sf.webdav.async.IAsyncContentStore;
+import net.sf.webdav.async.IContentSink;
+import net.sf.webdav.carddav.AddressbookFilter;
+import net.sf.webdav.carddav.IAddressbookQueryStore;
+import net.sf.webdav.exceptions.AccessDeniedException;
+import net.sf.webdav.exceptions.ObjectAlreadyExistsException;
+import net.sf.webdav.exceptions.ObjectNotFoundException;
+import net.sf.webdav.exceptions.WebdavException;
+import net.sf.webdav.fromcatalina.XMLWriter;
+import net.sf.webdav.upload.IStagedContentStore;
+
+/**
+ * Store that puts several stores under one namespace, i.e. to spread the I/O
+ * over more disks or to mix store types. A store is mounted under a path
+ * prefix and sees the paths below it relative to its own root; the longest
+ * mounted prefix wins. A prefix can also be sharded over several stores, the
+ * first path segment below it picks the store by its hash, so the number of
+ * stores of a shard must not change once there is content.
+ * <p>
+ * Mount points show up in the listing of their parent folder and can not be
+ * removed or moved. Moving between stores copies the content from one to the
+ * other as a stream and removes the source afterwards. Every store gets its
+ * own transaction, they are committed one after the other, so a request that
+ * touches several stores is not atomic.
+ * <p>
+ * Calls that do not name a path (principals, namespaces, configuration) go to
+ * the store mounted at the root. Mounts have to be set up before the store is
+ * used.
+ * <p>
+ * The optional store extensions are passed on to the store holding the path.
+ * Where that store lacks one, folder listings and async uploads fall back to
+ * the plain store methods, encoded copies and addressbook queries are
+ * reported as not available and resumable uploads are refused.
+ *
+ * @author Niko Berger
+ */
+public class RoutingWebdavStore implements IWebdavStore, IEncodedContentStore,
+		IFolderListingStore, IAsyncContentStore, IStagedContentStore,
+		IAddressbookQueryStore {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(RoutingWebdavStore.class);
+
+	private final IWebdavStore _rootStore;
+
+	private final Node _root = new Node("/");
+
+	/**
+	 * every mounted store once, in mount order
+	 */
+	private final List<IWebdavStore> _stores = new ArrayList<>();
+
+	private final Date _created = new Date();
+
+	private static final class Node {
+
+		final String _path;
+
+		final Map<String, Node> _children = new HashMap<>();
+
+		/**
+		 * more than one for a shard, null if nothing is mounted here
+		 */
+		IWebdavStore[] _stores;
+
+		Node(String path) {
+			_path = path;
+		}
+	}
+
+	/**
+	 * a path resolved to the store that holds it
+	 */
+	private static final class Route {
+
+		final Node _mount;
+
+		/**
+		 * null for the root of a shard, which is spread over all stores
+		 */
+		final IWebdavStore _store;
+
+		final String _path;
+
+		Route(Node mount, IWebdavStore store, String path) {
+			_mount = mount;
+			_store = store;
+			_path = path;
+		}
+	}
+
+	/**
+	 * Transaction of a request, begins the transactions of the stores as they
+	 * are used.
+	 */
+	private static final class RoutingTransaction implements ITransaction {
+
+		final Principal _principal;
+
+		final Map<IWebdavStore, ITransaction> _transactions = new IdentityHashMap<>();
+
+		RoutingTransaction(Principal principal) {
+			_principal = principal;
+		}
+
+		@Override
+		public Principal getPrincipal() {
+			return _principal;
+		}
+	}
+
+	/**
+	 * @param rootStore
+	 *            store for every path that is not below another mount
+	 */
+	public RoutingWebdavStore(IWebdavStore rootStore) {
+		if (rootStore == null)
+			throw new IllegalArgumentException("root store must not be null");
+		_rootStore = rootStore;
+		_root._stores = new IWebdavStore[] { rootStore };
+		_stores.add(rootStore);
+	}
+
+	/**
+	 * Mounts a store at the path prefix, i.e. "/archive".
+	 */
+	public void mount(String prefix, IWebdavStore store) {
+		shard(prefix, store);
+	}
+
+	/**
+	 * Spreads the folders and files directly below the path prefix over the
+	 * stores by the hash of their name.
+	 */
+	public void shard(String prefix, IWebdavStore... stores) {
+		if (stores == null || stores.length == 0)
+			throw new IllegalArgumentException("no store to mount at " + prefix);
+		Node node = _root;
+		StringBuilder path = new StringBuilder();
+		for (String segment : prefix.split("/")) {
+			if (segment.isEmpty())
+				continue;
+			path.append('/').append(segment);
+			Node child = node._children.get(segment);
+			if (child == null) {
+				child = new Node(path.toString());
+				node._children.put(segment, child);
+			}
+			node = child;
+		}
+		if (node == _root)
+			throw new IllegalArgumentException("the root is mounted already");
+		if (node._stores != null)
+			throw new IllegalArgumentException(node._path + " is mounted already");
+		node._stores = stores.clone();
+		for (IWebdavStore store : stores)
+			if (!containsStore(store))
+				_stores.add(store);
+		LOG.info("Mounted " + stores.length + " store(s) at " + node._path);
+	}
+
+	private boolean containsStore(IWebdavStore store) {
+		for (IWebdavStore mounted : _stores)
+			if (mounted == store)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Walks the mount points along the path, the deepest one holds it.
+	 */
+	private Route route(String path) {
+		Node node = _root;
+		Node mount = _root;
+		int mountEnd = 0;
+		int start = 0;
+		int length = path.length();
+		while (start < length) {
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = length;
+			if (end > start) {
+				node = node._children.get(path.substring(start, end));
+				if (node == null)
+					break;
+				if (node._stores != null) {
+					mount = node;
+					mountEnd = end;
+				}
+			}
+			start = end + 1;
+		}
+		String relative = mountEnd == 0 ? path : path.substring(mountEnd);
+		if (relative.isEmpty() || "/".equals(relative))
+			relative = "/";
+		IWebdavStore[] stores = mount._stores;
+		if (stores.length == 1)
+			return new Route(mount, stores[0], relative);
+		String first = firstSegment(relative);
+		if (first == null)
+			return new Route(mount, null, relative);
+		return new Route(mount, stores[(first.hashCode() & 0x7fffffff)
+				% stores.length], relative);
+	}
+
+	private static String firstSegment(String path) {
+		int start = 0;
+		while (start < path.length() && path.charAt(start) == '/')
+			start++;
+		if (start == path.length())
+			return null;
+		int end = path.indexOf('/', start);
+		return path.substring(start, end < 0 ? path.length() : end);
+	}
+
+	/**
+	 * @return the trie node of exactly this path, null if nothing is mounted
+	 *         at or below it
+	 */
+	private Node node(String path) {
+		Node node = _root;
+		for (String segment : path.split("/")) {
+			if (segment.isEmpty())
+				continue;
+			node = node._children.get(segment);
+			if (node == null)
+				return null;
+		}
+		return node;
+	}
+
+	/**
+	 * @return the transaction of the store within the request
+	 */
+	private static ITransaction transaction(ITransaction transaction,
+			IWebdavStore store) {
+		if (!(transaction instanceof RoutingTransaction))
+			return transaction;
+		RoutingTransaction routing = (RoutingTransaction) transaction;
+		synchronized (routing) {
+			if (routing._transactions.containsKey(store))
+				return routing._transactions.get(store);
+			ITransaction storeTransaction = store.begin(routing._principal);
+			routing._transactions.put(store, storeTransaction);
+			return storeTransaction;
+		}
+	}
+
+	private Route routeToStore(String path) {
+		Route route = route(path);
+		if (route._store == null)
+			throw new AccessDeniedException(path + " is a mount point");
+		return route;
+	}
+
+	private StoredObject virtualFolder() {
+		StoredObject so = new StoredObject();
+		so.setFolder(true);
+		so.setCreationDate(_created);
+		so.setLastModified(_created);
+		return so;
+	}
+
+	@Override
+	public void destroy() {
+		for (IWebdavStore store : _stores) {
+			try {
+				store.destroy();
+			} catch (RuntimeException e) {
+				LOG.warn("Unable to destroy " + store + ": " + e);
+			}
+		}
+	}
+
+	@Override
+	public ITransaction begin(Principal principal) {
+		return new RoutingTransaction(principal);
+	}
+
+	@Override
+	public void checkAuthentication(ITransaction transaction) {
+		_rootStore.checkAuthentication(transaction(transaction, _rootStore));
+	}
+
+	@Override
+	public void commit(ITransaction transaction) {
+		if (!(transaction instanceof RoutingTransaction))
+			return;
+		RoutingTransaction routing = (RoutingTransaction) transaction;
+		List<Map.Entry<IWebdavStore, ITransaction>> open;
+		synchronized (routing) {
+			open = new ArrayList<>(routing._transactions.entrySet());
+			routing._transactions.clear();
+		}
+		RuntimeException failure = null;
+		for (Map.Entry<IWebdavStore, ITransaction> entry : open) {
+			try {
+				if (failure == null)
+					entry.getKey().commit(entry.getValue());
+				else
+					entry.getKey().rollback(entry.getValue());
+			} catch (RuntimeException e) {
+				if (failure == null)
+					failure = e;
+				else
+					LOG.warn("Rollback after failed commit failed: " + e);
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	@Override
+	public void rollback(ITransaction transaction) {
+		if (!(transaction instanceof RoutingTransaction))
+			return;
+		RoutingTransaction routing = (RoutingTransaction) transaction;
+		List<Map.Entry<IWebdavStore, ITransaction>> open;
+		synchronized (routing) {
+			open = new ArrayList<>(routing._transactions.entrySet());
+			routing._transactions.clear();
+		}
+		RuntimeException failure = null;
+		for (Map.Entry<IWebdavStore, ITransaction> entry : open) {
+			try {
+				entry.getKey().rollback(entry.getValue());
+			} catch (RuntimeException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	@Override
+	public void createFolder(ITransaction transaction, String folderUri) {
+		Route route = route(folderUri);
+		if (route._store == null || "/".equals(route._path))
+			throw new ObjectAlreadyExistsException(folderUri);
+		route._store.createFolder(transaction(transaction, route._store),
+				route._path);
+	}
+
+	@Override
+	public void createResource(ITransaction transaction, String resourceUri) {
+		Route route = route(resourceUri);
+		if (route._store == null || "/".equals(route._path))
+			throw new ObjectAlreadyExistsException(resourceUri);
+		route._store.createResource(transaction(transaction, route._store),
+				route._path);
+	}
+
+	@Override
+	public InputStream getResourceContent(ITransaction transaction,
+			String resourceUri) {
+		Route route = routeToStore(resourceUri);
+		return route._store.getResourceContent(
+				transaction(transaction, route._store), route._path);
+	}
+
+	@Override
+	public long setResourceContent(ITransaction transaction,
+			String resourceUri, InputStream content, String contentType,
+			String characterEncoding) {
+		Route route = routeToStore(resourceUri);
+		return route._store.setResourceContent(
+				transaction(transaction, route._store), route._path, content,
+				contentType, characterEncoding);
+	}
+
+	@Override
+	public String[] getChildrenNames(ITransaction transaction, String folderUri) {
+		Route route = route(folderUri);
+		String[] children;
+		if (route._store != null) {
+			children = route._store.getChildrenNames(
+					transaction(transaction, route._store), route._path);
+		} else {
+			// the root of a shard lists the members of all its stores
+			Set<String> names = new LinkedHashSet<>();
+			for (IWebdavStore store : route._mount._stores) {
+				String[] shard = store.getChildrenNames(
+						transaction(transaction, store), "/");
+				if (shard != null)
+					for (String name : shard)
+						names.add(name);
+			}
+			children = names.toArray(new String[names.size()]);
+		}
+		Node node = node(folderUri);
+		if (node == null || node._children.isEmpty())
+			return children;
+		Set<String> names = new LinkedHashSet<>();
+		if (children != null)
+			for (String name : children)
+				names.add(name);
+		names.addAll(node._children.keySet());
+		return names.toArray(new String[names.size()]);
+	}
+
+	@Override
+	public long getResourceLength(ITransaction transaction, String path) {
+		Route route = route(path);
+		if (route._store == null)
+			return 0;
+		return route._store.getResourceLength(
+				transaction(transaction, route._store), route._path);
+	}
+
+	@Override
+	public void removeObject(ITransaction transaction, String uri) {
+		if (node(uri) != null)
+			throw new AccessDeniedException(uri + " is or contains a mount point");
+		Route route = routeToStore(uri);
+		route._store.removeObject(transaction(transaction, route._store),
+				route._path);
+	}
+
+	@Override
+	public StoredObject getStoredObject(ITransaction transaction, String uri,
+			Vector<String> properties) {
+		Route route = route(uri);
+		StoredObject so = null;
+		if (route._store != null)
+			so = route._store.getStoredObject(
+					transaction(transaction, route._store), route._path,
+					properties);
+		if (so == null && node(uri) != null)
+			so = virtualFolder(); // a shard root or a folder above a mount
+		return so;
+	}
+
+	@Override
+	public Principal createPrincipal(HttpServletRequest request) {
+		return _rootStore.createPrincipal(request);
+	}
+
+	/**
+	 * @return true if all stores move natively, otherwise MOVE is done as COPY
+	 *         and DELETE through this store
+	 */
+	@Override
+	public boolean supportsMoveOperation() {
+		for (IWebdavStore store : _stores)
+			if (!store.supportsMoveOperation())
+				return false;
+		return true;
+	}
+
+	@Override
+	public void moveResource(ITransaction transaction, String sourceUri,
+			String destinationUri) {
+		if (node(sourceUri) != null)
+			throw new AccessDeniedException(sourceUri
+					+ " is or contains a mount point");
+		Route source = routeToStore(sourceUri);
+		Route destination = route(destinationUri);
+		if (destination._store == null || "/".equals(destination._path))
+			throw new ObjectAlreadyExistsException(destinationUri);
+		if (source._store == destination._store) {
+			source._store.moveResource(transaction(transaction, source._store),
+					source._path, destination._path);
+			return;
+		}
+		ITransaction from = transaction(transaction, source._store);
+		ITransaction to = transaction(transaction, destination._store);
+		StoredObject so = source._store.getStoredObject(from, source._path, null);
+		if (so == null)
+			throw new ObjectNotFoundException(sourceUri);
+		if (destination._store.getStoredObject(to, destination._path, null) != null)
+			throw new ObjectAlreadyExistsException(destinationUri);
+		copy(source._store, from, source._path, so, destination._store, to,
+				destination._path);
+		remove(source._store, from, source._path, so);
+	}
+
+	/**
+	 * Copies a resource or folder tree to another store.
+	 */
+	private static void copy(IWebdavStore source, ITransaction from,
+			String sourcePath, StoredObject so, IWebdavStore destination,
+			ITransaction to, String destinationPath) {
+		if (!so.isFolder()) {
+			destination.createResource(to, destinationPath);
+			InputStream content = source.getResourceContent(from, sourcePath);
+			try {
+				destination.setResourceContent(to, destinationPath, content,
+						so.getMimeType(), null);
+			} finally {
+				close(content);
+			}
+			return;
+		}
+		destination.createFolder(to, destinationPath);
+		String[] children = source.getChildrenNames(from, sourcePath);
+		if (children == null)
+			return;
+		for (String child : children) {
+			String childSource = child(sourcePath, child);
+			StoredObject childSo = source.getStoredObject(from, childSource, null);
+			if (childSo != null)
+				copy(source, from, childSource, childSo, destination, to,
+						child(destinationPath, child));
+		}
+	}
+
+	/**
+	 * Removes a folder tree bottom up, stores do not have to remove folders
+	 * with members.
+	 */
+	private static void remove(IWebdavStore store, ITransaction transaction,
+			String path, StoredObject so) {
+		if (so.isFolder()) {
+			String[] children = store.getChildrenNames(transaction, path);
+			if (children != null) {
+				for (String child : children) {
+					String childPath = child(path, child);
+					StoredObject childSo = store.getStoredObject(transaction,
+							childPath, null);
+					if (childSo != null)
+						remove(store, transaction, childPath, childSo);
+				}
+			}
+		}
+		store.removeObject(transaction, path);
+	}
+
+	private static String child(String folder, String name) {
+		return folder.endsWith("/") ? folder + name : folder + "/" + name;
+	}
+
+	private static void close(InputStream in) {
+		if (in == null)
+			return;
+		try {
+			in.close();
+		} catch (IOException e) {
+			LOG.debug("Unable to close content stream: " + e);
+		}
+	}
+
+	@Override
+	public long getEncodedLength(ITransaction transaction, String resourceUri,
+			String encoding) {
+		Route route = route(resourceUri);
+		if (!(route._store instanceof IEncodedContentStore))
+			return -1;
+		return ((IEncodedContentStore) route._store).getEncodedLength(
+				transaction(transaction, route._store), route._path, encoding);
+	}
+
+	@Override
+	public InputStream getEncodedContent(ITransaction transaction,
+			String resourceUri, String encoding) {
+		Route route = routeToStore(resourceUri);
+		return ((IEncodedContentStore) route._store).getEncodedContent(
+				transaction(transaction, route._store), route._path, encoding);
+	}
+
+	@Override
+	public Map<String, StoredObject> listChildren(ITransaction transaction,
+			String folderUri) {
+		Route route = route(folderUri);
+		Map<String, StoredObject> children;
+		if (route._store != null) {
+			children = listChildren(route._store,
+					transaction(transaction, route._store), route._path);
+		} else {
+			// the root of a shard lists the members of all its stores
+			children = new HashMap<>();
+			for (IWebdavStore store : route._mount._stores) {
+				Map<String, StoredObject> shard = listChildren(store,
+						transaction(transaction, store), "/");
+				if (shard != null)
+					children.putAll(shard);
+			}
+		}
+		Node node = node(folderUri);
+		if (node == null || node._children.isEmpty())
+			return children;
+		children = children == null ? new HashMap<String, StoredObject>()
+				: new HashMap<>(children);
+		for (String name : node._children.keySet())
+			if (!children.containsKey(name))
+				children.put(name, virtualFolder());
+		return children;
+	}
+
+	private static Map<String, StoredObject> listChildren(IWebdavStore store,
+			ITransaction transaction, String path) {
+		if (store instanceof IFolderListingStore)
+			return ((IFolderListingStore) store).listChildren(transaction, path);
+		String[] names = store.getChildrenNames(transaction, path);
+		if (names == null)
+			return null;
+		Map<String, StoredObject> children = new HashMap<>();
+		for (String name : names) {
+			StoredObject so = store.getStoredObject(transaction,
+					child(path, name), null);
+			if (so != null)
+				children.put(name, so);
+		}
+		return children;
+	}
+
+	@Override
+	public IContentSink openResourceContent(ITransaction transaction,
+			String resourceUri, final String contentType,
+			final String characterEncoding) {
+		Route route = routeToStore(resourceUri);
+		final IWebdavStore store = route._store;
+		final ITransaction storeTransaction = transaction(transaction, store);
+		final String path = route._path;
+		if (store instanceof IAsyncContentStore)
+			return ((IAsyncContentStore) store).openResourceContent(
+					storeTransaction, path, contentType, characterEncoding);
+		// received into a temporary file and stored with the blocking call
+		File file;
+		try {
+			file = File.createTempFile("webdav-upload", ".tmp");
+		} catch (IOException e) {
+			throw new WebdavException(e);
+		}
+		return new FileChannelSink(file, null) {
+			@Override
+			public long commit() {
+				super.commit();
+				try (InputStream in = new FileInputStream(getFile())) {
+					return store.setResourceContent(storeTransaction, path, in,
+							contentType, characterEncoding);
+				} catch (IOException e) {
+					throw new WebdavException(e);
+				} finally {
+					getFile().delete();
+				}
+			}
+
+			@Override
+			public void abort() {
+				super.abort();
+				getFile().delete();
+			}
+		};
+	}
+
+	@Override
+	public long getStagedLength(ITransaction transaction, String resourceUri) {
+		Route route = routeToStore(resourceUri);
+		if (!(route._store instanceof IStagedContentStore))
+			return -1;
+		return ((IStagedContentStore) route._store).getStagedLength(
+				transaction(transaction, route._store), route._path);
+	}
+
+	@Override
+	public long writeStagedContent(ITransaction transaction,
+			String resourceUri, long offset, InputStream content, long length) {
+		Route route = routeToStore(resourceUri);
+		return staged(route).writeStagedContent(
+				transaction(transaction, route._store), route._path, offset,
+				content, length);
+	}
+
+	@Override
+	public long commitStagedContent(ITransaction transaction,
+			String resourceUri) {
+		Route route = routeToStore(resourceUri);
+		return staged(route).commitStagedContent(
+				transaction(transaction, route._store), route._path);
+	}
+
+	@Override
+	public void discardStagedContent(ITransaction transaction,
+			String resourceUri) {
+		Route route = routeToStore(resourceUri);
+		if (route._store instanceof IStagedContentStore)
+			((IStagedContentStore) route._store).discardStagedContent(
+					transaction(transaction, route._store), route._path);
+	}
+
+	private static IStagedContentStore staged(Route route) {
+		if (!(route._store instanceof IStagedContentStore))
+			throw new WebdavException("resumable uploads are not supported below "
+					+ route._mount._path);
+		return (IStagedContentStore) route._store;
+	}
+
+	@Override
+	public List<String> queryAddressbook(ITransaction transaction,
+			String addressbookUri, AddressbookFilter filter) {
+		Route route = route(addressbookUri);
+		if (!(route._store instanceof IAddressbookQueryStore))
+			return null;
+		return mounted(route, ((IAddressbookQueryStore) route._store)
+				.queryAddressbook(transaction(transaction, route._store),
+						route._path, filter));
+	}
+
+	/**
+	 * @return the paths of the store prefixed with its mount point
+	 */
+	private List<String> mounted(Route route, List<String> paths) {
+		if (paths == null || route._mount == _root)
+			return paths;
+		List<String> mounted = new ArrayList<>(paths.size());
+		for (String path : paths)
+			mounted.add(path.startsWith("/") ? route._mount._path + path : path);
+		return mounted;
+	}
+
+	@Override
+	public DavExtensionConfig getConfig() {
+		return _rootStore.getConfig();
+	}
+
+	@Override
+	public void addNamespace(Map<String, String> namespaces) {
+		_rootStore.addNamespace(namespaces);
+	}
+
+	@Override
+	public List<String> getReportSubEntries(String reportAction, String path) {
+		Route route = routeToStore(path);
+		return mounted(route, route._store.getReportSubEntries(reportAction,
+				route._path));
+	}
+
+	@Override
+	public Map<String, String> getAdditionalProperties(String path,
+			Vector<String> properties) {
+		Route route = route(path);
+		if (route._store == null)
+			return null;
+		return route._store.getAdditionalProperties(route._path, properties);
+	}
+
+	@Override
+	public Vector<String> handleCustomProperties(String path,
+			Vector<String> properties, StoredObject so, XMLWriter out) {
+		Route route = route(path);
+		if (route._store == null)
+			return properties;
+		return route._store.handleCustomProperties(route._path, properties, so,
+				out);
+	}
+
+	@Override
+	public String getPrincipalUri(Principal principal) {
+		return _rootStore.getPrincipalUri(principal);
+	}
+}
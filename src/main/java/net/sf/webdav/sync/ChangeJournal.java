@@ -0,0 +1,341 @@
+package net.sf.webdav.sync;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only log of the member changes of each collection, the basis of
+ * sync tokens for the sync-collection REPORT (RFC 6578). Every change gets
+ * a sequence number; a sync token is the sequence number at the time it was
+ * handed out, so the changes since a token are the log entries after it.
+ * <p>
+ * Each collection keeps at most <code>maxEntries</code> entries. When a log
+ * is cut, tokens older than the remaining entries become invalid and the
+ * client has to start over with a full sync. With a directory the logs are
+ * also written to files, one per collection, so tokens survive a restart;
+ * without one they are only valid as long as the journal lives.
+ *
+ * @author Niko Berger
+ */
+public class ChangeJournal {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory
+			.getLogger(ChangeJournal.class);
+
+	static final String TOKEN_PREFIX = "urn:webdav-servlet:sync:";
+
+	private static final String SUFFIX = ".journal";
+
+	private final File _directory;
+	private final int _maxEntries;
+	private final long _epoch;
+	private final Map<String, Log> _logs = new HashMap<>();
+	private long _sequence;
+
+	/**
+	 * @param directory
+	 *            where the logs are kept, null to keep them in memory only
+	 * @param maxEntries
+	 *            entries kept per collection
+	 */
+	public ChangeJournal(File directory, int maxEntries) {
+		_directory = directory;
+		_maxEntries = maxEntries;
+		if (directory == null) {
+			_epoch = System.currentTimeMillis();
+		} else {
+			_epoch = loadEpoch();
+			load();
+		}
+	}
+
+	/**
+	 * Changes from different journal instances must not be mixed, the epoch
+	 * of a journal is part of its tokens.
+	 */
+	private long loadEpoch() {
+		File file = new File(_directory, "epoch");
+		try {
+			if (file.exists())
+				return Long.parseLong(new String(Files.readAllBytes(file
+						.toPath()), StandardCharsets.UTF_8).trim());
+			_directory.mkdirs();
+			long epoch = System.currentTimeMillis();
+			Files.write(file.toPath(), String.valueOf(epoch).getBytes(
+					StandardCharsets.UTF_8));
+			return epoch;
+		} catch (IOException | NumberFormatException e) {
+			throw new IllegalStateException("unable to read " + file, e);
+		}
+	}
+
+	private void load() {
+		File[] files = _directory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (!file.getName().endsWith(SUFFIX))
+				continue;
+			String name = file.getName();
+			String collection = decode(name.substring(0, name.length()
+					- SUFFIX.length()));
+			Log log = new Log();
+			try {
+				for (String line : Files.readAllLines(file.toPath(),
+						StandardCharsets.UTF_8)) {
+					String[] parts = line.split("\t", 3);
+					if (parts.length < 3)
+						continue; // cut off by a crash
+					long sequence = Long.parseLong(parts[0]);
+					_sequence = Math.max(_sequence, sequence);
+					if (parts[1].equals("!")) {
+						log._entries.clear();
+						log._validFrom = sequence;
+					} else {
+						log._entries.add(new Entry(sequence, parts[2], parts[1]
+								.equals("-")));
+					}
+				}
+			} catch (IOException | NumberFormatException e) {
+				LOG.warn("Unable to read " + file + ", its tokens are invalid: " + e);
+				log._entries.clear();
+				log._validFrom = Long.MAX_VALUE;
+			}
+			_logs.put(collection, log);
+		}
+		for (Map.Entry<String, Log> entry : _logs.entrySet()) {
+			Log log = entry.getValue();
+			if (log._validFrom == Long.MAX_VALUE)
+				log._validFrom = _sequence;
+			if (log._entries.size() > _maxEntries)
+				truncate(entry.getKey(), log);
+		}
+	}
+
+	/**
+	 * @return the sync token for the current state
+	 */
+	public synchronized String getToken() {
+		return TOKEN_PREFIX + _epoch + ":" + _sequence;
+	}
+
+	/**
+	 * Records a new or modified member.
+	 */
+	public void recordChange(String collectionUri, String member) {
+		record(collectionUri, member, false);
+	}
+
+	public void recordDelete(String collectionUri, String member) {
+		record(collectionUri, member, true);
+	}
+
+	/**
+	 * Forgets the changes of a deleted collection, tokens handed out for it
+	 * are invalid from now on.
+	 */
+	public synchronized void removeCollection(String collectionUri) {
+		String collection = normalize(collectionUri);
+		Log log = _logs.get(collection);
+		if (log == null)
+			return;
+		_sequence++;
+		log._entries.clear();
+		log._validFrom = _sequence;
+		append(collection, _sequence + "\t!\t\n");
+	}
+
+	private synchronized void record(String collectionUri, String member,
+			boolean deleted) {
+		String collection = normalize(collectionUri);
+		Log log = _logs.get(collection);
+		if (log == null) {
+			log = new Log();
+			_logs.put(collection, log);
+		}
+		_sequence++;
+		log._entries.add(new Entry(_sequence, member, deleted));
+		append(collection, _sequence + (deleted ? "\t-\t" : "\t+\t") + member
+				+ "\n");
+		if (log._entries.size() > _maxEntries)
+			truncate(collection, log);
+	}
+
+	/**
+	 * @param token
+	 *            a token from {@link #getToken()}
+	 * @return the members changed since the token with the new token, null if
+	 *         the token is not valid (anymore) for the collection
+	 */
+	public synchronized Changes getChanges(String collectionUri, String token) {
+		long since = parseToken(token);
+		if (since < 0 || since > _sequence)
+			return null;
+		Log log = _logs.get(normalize(collectionUri));
+		Map<String, Boolean> members = new LinkedHashMap<>();
+		if (log != null) {
+			if (since < log._validFrom)
+				return null;
+			List<Entry> entries = log._entries;
+			// entries are sorted, search the first one after the token
+			int low = 0;
+			int high = entries.size();
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (entries.get(mid)._sequence <= since)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			for (int i = low; i < entries.size(); i++) {
+				Entry entry = entries.get(i);
+				// only the last change of a member counts, keep that order
+				members.remove(entry._member);
+				members.put(entry._member, entry._deleted);
+			}
+		}
+		return new Changes(members, getToken());
+	}
+
+	/**
+	 * @return the sequence number of the token, -1 if it is not one of ours
+	 */
+	private long parseToken(String token) {
+		String prefix = TOKEN_PREFIX + _epoch + ":";
+		if (token == null || !token.startsWith(prefix))
+			return -1;
+		try {
+			return Long.parseLong(token.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String normalize(String collectionUri) {
+		if (collectionUri.endsWith("/"))
+			return collectionUri.substring(0, collectionUri.length() - 1);
+		return collectionUri;
+	}
+
+	/**
+	 * Drops the older half of the entries.
+	 */
+	private void truncate(String collection, Log log) {
+		List<Entry> entries = log._entries;
+		List<Entry> kept = new ArrayList<>(entries.subList(entries.size()
+				- _maxEntries / 2, entries.size()));
+		log._entries = kept;
+		log._validFrom = kept.isEmpty() ? _sequence : kept.get(0)._sequence - 1;
+		if (_directory == null)
+			return;
+		StringBuilder sb = new StringBuilder();
+		sb.append(log._validFrom).append("\t!\t\n");
+		for (Entry entry : kept)
+			sb.append(entry._sequence).append(entry._deleted ? "\t-\t" : "\t+\t")
+					.append(entry._member).append('\n');
+		File file = file(collection);
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			Files.write(tmp.toPath(), sb.toString().getBytes(
+					StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), file.toPath(),
+					java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			LOG.warn("Unable to compact " + file + ": " + e);
+		}
+	}
+
+	private void append(String collection, String line) {
+		if (_directory == null)
+			return;
+		try (Writer out = new BufferedWriter(Files.newBufferedWriter(file(
+				collection).toPath(), StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+			out.write(line);
+		} catch (IOException e) {
+			LOG.warn("Unable to write the change journal of " + collection
+					+ ": " + e);
+		}
+	}
+
+	private File file(String collection) {
+		try {
+			return new File(_directory, URLEncoder.encode(
+					collection.isEmpty() ? "/" : collection, "UTF-8") + SUFFIX);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String name) {
+		try {
+			String collection = URLDecoder.decode(name, "UTF-8");
+			return collection.equals("/") ? "" : collection;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The result of {@link ChangeJournal#getChanges(String, String)}.
+	 */
+	public static class Changes {
+
+		private final Map<String, Boolean> _members;
+		private final String _token;
+
+		Changes(Map<String, Boolean> members, String token) {
+			_members = Collections.unmodifiableMap(members);
+			_token = token;
+		}
+
+		/**
+		 * @return names of the changed members in the order of their last
+		 *         change, mapped to true if the member was deleted
+		 */
+		public Map<String, Boolean> getMembers() {
+			return _members;
+		}
+
+		/**
+		 * @return token to send with the changes
+		 */
+		public String getToken() {
+			return _token;
+		}
+	}
+
+	private static final class Log {
+		private List<Entry> _entries = new ArrayList<>();
+		/**
+		 * tokens before this sequence number miss changes
+		 */
+		private long _validFrom;
+	}
+
+	private static final class Entry {
+		private final long _sequence;
+		private final String _member;
+		private final boolean _deleted;
+
+		Entry(long sequence, String member, boolean deleted) {
+			_sequence = sequence;
+			_member = member;
+			_deleted = deleted;
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package net.sf.webdav.sync;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.Vector;
+
+import net.sf.webdav.DavExtensionConfig;
+import net.sf.webdav.DelegatingWebdavStore;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.IWebdavStore;
+import net.sf.webdav.StoredObject;
+import net.sf.webdav.async.IAsyncContentStore;
+import net.sf.webdav.async.IContentSink;
+import net.sf.webdav.fromcatalina.XMLWriter;
+import net.sf.webdav.upload.IStagedContentStore;
+
+/**
+ * Store wrapper writing every change of a collection member to a
+ * {@link ChangeJournal}: new and modified resources and folders as changes,
+ * removed ones as deletes of their parent collection. A MOVE is a delete in
+ * the source and a change in the destination collection, COPY and the
+ * fallback MOVE of stores without move support end up as create and delete
+ * calls anyway. Folders get a <code>DAV:sync-token</code> property.
+ * <p>
+ * PUT writes staged and non-blocking uploads directly to the content store,
+ * those stores have to be wrapped with {@link #journal(IStagedContentStore)}
+ * and {@link #journal(IAsyncContentStore)}.
+ *
+ * @author Niko Berger
+ */
+public class JournalingWebdavStore extends DelegatingWebdavStore {
+
+	public static final String SYNC_TOKEN = "DAV::sync-token";
+
+	public static final String SYNC_COLLECTION = "DAV::sync-collection";
+
+	private final ChangeJournal _journal;
+
+	/**
+	 * the config of the delegate with the sync-collection report, the
+	 * delegate's own may be shared with other stores
+	 */
+	private final DavExtensionConfig _config;
+
+	public JournalingWebdavStore(IWebdavStore delegate, ChangeJournal journal) {
+		super(delegate);
+		_journal = journal;
+		DavExtensionConfig config = delegate.getConfig();
+		_config = config == null ? new DavExtensionConfig()
+				: new DavExtensionConfig(config);
+		_config.setSupportsReport(true);
+		if (!_config.getSupportedReportSets().contains(SYNC_COLLECTION))
+			_config.addSupportedReportSet(SYNC_COLLECTION);
+	}
+
+	@Override
+	public DavExtensionConfig getConfig() {
+		return _config;
+	}
+
+	public ChangeJournal getJournal() {
+		return _journal;
+	}
+
+	@Override
+	public void createFolder(ITransaction transaction, String folderUri) {
+		_delegate.createFolder(transaction, folderUri);
+		changed(folderUri);
+	}
+
+	@Override
+	public void createResource(ITransaction transaction, String resourceUri) {
+		_delegate.createResource(transaction, resourceUri);
+		changed(resourceUri);
+	}
+
+	@Override
+	public long setResourceContent(ITransaction transaction,
+			String resourceUri, InputStream content, String contentType,
+			String characterEncoding) {
+		long length = _delegate.setResourceContent(transaction, resourceUri,
+				content, contentType, characterEncoding);
+		changed(resourceUri);
+		return length;
+	}
+
+	@Override
+	public void removeObject(ITransaction transaction, String uri) {
+		_delegate.removeObject(transaction, uri);
+		deleted(uri);
+		_journal.removeCollection(uri);
+	}
+
+	@Override
+	public void moveResource(ITransaction transaction, String sourceUri,
+			String destinationUri) {
+		_delegate.moveResource(transaction, sourceUri, destinationUri);
+		deleted(sourceUri);
+		_journal.removeCollection(sourceUri);
+		changed(destinationUri);
+	}
+
+	@Override
+	public Vector<String> handleCustomProperties(String path,
+			Vector<String> properties, StoredObject so, XMLWriter out) {
+		if (so != null && so.isFolder() && properties.contains(SYNC_TOKEN)) {
+			out.writeProperty(SYNC_TOKEN, _journal.getToken());
+			properties = new Vector<>(properties);
+			properties.remove(SYNC_TOKEN);
+		}
+		return _delegate.handleCustomProperties(path, properties, so, out);
+	}
+
+	/**
+	 * @return the store recording committed uploads in the journal
+	 */
+	public IStagedContentStore journal(final IStagedContentStore store) {
+		return new IStagedContentStore() {
+			@Override
+			public long getStagedLength(ITransaction transaction,
+					String resourceUri) {
+				return store.getStagedLength(transaction, resourceUri);
+			}
+
+			@Override
+			public long writeStagedContent(ITransaction transaction,
+					String resourceUri, long offset, InputStream content,
+					long length) {
+				return store.writeStagedContent(transaction, resourceUri,
+						offset, content, length);
+			}
+
+			@Override
+			public long commitStagedContent(ITransaction transaction,
+					String resourceUri) {
+				long length = store.commitStagedContent(transaction,
+						resourceUri);
+				changed(resourceUri);
+				return length;
+			}
+
+			@Override
+			public void discardStagedContent(ITransaction transaction,
+					String resourceUri) {
+				store.discardStagedContent(transaction, resourceUri);
+			}
+		};
+	}
+
+	/**
+	 * @return the store recording committed sinks in the journal
+	 */
+	public IAsyncContentStore journal(final IAsyncContentStore store) {
+		return new IAsyncContentStore() {
+			@Override
+			public IContentSink openResourceContent(ITransaction transaction,
+					final String resourceUri, String contentType,
+					String characterEncoding) {
+				final IContentSink sink = store.openResourceContent(
+						transaction, resourceUri, contentType,
+						characterEncoding);
+				return new IContentSink() {
+					@Override
+					public void write(ByteBuffer data,
+							CompletionHandler<Void, Void> handler) {
+						sink.write(data, handler);
+					}
+
+					@Override
+					public long commit() {
+						long length = sink.commit();
+						changed(resourceUri);
+						return length;
+					}
+
+					@Override
+					public void abort() {
+						sink.abort();
+					}
+				};
+			}
+		};
+	}
+
+	private void changed(String uri) {
+		int slash = parentEnd(uri);
+		if (slash >= 0)
+			_journal.recordChange(uri.substring(0, slash), member(uri, slash));
+	}
+
+	private void deleted(String uri) {
+		int slash = parentEnd(uri);
+		if (slash >= 0)
+			_journal.recordDelete(uri.substring(0, slash), member(uri, slash));
+	}
+
+	/**
+	 * @return index of the slash before the member name, -1 for the root
+	 */
+	private static int parentEnd(String uri) {
+		int end = uri.length();
+		if (uri.endsWith("/"))
+			end--;
+		return end <= 0 ? -1 : uri.lastIndexOf('/', end - 1);
+	}
+
+	private static String member(String uri, int slash) {
+		String member = uri.substring(slash + 1);
+		return member.endsWith("/") ? member.substring(0, member.length() - 1)
+				: member;
+	}
+}
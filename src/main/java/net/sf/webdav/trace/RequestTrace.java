@@ -0,0 +1,216 @@
+package net.sf.webdav.trace;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per request span tree bound to the request thread. Spans with the same name
+ * below the same parent are merged and only keep call count and total time,
+ * so a PROPFIND over 1000 resources produces one
+ * <code>store.getStoredObject x1000</code> node instead of 1000 nodes. This
+ * keeps the memory bounded and makes N+1 patterns obvious.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * RequestTrace.Span span = RequestTrace.start("xml.write");
+ * try {
+ *     ...
+ * } finally {
+ *     span.end();
+ * }
+ * </pre>
+ *
+ * If no trace is active for the current thread {@link #start(String)} returns
+ * a shared no-op span, so instrumented code costs a thread local lookup when
+ * tracing is disabled.
+ *
+ * @author Niko Berger
+ */
+public class RequestTrace {
+
+	private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+
+	/**
+	 * Handle of an entered span, has to be ended by the same thread.
+	 */
+	public interface Span {
+		void end();
+	}
+
+	private static final Span NOOP = new Span() {
+		@Override
+		public void end() {
+		}
+	};
+
+	/**
+	 * Aggregated node of the span tree
+	 */
+	public static class Node implements Span {
+		private final String _name;
+		private final Node _parent;
+		private final RequestTrace _trace;
+		private Map<String, Node> _children;
+		private int _count;
+		private long _totalNanos;
+		private long _startedAt;
+
+		Node(RequestTrace trace, Node parent, String name) {
+			_trace = trace;
+			_parent = parent;
+			_name = name;
+		}
+
+		public String getName() {
+			return _name;
+		}
+
+		public int getCount() {
+			return _count;
+		}
+
+		public long getTotalNanos() {
+			return _totalNanos;
+		}
+
+		public List<Node> getChildren() {
+			return _children == null ? new ArrayList<Node>()
+					: new ArrayList<Node>(_children.values());
+		}
+
+		Node child(String name) {
+			if (_children == null)
+				_children = new LinkedHashMap<>();
+			Node child = _children.get(name);
+			if (child == null) {
+				child = new Node(_trace, this, name);
+				_children.put(name, child);
+			}
+			return child;
+		}
+
+		@Override
+		public void end() {
+			_totalNanos += System.nanoTime() - _startedAt;
+			_trace._current = _parent;
+		}
+
+		void dump(StringBuilder sb, int indent) {
+			for (int i = 0; i < indent; i++)
+				sb.append("  ");
+			sb.append(_name).append(" x").append(_count).append(' ')
+					.append(formatMillis(_totalNanos)).append(" ms\n");
+			if (_children != null)
+				for (Node child : _children.values())
+					child.dump(sb, indent + 1);
+		}
+	}
+
+	private final String _method;
+	private final String _uri;
+	private final long _startedAt;
+	private final Node _root;
+	private Node _current;
+	private long _durationNanos = -1;
+
+	private RequestTrace(String method, String uri) {
+		_method = method;
+		_uri = uri;
+		_root = new Node(this, null, method + " " + uri);
+		_current = _root;
+		_startedAt = System.nanoTime();
+	}
+
+	/**
+	 * Starts a new trace for the current thread, replacing any unfinished one.
+	 *
+	 * @return the new trace
+	 */
+	public static RequestTrace begin(String method, String uri) {
+		RequestTrace trace = new RequestTrace(method, uri);
+		CURRENT.set(trace);
+		return trace;
+	}
+
+	/**
+	 * Ends the trace of the current thread.
+	 *
+	 * @return the finished trace or null if none was active
+	 */
+	public static RequestTrace finish() {
+		RequestTrace trace = CURRENT.get();
+		if (trace == null)
+			return null;
+		CURRENT.remove();
+		trace._durationNanos = System.nanoTime() - trace._startedAt;
+		trace._root._count = 1;
+		trace._root._totalNanos = trace._durationNanos;
+		return trace;
+	}
+
+	/**
+	 * @return the trace of the current thread or null
+	 */
+	public static RequestTrace current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Enters a span below the currently open span.
+	 *
+	 * @param name
+	 *            name of the span, i.e. store.getStoredObject
+	 * @return the span to end, never null
+	 */
+	public static Span start(String name) {
+		RequestTrace trace = CURRENT.get();
+		if (trace == null)
+			return NOOP;
+		Node node = trace._current.child(name);
+		node._count++;
+		node._startedAt = System.nanoTime();
+		trace._current = node;
+		return node;
+	}
+
+	public String getMethod() {
+		return _method;
+	}
+
+	public String getUri() {
+		return _uri;
+	}
+
+	public Node getRoot() {
+		return _root;
+	}
+
+	/**
+	 * @return request duration in nanoseconds, -1 while still running
+	 */
+	public long getDurationNanos() {
+		return _durationNanos;
+	}
+
+	/**
+	 * @return the span tree, one line per (merged) span
+	 */
+	public String dump() {
+		StringBuilder sb = new StringBuilder();
+		_root.dump(sb, 0);
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return dump();
+	}
+
+	private static String formatMillis(long nanos) {
+		long tenth = nanos / 100000;
+		return (tenth / 10) + "." + (tenth % 10);
+	}
+}
@@ -0,0 +1,197 @@
+package net.sf.webdav.trace;
+
+import java.io.InputStream;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import net.sf.webdav.DelegatingWebdavStore;
+import net.sf.webdav.IFolderListingStore;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.IWebdavStore;
+import net.sf.webdav.StoredObject;
+
+/**
+ * Store wrapper recording every data access of the delegate as a
+ * <code>store.&lt;method&gt;</code> span of the current {@link RequestTrace}.
+ * Cheap calls without I/O (config, namespaces, principal handling) are passed
+ * through untraced.
+ *
+ * @author Niko Berger
+ */
+public class TracingWebdavStore extends DelegatingWebdavStore {
+
+	public TracingWebdavStore(IWebdavStore delegate) {
+		super(delegate);
+	}
+
+	@Override
+	public ITransaction begin(Principal principal) {
+		RequestTrace.Span span = RequestTrace.start("store.begin");
+		try {
+			return _delegate.begin(principal);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public void commit(ITransaction transaction) {
+		RequestTrace.Span span = RequestTrace.start("store.commit");
+		try {
+			_delegate.commit(transaction);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public void rollback(ITransaction transaction) {
+		RequestTrace.Span span = RequestTrace.start("store.rollback");
+		try {
+			_delegate.rollback(transaction);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public void createFolder(ITransaction transaction, String folderUri) {
+		RequestTrace.Span span = RequestTrace.start("store.createFolder");
+		try {
+			_delegate.createFolder(transaction, folderUri);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public void createResource(ITransaction transaction, String resourceUri) {
+		RequestTrace.Span span = RequestTrace.start("store.createResource");
+		try {
+			_delegate.createResource(transaction, resourceUri);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public InputStream getResourceContent(ITransaction transaction,
+			String resourceUri) {
+		RequestTrace.Span span = RequestTrace.start("store.getResourceContent");
+		try {
+			return _delegate.getResourceContent(transaction,
+					resourceUri);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public long setResourceContent(ITransaction transaction,
+			String resourceUri, InputStream content, String contentType,
+			String characterEncoding) {
+		RequestTrace.Span span = RequestTrace.start("store.setResourceContent");
+		try {
+			return _delegate.setResourceContent(transaction,
+					resourceUri, content, contentType, characterEncoding);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public String[] getChildrenNames(ITransaction transaction, String folderUri) {
+		RequestTrace.Span span = RequestTrace.start("store.getChildrenNames");
+		try {
+			return _delegate.getChildrenNames(transaction, folderUri);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public long getResourceLength(ITransaction transaction, String path) {
+		RequestTrace.Span span = RequestTrace.start("store.getResourceLength");
+		try {
+			return _delegate.getResourceLength(transaction, path);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public void removeObject(ITransaction transaction, String uri) {
+		RequestTrace.Span span = RequestTrace.start("store.removeObject");
+		try {
+			_delegate.removeObject(transaction, uri);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public StoredObject getStoredObject(ITransaction transaction, String uri,
+			Vector<String> properties) {
+		RequestTrace.Span span = RequestTrace.start("store.getStoredObject");
+		try {
+			return _delegate.getStoredObject(transaction, uri,
+					properties);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public void moveResource(ITransaction transaction, String sourceUri,
+			String destinationUri) {
+		RequestTrace.Span span = RequestTrace.start("store.moveResource");
+		try {
+			_delegate.moveResource(transaction, sourceUri, destinationUri);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public List<String> getReportSubEntries(String reportAction, String path) {
+		RequestTrace.Span span = RequestTrace.start("store.getReportSubEntries");
+		try {
+			return _delegate.getReportSubEntries(reportAction,
+					path);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public Map<String, String> getAdditionalProperties(String path,
+			Vector<String> properties) {
+		RequestTrace.Span span = RequestTrace.start("store.getAdditionalProperties");
+		try {
+			return _delegate.getAdditionalProperties(path,
+					properties);
+		} finally {
+			span.end();
+		}
+	}
+
+	/**
+	 * @return the folder listing traced like the calls of this store
+	 */
+	public IFolderListingStore traced(final IFolderListingStore store) {
+		return new IFolderListingStore() {
+			@Override
+			public Map<String, StoredObject> listChildren(
+					ITransaction transaction, String folderUri) {
+				RequestTrace.Span span = RequestTrace.start("store.listChildren");
+				try {
+					return store.listChildren(transaction, folderUri);
+				} finally {
+					span.end();
+				}
+			}
+		};
+	}
+}
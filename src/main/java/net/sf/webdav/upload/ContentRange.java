@@ -0,0 +1,87 @@
+package net.sf.webdav.upload;
+
+/**
+ * Parsed <code>Content-Range</code> request header of a resumable PUT:
+ * <ul>
+ * <li><code>bytes 0-1048575/21474836480</code> a part of a 20 GB upload</li>
+ * <li><code>bytes 0-1048575/*</code> a part, total length not known yet</li>
+ * <li><code>bytes *&#47;21474836480</code> no content, asks how many bytes
+ * have been received</li>
+ * </ul>
+ *
+ * @author Niko Berger
+ */
+public class ContentRange {
+
+	private static final String UNIT = "bytes ";
+
+	private final long _first;
+	private final long _last;
+	private final long _total;
+
+	ContentRange(long first, long last, long total) {
+		_first = first;
+		_last = last;
+		_total = total;
+	}
+
+	/**
+	 * @return the range or null if the header is not a valid byte range
+	 */
+	public static ContentRange parse(String header) {
+		if (header == null || !header.regionMatches(true, 0, UNIT, 0, UNIT.length()))
+			return null;
+		String value = header.substring(UNIT.length()).trim();
+		int slash = value.indexOf('/');
+		if (slash < 0)
+			return null;
+		try {
+			String range = value.substring(0, slash).trim();
+			String length = value.substring(slash + 1).trim();
+			long total = "*".equals(length) ? -1 : Long.parseLong(length);
+			if ("*".equals(range))
+				return total < 0 ? null : new ContentRange(-1, -1, total);
+
+			int dash = range.indexOf('-');
+			if (dash < 0)
+				return null;
+			long first = Long.parseLong(range.substring(0, dash));
+			long last = Long.parseLong(range.substring(dash + 1));
+			if (first < 0 || last < first || (total >= 0 && last >= total))
+				return null;
+			return new ContentRange(first, last, total);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true for <code>bytes *&#47;total</code>: the client only wants to
+	 *         know where to resume
+	 */
+	public boolean isQuery() {
+		return _first < 0;
+	}
+
+	public long getFirst() {
+		return _first;
+	}
+
+	public long getLast() {
+		return _last;
+	}
+
+	/**
+	 * @return number of bytes in the part
+	 */
+	public long getLength() {
+		return isQuery() ? 0 : _last - _first + 1;
+	}
+
+	/**
+	 * @return total length of the resource, -1 if unknown
+	 */
+	public long getTotal() {
+		return _total;
+	}
+}
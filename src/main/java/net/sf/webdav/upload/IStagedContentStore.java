@@ -0,0 +1,60 @@
+package net.sf.webdav.upload;
+
+import java.io.InputStream;
+
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * Optional extension of {@link net.sf.webdav.IWebdavStore} for resumable
+ * uploads. Parts sent with <code>Content-Range</code> are staged outside of
+ * the resource until the last byte arrived, then the staged content replaces
+ * the resource in one atomic step.
+ * <p>
+ * Parts have to be contiguous: a part may overlap the staged bytes (a client
+ * resending what it was not sure about) but must not leave a gap, so the
+ * staged length is also the offset to resume from.
+ *
+ * @author Niko Berger
+ */
+public interface IStagedContentStore {
+
+	/**
+	 * @param resourceUri
+	 *            URI of the resource
+	 * @return number of bytes staged for the resource, -1 if no upload is in
+	 *         progress
+	 */
+	long getStagedLength(ITransaction transaction, String resourceUri)
+			throws WebdavException;
+
+	/**
+	 * Writes a part of the content at the given offset.
+	 *
+	 * @param offset
+	 *            position of the first byte, not larger than the staged length
+	 * @param content
+	 *            the part
+	 * @param length
+	 *            maximum number of bytes to take from the stream
+	 * @return the staged length after the write
+	 */
+	long writeStagedContent(ITransaction transaction, String resourceUri,
+			long offset, InputStream content, long length)
+			throws WebdavException;
+
+	/**
+	 * Replaces the content of the resource with the staged content and ends
+	 * the upload.
+	 *
+	 * @return the length of the resource
+	 */
+	long commitStagedContent(ITransaction transaction, String resourceUri)
+			throws WebdavException;
+
+	/**
+	 * Drops the staged content of an upload that will not be finished.
+	 */
+	void discardStagedContent(ITransaction transaction, String resourceUri)
+			throws WebdavException;
+}
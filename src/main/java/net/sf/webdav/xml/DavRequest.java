@@ -0,0 +1,122 @@
+package net.sf.webdav.xml;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.webdav.carddav.AddressbookFilter;
+
+/**
+ * The parts of a PROPFIND, REPORT, PROPPATCH or LOCK request body the method
+ * executors work with. Property names are "namespace:localname", the same
+ * form the DOM based code produced.
+ *
+ * @author Niko Berger
+ */
+public class DavRequest {
+
+	String _rootName;
+	List<String> _properties;
+	boolean _propname;
+	boolean _allprop;
+	final List<String> _hrefs = new ArrayList<>();
+	final Map<String, String> _toset = new LinkedHashMap<>();
+	final List<String> _toremove = new ArrayList<>();
+	String _lockScope;
+	String _lockType;
+	String _lockOwner;
+	AddressbookFilter _filter;
+	String _syncToken;
+	String _syncLevel;
+
+	/**
+	 * @return local name of the root element, i.e. "propfind" or
+	 *         "addressbook-multiget"
+	 */
+	public String getRootName() {
+		return _rootName;
+	}
+
+	/**
+	 * @return names of the properties in the <code>prop</code> element below
+	 *         the root, null if there is none
+	 */
+	public List<String> getProperties() {
+		return _properties;
+	}
+
+	public boolean isPropname() {
+		return _propname;
+	}
+
+	public boolean isAllprop() {
+		return _allprop;
+	}
+
+	/**
+	 * @return text of the <code>href</code> elements directly below the root
+	 */
+	public List<String> getHrefs() {
+		return _hrefs;
+	}
+
+	/**
+	 * @return PROPPATCH properties to set with their (unescaped) text value
+	 */
+	public Map<String, String> getPropertiesToSet() {
+		return _toset;
+	}
+
+	/**
+	 * @return PROPPATCH properties to remove
+	 */
+	public List<String> getPropertiesToRemove() {
+		return _toremove;
+	}
+
+	/**
+	 * @return local name of the LOCK scope: "exclusive" or "shared"
+	 */
+	public String getLockScope() {
+		return _lockScope;
+	}
+
+	/**
+	 * @return local name of the LOCK type, usually "write"
+	 */
+	public String getLockType() {
+		return _lockType;
+	}
+
+	/**
+	 * @return text content of the LOCK owner, null if empty
+	 */
+	public String getLockOwner() {
+		return _lockOwner;
+	}
+
+	/**
+	 * @return the filter of an addressbook-query REPORT, null if there is
+	 *         none
+	 */
+	public AddressbookFilter getAddressbookFilter() {
+		return _filter;
+	}
+
+	/**
+	 * @return text of the sync-token of a sync-collection REPORT, empty for
+	 *         the initial sync and null if there is no such element
+	 */
+	public String getSyncToken() {
+		return _syncToken;
+	}
+
+	/**
+	 * @return text of the sync-level of a sync-collection REPORT, i.e. "1"
+	 *         or "infinite"
+	 */
+	public String getSyncLevel() {
+		return _syncLevel;
+	}
+}
@@ -0,0 +1,263 @@
+package net.sf.webdav.xml;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.sf.webdav.carddav.AddressbookFilter;
+
+/**
+ * Streaming parser for WebDAV request bodies. Unlike building a DOM it only
+ * keeps what the method executors use (see {@link DavRequest}) and shares
+ * one {@link XMLInputFactory}, so there is no factory lookup per request.
+ * <p>
+ * Documents with a DOCTYPE are rejected, which rules out entity expansion
+ * and external entities, and bodies larger than the configured maximum fail
+ * with a {@link RequestTooLargeException}. Instances are immutable and can
+ * be shared between threads.
+ *
+ * @author Niko Berger
+ */
+public class DavRequestParser {
+
+	private static final XMLInputFactory FACTORY = createFactory();
+
+	private final long _maxBodySize;
+
+	/**
+	 * @param maxBodySize
+	 *            maximum size of a request body in bytes, 0 for no limit
+	 */
+	public DavRequestParser(long maxBodySize) {
+		_maxBodySize = maxBodySize;
+	}
+
+	public long getMaxBodySize() {
+		return _maxBodySize;
+	}
+
+	private static XMLInputFactory createFactory() {
+		XMLInputFactory factory = XMLInputFactory.newFactory();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(
+				XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES,
+				Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * Reads the request body. The stream is read up to the end of the root
+	 * element but not closed.
+	 *
+	 * @throws RequestTooLargeException
+	 *             if the body exceeds the maximum size
+	 * @throws XMLStreamException
+	 *             if the body is not well-formed or contains a DOCTYPE
+	 */
+	public DavRequest parse(InputStream in) throws IOException,
+			XMLStreamException {
+		LimitedInputStream limited = new LimitedInputStream(in, _maxBodySize);
+		try {
+			XMLStreamReader reader = FACTORY.createXMLStreamReader(limited);
+			try {
+				return read(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			if (limited._exceeded)
+				throw new RequestTooLargeException(_maxBodySize);
+			throw e;
+		}
+	}
+
+	/**
+	 * Walks the document keeping the local names of the first three levels
+	 * of open elements. Text is collected for hrefs, the lock owner, sync
+	 * token and level, filter text matches and PROPPATCH values, including
+	 * that of nested elements like
+	 * <code>getTextContent()</code> would.
+	 */
+	private static DavRequest read(XMLStreamReader reader)
+			throws XMLStreamException {
+		DavRequest request = new DavRequest();
+		String[] open = new String[3];
+		int depth = 0;
+		int captureDepth = 0;
+		String captureKey = null;
+		StringBuilder text = new StringBuilder();
+		AddressbookFilter.PropFilter propFilter = null;
+		String[] textMatch = null;
+
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.DTD:
+				throw new XMLStreamException("DOCTYPE is not allowed",
+						reader.getLocation());
+			case XMLStreamConstants.ENTITY_REFERENCE:
+				throw new XMLStreamException("undeclared entity "
+						+ reader.getLocalName(), reader.getLocation());
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				String name = reader.getLocalName();
+				if (depth <= open.length)
+					open[depth - 1] = name;
+				if (captureDepth != 0)
+					break;
+				if (depth == 1) {
+					request._rootName = name;
+				} else if (depth == 2) {
+					if (name.equals("prop")) {
+						if (request._properties == null)
+							request._properties = new ArrayList<>();
+					} else if (name.equals("propname")) {
+						request._propname = true;
+					} else if (name.equals("allprop")) {
+						request._allprop = true;
+					} else if (name.equals("href") || name.equals("owner")
+							|| name.equals("sync-token")
+							|| name.equals("sync-level")) {
+						captureDepth = depth;
+					} else if (name.equals("filter")) {
+						request._filter = new AddressbookFilter(reader
+								.getAttributeValue(null, "test"));
+					}
+				} else if (depth == 3) {
+					String parent = open[1];
+					if (parent.equals("prop")) {
+						if (request._properties != null)
+							request._properties.add(propertyName(reader));
+					} else if (parent.equals("lockscope")) {
+						request._lockScope = name;
+					} else if (parent.equals("locktype")) {
+						request._lockType = name;
+					} else if (parent.equals("filter")
+							&& name.equals("prop-filter")) {
+						propFilter = request._filter.addPropFilter(reader
+								.getAttributeValue(null, "name"), reader
+								.getAttributeValue(null, "test"));
+					}
+				} else if (depth == 4 && propFilter != null
+						&& open[2].equals("prop-filter")) {
+					if (name.equals("is-not-defined")) {
+						propFilter.setNotDefined();
+					} else if (name.equals("text-match")) {
+						textMatch = new String[] {
+								reader.getAttributeValue(null, "match-type"),
+								reader.getAttributeValue(null, "collation"),
+								reader.getAttributeValue(null,
+										"negate-condition") };
+						captureDepth = depth;
+					}
+				} else if (depth == 4 && open[2].equals("prop")) {
+					if (open[1].equals("set")) {
+						captureKey = propertyName(reader);
+						captureDepth = depth;
+					} else if (open[1].equals("remove")) {
+						request._toremove.add(propertyName(reader));
+					}
+				}
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				if (captureDepth != 0)
+					text.append(reader.getTextCharacters(),
+							reader.getTextStart(), reader.getTextLength());
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				if (depth == captureDepth) {
+					if (captureKey != null) {
+						request._toset.put(captureKey, text.toString());
+					} else if (textMatch != null) {
+						propFilter.addTextMatch(text.toString(), textMatch[0],
+								textMatch[1], textMatch[2]);
+					} else if (open[1].equals("href")) {
+						request._hrefs.add(text.toString().trim());
+					} else if (open[1].equals("sync-token")) {
+						request._syncToken = text.toString().trim();
+					} else if (open[1].equals("sync-level")) {
+						request._syncLevel = text.toString().trim();
+					} else {
+						String owner = text.toString().trim();
+						request._lockOwner = owner.isEmpty() ? null : owner;
+					}
+					captureDepth = 0;
+					captureKey = null;
+					textMatch = null;
+					text.setLength(0);
+				}
+				depth--;
+				if (depth == 0)
+					return request;
+				break;
+			default:
+				break;
+			}
+		}
+		throw new XMLStreamException("unexpected end of document");
+	}
+
+	/**
+	 * @return "namespace:localname" of the current element, elements without
+	 *         namespace get "null" as the DOM based code did
+	 */
+	private static String propertyName(XMLStreamReader reader) {
+		String namespace = reader.getNamespaceURI();
+		if (namespace != null && namespace.isEmpty())
+			namespace = null;
+		return namespace + ":" + reader.getLocalName();
+	}
+
+	/**
+	 * Fails the read once more than <code>maxSize</code> bytes came through.
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+
+		private final long _maxSize;
+		private long _count;
+		boolean _exceeded;
+
+		LimitedInputStream(InputStream in, long maxSize) {
+			super(in);
+			_maxSize = maxSize;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				count(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0)
+				count(read);
+			return read;
+		}
+
+		private void count(int read) throws IOException {
+			_count += read;
+			if (_maxSize > 0 && _count > _maxSize) {
+				_exceeded = true;
+				throw new RequestTooLargeException(_maxSize);
+			}
+		}
+
+		@Override
+		public void close() {
+			// the request stream belongs to the container
+		}
+	}
+}
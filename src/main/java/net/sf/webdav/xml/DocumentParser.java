@@ -0,0 +1,141 @@
+package net.sf.webdav.xml;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Parses request bodies into a DOM with pooled {@link DocumentBuilder}s.
+ * The factory is looked up once and builders are reused instead of being
+ * created for every request; each one is reset when it goes back to the
+ * pool, so nothing set while parsing one document carries over to the next.
+ * At most <code>maxIdle</code> builders are kept, more are created when
+ * needed and dropped afterwards.
+ *
+ * @author Niko Berger
+ */
+public class DocumentParser {
+
+	/**
+	 * swallows the messages the default handler prints to stderr, the
+	 * SAXException is thrown either way
+	 */
+	private static final ErrorHandler QUIET = new ErrorHandler() {
+		@Override
+		public void warning(SAXParseException e) {
+		}
+
+		@Override
+		public void error(SAXParseException e) {
+		}
+
+		@Override
+		public void fatalError(SAXParseException e) throws SAXException {
+			throw e;
+		}
+	};
+
+	private static final String DISALLOW_DOCTYPE = "http://apache.org/xml/features/disallow-doctype-decl";
+
+	private static final String EXTERNAL_GENERAL_ENTITIES = "http://xml.org/sax/features/external-general-entities";
+
+	private static final String EXTERNAL_PARAMETER_ENTITIES = "http://xml.org/sax/features/external-parameter-entities";
+
+	private final DocumentBuilderFactory _factory;
+	private final Queue<DocumentBuilder> _idle = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger _idleCount = new AtomicInteger();
+	private final int _maxIdle;
+
+	/**
+	 * @param maxIdle
+	 *            number of builders kept for reuse
+	 */
+	public DocumentParser(int maxIdle) {
+		_maxIdle = maxIdle;
+		_factory = DocumentBuilderFactory.newInstance();
+		_factory.setNamespaceAware(true);
+		try {
+			_factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		} catch (ParserConfigurationException e) {
+			// not supported by this implementation, its defaults apply
+		}
+		try {
+			_factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+			_factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+		} catch (IllegalArgumentException e) {
+			// a parser older than JAXP 1.5, refuse DTDs and external entities
+			// with its own features instead
+			setFeature(DISALLOW_DOCTYPE, true);
+			setFeature(EXTERNAL_GENERAL_ENTITIES, false);
+			setFeature(EXTERNAL_PARAMETER_ENTITIES, false);
+			_factory.setExpandEntityReferences(false);
+		}
+	}
+
+	private void setFeature(String feature, boolean value) {
+		try {
+			_factory.setFeature(feature, value);
+		} catch (ParserConfigurationException e) {
+			// not supported by this implementation
+		}
+	}
+
+	/**
+	 * @return a new builder from the cached factory, not taken from the pool
+	 */
+	public DocumentBuilder newDocumentBuilder()
+			throws ParserConfigurationException {
+		synchronized (_factory) {
+			return _factory.newDocumentBuilder();
+		}
+	}
+
+	public Document parse(InputSource source) throws IOException,
+			SAXException {
+		DocumentBuilder builder = borrow();
+		try {
+			return builder.parse(source);
+		} finally {
+			release(builder);
+		}
+	}
+
+	DocumentBuilder borrow() throws IOException {
+		DocumentBuilder builder = _idle.poll();
+		if (builder != null) {
+			_idleCount.decrementAndGet();
+		} else {
+			try {
+				builder = newDocumentBuilder();
+			} catch (ParserConfigurationException e) {
+				throw new IOException("jaxp failed", e);
+			}
+		}
+		builder.setErrorHandler(QUIET);
+		return builder;
+	}
+
+	void release(DocumentBuilder builder) {
+		builder.reset();
+		if (_idleCount.incrementAndGet() <= _maxIdle)
+			_idle.add(builder);
+		else
+			_idleCount.decrementAndGet();
+	}
+
+	int getIdleCount() {
+		return _idleCount.get();
+	}
+}
@@ -0,0 +1,17 @@
+package net.sf.webdav.xml;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request body is larger than the configured maximum.
+ *
+ * @author Niko Berger
+ */
+public class RequestTooLargeException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public RequestTooLargeException(long maxSize) {
+		super("request body exceeds " + maxSize + " bytes");
+	}
+}
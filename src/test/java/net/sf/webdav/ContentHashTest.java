@@ -0,0 +1,80 @@
+package net.sf.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ContentHashTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+
+	@Before
+	public void setup() throws Exception {
+		root = tmp.getRoot();
+	}
+
+	@Test
+	public void testToEtag() {
+		Assert.assertEquals("\"0-0\"", ContentHash.toEtag(0, 0));
+		Assert.assertEquals("\"ff-10\"", ContentHash.toEtag(255, 16));
+		Assert.assertEquals("\"ffffffffffffffff-1\"", ContentHash.toEtag(-1, 1));
+	}
+
+	@Test
+	public void testXxHash64() {
+		String[][] vectors = { { "", "ef46db3751d8e999" },
+				{ "abc", "44bc2cf5ad770999" },
+				{ "Nobody inspects the spammish repetition", "fbcea83c8a378bf1" } };
+		for (String[] vector : vectors) {
+			byte[] data = vector[0].getBytes(StandardCharsets.UTF_8);
+			XxHash64 hash = new XxHash64();
+			hash.update(data, 0, data.length);
+			Assert.assertEquals(vector[1], Long.toHexString(hash.getValue()));
+
+			// byte by byte gives the same
+			hash.reset();
+			for (byte b : data)
+				hash.update(b);
+			Assert.assertEquals(vector[1], Long.toHexString(hash.getValue()));
+		}
+	}
+
+	@Test
+	public void testEtagSurvivesTouch() throws Exception {
+		LocalFileSystemStore store = new LocalFileSystemStore(root);
+		store.setContentEtags(true);
+		store.createResource(null, "/file.txt");
+		store.setResourceContent(null, "/file.txt", new ByteArrayInputStream(
+				"hello".getBytes(StandardCharsets.UTF_8)), null, null);
+
+		String etag = store.getStoredObject(null, "/file.txt", null).getEtag();
+		Assert.assertNotNull(etag);
+
+		// touched: the default ETag until the file was hashed again
+		File file = new File(root, "file.txt");
+		file.setLastModified(file.lastModified() - 60000);
+		Assert.assertNull(store.getStoredObject(null, "/file.txt", null).getEtag());
+		Assert.assertTrue(store.getContentHash().awaitHashing(10000));
+		Assert.assertEquals(etag, store.getStoredObject(null, "/file.txt", null).getEtag());
+
+		store.setResourceContent(null, "/file.txt", new ByteArrayInputStream(
+				"world".getBytes(StandardCharsets.UTF_8)), null, null);
+		Assert.assertFalse(etag.equals(store.getStoredObject(null, "/file.txt", null).getEtag()));
+	}
+
+	@Test
+	public void testDisabledByDefault() throws Exception {
+		LocalFileSystemStore store = new LocalFileSystemStore(root);
+		store.createResource(null, "/file.txt");
+		Assert.assertNull(store.getStoredObject(null, "/file.txt", null).getEtag());
+	}
+}
@@ -0,0 +1,61 @@
+package net.sf.webdav;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DavPathTest {
+
+	@Test
+	public void testNormalize() {
+		Assert.assertNull(DavPath.normalize(null));
+		Assert.assertEquals("/", DavPath.normalize(""));
+		Assert.assertEquals("/", DavPath.normalize("/."));
+		Assert.assertEquals("/a", DavPath.normalize("a"));
+		Assert.assertEquals("/a/b/", DavPath.normalize("/a//b/"));
+		Assert.assertEquals("/a/c", DavPath.normalize("/a/./b/../c"));
+		Assert.assertEquals("/a/", DavPath.normalize("/a/b/.."));
+		Assert.assertEquals("/c", DavPath.normalize("/a/b/../../c"));
+		Assert.assertNull(DavPath.normalize("/a/../../c"));
+	}
+
+	@Test
+	public void testSplitPath() {
+		Assert.assertArrayEquals(new String[0], DavPath.splitPath("/"));
+		Assert.assertArrayEquals(new String[] { "a", "b", "c" },
+				DavPath.splitPath("/a//b/c/"));
+		Assert.assertArrayEquals(new String[] { "a" }, DavPath.splitPath("a"));
+		Assert.assertArrayEquals(new String[] { "a", "..", "." },
+				DavPath.splitPath("a/../."));
+	}
+
+	@Test
+	public void testParentAndChild() {
+		DavPath path = DavPath.valueOf("/a//b/c/");
+		Assert.assertEquals("/a/b/c", path.toString());
+		Assert.assertEquals(3, path.getDepth());
+		Assert.assertEquals("c", path.getName());
+		Assert.assertEquals("/a/b", path.parent().toString());
+		Assert.assertSame(DavPath.ROOT, path.parent().parent().parent());
+		Assert.assertNull(DavPath.ROOT.parent());
+		Assert.assertEquals("/", DavPath.valueOf("").toString());
+
+		DavPath child = path.parent().child("d");
+		Assert.assertEquals("/a/b/d", child.toString());
+		Assert.assertEquals("/x", DavPath.ROOT.child("x").toString());
+		Assert.assertTrue(child.startsWith(path.parent()));
+		Assert.assertFalse(child.startsWith(path));
+
+		Assert.assertEquals(DavPath.valueOf("/a/b/c"), path);
+		Assert.assertEquals(DavPath.valueOf("/a/b/c").hashCode(), path.hashCode());
+		Assert.assertEquals(path, child.parent().child("c"));
+		Assert.assertFalse(path.equals(child));
+	}
+
+	@Test
+	public void testParse() {
+		Assert.assertEquals("/a/c", DavPath.parse("/a/./b/../c").toString());
+		Assert.assertSame(DavPath.ROOT, DavPath.parse("/a/.."));
+		Assert.assertNull(DavPath.parse("/.."));
+		Assert.assertEquals("..", DavPath.valueOf("/a/..").getName());
+	}
+}
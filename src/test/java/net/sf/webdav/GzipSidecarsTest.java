@@ -0,0 +1,189 @@
+package net.sf.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import net.sf.webdav.exceptions.AccessDeniedException;
+import net.sf.webdav.exceptions.WebdavException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GzipSidecarsTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+	private LocalFileSystemStore store;
+
+	@Before
+	public void setup() throws Exception {
+		root = tmp.getRoot();
+		store = new LocalFileSystemStore(root);
+	}
+
+	@After
+	public void cleanup() {
+		store.destroy();
+	}
+
+	private static String vcard(int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			sb.append("BEGIN:VCARD\r\nVERSION:3.0\r\nFN:Contact ").append(i)
+					.append("\r\nEND:VCARD\r\n");
+		return sb.toString();
+	}
+
+	@Test
+	public void testDisabled() {
+		Assert.assertEquals(-1, store.getEncodedLength(null, "/a.vcf", "gzip"));
+	}
+
+	@Test
+	public void testInternalFolders() {
+		Assert.assertFalse(LocalFileSystemStore.isInternal("/"));
+		Assert.assertFalse(LocalFileSystemStore.isInternal("/contacts/all.vcf"));
+		Assert.assertFalse(LocalFileSystemStore.isInternal("/a/.gzip-cache"));
+		Assert.assertFalse(LocalFileSystemStore.isInternal("/.gzip-cache2"));
+		Assert.assertTrue(LocalFileSystemStore.isInternal("/.gzip-cache"));
+		Assert.assertTrue(LocalFileSystemStore.isInternal(".upload-staging/x"));
+		Assert.assertTrue(LocalFileSystemStore.isInternal("//./.gzip-cache/"));
+		Assert.assertTrue(LocalFileSystemStore.isInternal("/a/../.gzip-cache/x"));
+		Assert.assertTrue(LocalFileSystemStore.isInternal("/../.gzip-cache/x"));
+	}
+
+	@Test(expected = WebdavException.class)
+	public void testNoContentWhenDisabled() {
+		store.getEncodedContent(null, "/a.vcf", "gzip");
+	}
+
+	@Test
+	public void testRemovesCopiesOfFolder() throws Exception {
+		store.setGzipSidecars(true, false);
+		store.createFolder(null, "/contacts");
+		File file = new File(root, "contacts/all.vcf");
+		Files.write(file.toPath(), vcard(50).getBytes(StandardCharsets.UTF_8));
+		File copies = new File(root, LocalFileSystemStore.GZIP_FOLDER
+				+ "/contacts");
+		new GzipSidecars(new File(root, LocalFileSystemStore.GZIP_FOLDER),
+				false).build(file, "/contacts/all.vcf");
+		Assert.assertTrue(new File(copies, "all.vcf.gz").isFile());
+
+		// the copy of the file is gone with the folder, even if the file
+		// itself was removed behind the store's back
+		Assert.assertTrue(file.delete());
+		store.removeObject(null, "/contacts");
+		Assert.assertFalse(copies.exists());
+		Assert.assertTrue(new File(root, LocalFileSystemStore.GZIP_FOLDER)
+				.isDirectory());
+	}
+
+	@Test
+	public void testServesFreshCopyOnly() throws Exception {
+		File file = new File(root, "contacts.vcf");
+		Files.write(file.toPath(), vcard(100).getBytes(StandardCharsets.UTF_8));
+		File jpg = new File(root, "photo.jpg");
+		Files.write(jpg.toPath(), new byte[4096]);
+
+		GzipSidecars sidecars = new GzipSidecars(new File(root,
+				LocalFileSystemStore.GZIP_FOLDER), false);
+		Assert.assertEquals(-1, sidecars.getLength(file, "/contacts.vcf"));
+		sidecars.build(file, "/contacts.vcf");
+		long length = sidecars.getLength(file, "/contacts.vcf");
+		Assert.assertTrue(length > 0 && length < file.length() / 5);
+		Assert.assertEquals(-1, sidecars.getLength(jpg, "/photo.jpg"));
+
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		try (InputStream in = new GZIPInputStream(sidecars.open("/contacts.vcf"))) {
+			byte[] buf = new byte[4096];
+			int read;
+			while ((read = in.read(buf)) != -1)
+				plain.write(buf, 0, read);
+		}
+		Assert.assertEquals(vcard(100), plain.toString("UTF-8"));
+
+		// changed behind the store's back: the copy is stale
+		file.setLastModified(file.lastModified() - 10000);
+		Assert.assertEquals(-1, sidecars.getLength(file, "/contacts.vcf"));
+	}
+
+	@Test
+	public void testBuildsInBackground() throws Exception {
+		store.setGzipSidecars(true, true);
+		store.createResource(null, "/contacts.vcf");
+		store.setResourceContent(null, "/contacts.vcf", new ByteArrayInputStream(
+				vcard(50).getBytes(StandardCharsets.UTF_8)), null, null);
+
+		Assert.assertEquals(-1, store.getEncodedLength(null, "/contacts.vcf", "gzip"));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (store.getEncodedLength(null, "/contacts.vcf", "gzip") < 0) {
+			Assert.assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(-1, store.getEncodedLength(null, "/contacts.vcf", "br"));
+		Assert.assertEquals(Arrays.asList("contacts.vcf"),
+				Arrays.asList(store.getChildrenNames(null, "/")));
+
+		store.removeObject(null, "/contacts.vcf");
+		Assert.assertFalse(new File(root, LocalFileSystemStore.GZIP_FOLDER
+				+ "/contacts.vcf.gz").exists());
+	}
+
+	@Test
+	public void testCacheFolderNotAccessible() throws Exception {
+		store.setGzipSidecars(true, true);
+		store.createResource(null, "/contacts.vcf");
+		store.setResourceContent(null, "/contacts.vcf", new ByteArrayInputStream(
+				vcard(50).getBytes(StandardCharsets.UTF_8)), null, null);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (store.getEncodedLength(null, "/contacts.vcf", "gzip") < 0) {
+			Assert.assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		String sidecar = "/" + LocalFileSystemStore.GZIP_FOLDER + "/contacts.vcf.gz";
+		Assert.assertTrue(new File(root, sidecar).isFile());
+
+		Assert.assertNull(store.getStoredObject(null, sidecar, null));
+		Assert.assertNull(store.getStoredObject(null, "/x/.." + sidecar, null));
+		Assert.assertNull(store.getChildrenNames(null, "/"
+				+ LocalFileSystemStore.GZIP_FOLDER));
+		Assert.assertEquals(-1, store.getEncodedLength(null, sidecar, "gzip"));
+		try {
+			store.setResourceContent(null, sidecar, new ByteArrayInputStream(
+					new byte[10]), null, null);
+			Assert.fail("planted a sidecar");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+		try {
+			store.removeObject(null, sidecar);
+			Assert.fail("removed a sidecar");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+		try {
+			store.getResourceContent(null, "//" + sidecar);
+			Assert.fail("read a sidecar");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+		try {
+			store.getEncodedContent(null, sidecar, "gzip");
+			Assert.fail("read a copy of a sidecar");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package net.sf.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import net.sf.webdav.testutil.Streams;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedFileCacheTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+	private LocalFileSystemStore store;
+
+	@Before
+	public void setup() throws Exception {
+		root = tmp.getRoot();
+		store = new LocalFileSystemStore(root);
+	}
+
+	@After
+	public void cleanup() {
+		store.destroy();
+	}
+
+	private static byte[] content(int length, int seed) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) (i * seed);
+		return data;
+	}
+
+	@Test
+	public void testSharedMappings() throws Exception {
+		MappedFileCache cache = new MappedFileCache(1024, 100000, 150000);
+		File small = new File(root, "small");
+		Files.write(small.toPath(), content(100, 1));
+		Assert.assertNull(cache.open(small));
+
+		File a = new File(root, "a");
+		Files.write(a.toPath(), content(60000, 3));
+		MappedFileCache.MappedContentStream first = cache.open(a);
+		MappedFileCache.MappedContentStream second = cache.open(a);
+		Assert.assertEquals(1, cache.size());
+		Assert.assertEquals(60000, first.getBuffer().remaining());
+		Assert.assertArrayEquals(content(60000, 3), Streams.readBytes(first));
+		Assert.assertArrayEquals(content(60000, 3), Streams.readBytes(second));
+
+		// the least recently used mapping goes, even while it is read
+		File b = new File(root, "b");
+		Files.write(b.toPath(), content(60000, 5));
+		File c = new File(root, "c");
+		Files.write(c.toPath(), content(60000, 7));
+		MappedFileCache.MappedContentStream reading = cache.open(a);
+		Streams.readBytes(cache.open(b));
+		Streams.readBytes(cache.open(c));
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(120000, cache.getMappedBytes());
+		Assert.assertArrayEquals(content(60000, 3), Streams.readBytes(reading));
+
+		cache.clear();
+		Assert.assertEquals(0, cache.getMappedBytes());
+	}
+
+	@Test
+	public void testStoreReplacesMappedFiles() throws Exception {
+		store.setMappedReads(1024, 1024 * 1024, 1024 * 1024);
+		store.createResource(null, "/file.bin");
+		store.setResourceContent(null, "/file.bin", new ByteArrayInputStream(
+				content(50000, 3)), null, null);
+
+		InputStream in = store.getResourceContent(null, "/file.bin");
+		Assert.assertTrue(in instanceof MappedFileCache.MappedContentStream);
+
+		// overwriting while the old content is read
+		store.setResourceContent(null, "/file.bin", new ByteArrayInputStream(
+				content(2000, 5)), null, null);
+		Assert.assertArrayEquals(content(50000, 3), Streams.readBytes(in));
+		Assert.assertArrayEquals(content(2000, 5), Streams.readBytes(store
+				.getResourceContent(null, "/file.bin")));
+		Assert.assertArrayEquals(new String[] { "file.bin" },
+				store.getChildrenNames(null, "/"));
+	}
+}
@@ -0,0 +1,45 @@
+package net.sf.webdav;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ObjectTreeTest {
+
+	@Test
+	public void testFindByPath() {
+		ObjectTree root = new ObjectTree("addressbooks", "");
+		ObjectTree user = new ObjectTree("GUEST", root);
+		ObjectTree book = new ObjectTree("default", user);
+
+		Assert.assertSame(root, root.findByPath(null));
+		Assert.assertSame(root, root.findByPath(new String[0]));
+		Assert.assertSame(root, root.findByPath(new String[] { "" }));
+		Assert.assertSame(root, root.findByPath(new String[] { "", "addressbooks" }));
+		Assert.assertSame(book, root.findByPath("/addressbooks/GUEST/default".split("/")));
+		// the root name is optional and names are matched ignoring case
+		Assert.assertSame(book, root.findByPath(new String[] { "guest", "DEFAULT" }));
+		Assert.assertNull(root.findByPath("/addressbooks/GUEST/other".split("/")));
+		Assert.assertSame(user, root.findByPath(new String[] { "GUEST" }));
+	}
+
+	@Test
+	public void testChildIndex() {
+		ObjectTree root = new ObjectTree("root", "/");
+		for (int i = 0; i < 10000; i++)
+			new ObjectTree("user" + i, root);
+		ObjectTree user = root.getChild("USER4711");
+		Assert.assertEquals("user4711", user.getName());
+		Assert.assertEquals(10000, root.getChildren().size());
+
+		root.removeChild(user);
+		Assert.assertNull(root.getChild("user4711"));
+		Assert.assertEquals(9999, root.getChildren().size());
+
+		// a child without name matches everything
+		ObjectTree any = new ObjectTree(null, root);
+		Assert.assertSame(any, root.getChild("user4711"));
+		Assert.assertEquals("user1", root.getChild("user1").getName());
+		root.removeChild(any);
+		Assert.assertNull(root.getChild("user4711"));
+	}
+}
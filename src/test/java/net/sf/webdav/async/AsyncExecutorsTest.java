@@ -0,0 +1,79 @@
+package net.sf.webdav.async;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncExecutorsTest {
+
+	private static Runnable blocking(final CountDownLatch release) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+
+	@Test
+	public void testBoundedRejectsWhenFull() throws Exception {
+		ExecutorService executor = AsyncExecutors.bounded("test", 1, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			executor.execute(blocking(release));
+			executor.execute(blocking(release));
+			try {
+				executor.execute(blocking(release));
+				Assert.fail("third task should be rejected");
+			} catch (RejectedExecutionException e) {
+				// expected
+			}
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+		Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testConcurrencyLimitReleasesPermits() throws Exception {
+		ExecutorService executor = new AsyncExecutors.ConcurrencyLimitedExecutor(
+				AsyncExecutors.bounded("limited", 4, 4), 1);
+		CountDownLatch release = new CountDownLatch(1);
+		executor.execute(blocking(release));
+		try {
+			executor.execute(blocking(release));
+			Assert.fail("second task should be rejected");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+		release.countDown();
+
+		final CountDownLatch done = new CountDownLatch(1);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						done.countDown();
+					}
+				});
+				break;
+			} catch (RejectedExecutionException e) {
+				Assert.assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		}
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		executor.shutdown();
+	}
+}
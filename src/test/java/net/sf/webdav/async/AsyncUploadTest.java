@@ -0,0 +1,153 @@
+package net.sf.webdav.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncUploadTest {
+
+	private File file;
+
+	@Before
+	public void setup() throws Exception {
+		file = File.createTempFile("webdav-upload", ".bin");
+	}
+
+	@After
+	public void cleanup() {
+		file.delete();
+	}
+
+	/**
+	 * Hands out only the bytes released by the test, like a container waiting
+	 * for the network.
+	 */
+	private static class TrickleInputStream extends ServletInputStream {
+		private final byte[] _data;
+		private int _pos;
+		private int _available;
+		private boolean _waiting;
+		private ReadListener _listener;
+
+		TrickleInputStream(byte[] data) {
+			_data = data;
+		}
+
+		void release(int count) throws IOException {
+			boolean notify;
+			synchronized (this) {
+				_available = Math.min(_data.length, _available + count);
+				notify = _waiting;
+				_waiting = false;
+			}
+			if (notify)
+				_listener.onDataAvailable();
+		}
+
+		@Override
+		public synchronized boolean isFinished() {
+			return _pos == _data.length;
+		}
+
+		@Override
+		public synchronized boolean isReady() {
+			if (_pos < _available)
+				return true;
+			_waiting = true;
+			return false;
+		}
+
+		@Override
+		public void setReadListener(ReadListener readListener) {
+			_listener = readListener;
+			try {
+				readListener.onDataAvailable();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			throw new IOException("single byte read");
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			if (_pos == _data.length)
+				return -1;
+			int count = Math.min(len, _available - _pos);
+			System.arraycopy(_data, _pos, b, off, count);
+			_pos += count;
+			return count;
+		}
+	}
+
+	private static class Result implements AsyncUpload.Listener {
+		final CountDownLatch done = new CountDownLatch(1);
+		AsyncUpload upload;
+
+		@Override
+		public void uploadFinished(AsyncUpload upload) {
+			this.upload = upload;
+			done.countDown();
+		}
+	}
+
+	@Test
+	public void testTransfersInChunks() throws Exception {
+		byte[] data = new byte[1000003];
+		new Random(7).nextBytes(data);
+		TrickleInputStream in = new TrickleInputStream(data);
+		CRC32C checksum = new CRC32C();
+		AsyncUpload upload = new AsyncUpload(in, new FileChannelSink(file, checksum), 4096);
+		Result result = new Result();
+		upload.whenDone(result);
+
+		in.setReadListener(upload);
+		for (int sent = 0; sent < data.length; sent += 77777)
+			in.release(77777);
+
+		Assert.assertTrue(result.done.await(10, TimeUnit.SECONDS));
+		Assert.assertNull(upload.getFailure());
+		Assert.assertEquals(data.length, upload.getLength());
+		Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(file.toPath())));
+
+		CRC32C expected = new CRC32C();
+		expected.update(data, 0, data.length);
+		Assert.assertEquals(expected.getValue(), checksum.getValue());
+
+		// listeners added later are called right away
+		Result late = new Result();
+		upload.whenDone(late);
+		Assert.assertEquals(0, late.done.getCount());
+	}
+
+	@Test
+	public void testAbort() throws Exception {
+		TrickleInputStream in = new TrickleInputStream(new byte[100000]);
+		AsyncUpload upload = new AsyncUpload(in, new FileChannelSink(file, null), 4096);
+		Result result = new Result();
+		upload.whenDone(result);
+		in.setReadListener(upload);
+		in.release(1000);
+
+		upload.abort(new IOException("client gone"));
+		Assert.assertTrue(result.done.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals("client gone", upload.getFailure().getMessage());
+		Assert.assertEquals(-1, upload.getLength());
+	}
+}
@@ -0,0 +1,90 @@
+package net.sf.webdav.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import net.sf.webdav.IWebdavStore;
+import net.sf.webdav.LocalFileSystemStore;
+import net.sf.webdav.testutil.SlowWebdavStore;
+
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reads and writes small resources on a backing store with a fixed latency
+ * per call, directly and through a {@link CachingWebdavStore} in
+ * write-through and write-back mode. Not run by the build:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=net.sf.webdav.cache.CachingWebdavStoreBenchmark
+ * </pre>
+ */
+public class CachingWebdavStoreBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		long latency = args.length > 1 ? Long.parseLong(args[1]) : 2;
+		TemporaryFolder tmp = new TemporaryFolder();
+		tmp.create();
+		try {
+			File root = tmp.newFolder("store");
+			File cacheDir = tmp.newFolder("cache");
+			SlowWebdavStore backend = new SlowWebdavStore(new LocalFileSystemStore(
+					root), latency);
+			run("direct", backend, backend, files);
+
+			CachingWebdavStore writeThrough = new CachingWebdavStore(backend,
+					cacheDir, 64 * 1024 * 1024, 100000, 60000, false);
+			run("write-through", writeThrough, backend, files);
+			writeThrough.destroy();
+
+			CachingWebdavStore writeBack = new CachingWebdavStore(backend,
+					cacheDir, 64 * 1024 * 1024, 100000, 60000, true);
+			run("write-back", writeBack, backend, files);
+			long start = System.nanoTime();
+			writeBack.flush(600000);
+			System.out.printf("write-back: flushed in %d ms%n",
+					(System.nanoTime() - start) / 1000000);
+			writeBack.destroy();
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private static void run(String name, IWebdavStore store,
+			SlowWebdavStore backend, int files) throws Exception {
+		byte[] data = new byte[4096];
+		String folder = "/" + name;
+		store.createFolder(null, folder);
+
+		int calls = backend.getCalls();
+		long start = System.nanoTime();
+		for (int i = 0; i < files; i++) {
+			String path = folder + "/file" + i;
+			store.createResource(null, path);
+			store.setResourceContent(null, path, new ByteArrayInputStream(data),
+					null, null);
+		}
+		long written = System.nanoTime();
+		int writeCalls = backend.getCalls() - calls;
+
+		calls = backend.getCalls();
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < files; i++) {
+				String path = folder + "/file" + i;
+				store.getStoredObject(null, path, null);
+				InputStream in = store.getResourceContent(null, path);
+				while (in.read(data) >= 0) {
+				}
+				in.close();
+			}
+		}
+		long read = System.nanoTime();
+		int readCalls = backend.getCalls() - calls;
+
+		System.out.printf("%s: PUT %.2f ms/file (%d backend calls), "
+				+ "GET %.2f ms/file (%d backend calls)%n", name,
+				(written - start) / 1e6 / files, writeCalls,
+				(read - written) / 1e6 / (10 * files), readCalls);
+	}
+}
@@ -0,0 +1,272 @@
+package net.sf.webdav.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.webdav.DelegatingWebdavStore;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.LocalFileSystemStore;
+import net.sf.webdav.exceptions.AccessDeniedException;
+import net.sf.webdav.exceptions.ObjectAlreadyExistsException;
+import net.sf.webdav.testutil.SlowWebdavStore;
+import net.sf.webdav.testutil.Streams;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CachingWebdavStoreTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+	private File cacheDir;
+	private SlowWebdavStore backend;
+
+	@Before
+	public void setup() throws Exception {
+		root = tmp.newFolder("store");
+		cacheDir = tmp.newFolder("cache");
+		backend = new SlowWebdavStore(new LocalFileSystemStore(root), 0);
+	}
+
+	private static InputStream content(String text) {
+		return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String[] sorted(String[] names) {
+		Arrays.sort(names);
+		return names;
+	}
+
+	@Test
+	public void testReadThrough() throws Exception {
+		backend.createFolder(null, "/docs");
+		backend.createResource(null, "/docs/a.txt");
+		backend.setResourceContent(null, "/docs/a.txt", content("first"), null,
+				null);
+
+		CachingWebdavStore store = new CachingWebdavStore(backend, cacheDir,
+				1024 * 1024, 100, 60000, false);
+		Assert.assertEquals("first", Streams.read(store.getResourceContent(null,
+				"/docs/a.txt")));
+		Assert.assertArrayEquals(new String[] { "a.txt" },
+				store.getChildrenNames(null, "/docs"));
+		Assert.assertTrue(store.getContentBytes() > 0);
+
+		// served locally from now on
+		int calls = backend.getCalls();
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals("first", Streams.read(store.getResourceContent(null,
+					"/docs/a.txt")));
+			Assert.assertEquals(5, store.getStoredObject(null, "/docs/a.txt",
+					null).getResourceLength());
+			Assert.assertArrayEquals(new String[] { "a.txt" },
+					store.getChildrenNames(null, "/docs"));
+			Assert.assertNull(store.getStoredObject(null, "/docs/missing", null));
+		}
+		Assert.assertEquals(calls + 1, backend.getCalls());
+
+		// write-through drops what changed
+		store.setResourceContent(null, "/docs/a.txt", content("second!"), null,
+				null);
+		store.createResource(null, "/docs/b.txt");
+		Assert.assertEquals("second!", Streams.read(backend.getResourceContent(null,
+				"/docs/a.txt")));
+		Assert.assertEquals("second!", Streams.read(store.getResourceContent(null,
+				"/docs/a.txt")));
+		Assert.assertArrayEquals(new String[] { "a.txt", "b.txt" },
+				sorted(store.getChildrenNames(null, "/docs")));
+
+		store.removeObject(null, "/docs/b.txt");
+		Assert.assertNull(store.getStoredObject(null, "/docs/b.txt", null));
+		Assert.assertArrayEquals(new String[] { "a.txt" },
+				store.getChildrenNames(null, "/docs"));
+		store.destroy();
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			backend.createResource(null, "/file" + i);
+			backend.setResourceContent(null, "/file" + i, content("content " + i),
+					null, null);
+		}
+		CachingWebdavStore store = new CachingWebdavStore(backend, cacheDir,
+				1024 * 1024, 3, 60000, false);
+		for (int i = 0; i < 5; i++)
+			Assert.assertEquals("content " + i, Streams.read(store.getResourceContent(
+					null, "/file" + i)));
+		Assert.assertEquals(3, store.size());
+		Assert.assertEquals(3 * 9, store.getContentBytes());
+		Assert.assertEquals(3, new File(cacheDir, "content").list().length);
+		store.destroy();
+		Assert.assertEquals(0, new File(cacheDir, "content").list().length);
+	}
+
+	@Test
+	public void testWriteBackAndRecovery() throws Exception {
+		CachingWebdavStore store = new CachingWebdavStore(backend, cacheDir,
+				1024 * 1024, 100, 60000, true);
+		backend.setFailing(true);
+		store.createFolder(null, "/docs");
+		store.createResource(null, "/docs/a.txt");
+		store.setResourceContent(null, "/docs/a.txt", content("queued"),
+				"text/plain", null);
+		store.createResource(null, "/docs/gone.txt");
+		store.removeObject(null, "/docs/gone.txt");
+
+		// visible at once, although the backing store is down
+		Assert.assertEquals("queued", Streams.read(store.getResourceContent(null,
+				"/docs/a.txt")));
+		Assert.assertEquals(6, store.getStoredObject(null, "/docs/a.txt", null)
+				.getResourceLength());
+		Assert.assertNull(store.getStoredObject(null, "/docs/gone.txt", null));
+		Assert.assertArrayEquals(new String[] { "a.txt" },
+				store.getChildrenNames(null, "/docs"));
+		try {
+			store.createResource(null, "/docs/a.txt");
+			Assert.fail("created twice");
+		} catch (ObjectAlreadyExistsException e) {
+			// expected
+		}
+		Assert.assertFalse(store.flush(100));
+		Assert.assertEquals(5, store.getPendingWrites());
+		store.destroy();
+
+		// the journal survives the restart and is applied once the store is back
+		backend.setFailing(false);
+		store = new CachingWebdavStore(backend, cacheDir, 1024 * 1024, 100,
+				60000, true);
+		Assert.assertEquals("queued", Streams.read(store.getResourceContent(null,
+				"/docs/a.txt")));
+		Assert.assertTrue(store.flush(60000));
+		Assert.assertEquals(0, store.getPendingWrites());
+		Assert.assertEquals("queued", Streams.read(backend.getResourceContent(null,
+				"/docs/a.txt")));
+		Assert.assertNull(backend.getStoredObject(null, "/docs/gone.txt", null));
+		Assert.assertArrayEquals(new String[] { "a.txt" },
+				store.getChildrenNames(null, "/docs"));
+		Assert.assertEquals(0, new File(new File(cacheDir, "journal"), "data")
+				.list().length);
+		store.destroy();
+	}
+
+	@Test
+	public void testParksTruncatedContentOnRecovery() throws Exception {
+		CachingWebdavStore store = new CachingWebdavStore(backend, cacheDir,
+				1024 * 1024, 100, 60000, true);
+		backend.setFailing(true);
+		store.createResource(null, "/a.txt");
+		store.setResourceContent(null, "/a.txt", content("complete"), null, null);
+		store.destroy();
+
+		// cut short by a power loss after the journal reached the disk
+		File journal = new File(cacheDir, "journal");
+		File[] data = new File(journal, "data").listFiles();
+		Assert.assertEquals(1, data.length);
+		Files.write(data[0].toPath(), "comp".getBytes(StandardCharsets.UTF_8));
+
+		backend.setFailing(false);
+		store = new CachingWebdavStore(backend, cacheDir, 1024 * 1024, 100,
+				60000, true);
+		Assert.assertTrue(store.flush(10000));
+		Assert.assertEquals("", Streams.read(backend.getResourceContent(null,
+				"/a.txt")));
+		Assert.assertEquals(1, new File(journal, "parked").list().length);
+		store.destroy();
+	}
+
+	@Test
+	public void testParksRefusedChange() throws Exception {
+		DelegatingWebdavStore refusing = new DelegatingWebdavStore(backend) {
+			@Override
+			public void createResource(ITransaction transaction,
+					String resourceUri) {
+				if (resourceUri.startsWith("/denied"))
+					throw new AccessDeniedException(resourceUri);
+				super.createResource(transaction, resourceUri);
+			}
+
+			@Override
+			public long setResourceContent(ITransaction transaction,
+					String resourceUri, InputStream content,
+					String contentType, String characterEncoding) {
+				if (resourceUri.startsWith("/denied"))
+					throw new AccessDeniedException(resourceUri);
+				return super.setResourceContent(transaction, resourceUri,
+						content, contentType, characterEncoding);
+			}
+		};
+		CachingWebdavStore store = new CachingWebdavStore(refusing, cacheDir,
+				1024 * 1024, 100, 60000, true);
+		store.createResource(null, "/denied.txt");
+		store.setResourceContent(null, "/denied.txt", content("lost"), null,
+				null);
+		store.createResource(null, "/ok.txt");
+
+		// the refused change does not hold up the queue
+		Assert.assertTrue(store.flush(10000));
+		Assert.assertNotNull(backend.getStoredObject(null, "/ok.txt", null));
+		Assert.assertNull(store.getStoredObject(null, "/denied.txt", null));
+		Assert.assertEquals(0, new File(new File(cacheDir, "journal"), "journal")
+				.length());
+		store.destroy();
+	}
+
+	@Test
+	public void testCompactsJournalUnderLoad() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		DelegatingWebdavStore blocking = new DelegatingWebdavStore(backend) {
+			@Override
+			public void createFolder(ITransaction transaction, String folderUri) {
+				if (folderUri.equals("/block")) {
+					blocked.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.createFolder(transaction, folderUri);
+			}
+		};
+		File dir = new File(cacheDir, "journal");
+		WriteBackJournal journal = new WriteBackJournal(dir, blocking,
+				new WriteBackJournal.Listener() {
+					@Override
+					public void applied(WriteBackJournal.Change change) {
+					}
+
+					@Override
+					public void parked(WriteBackJournal.Change change) {
+					}
+				});
+		for (int i = 0; i < 1100; i++)
+			journal.append(WriteBackJournal.Op.CREATE_FOLDER, "/f" + i, null,
+					null, null);
+		journal.force(journal.append(WriteBackJournal.Op.CREATE_FOLDER,
+				"/block", null, null, null));
+		long full = new File(dir, "journal").length();
+		journal.start();
+
+		// the queue never ran empty, the applied changes are dropped anyway
+		Assert.assertTrue(blocked.await(30, TimeUnit.SECONDS));
+		Assert.assertTrue(new File(dir, "journal").length() < full / 5);
+		Assert.assertEquals("/block", journal.getPending().get(0)._path);
+		release.countDown();
+		Assert.assertTrue(journal.drain(10000));
+		journal.close(1000);
+		Assert.assertEquals(1101, root.list().length);
+	}
+}
@@ -0,0 +1,124 @@
+package net.sf.webdav.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.LocalFileSystemStore;
+import net.sf.webdav.StoredObject;
+import net.sf.webdav.testutil.Streams;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ContentCachingWebdavStoreTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+
+	@Before
+	public void setup() throws Exception {
+		root = tmp.getRoot();
+	}
+
+	@Test
+	public void testCacheChunksAndEviction() throws Exception {
+		// 6 chunks of 4096 bytes, one entry
+		OffHeapContentCache cache = new OffHeapContentCache(6 * 4096, 1, 10000);
+		byte[] data = new byte[9000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		cache.put("/a", "1", new StoredObject(), data, data.length);
+		Assert.assertEquals(3 * 4096, cache.getUsedBytes());
+		Assert.assertArrayEquals(data, Streams.readBytes(cache.get("/a").openStream()));
+
+		// a stream keeps the chunks of an evicted entry
+		InputStream reading = cache.get("/a").openStream();
+		cache.put("/b", "1", new StoredObject(), data, 5000);
+		Assert.assertNull(cache.get("/a"));
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertEquals(5 * 4096, cache.getUsedBytes());
+		Assert.assertArrayEquals(data, Streams.readBytes(reading));
+		Assert.assertEquals(2 * 4096, cache.getUsedBytes());
+		Assert.assertArrayEquals(Arrays.copyOf(data, 5000),
+				Streams.readBytes(cache.get("/b").openStream()));
+
+		Assert.assertNull(cache.put("/c", "1", new StoredObject(), data, 20000));
+		Assert.assertNotNull(cache.get("/b"));
+
+		cache = new OffHeapContentCache(6 * 4096, 10, 10000);
+		cache.put("/dir/c", "1", new StoredObject(), data, 10);
+		cache.put("/dir2", "1", new StoredObject(), data, 10);
+		cache.removeTree("/dir");
+		Assert.assertNull(cache.get("/dir/c"));
+		Assert.assertNotNull(cache.get("/dir2"));
+	}
+
+	@Test
+	public void testHitsAndInvalidation() throws Exception {
+		final int[] reads = new int[1];
+		LocalFileSystemStore local = new LocalFileSystemStore(root) {
+			@Override
+			public InputStream getResourceContent(ITransaction transaction,
+					String uri) {
+				reads[0]++;
+				return super.getResourceContent(transaction, uri);
+			}
+		};
+		ContentCachingWebdavStore store = new ContentCachingWebdavStore(local,
+				new OffHeapContentCache(1024 * 1024, 100, 65536), 60000);
+		store.createFolder(null, "/docs");
+		store.createResource(null, "/docs/a.txt");
+		store.setResourceContent(null, "/docs/a.txt", new ByteArrayInputStream(
+				"first".getBytes(StandardCharsets.UTF_8)), null, null);
+
+		for (int i = 0; i < 3; i++)
+			Assert.assertEquals("first", new String(Streams.readBytes(store
+					.getResourceContent(null, "/docs/a.txt")),
+					StandardCharsets.UTF_8));
+		Assert.assertEquals(1, reads[0]);
+		Assert.assertEquals(5, store.getStoredObject(null, "/docs/a.txt", null)
+				.getResourceLength());
+
+		// a write through the store is visible at once
+		store.setResourceContent(null, "/docs/a.txt", new ByteArrayInputStream(
+				"second".getBytes(StandardCharsets.UTF_8)), null, null);
+		Assert.assertEquals(6, store.getStoredObject(null, "/docs/a.txt", null)
+				.getResourceLength());
+		Assert.assertEquals("second", new String(Streams.readBytes(store.getResourceContent(
+				null, "/docs/a.txt")), StandardCharsets.UTF_8));
+		Assert.assertEquals(2, reads[0]);
+
+		store.removeObject(null, "/docs/a.txt");
+		Assert.assertEquals(0, store.getCache().size());
+		Assert.assertNull(store.getStoredObject(null, "/docs/a.txt", null));
+	}
+
+	@Test
+	public void testRevalidation() throws Exception {
+		ContentCachingWebdavStore store = new ContentCachingWebdavStore(
+				new LocalFileSystemStore(root), new OffHeapContentCache(
+						1024 * 1024, 100, 65536), 0);
+		store.createResource(null, "/a.txt");
+		store.setResourceContent(null, "/a.txt", new ByteArrayInputStream(
+				"first".getBytes(StandardCharsets.UTF_8)), null, null);
+		Streams.readBytes(store.getResourceContent(null, "/a.txt"));
+		Assert.assertEquals(1, store.getCache().size());
+
+		// changed behind the server's back
+		File file = new File(root, "a.txt");
+		Files.write(file.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+		file.setLastModified(file.lastModified() + 5000);
+		Assert.assertEquals("changed", new String(Streams.readBytes(store.getResourceContent(
+				null, "/a.txt")), StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,172 @@
+package net.sf.webdav.carddav;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Vector;
+
+import net.sf.webdav.CardDavFileStore;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.StoredObject;
+import net.sf.webdav.exceptions.AccessDeniedException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AddressbookHomesTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+
+	@Before
+	public void setup() throws Exception {
+		root = tmp.getRoot();
+		File work = new File(root, "addressbooks/alice/work");
+		work.mkdirs();
+		Files.write(new File(work, "bob.vcf").toPath(), ("BEGIN:VCARD\r\n"
+				+ "UID:1\r\nFN:Bob Work\r\nEND:VCARD\r\n")
+				.getBytes(StandardCharsets.UTF_8));
+		new File(root, "addressbooks/bob").mkdirs();
+	}
+
+	private static ITransaction as(final String name) {
+		return new ITransaction() {
+			@Override
+			public Principal getPrincipal() {
+				return new Principal() {
+					@Override
+					public String getName() {
+						return name;
+					}
+				};
+			}
+		};
+	}
+
+	@Test
+	public void testLazyHomesWithEviction() {
+		AddressbookHomes homes = new AddressbookHomes(new File(root,
+				"addressbooks"), "/addressbooks", 2);
+		Assert.assertEquals(0, homes.size());
+		DavUser alice = homes.getHome("alice");
+		Assert.assertEquals("/addressbooks/alice/", alice.getHref());
+		Assert.assertEquals(Arrays.asList("default", "work"),
+				alice.getAddressBookNames());
+		Assert.assertSame(alice, homes.getHome("alice"));
+		Assert.assertNull(homes.getHome(".."));
+
+		homes.getHome("bob");
+		homes.getHome("carol");
+		Assert.assertEquals(2, homes.size());
+		// evicted and read again
+		Assert.assertNotSame(alice, homes.getHome("alice"));
+		Assert.assertEquals(1, homes.getAddressBook("alice", "work").getIndex()
+				.size());
+	}
+
+	@Test
+	public void testIndexSharedAfterEviction() throws Exception {
+		AddressbookHomes homes = new AddressbookHomes(new File(root,
+				"addressbooks"), "/addressbooks", 1);
+		DavAddressBook work = homes.getAddressBook("alice", "work");
+		VCardIndex index = work.getIndex();
+		homes.getHome("bob");
+
+		// a request still writing through the evicted home
+		Files.write(new File(work.getFolder(), "carol.vcf").toPath(),
+				"BEGIN:VCARD\r\nFN:Carol\r\nEND:VCARD\r\n"
+						.getBytes(StandardCharsets.UTF_8));
+		index.update("carol.vcf");
+
+		DavAddressBook reloaded = homes.getAddressBook("alice", "work");
+		Assert.assertNotSame(work, reloaded);
+		Assert.assertSame(index, reloaded.getIndex());
+		Assert.assertEquals(2, reloaded.getIndex().size());
+	}
+
+	@Test
+	public void testAnonymousOnlyGetsGuestHome() {
+		CardDavFileStore store = new CardDavFileStore(root);
+		ITransaction anonymous = new ITransaction() {
+			@Override
+			public Principal getPrincipal() {
+				return null;
+			}
+		};
+		try {
+			store.getStoredObject(anonymous, "/addressbooks/alice/work/bob.vcf", null);
+			Assert.fail("anonymous read alice's card");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+		try {
+			store.createResource(null, "/addressbooks/bob/default/x.vcf");
+			Assert.fail("anonymous wrote to bob's home");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+		Assert.assertEquals(Collections.singletonList("GUEST"), Arrays.asList(store
+				.getChildrenNames(anonymous, "/addressbooks")));
+		Assert.assertNotNull(store.getStoredObject(anonymous, "/addressbooks/GUEST", null));
+	}
+
+	@Test
+	public void testStoreServesHomes() throws Exception {
+		CardDavFileStore store = new CardDavFileStore(root);
+		store.setMaxCachedHomes(1);
+		ITransaction alice = as("alice");
+
+		Assert.assertEquals(Arrays.asList("default", "work"), Arrays.asList(store
+				.getChildrenNames(alice, "/addressbooks/alice")));
+		Assert.assertEquals(Collections.singletonList("alice"), Arrays.asList(store
+				.getChildrenNames(alice, "/addressbooks")));
+		Assert.assertEquals(Collections.singletonList("bob.vcf"), Arrays.asList(store
+				.getChildrenNames(alice, "/addressbooks/alice/work/")));
+		StoredObject book = store.getStoredObject(alice, "/addressbooks/alice/work", null);
+		Assert.assertTrue(book.isFolder());
+		Assert.assertTrue(book.getResourceTypes().contains(
+				"urn:ietf:params:xml:ns:carddav:addressbook"));
+		Assert.assertNull(store.getStoredObject(alice, "/addressbooks/alice/none", null));
+
+		// the default book is created with the first card
+		store.createResource(alice, "/addressbooks/alice/default/me.vcf");
+		store.setResourceContent(alice, "/addressbooks/alice/default/me.vcf",
+				new ByteArrayInputStream("BEGIN:VCARD\r\nFN:Alice\r\nEND:VCARD\r\n"
+						.getBytes(StandardCharsets.UTF_8)), null, null);
+		Assert.assertTrue(new File(root, "addressbooks/alice/default/me.vcf").exists());
+		AddressbookFilter filter = new AddressbookFilter(null);
+		filter.addPropFilter("FN", null).addTextMatch("alice", null, null, null);
+		Assert.assertEquals(Collections.singletonList(
+				"/addressbooks/alice/default/me.vcf"), store.queryAddressbook(alice,
+				"/addressbooks/alice/default", filter));
+		Assert.assertTrue(store.getAdditionalProperties(
+				"/addressbooks/alice/default/me.vcf", new Vector<>(Arrays.asList(
+						"urn:ietf:params:xml:ns:carddav:address-data")))
+				.get("urn:ietf:params:xml:ns:carddav:address-data").contains("FN:Alice"));
+
+		store.createFolder(alice, "/addressbooks/alice/family");
+		Assert.assertEquals(Arrays.asList("default", "family", "work"), Arrays.asList(store
+				.getChildrenNames(alice, "/addressbooks/alice")));
+
+		try {
+			store.getStoredObject(as("bob"), "/addressbooks/alice/work/bob.vcf", null);
+			Assert.fail("bob read alice's card");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+		// bob's home evicts alice's, her cards are read again
+		Assert.assertEquals(Collections.singletonList("default"), Arrays.asList(store
+				.getChildrenNames(as("bob"), "/addressbooks/bob")));
+		Assert.assertNotNull(store.getStoredObject(alice,
+				"/addressbooks/alice/default/me.vcf", null));
+	}
+}
@@ -0,0 +1,132 @@
+package net.sf.webdav.carddav;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Vector;
+
+import net.sf.webdav.CardDavFileStore;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CollectionTagsTest {
+
+	private static final String GETCTAG = "http://calendarserver.org/ns/:getctag";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+
+	@Before
+	public void setup() throws Exception {
+		root = tmp.getRoot();
+	}
+
+	@Test
+	public void testBumpAndFlush() {
+		File file = new File(root, "tags");
+		CollectionTags tags = new CollectionTags(file);
+		String first = tags.get("/a");
+		Assert.assertEquals(first, tags.get("/a"));
+		tags.bump("/a");
+		String second = tags.get("/a");
+		Assert.assertFalse(first.equals(second));
+		Assert.assertFalse(file.exists());
+
+		tags.flush();
+		Assert.assertTrue(Long.parseLong(new CollectionTags(file).get("/a")) >= Long
+				.parseLong(second));
+	}
+
+	@Test
+	public void testUnflushedTagsAreNotReused() throws Exception {
+		File file = new File(root, "tags");
+		CollectionTags tags = new CollectionTags(file);
+		tags.bump("/a");
+		tags.flush();
+		// handed out, then lost in a crash
+		tags.bump("/a");
+		long seen = Long.parseLong(tags.get("/a"));
+		Thread.sleep(10);
+
+		CollectionTags reopened = new CollectionTags(file);
+		Assert.assertTrue(Long.parseLong(reopened.get("/a")) > seen);
+		reopened.bump("/a");
+		Assert.assertTrue(Long.parseLong(reopened.get("/a")) > seen + 1);
+	}
+
+	@Test
+	public void testConcurrentFlushes() throws Exception {
+		final File file = new File(root, "tags");
+		final CollectionTags tags = new CollectionTags(file);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final String collection = "/c" + t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 200; i++) {
+						tags.bump(collection);
+						tags.flush();
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		Properties stored = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			stored.load(in);
+		}
+		for (int t = 0; t < threads.length; t++)
+			Assert.assertEquals(tags.get("/c" + t), stored.getProperty("/c" + t));
+	}
+
+	@Test
+	public void testStoreBumpsOnWrites() throws Exception {
+		CardDavFileStore store = new CardDavFileStore(root);
+		String tag = ctag(store, "/addressbook");
+		Assert.assertEquals(tag, ctag(store, "/addressbook/"));
+		Assert.assertNull(ctag(store, "/"));
+
+		store.createResource(null, "/addressbook/a.vcf");
+		String created = ctag(store, "/addressbook");
+		Assert.assertFalse(tag.equals(created));
+
+		store.setResourceContent(null, "/addressbook/a.vcf",
+				new ByteArrayInputStream("BEGIN:VCARD\r\nFN:A\r\nEND:VCARD\r\n"
+						.getBytes(StandardCharsets.UTF_8)), null, null);
+		String written = ctag(store, "/addressbook");
+		Assert.assertFalse(created.equals(written));
+		// reading does not change it
+		store.getStoredObject(null, "/addressbook/a.vcf", null);
+		Assert.assertEquals(written, ctag(store, "/addressbook"));
+
+		store.commit(null);
+		Assert.assertTrue(new File(root, ".ctags").exists());
+		// the tag file is no card
+		Assert.assertEquals(Arrays.asList("/addressbook/a.vcf"), store
+				.queryAddressbook(null, "/addressbook", new AddressbookFilter(null)));
+		// never lower after a restart
+		Assert.assertTrue(Long.parseLong(ctag(new CardDavFileStore(root),
+				"/addressbook")) >= Long.parseLong(written));
+
+		store.removeObject(null, "/addressbook/a.vcf");
+		Assert.assertFalse(written.equals(ctag(store, "/addressbook")));
+	}
+
+	private static String ctag(CardDavFileStore store, String path) {
+		Vector<String> properties = new Vector<>(Arrays.asList(GETCTAG));
+		return store.getAdditionalProperties(path, properties).get(GETCTAG);
+	}
+}
@@ -0,0 +1,210 @@
+package net.sf.webdav.carddav;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Vector;
+
+import net.sf.webdav.CardDavFileStore;
+import net.sf.webdav.locking.ResourceLocks;
+import net.sf.webdav.methods.DoReport;
+import net.sf.webdav.xml.DavRequestParser;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class VCardIndexTest {
+
+	private static final String CARDDAV = "urn:ietf:params:xml:ns:carddav";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+	private CardDavFileStore store;
+
+	@Before
+	public void setup() throws Exception {
+		root = tmp.getRoot();
+		write("jane.vcf", card("jane-1", "Jane Doe", "jane@example.com",
+				"jane.doe@work.example.com"));
+		write("john.vcf", card("john-2", "John Smith", "john@example.org"));
+		write("tel.vcf", "BEGIN:VCARD\r\nVERSION:3.0\r\nUID:tel-3\r\nFN:Ringo\r\n"
+				+ "TEL;TYPE=\"cell,voice\":+1 555 0100\r\nEND:VCARD\r\n");
+		store = new CardDavFileStore(root);
+	}
+
+	private void write(String name, String content) throws Exception {
+		Files.write(new File(root, name).toPath(),
+				content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String card(String uid, String fn, String... emails) {
+		StringBuilder sb = new StringBuilder("BEGIN:VCARD\r\nVERSION:3.0\r\n");
+		sb.append("UID:").append(uid).append("\r\nFN:").append(fn).append("\r\n");
+		for (int i = 0; i < emails.length; i++)
+			sb.append("item").append(i).append(".EMAIL;TYPE=INTERNET:")
+					.append(emails[i]).append("\r\n");
+		return sb.append("END:VCARD\r\n").toString();
+	}
+
+	@Test
+	public void testParse() {
+		VCard card = VCard.parse("BEGIN:VCARD\r\nVERSION:3.0\r\nUID:abc\r\n"
+				+ "FN:Jane\r\n  Doe\r\nNOTE:one\\, two\\nthree\r\n"
+				+ "item1.EMAIL;TYPE=\"a:b\":jane@example.com\r\n"
+				+ "PHOTO;ENCODING=b:AAAA\r\nX-AVATAR;ENCODING=b:BBBB\r\n"
+				+ "END:VCARD\r\n", 1000, 42);
+		Assert.assertEquals("abc", card.getUid());
+		Assert.assertEquals("Jane Doe", card.getFormattedName());
+		Assert.assertEquals(Collections.singletonList("one, two\nthree"),
+				card.getValues("note"));
+		Assert.assertEquals(Collections.singletonList("jane@example.com"),
+				card.getValues("EMAIL"));
+		Assert.assertTrue(card.getValues("PHOTO").isEmpty());
+		Assert.assertTrue(card.getValues("X-AVATAR").isEmpty());
+		Assert.assertEquals(1000, card.getLastModified());
+		Assert.assertEquals(42, card.getLength());
+	}
+
+	@Test
+	public void testFilter() {
+		VCard jane = VCard.parse(card("1", "Jane Doe", "jane@example.com",
+				"jd@work.example.com"), 0, 0);
+
+		AddressbookFilter filter = new AddressbookFilter(null);
+		filter.addPropFilter("FN", null).addTextMatch("jane", null, null, null);
+		Assert.assertTrue(filter.matches(jane));
+
+		filter = new AddressbookFilter(null);
+		filter.addPropFilter("FN", null).addTextMatch("jane", "contains",
+				"i;octet", null);
+		Assert.assertFalse(filter.matches(jane));
+
+		// any of several values
+		filter = new AddressbookFilter(null);
+		filter.addPropFilter("EMAIL", null).addTextMatch("@work.example.com",
+				"ends-with", null, null);
+		Assert.assertTrue(filter.matches(jane));
+
+		filter = new AddressbookFilter("allof");
+		filter.addPropFilter("FN", null).addTextMatch("Jane Doe", "equals",
+				null, null);
+		filter.addPropFilter("TEL", null).setNotDefined();
+		Assert.assertTrue(filter.matches(jane));
+		filter.addPropFilter("UID", null).addTextMatch("1", "equals", null, "yes");
+		Assert.assertFalse(filter.matches(jane));
+
+		filter = new AddressbookFilter("anyof");
+		filter.addPropFilter("TEL", null);
+		filter.addPropFilter("FN", null).addTextMatch("smith", "starts-with",
+				null, null);
+		Assert.assertFalse(filter.matches(jane));
+	}
+
+	@Test
+	public void testQueryUsesIndex() throws Exception {
+		AddressbookFilter filter = new AddressbookFilter(null);
+		filter.addPropFilter("EMAIL", null).addTextMatch("example.com", null,
+				null, null);
+		filter.addPropFilter("TEL", null).addTextMatch("555", null, null, null);
+		Assert.assertEquals(Arrays.asList("/addressbook/jane.vcf",
+				"/addressbook/tel.vcf"), store.queryAddressbook(null,
+				"/addressbook", filter));
+		Assert.assertNull(store.queryAddressbook(null, "/principals/users/GUEST/",
+				filter));
+
+		// address data is read from the file
+		Vector<String> properties = new Vector<>(Collections.singletonList(
+				CARDDAV + ":address-data"));
+		Assert.assertTrue(store.getAdditionalProperties("/addressbook/jane.vcf",
+				properties).get(CARDDAV + ":address-data").contains("FN:Jane Doe"));
+
+		// answered from memory: the file is gone but the store was not told
+		new File(root, "jane.vcf").delete();
+		Assert.assertNotNull(store.getStoredObject(null, "/addressbook/jane.vcf", null));
+	}
+
+	@Test
+	public void testPicksUpFilesChangedOutside() throws Exception {
+		Assert.assertArrayEquals(new String[] { "jane.vcf", "john.vcf", "tel.vcf" },
+				store.getChildrenNames(null, "/addressbook"));
+		// a different modification time of the folder
+		Thread.sleep(20);
+		write("paul.vcf", card("paul-5", "Paul Copied", "paul@example.net"));
+		new File(root, "john.vcf").delete();
+
+		Assert.assertArrayEquals(new String[] { "jane.vcf", "paul.vcf", "tel.vcf" },
+				store.getChildrenNames(null, "/addressbook"));
+		AddressbookFilter filter = new AddressbookFilter(null);
+		filter.addPropFilter("FN", null).addTextMatch("paul", null, null, null);
+		Assert.assertEquals(Collections.singletonList("/addressbook/paul.vcf"),
+				store.queryAddressbook(null, "/addressbook", filter));
+	}
+
+	@Test
+	public void testIndexFollowsPutAndDelete() throws Exception {
+		store.createResource(null, "/addressbook/new.vcf");
+		store.setResourceContent(null, "/addressbook/new.vcf",
+				new ByteArrayInputStream(card("new-4", "Paul New", "paul@example.net")
+						.getBytes(StandardCharsets.UTF_8)), null, null);
+		AddressbookFilter filter = new AddressbookFilter(null);
+		filter.addPropFilter("FN", null).addTextMatch("paul", null, null, null);
+		Assert.assertEquals(Collections.singletonList("/addressbook/new.vcf"),
+				store.queryAddressbook(null, "/addressbook", filter));
+		Assert.assertEquals(new File(root, "new.vcf").length(),
+				store.getStoredObject(null, "/addressbook/new.vcf", null)
+						.getResourceLength());
+
+		store.removeObject(null, "/addressbook/new.vcf");
+		Assert.assertTrue(store.queryAddressbook(null, "/addressbook", filter)
+				.isEmpty());
+		Assert.assertNull(store.getStoredObject(null, "/addressbook/new.vcf", null));
+	}
+
+	@Test
+	public void testAddressbookQueryReport() throws Exception {
+		String body = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+				+ "<C:addressbook-query xmlns:D=\"DAV:\" xmlns:C=\"" + CARDDAV + "\">"
+				+ "<D:prop><D:getetag/><C:address-data/></D:prop>"
+				+ "<C:filter test=\"anyof\"><C:prop-filter name=\"FN\">"
+				+ "<C:text-match collation=\"i;unicode-casemap\" match-type=\"contains\">"
+				+ "smith</C:text-match></C:prop-filter></C:filter>"
+				+ "</C:addressbook-query>";
+		for (DavRequestParser parser : new DavRequestParser[] { null,
+				new DavRequestParser(0) }) {
+			DoReport doReport = new DoReport(store, new ResourceLocks());
+			doReport.setAddressbookQueryStore(store);
+			doReport.setRequestParser(parser);
+			MockHttpServletRequest req = new MockHttpServletRequest("REPORT",
+					"/addressbook");
+			req.setPathInfo("/addressbook");
+			req.addHeader("Depth", "1");
+			req.setContent(body.getBytes(StandardCharsets.UTF_8));
+			MockHttpServletResponse resp = new MockHttpServletResponse() {
+				@Override
+				public void setContentType(String contentType) {
+					// the spring mock needs spring-web for parsing it
+				}
+			};
+			resp.setCharacterEncoding("UTF-8");
+
+			doReport.execute(null, req, resp);
+
+			Assert.assertEquals(207, resp.getStatus());
+			String xml = resp.getContentAsString();
+			Assert.assertTrue(xml, xml.contains("/addressbook/john.vcf"));
+			Assert.assertTrue(xml.contains("FN:John Smith"));
+			Assert.assertFalse(xml.contains("jane.vcf"));
+			Assert.assertFalse(xml.contains("tel.vcf"));
+		}
+	}
+}
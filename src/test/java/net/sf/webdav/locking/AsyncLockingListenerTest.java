@@ -0,0 +1,144 @@
+package net.sf.webdav.locking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.sf.webdav.ILockingListener;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.locking.AsyncLockingListener.OverflowPolicy;
+
+public class AsyncLockingListenerTest {
+
+	private static class RecordingListener implements ILockingListener {
+
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+		final CountDownLatch release;
+
+		RecordingListener(CountDownLatch release) {
+			this.release = release;
+		}
+
+		@Override
+		public void onLockResource(ITransaction transaction, String resourceUri) {
+			await();
+			events.add("+" + resourceUri);
+		}
+
+		@Override
+		public void onUnlockResource(ITransaction transaction, String resourceUri) {
+			await();
+			events.add("-" + resourceUri);
+		}
+
+		private void await() {
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Test
+	public void testLocksDoNotWaitForListener() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingListener listener = new RecordingListener(release);
+		AsyncLockingListener async = new AsyncLockingListener(listener, 1000, 10,
+				4, OverflowPolicy.BLOCK);
+		ResourceLocks resourceLocks = new ResourceLocks(async);
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 50; i++) {
+			Assert.assertTrue(resourceLocks.exclusiveLock(ResourceLocksTest.USER,
+					"/folder/file" + i, "owner", 0, 300));
+			LockedObject lo = resourceLocks.getLockedObjectByPath(
+					ResourceLocksTest.USER, "/folder/file" + i);
+			Assert.assertTrue(resourceLocks.unlock(ResourceLocksTest.USER,
+					lo.getID(), "owner"));
+		}
+		Assert.assertTrue("locking waited for the listener",
+				System.currentTimeMillis() - start < 5000);
+		Assert.assertTrue(listener.events.isEmpty());
+
+		release.countDown();
+		Assert.assertTrue(async.close(10000));
+		Assert.assertEquals(0, async.getDropped());
+		// "/folder" plus lock and unlock of every file
+		Assert.assertEquals(101, listener.events.size());
+		for (int i = 0; i < 50; i++) {
+			int lock = listener.events.indexOf("+/folder/file" + i);
+			int unlock = listener.events.indexOf("-/folder/file" + i);
+			Assert.assertTrue("events of a path stay in order", lock >= 0 && lock < unlock);
+		}
+	}
+
+	@Test
+	public void testOverflow() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingListener listener = new RecordingListener(release);
+		AsyncLockingListener async = new AsyncLockingListener(listener, 2, 1, 1,
+				OverflowPolicy.DROP_OLDEST);
+		async.onLockResource(null, "/a");
+		// wait until the thread is stuck in the listener with "/a"
+		while (async.getPending() > 0)
+			Thread.sleep(10);
+		for (int i = 0; i < 5; i++)
+			async.onLockResource(null, "/b" + i);
+		Assert.assertEquals(3, async.getDropped());
+		release.countDown();
+		async.close(10000);
+		Assert.assertEquals(Arrays.asList("+/a", "+/b3", "+/b4"), listener.events);
+
+		release = new CountDownLatch(1);
+		listener = new RecordingListener(release);
+		async = new AsyncLockingListener(listener, 2, 1, 1, OverflowPolicy.DROP_NEWEST);
+		async.onLockResource(null, "/a");
+		while (async.getPending() > 0)
+			Thread.sleep(10);
+		for (int i = 0; i < 5; i++)
+			async.onLockResource(null, "/b" + i);
+		Assert.assertEquals(3, async.getDropped());
+		release.countDown();
+		async.close(10000);
+		Assert.assertEquals(Arrays.asList("+/a", "+/b0", "+/b1"), listener.events);
+	}
+
+	@Test
+	public void testNoEventLostOnClose() throws Exception {
+		CountDownLatch release = new CountDownLatch(0);
+		for (int round = 0; round < 20; round++) {
+			RecordingListener listener = new RecordingListener(release);
+			final AsyncLockingListener async = new AsyncLockingListener(listener,
+					1000, 10, 2, OverflowPolicy.BLOCK);
+			final CountDownLatch started = new CountDownLatch(4);
+			List<Thread> senders = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				final String prefix = "/t" + t + "/";
+				Thread sender = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						started.countDown();
+						for (int i = 0; i < 500; i++)
+							async.onLockResource(null, prefix + i);
+					}
+				});
+				sender.start();
+				senders.add(sender);
+			}
+			started.await();
+			async.close(10000);
+			for (Thread sender : senders)
+				sender.join();
+			Assert.assertEquals(0, async.getPending());
+			Assert.assertEquals(2000, listener.events.size());
+		}
+	}
+}
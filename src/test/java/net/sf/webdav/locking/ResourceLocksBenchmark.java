@@ -0,0 +1,52 @@
+package net.sf.webdav.locking;
+
+import net.sf.webdav.ITransaction;
+
+/**
+ * Locks and unlocks a large number of resources, spread over few folders so
+ * that folders get many locked children, and a single resource with many
+ * shared owners. Not run by the build:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=net.sf.webdav.locking.ResourceLocksBenchmark
+ * </pre>
+ */
+public class ResourceLocksBenchmark {
+
+	private static final ITransaction TRANSACTION = ResourceLocksTest.USER;
+
+	public static void main(String[] args) throws Exception {
+		int locks = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		// warm up
+		run(locks / 10);
+		run(locks);
+	}
+
+	private static void run(int locks) throws Exception {
+		ResourceLocks resourceLocks = new ResourceLocks();
+		String[] ids = new String[locks];
+
+		long start = System.nanoTime();
+		for (int i = 0; i < locks; i++) {
+			String path = "/folder" + (i % 10) + "/sub" + (i % 100) + "/file" + i;
+			if (!resourceLocks.exclusiveLock(TRANSACTION, path, "owner", 0, 3600))
+				throw new IllegalStateException("lock failed for " + path);
+			ids[i] = resourceLocks.getLockedObjectByPath(TRANSACTION, path).getID();
+		}
+		long locked = System.nanoTime();
+		for (int i = 0; i < locks; i++) {
+			resourceLocks.unlock(TRANSACTION, ids[i], "owner");
+		}
+		long unlocked = System.nanoTime();
+
+		for (int i = 0; i < locks; i++) {
+			resourceLocks.sharedLock(TRANSACTION, "/shared", "owner" + i, 0, 3600);
+		}
+		long shared = System.nanoTime();
+
+		System.out.printf("%d locks: lock %6.2f us, unlock %6.2f us, shared owner %6.2f us%n",
+				locks, (locked - start) / 1000.0 / locks,
+				(unlocked - locked) / 1000.0 / locks,
+				(shared - unlocked) / 1000.0 / locks);
+	}
+}
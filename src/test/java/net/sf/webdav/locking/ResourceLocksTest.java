@@ -83,6 +83,78 @@ public class ResourceLocksTest {
         Assert.assertEquals("Checking number of 'onUnlock'-calls",2,lockingListener.unlockEvents.size());
     }
 
+    @Test
+    public void testSharedLockOwners() throws Exception {
+
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(resourceLocks.sharedLock(USER, "/shared", "owner" + i, 0, 300));
+        }
+        Assert.assertFalse(resourceLocks.exclusiveLock(OTHER_USER, "/shared", "other", 0, 300));
+        LockedObject lo = resourceLocks.getLockedObjectByPath(USER, "/shared");
+        Assert.assertFalse("owners are unique", lo.addLockedObjectOwner("owner7"));
+        String[] owners = lo.getOwner();
+        Assert.assertEquals(1000, owners.length);
+        Assert.assertEquals("owner0", owners[0]);
+        Assert.assertEquals("owner999", owners[999]);
+
+        for (int i = 0; i < 1000; i++) {
+            resourceLocks.unlock(USER, lo.getID(), "owner" + i);
+        }
+        Assert.assertNull(resourceLocks.getLockedObjectByPath(USER, "/shared"));
+    }
+
+    @Test
+    public void testManyChildren() throws Exception {
+
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(resourceLocks.exclusiveLock(USER, "/folder/file" + i, "owner", 0, 300));
+        }
+        LockedObject folder = resourceLocks.getLockedObjectByPath(USER, "/folder");
+        Assert.assertEquals(1000, folder._children.size());
+        Assert.assertFalse("a child is locked", resourceLocks.exclusiveLock(OTHER_USER, "/folder", "other", -1, 300));
+        Assert.assertTrue("depth 0 ignores the children", resourceLocks.exclusiveLock(OTHER_USER, "/folder", "other", 0, 300));
+
+        LockedObject lo = resourceLocks.getLockedObjectByPath(USER, "/folder/file500");
+        Assert.assertSame(lo, resourceLocks.getLockedObjectByID(USER, lo.getID()));
+        Assert.assertTrue(resourceLocks.unlock(USER, lo.getID(), "owner"));
+        Assert.assertNull(resourceLocks.getLockedObjectByPath(USER, "/folder/file500"));
+        Assert.assertNull(resourceLocks.getLockedObjectByID(USER, lo.getID()));
+        Assert.assertEquals(999, folder._children.size());
+    }
+
+    @Test
+    public void testLocksBelow() throws Exception {
+
+        Assert.assertTrue(resourceLocks.getLocksBelow(USER, "/a").isEmpty());
+        Assert.assertTrue(resourceLocks.exclusiveLock(USER, "/a/b/c/file1", "owner1", 0, 300));
+        Assert.assertTrue(resourceLocks.sharedLock(USER, "/a/b/file2", "owner2", 0, 300));
+        Assert.assertTrue(resourceLocks.sharedLock(USER, "/x/file3", "owner3", 0, 300));
+
+        Assert.assertEquals(3, resourceLocks.getLockedObjectByPath(USER, "/").getLocksBelow());
+        Assert.assertEquals(2, resourceLocks.getLockedObjectByPath(USER, "/a").getLocksBelow());
+        Assert.assertEquals(1, resourceLocks.getLockedObjectByPath(USER, "/a/b/c").getLocksBelow());
+        List<LockedObject> below = resourceLocks.getLocksBelow(USER, "/a");
+        Assert.assertEquals(2, below.size());
+        Assert.assertTrue(below.contains(resourceLocks.getLockedObjectByPath(USER, "/a/b/c/file1")));
+        Assert.assertTrue(resourceLocks.getLocksBelow(USER, "/a/b/c/file1").isEmpty());
+
+        LockedObject lo = resourceLocks.getLockedObjectByPath(USER, "/a/b/c/file1");
+        Assert.assertTrue(resourceLocks.unlock(USER, lo.getID(), "owner1"));
+        below = resourceLocks.getLocksBelow(USER, "/a");
+        Assert.assertEquals(1, below.size());
+        Assert.assertEquals("owner2", below.get(0).getOwner()[0]);
+        Assert.assertEquals(2, resourceLocks.getLockedObjectByPath(USER, "/").getLocksBelow());
+    }
+
+    @Test
+    public void testParentsOutliveLocks() throws Exception {
+
+        Assert.assertTrue(resourceLocks.exclusiveLock(USER, "/a/b/c/file", "owner", 0, 300));
+        resourceLocks.checkTimeouts(USER, false);
+        Assert.assertNotNull(resourceLocks.getLockedObjectByPath(USER, "/a"));
+        Assert.assertEquals(1, resourceLocks.getLocksBelow(USER, "/a").size());
+    }
+
 
     private static class MyILockingListener implements ILockingListener {
 
@@ -274,6 +274,88 @@ public class DoDeleteTest extends MockTest {
         _mockery.assertIsSatisfied();
     }
 
+    @Test
+    public void testDeleteFolderWithLockedFile() throws Exception {
+
+        final String folderPath = "/folder";
+        ResourceLocks resLocks = new ResourceLocks();
+
+        resLocks.lock(mockTransaction, folderPath + "/sub/file", "owner", true, 0,
+                TEMP_TIMEOUT, !TEMPORARY);
+
+        _mockery.checking(new Expectations() {
+            {
+                oneOf(mockReq).getAttribute("javax.servlet.include.request_uri");
+                will(returnValue(null));
+
+                oneOf(mockReq).getPathInfo();
+                will(returnValue(folderPath));
+
+                oneOf(mockReq).getHeader("If");
+                will(returnValue(null));
+
+                oneOf(mockRes).setStatus(WebdavStatus.SC_LOCKED);
+            }
+        });
+
+        DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
+
+        doDelete.execute(mockTransaction, mockReq, mockRes);
+
+        _mockery.assertIsSatisfied();
+    }
+
+    @Test
+    public void testDeleteFolderWithLockedFilesAndAllTokens() throws Exception {
+
+        final String folderPath = "/folder";
+        ResourceLocks resLocks = new ResourceLocks();
+
+        StringBuilder ifHeader = new StringBuilder();
+        for (String name : new String[] { "a", "b", "c" }) {
+            String path = folderPath + "/" + name;
+            resLocks.lock(mockTransaction, path, "owner", true, 0,
+                    TEMP_TIMEOUT, !TEMPORARY);
+            LockedObject lo = resLocks.getLockedObjectByPath(mockTransaction,
+                    path);
+            ifHeader.append("<http://localhost" + path + "> (<opaquelocktoken:"
+                    + lo.getID() + ">) ");
+        }
+        final String lockTokens = ifHeader.toString();
+
+        _mockery.checking(new Expectations() {
+            {
+                oneOf(mockReq).getAttribute("javax.servlet.include.request_uri");
+                will(returnValue(null));
+
+                oneOf(mockReq).getPathInfo();
+                will(returnValue(folderPath));
+
+                allowing(mockReq).getHeader("If");
+                will(returnValue(lockTokens));
+
+                StoredObject folderSo = initFolderStoredObject();
+
+                oneOf(mockStore).getStoredObject(mockTransaction, folderPath,
+                        null);
+                will(returnValue(folderSo));
+
+                oneOf(mockStore).getChildrenNames(mockTransaction, folderPath);
+                will(returnValue(new String[0]));
+
+                oneOf(mockStore).removeObject(mockTransaction, folderPath);
+
+                oneOf(mockRes).setStatus(WebdavStatus.SC_NO_CONTENT);
+            }
+        });
+
+        DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
+
+        doDelete.execute(mockTransaction, mockReq, mockRes);
+
+        _mockery.assertIsSatisfied();
+    }
+
     @Test
     public void testDeleteFileInLockedFolderWithRightLockToken()
             throws Exception {
@@ -1,9 +1,11 @@
 package net.sf.webdav.methods;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.util.Locale;
 
 import javax.servlet.http.HttpServletRequest;
@@ -11,11 +13,16 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.jmock.Expectations;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.springframework.mock.web.DelegatingServletInputStream;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 
 import net.sf.webdav.IMimeTyper;
 import net.sf.webdav.ITransaction;
+import net.sf.webdav.LocalFileSystemStore;
 import net.sf.webdav.IWebdavStore;
 import net.sf.webdav.StoredObject;
 import net.sf.webdav.WebdavStatus;
@@ -24,6 +31,9 @@ import net.sf.webdav.testutil.MockTest;
 
 public class DoGetTest extends MockTest {
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     IWebdavStore mockStore;
     IMimeTyper mockMimeTyper;
     HttpServletRequest mockReq;
@@ -153,7 +163,7 @@ public class DoGetTest extends MockTest {
                 oneOf(mockStore).getStoredObject(mockTransaction, "/foo/", null);
                 will(returnValue(fooSo));
 
-                oneOf(mockReq).getHeader("If-None-Match");
+                exactly(2).of(mockReq).getHeader("If-None-Match");
                 will(returnValue(null));
 
                 oneOf(mockStore).getStoredObject(mockTransaction, "/foo/", null);
@@ -161,6 +171,12 @@ public class DoGetTest extends MockTest {
 
                 allowing(mockReq).getLocale();
                 will(returnValue(Locale.GERMAN));
+
+                oneOf(mockReq).getDateHeader("If-Modified-Since");
+                will(returnValue(-1L));
+
+                oneOf(mockRes).setHeader(with(equal("ETag")), with(any(String.class)));
+                oneOf(mockRes).setDateHeader(with(equal("Last-Modified")), with(any(long.class)));
                 
                 oneOf(mockRes).setContentType("text/html");
 				oneOf(mockRes).setCharacterEncoding("UTF8");
@@ -173,10 +189,10 @@ public class DoGetTest extends MockTest {
                 oneOf(mockStore).getChildrenNames(mockTransaction, "/foo/");
                 will(returnValue(new String[] { "AAA", "BBB" }));
                 
-                oneOf(mockStore).getStoredObject(mockTransaction, "/foo//AAA", null);
+                oneOf(mockStore).getStoredObject(mockTransaction, "/foo/AAA", null);
                 will(returnValue(aaa));
 
-                oneOf(mockStore).getStoredObject(mockTransaction, "/foo//BBB", null);
+                oneOf(mockStore).getStoredObject(mockTransaction, "/foo/BBB", null);
 				will(returnValue(bbb));
 
             }
@@ -289,4 +305,63 @@ public class DoGetTest extends MockTest {
         _mockery.assertIsSatisfied();
     }
 
+    private static MockHttpServletResponse newResponse() {
+        return new MockHttpServletResponse() {
+            @Override
+            public void setContentType(String contentType) {
+                // the spring mock needs spring-web for parsing it
+            }
+        };
+    }
+
+    @Test
+    public void testFolderListingIsPagedAndCached() throws Exception {
+        File root = tmp.getRoot();
+        LocalFileSystemStore store = new LocalFileSystemStore(root);
+        store.createFolder(null, "/docs");
+        for (int i = 0; i < 25; i++)
+            store.createResource(null, "/docs/file" + (char) ('a' + i));
+        DoGet doGet = new DoGet(store, null, null, new ResourceLocks(),
+                mockMimeTyper, 0);
+        doGet.setFolderListing(store, 10);
+
+        MockHttpServletRequest req = new MockHttpServletRequest("GET", "/docs/");
+        req.setPathInfo("/docs/");
+        req.addParameter("page", "3");
+        MockHttpServletResponse resp = newResponse();
+        doGet.execute(null, req, resp);
+        String html = resp.getContentAsString();
+        assertTrue(html.contains("Page 3 of 3"));
+        assertTrue(html.contains("<a href=\"?page=2\">Previous</a>"));
+        assertTrue(html.contains(">filey</a>"));
+        assertFalse(html.contains(">filet</a>"));
+        String eTag = resp.getHeader("ETag");
+        assertTrue(eTag.startsWith("W/"));
+
+        req.addHeader("If-None-Match", eTag);
+        resp = newResponse();
+        doGet.execute(null, req, resp);
+        assertEquals(WebdavStatus.SC_NOT_MODIFIED, resp.getStatus());
+        assertEquals(eTag, resp.getHeader("ETag"));
+
+        // one of a list, and with the weak prefix dropped by a proxy
+        req = new MockHttpServletRequest("GET", "/docs/");
+        req.setPathInfo("/docs/");
+        req.addParameter("page", "3");
+        req.addHeader("If-None-Match", "\"a,b\", " + eTag.substring(2));
+        resp = newResponse();
+        doGet.execute(null, req, resp);
+        assertEquals(WebdavStatus.SC_NOT_MODIFIED, resp.getStatus());
+
+        // another page has its own tag
+        req = new MockHttpServletRequest("GET", "/docs/");
+        req.setPathInfo("/docs/");
+        req.addParameter("page", "1");
+        req.addHeader("If-None-Match", eTag);
+        resp = newResponse();
+        doGet.execute(null, req, resp);
+        assertEquals(200, resp.getStatus());
+        assertTrue(resp.getContentAsString().contains(">filea</a>"));
+    }
+
 }
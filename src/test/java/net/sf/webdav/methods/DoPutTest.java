@@ -17,6 +17,7 @@ import net.sf.webdav.locking.IResourceLocks;
 import net.sf.webdav.locking.LockedObject;
 import net.sf.webdav.locking.ResourceLocks;
 import net.sf.webdav.testutil.MockTest;
+import net.sf.webdav.upload.IStagedContentStore;
 
 public class DoPutTest extends MockTest {
     IWebdavStore mockStore;
@@ -107,6 +108,65 @@ public class DoPutTest extends MockTest {
         _mockery.assertIsSatisfied();
     }
 
+    @Test
+    public void testDoPutFirstPartDoesNotCreateResource() throws Exception {
+
+        final IStagedContentStore mockStagedStore = _mockery
+                .mock(IStagedContentStore.class);
+
+        _mockery.checking(new Expectations() {
+            {
+                oneOf(mockReq).getAttribute("javax.servlet.include.request_uri");
+                will(returnValue(null));
+
+                oneOf(mockReq).getPathInfo();
+                will(returnValue(path));
+
+                oneOf(mockReq).getHeader("User-Agent");
+                will(returnValue("Goliath agent"));
+
+                StoredObject parentSo = initFolderStoredObject();
+
+                oneOf(mockStore).getStoredObject(mockTransaction, parentPath, null);
+                will(returnValue(parentSo));
+
+                oneOf(mockReq).getHeader("Content-Range");
+                will(returnValue("bytes 0-7/16"));
+
+                oneOf(mockStore).getStoredObject(mockTransaction, path, null);
+                will(returnValue(null));
+
+                never(mockStore).createResource(mockTransaction, path);
+
+                oneOf(mockRes).setStatus(WebdavStatus.SC_CREATED);
+
+                oneOf(mockStagedStore).getStagedLength(mockTransaction, path);
+                will(returnValue(-1L));
+
+                oneOf(mockReq).getContentLengthLong();
+                will(returnValue(8L));
+
+                oneOf(mockReq).getInputStream();
+                will(returnValue(dsis));
+
+                oneOf(mockStagedStore).writeStagedContent(mockTransaction, path,
+                        0, dsis, 8);
+                will(returnValue(8L));
+
+                oneOf(mockRes).setHeader("Range", "bytes=0-7");
+
+                oneOf(mockRes).setStatus(WebdavStatus.SC_RESUME_INCOMPLETE);
+            }
+        });
+
+        DoPut doPut = new DoPut(mockStore, new ResourceLocks(), !readOnly,
+                lazyFolderCreationOnPut);
+        doPut.setStagedContentStore(mockStagedStore);
+        doPut.execute(mockTransaction, mockReq, mockRes);
+
+        _mockery.assertIsSatisfied();
+    }
+
     @Test
     public void testDoPutIfLazyFolderCreationOnPutIsFalse() throws Exception {
         _mockery.checking(new Expectations() {
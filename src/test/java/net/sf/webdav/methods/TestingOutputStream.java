@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 
 import org.junit.Ignore;
 
@@ -19,4 +20,12 @@ public class TestingOutputStream extends ServletOutputStream {
     public String toString() {
         return baos.toString();
     }
+
+    public boolean isReady() {
+        return true;
+    }
+
+    public void setWriteListener(WriteListener writeListener) {
+        throw new UnsupportedOperationException();
+    }
 }
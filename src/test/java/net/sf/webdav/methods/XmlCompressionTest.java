@@ -0,0 +1,97 @@
+package net.sf.webdav.methods;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+import net.sf.webdav.fromcatalina.XMLWriter;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class XmlCompressionTest {
+
+	@Test
+	public void testAcceptsGzip() {
+		Assert.assertTrue(AbstractMethod.acceptsGzip("gzip, deflate, br"));
+		Assert.assertTrue(AbstractMethod.acceptsGzip("deflate;q=1.0, GZIP;q=0.5"));
+		Assert.assertTrue(AbstractMethod.acceptsGzip("*"));
+		Assert.assertFalse(AbstractMethod.acceptsGzip("gzip;q=0"));
+		Assert.assertFalse(AbstractMethod.acceptsGzip("identity"));
+		Assert.assertFalse(AbstractMethod.acceptsGzip(null));
+	}
+
+	@Test
+	public void testSmallResponseIsNotCompressed() throws Exception {
+		MockHttpServletResponse resp = new MockHttpServletResponse();
+		GzipResponseStream out = new GzipResponseStream(resp, 6, 1024);
+		out.write("<small/>".getBytes(StandardCharsets.UTF_8));
+		out.flush();
+		Assert.assertEquals(0, resp.getContentAsByteArray().length);
+		out.close();
+
+		Assert.assertNull(resp.getHeader("Content-Encoding"));
+		Assert.assertEquals(8, resp.getContentLength());
+		Assert.assertEquals("<small/>", resp.getContentAsString());
+	}
+
+	@Test
+	public void testStreamedXmlIsCompressed() throws Exception {
+		MockHttpServletResponse resp = new MockHttpServletResponse();
+		GzipResponseStream out = new GzipResponseStream(resp, 6, 1024);
+		XMLWriter generatedXML = new XMLWriter(new OutputStreamWriter(out,
+				StandardCharsets.UTF_8), Collections.singletonMap("DAV:", "D"));
+		generatedXML.setFlushThreshold(512);
+		generatedXML.writeXMLHeader();
+		generatedXML.writeElement("DAV::multistatus", XMLWriter.OPENING);
+		for (int i = 0; i < 2000; i++) {
+			generatedXML.writeElement("DAV::response", XMLWriter.OPENING);
+			generatedXML.writeProperty("DAV::href", "/folder/file" + i + ".txt");
+			generatedXML.writeElement("DAV::response", XMLWriter.CLOSING);
+		}
+		// streamed: only the tail is still buffered
+		Assert.assertTrue(generatedXML.toString().length() < 512);
+		generatedXML.writeElement("DAV::multistatus", XMLWriter.CLOSING);
+		generatedXML.sendData();
+		generatedXML.getWriter().close();
+
+		Assert.assertEquals("gzip", resp.getHeader("Content-Encoding"));
+		byte[] compressed = resp.getContentAsByteArray();
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			byte[] buf = new byte[8192];
+			int read;
+			while ((read = in.read(buf)) != -1)
+				plain.write(buf, 0, read);
+		}
+		String xml = plain.toString("UTF-8");
+		Assert.assertTrue(xml.startsWith("<?xml"));
+		Assert.assertTrue(xml.contains("<D:href>/folder/file1999.txt</D:href>"));
+		Assert.assertTrue(xml.endsWith("</D:multistatus>\n"));
+		Assert.assertTrue(compressed.length * 5 < xml.length());
+	}
+
+	@Test
+	public void testUncompressedXmlIsBuffered() throws Exception {
+		DoOptions method = new DoOptions(null, null);
+		method.setResponseCompression(6, 1024);
+		MockHttpServletRequest req = new MockHttpServletRequest("PROPFIND", "/");
+		MockHttpServletResponse resp = new MockHttpServletResponse();
+		XMLWriter generatedXML = method.createXmlWriter(req, resp,
+				Collections.singletonMap("DAV:", "D"));
+		generatedXML.writeElement("DAV::multistatus", XMLWriter.OPENING);
+		for (int i = 0; i < 2000; i++)
+			generatedXML.writeProperty("DAV::href", "/folder/file" + i + ".txt");
+
+		// the client did not ask for gzip, nothing is committed yet
+		Assert.assertFalse(resp.isCommitted());
+		Assert.assertEquals(0, resp.getContentAsByteArray().length);
+		Assert.assertTrue(generatedXML.toString().length() > 2000 * 20);
+	}
+}
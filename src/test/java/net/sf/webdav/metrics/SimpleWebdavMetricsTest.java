@@ -0,0 +1,101 @@
+package net.sf.webdav.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.webdav.locking.ResourceLocksTest;
+
+public class SimpleWebdavMetricsTest {
+
+	private SimpleWebdavMetrics metrics;
+
+	@Before
+	public void setup() {
+		metrics = new SimpleWebdavMetrics();
+	}
+
+	@Test
+	public void testHistogramBuckets() {
+		Assert.assertEquals(0, LatencyHistogram.bucketOf(0));
+		Assert.assertEquals(0, LatencyHistogram.bucketOf(1));
+		Assert.assertEquals(1, LatencyHistogram.bucketOf(2));
+		Assert.assertEquals(1, LatencyHistogram.bucketOf(3));
+		Assert.assertEquals(10, LatencyHistogram.bucketOf(1024));
+		Assert.assertEquals(LatencyHistogram.BUCKETS - 1,
+				LatencyHistogram.bucketOf(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testHistogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		Assert.assertEquals(0, histogram.getPercentileMicros(99));
+		for (int i = 0; i < 99; i++)
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+		Assert.assertEquals(100, histogram.getCount());
+		Assert.assertEquals(50000, histogram.getMaxMicros());
+		// 100us lands in [64, 128)
+		Assert.assertEquals(128, histogram.getPercentileMicros(50));
+		Assert.assertEquals(128, histogram.getPercentileMicros(99));
+		Assert.assertEquals(50000, histogram.getPercentileMicros(100));
+
+		histogram.reset();
+		Assert.assertEquals(0, histogram.getCount());
+	}
+
+	@Test
+	public void testRequests() {
+		metrics.requestStarted("GET");
+		metrics.requestStarted("GET");
+		Assert.assertEquals(2, metrics.getMethodStats().get("GET").getInFlight());
+
+		metrics.requestFinished("GET", 200, 1000, 0, 512);
+		metrics.requestFinished("GET", 404, 1000, 0, 0);
+
+		SimpleWebdavMetrics.MethodStats stats = metrics.getMethodStats().get("GET");
+		Assert.assertEquals(0, stats.getInFlight());
+		Assert.assertEquals(2, stats.getLatency().getCount());
+		Assert.assertEquals(512, stats.getBytesOut());
+		Assert.assertEquals(Long.valueOf(1), stats.getStatusCounts().get(404));
+	}
+
+	@Test
+	public void testLockContention() throws Exception {
+		MeteredResourceLocks locks = new MeteredResourceLocks(null, metrics);
+		Assert.assertTrue(locks.lock(ResourceLocksTest.USER, "/file", "owner",
+				true, 0, 10, true));
+		Assert.assertFalse(locks.lock(ResourceLocksTest.OTHER_USER, "/file",
+				"other", true, 0, 10, true));
+		locks.unlockTemporaryLockedObjects(ResourceLocksTest.USER, "/file",
+				"owner");
+
+		Assert.assertEquals(2, metrics.getLockWait().getCount());
+		Assert.assertEquals(1, metrics.getLockFailures());
+		Assert.assertEquals(1, metrics.getLockHold().getCount());
+	}
+
+	@Test
+	public void testLockHoldByID() throws Exception {
+		MeteredResourceLocks locks = new MeteredResourceLocks(null, metrics);
+		Assert.assertTrue(locks.lock(ResourceLocksTest.USER, "/file", "owner",
+				true, 0, 10, false));
+		String id = locks.getLockedObjectByPath(ResourceLocksTest.USER, "/file")
+				.getID();
+		Assert.assertTrue(locks.unlock(ResourceLocksTest.USER, id, "owner"));
+		Assert.assertEquals(1, metrics.getLockHold().getCount());
+
+		// tracking is bounded, the oldest locks are forgotten first
+		for (int i = 0; i < 10005; i++)
+			locks.lock(ResourceLocksTest.USER, "/many/file" + i, "owner", true, 0,
+					10, true);
+		locks.unlockTemporaryLockedObjects(ResourceLocksTest.USER, "/many/file0",
+				"owner");
+		locks.unlockTemporaryLockedObjects(ResourceLocksTest.USER,
+				"/many/file10004", "owner");
+		Assert.assertEquals(2, metrics.getLockHold().getCount());
+	}
+}
@@ -0,0 +1,102 @@
+package net.sf.webdav.props;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FilePropertyStoreTest {
+
+	private static final String WIN32 = "urn:schemas-microsoft-com::Win32FileAttributes";
+	private static final String AUTHOR = "http://example.com/ns:author";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+	private FilePropertyStore store;
+
+	@Before
+	public void setup() throws Exception {
+		root = tmp.getRoot();
+		store = new FilePropertyStore(root);
+	}
+
+	@Test
+	public void testSetAndRemove() {
+		Assert.assertTrue(store.getProperties(null, "/folder/file.doc").isEmpty());
+
+		store.setProperties(null, "/folder/file.doc",
+				Collections.singletonMap(WIN32, "00000020"), null);
+		store.setProperties(null, "/folder/file.doc",
+				Collections.singletonMap(AUTHOR, "me"), null);
+		Map<String, String> props = store.getProperties(null, "/folder/file.doc");
+		Assert.assertEquals("00000020", props.get(WIN32));
+		Assert.assertEquals("me", props.get(AUTHOR));
+
+		store.setProperties(null, "/folder/file.doc", null, Arrays.asList(WIN32));
+		Assert.assertFalse(store.getProperties(null, "/folder/file.doc").containsKey(WIN32));
+
+		// survives a restart
+		FilePropertyStore reopened = new FilePropertyStore(root);
+		Assert.assertEquals("me", reopened.getProperties(null, "/folder/file.doc").get(AUTHOR));
+	}
+
+	@Test
+	public void testChildPropertiesInOneRead() {
+		store.setProperties(null, "/", Collections.singletonMap(AUTHOR, "root"), null);
+		store.setProperties(null, "/a.txt", Collections.singletonMap(AUTHOR, "a"), null);
+		store.setProperties(null, "/b.txt", Collections.singletonMap(AUTHOR, "b"), null);
+
+		Map<String, Map<String, String>> children = store.getChildProperties(null, "/");
+		Assert.assertEquals(2, children.size());
+		Assert.assertEquals("a", children.get("a.txt").get(AUTHOR));
+		Assert.assertEquals("root", store.getProperties(null, "/").get(AUTHOR));
+		Assert.assertTrue(new File(root, FilePropertyStore.FILE_NAME).isFile());
+	}
+
+	@Test
+	public void testCopyMoveAndDeleteSubtree() {
+		store.setProperties(null, "/src", Collections.singletonMap(AUTHOR, "folder"), null);
+		store.setProperties(null, "/src/sub/file", Collections.singletonMap(AUTHOR, "file"), null);
+
+		store.copyProperties(null, "/src", "/copy");
+		Assert.assertEquals("folder", store.getProperties(null, "/copy").get(AUTHOR));
+		Assert.assertEquals("file", store.getProperties(null, "/copy/sub/file").get(AUTHOR));
+
+		store.moveProperties(null, "/copy", "/moved");
+		Assert.assertTrue(store.getProperties(null, "/copy").isEmpty());
+		Assert.assertTrue(store.getProperties(null, "/copy/sub/file").isEmpty());
+		Assert.assertEquals("file", store.getProperties(null, "/moved/sub/file").get(AUTHOR));
+
+		store.removeProperties(null, "/src");
+		Assert.assertTrue(store.getProperties(null, "/src").isEmpty());
+		Assert.assertTrue(store.getProperties(null, "/src/sub/file").isEmpty());
+		Assert.assertFalse(new File(root, "src").exists());
+	}
+
+	@Test
+	public void testFolderNamedLikePropertyFile() {
+		store.setProperties(null, "/a/" + FilePropertyStore.FILE_NAME,
+				Collections.singletonMap(AUTHOR, "folder"), null);
+		store.setProperties(null, "/a/" + FilePropertyStore.FILE_NAME + "/x",
+				Collections.singletonMap(AUTHOR, "child"), null);
+		store.setProperties(null, "/a/~b/y", Collections.singletonMap(AUTHOR,
+				"tilde"), null);
+
+		FilePropertyStore reopened = new FilePropertyStore(root);
+		Assert.assertEquals("folder", reopened.getProperties(null,
+				"/a/" + FilePropertyStore.FILE_NAME).get(AUTHOR));
+		Assert.assertEquals("child", reopened.getProperties(null,
+				"/a/" + FilePropertyStore.FILE_NAME + "/x").get(AUTHOR));
+		Assert.assertEquals("tilde", reopened.getProperties(null, "/a/~b/y")
+				.get(AUTHOR));
+		Assert.assertTrue(reopened.getProperties(null, "/a/b/y").isEmpty());
+	}
+}
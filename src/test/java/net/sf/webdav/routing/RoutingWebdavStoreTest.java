@@ -0,0 +1,214 @@
+package net.sf.webdav.routing;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.IWebdavStore;
+import net.sf.webdav.LocalFileSystemStore;
+import net.sf.webdav.StoredObject;
+import net.sf.webdav.async.IContentSink;
+import net.sf.webdav.exceptions.AccessDeniedException;
+import net.sf.webdav.exceptions.WebdavException;
+import net.sf.webdav.testutil.SlowWebdavStore;
+import net.sf.webdav.testutil.Streams;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RoutingWebdavStoreTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setup() throws Exception {
+		dir = tmp.getRoot();
+	}
+
+	private LocalFileSystemStore store(String name) {
+		File root = new File(dir, name);
+		root.mkdirs();
+		return new LocalFileSystemStore(root);
+	}
+
+	private static void put(IWebdavStore store, ITransaction transaction,
+			String path, String text) {
+		store.createResource(transaction, path);
+		store.setResourceContent(transaction, path, new ByteArrayInputStream(
+				text.getBytes(StandardCharsets.UTF_8)), null, null);
+	}
+
+	private static String[] sorted(String[] names) {
+		Arrays.sort(names);
+		return names;
+	}
+
+	@Test
+	public void testMounts() throws Exception {
+		RoutingWebdavStore store = new RoutingWebdavStore(store("root"));
+		store.mount("/archive", store("archive"));
+		store.mount("/data/disk2", store("disk2"));
+
+		ITransaction transaction = store.begin(null);
+		put(store, transaction, "/top.txt", "top");
+		put(store, transaction, "/archive/old.txt", "old");
+		store.createFolder(transaction, "/data/disk2/photos");
+		put(store, transaction, "/data/disk2/photos/a.jpg", "jpg");
+		store.commit(transaction);
+
+		Assert.assertTrue(new File(dir, "root/top.txt").isFile());
+		Assert.assertTrue(new File(dir, "archive/old.txt").isFile());
+		Assert.assertTrue(new File(dir, "disk2/photos/a.jpg").isFile());
+		Assert.assertEquals("jpg", Streams.read(store.getResourceContent(null,
+				"/data/disk2/photos/a.jpg")));
+
+		// mount points and the folders above them are listed
+		Assert.assertArrayEquals(new String[] { "archive", "data", "top.txt" },
+				sorted(store.getChildrenNames(null, "/")));
+		Assert.assertArrayEquals(new String[] { "disk2" },
+				store.getChildrenNames(null, "/data"));
+		Assert.assertTrue(store.getStoredObject(null, "/data", null).isFolder());
+		Assert.assertTrue(store.getStoredObject(null, "/archive", null).isFolder());
+		Assert.assertNull(store.getStoredObject(null, "/archive/missing", null));
+
+		try {
+			store.removeObject(null, "/data");
+			Assert.fail("removed a mount point");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+		store.destroy();
+	}
+
+	@Test
+	public void testShards() throws Exception {
+		RoutingWebdavStore store = new RoutingWebdavStore(store("root"));
+		store.shard("/users", store("shard0"), store("shard1"), store("shard2"));
+
+		for (int i = 0; i < 30; i++) {
+			store.createFolder(null, "/users/user" + i);
+			put(store, null, "/users/user" + i + "/profile", "user " + i);
+		}
+		int[] perShard = new int[3];
+		for (int i = 0; i < 3; i++)
+			perShard[i] = new File(dir, "shard" + i).list().length;
+		Assert.assertEquals(30, perShard[0] + perShard[1] + perShard[2]);
+		for (int i = 0; i < 3; i++)
+			Assert.assertTrue(perShard[i] > 0);
+
+		Assert.assertEquals(30, store.getChildrenNames(null, "/users").length);
+		Assert.assertTrue(store.getStoredObject(null, "/users", null).isFolder());
+		for (int i = 0; i < 30; i++)
+			Assert.assertEquals("user " + i, Streams.read(store.getResourceContent(null,
+					"/users/user" + i + "/profile")));
+		store.destroy();
+	}
+
+	@Test
+	public void testMoveBetweenStores() throws Exception {
+		RoutingWebdavStore store = new RoutingWebdavStore(store("root"));
+		store.mount("/archive", store("archive"));
+		// the local store moves by COPY and DELETE
+		Assert.assertFalse(store.supportsMoveOperation());
+
+		ITransaction transaction = store.begin(null);
+		store.createFolder(transaction, "/project");
+		store.createFolder(transaction, "/project/docs");
+		put(store, transaction, "/project/docs/readme.txt", "readme");
+		put(store, transaction, "/project/build.xml", "build");
+
+		store.moveResource(transaction, "/project", "/archive/project-2020");
+		store.commit(transaction);
+
+		Assert.assertNull(store.getStoredObject(null, "/project", null));
+		Assert.assertFalse(new File(dir, "root/project").exists());
+		Assert.assertEquals("readme", Streams.read(store.getResourceContent(null,
+				"/archive/project-2020/docs/readme.txt")));
+		Assert.assertEquals("build", Streams.read(new ByteArrayInputStream(Files
+				.readAllBytes(new File(dir, "archive/project-2020/build.xml")
+						.toPath()))));
+
+		try {
+			store.moveResource(null, "/archive", "/elsewhere");
+			Assert.fail("moved a mount point");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+		store.destroy();
+	}
+
+	@Test
+	public void testExtensionsRouted() throws Exception {
+		RoutingWebdavStore store = new RoutingWebdavStore(store("root"));
+		store.mount("/archive", store("archive"));
+		// a store without any of the extensions
+		store.mount("/plain", new SlowWebdavStore(store("plain"), 0));
+		put(store, null, "/top.txt", "top");
+		put(store, null, "/plain/a.txt", "a");
+
+		// folder listings include the mount points
+		Map<String, StoredObject> children = store.listChildren(null, "/");
+		Assert.assertEquals(3, children.size());
+		Assert.assertTrue(children.get("archive").isFolder());
+		Assert.assertTrue(children.get("plain").isFolder());
+		Assert.assertFalse(children.get("top.txt").isFolder());
+		children = store.listChildren(null, "/plain");
+		Assert.assertEquals(1, children.size());
+		Assert.assertEquals(1, children.get("a.txt").getResourceLength());
+
+		// resumable uploads go to the mounted store
+		ITransaction transaction = store.begin(null);
+		store.writeStagedContent(transaction, "/archive/big.bin", 0,
+				new ByteArrayInputStream("part".getBytes(StandardCharsets.UTF_8)), 4);
+		Assert.assertEquals(4, store.getStagedLength(transaction, "/archive/big.bin"));
+		store.createResource(transaction, "/archive/big.bin");
+		store.commitStagedContent(transaction, "/archive/big.bin");
+		store.commit(transaction);
+		Assert.assertEquals("part", Streams.read(new ByteArrayInputStream(Files
+				.readAllBytes(new File(dir, "archive/big.bin").toPath()))));
+		Assert.assertEquals(-1, store.getStagedLength(null, "/plain/big.bin"));
+		try {
+			store.writeStagedContent(null, "/plain/big.bin", 0,
+					new ByteArrayInputStream(new byte[1]), 1);
+			Assert.fail("staged below a store without resumable uploads");
+		} catch (WebdavException e) {
+			// expected
+		}
+		Assert.assertEquals(-1, store.getEncodedLength(null, "/plain/a.txt", "gzip"));
+
+		// async uploads to a plain store are stored with the blocking call
+		store.createResource(null, "/plain/async.txt");
+		IContentSink sink = store.openResourceContent(null, "/plain/async.txt",
+				null, null);
+		final CountDownLatch written = new CountDownLatch(1);
+		sink.write(ByteBuffer.wrap("async".getBytes(StandardCharsets.UTF_8)),
+				new CompletionHandler<Void, Void>() {
+					@Override
+					public void completed(Void result, Void attachment) {
+						written.countDown();
+					}
+
+					@Override
+					public void failed(Throwable exc, Void attachment) {
+					}
+				});
+		written.await();
+		Assert.assertEquals(5, sink.commit());
+		Assert.assertEquals("async", Streams.read(store.getResourceContent(null,
+				"/plain/async.txt")));
+		store.destroy();
+	}
+}
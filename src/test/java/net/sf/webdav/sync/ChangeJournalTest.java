@@ -0,0 +1,181 @@
+package net.sf.webdav.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import net.sf.webdav.LocalFileSystemStore;
+import net.sf.webdav.locking.ResourceLocks;
+import net.sf.webdav.methods.DoReport;
+import net.sf.webdav.xml.DavRequestParser;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class ChangeJournalTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+
+	@Before
+	public void setup() throws Exception {
+		root = tmp.getRoot();
+	}
+
+	@Test
+	public void testChangesSinceToken() {
+		ChangeJournal journal = new ChangeJournal(null, 100);
+		journal.recordChange("/docs", "a.txt");
+		String token = journal.getToken();
+		journal.recordChange("/docs/", "b.txt");
+		journal.recordChange("/other", "c.txt");
+		journal.recordChange("/docs", "a.txt");
+		journal.recordDelete("/docs", "b.txt");
+
+		ChangeJournal.Changes changes = journal.getChanges("/docs", token);
+		Map<String, Boolean> members = changes.getMembers();
+		Assert.assertEquals(Arrays.asList("a.txt", "b.txt"),
+				Arrays.asList(members.keySet().toArray()));
+		Assert.assertFalse(members.get("a.txt"));
+		Assert.assertTrue(members.get("b.txt"));
+		Assert.assertEquals(journal.getToken(), changes.getToken());
+
+		Assert.assertTrue(journal.getChanges("/docs", changes.getToken())
+				.getMembers().isEmpty());
+		Assert.assertTrue(journal.getChanges("/unknown", token).getMembers()
+				.isEmpty());
+	}
+
+	@Test
+	public void testInvalidTokens() {
+		ChangeJournal journal = new ChangeJournal(null, 4);
+		String first = journal.getToken();
+		Assert.assertNull(journal.getChanges("/docs", "urn:other:1"));
+		// a token from the future
+		Assert.assertNull(journal.getChanges("/docs", first.replaceAll("\\d+$",
+				"99")));
+
+		for (int i = 0; i < 5; i++)
+			journal.recordChange("/docs", "file" + i);
+		// truncated to the newest half, the first token misses changes
+		Assert.assertNull(journal.getChanges("/docs", first));
+		Assert.assertNotNull(journal.getChanges("/other", first));
+
+		String token = journal.getToken();
+		journal.removeCollection("/docs");
+		Assert.assertNull(journal.getChanges("/docs", token));
+		Assert.assertNotNull(journal.getChanges("/docs", journal.getToken()));
+	}
+
+	@Test
+	public void testPersistence() {
+		File dir = new File(root, "journal");
+		ChangeJournal journal = new ChangeJournal(dir, 100);
+		String token = journal.getToken();
+		journal.recordChange("", "top.txt");
+		journal.recordChange("/docs", "a.txt");
+		journal.recordDelete("/docs", "old.txt");
+		String last = journal.getToken();
+
+		ChangeJournal reopened = new ChangeJournal(dir, 100);
+		Assert.assertEquals(last, reopened.getToken());
+		Assert.assertEquals(Collections.singleton("top.txt"), reopened
+				.getChanges("/", token).getMembers().keySet());
+		Map<String, Boolean> members = reopened.getChanges("/docs", token)
+				.getMembers();
+		Assert.assertEquals(2, members.size());
+		Assert.assertTrue(members.get("old.txt"));
+
+		// tokens of an in memory journal are not valid for another one
+		Assert.assertNull(new ChangeJournal(null, 100).getChanges("/docs", last));
+	}
+
+	@Test
+	public void testSyncCollectionReport() throws Exception {
+		File content = new File(root, "content");
+		content.mkdirs();
+		LocalFileSystemStore local = new LocalFileSystemStore(content);
+		JournalingWebdavStore store = new JournalingWebdavStore(local,
+				new ChangeJournal(null, 100));
+		Assert.assertTrue(store.getConfig().getSupportedReportSets().contains(
+				JournalingWebdavStore.SYNC_COLLECTION));
+		// stores without a journal do not advertise it
+		Assert.assertFalse(local.getConfig().getSupportedReportSets().contains(
+				JournalingWebdavStore.SYNC_COLLECTION));
+		store.createFolder(null, "/docs");
+		store.createResource(null, "/docs/a.txt");
+		store.setResourceContent(null, "/docs/a.txt", new ByteArrayInputStream(
+				"a".getBytes(StandardCharsets.UTF_8)), null, null);
+		store.createResource(null, "/docs/b.txt");
+
+		for (DavRequestParser parser : new DavRequestParser[] { null,
+				new DavRequestParser(0) }) {
+			String xml = report(store, parser, "");
+			Assert.assertTrue(xml, xml.contains("/docs/a.txt"));
+			Assert.assertTrue(xml.contains("/docs/b.txt"));
+			String token = xml.substring(xml.indexOf(ChangeJournal.TOKEN_PREFIX),
+					xml.indexOf("</D:sync-token>"));
+
+			store.removeObject(null, "/docs/b.txt");
+			store.createResource(null, "/docs/c.txt");
+			xml = report(store, parser, token);
+			Assert.assertFalse(xml, xml.contains("/docs/a.txt"));
+			Assert.assertTrue(xml.contains("/docs/c.txt"));
+			int deleted = xml.indexOf("/docs/b.txt");
+			Assert.assertTrue(xml.indexOf("404", deleted) > deleted);
+
+			store.createResource(null, "/docs/b.txt");
+			store.removeObject(null, "/docs/c.txt");
+		}
+
+		MockHttpServletResponse resp = execute(store, null, report(
+				"urn:webdav-servlet:sync:0:0"));
+		Assert.assertEquals(403, resp.getStatus());
+		Assert.assertTrue(resp.getContentAsString().contains("valid-sync-token"));
+	}
+
+	private static String report(String token) {
+		return "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+				+ "<D:sync-collection xmlns:D=\"DAV:\">"
+				+ "<D:sync-token>" + token + "</D:sync-token>"
+				+ "<D:sync-level>1</D:sync-level>"
+				+ "<D:prop><D:getetag/></D:prop></D:sync-collection>";
+	}
+
+	private static String report(JournalingWebdavStore store,
+			DavRequestParser parser, String token) throws Exception {
+		MockHttpServletResponse resp = execute(store, parser, report(token));
+		Assert.assertEquals(207, resp.getStatus());
+		return resp.getContentAsString();
+	}
+
+	private static MockHttpServletResponse execute(
+			JournalingWebdavStore store, DavRequestParser parser, String body)
+			throws Exception {
+		DoReport doReport = new DoReport(store, new ResourceLocks());
+		doReport.setChangeJournal(store.getJournal());
+		doReport.setRequestParser(parser);
+		MockHttpServletRequest req = new MockHttpServletRequest("REPORT", "/docs");
+		req.setPathInfo("/docs");
+		req.setContent(body.getBytes(StandardCharsets.UTF_8));
+		MockHttpServletResponse resp = new MockHttpServletResponse() {
+			@Override
+			public void setContentType(String contentType) {
+				// the spring mock needs spring-web for parsing it
+			}
+		};
+		resp.setCharacterEncoding("UTF-8");
+		doReport.execute(null, req, resp);
+		return resp;
+	}
+}
@@ -0,0 +1,123 @@
+package net.sf.webdav.testutil;
+
+import java.io.InputStream;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.webdav.DelegatingWebdavStore;
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.IWebdavStore;
+import net.sf.webdav.StoredObject;
+import net.sf.webdav.exceptions.WebdavException;
+
+/**
+ * Stand-in for a database or network backed store: every call to the
+ * wrapped store is delayed and counted, and the store can be switched to
+ * fail.
+ */
+public class SlowWebdavStore extends DelegatingWebdavStore {
+
+	private volatile long _latencyMillis;
+
+	private volatile boolean _failing = false;
+
+	private final AtomicInteger _calls = new AtomicInteger();
+
+	public SlowWebdavStore(IWebdavStore delegate, long latencyMillis) {
+		super(delegate);
+		_latencyMillis = latencyMillis;
+	}
+
+	public void setLatency(long latencyMillis) {
+		_latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * @param failing
+	 *            true to throw from every reading or writing call
+	 */
+	public void setFailing(boolean failing) {
+		_failing = failing;
+	}
+
+	/**
+	 * @return number of reading and writing calls so far
+	 */
+	public int getCalls() {
+		return _calls.get();
+	}
+
+	private void call() {
+		_calls.incrementAndGet();
+		if (_failing)
+			throw new WebdavException("backend unavailable");
+		if (_latencyMillis > 0) {
+			try {
+				Thread.sleep(_latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new WebdavException(e);
+			}
+		}
+	}
+
+	@Override
+	public void createFolder(ITransaction transaction, String folderUri) {
+		call();
+		super.createFolder(transaction, folderUri);
+	}
+
+	@Override
+	public void createResource(ITransaction transaction, String resourceUri) {
+		call();
+		super.createResource(transaction, resourceUri);
+	}
+
+	@Override
+	public InputStream getResourceContent(ITransaction transaction,
+			String resourceUri) {
+		call();
+		return super.getResourceContent(transaction, resourceUri);
+	}
+
+	@Override
+	public long setResourceContent(ITransaction transaction,
+			String resourceUri, InputStream content, String contentType,
+			String characterEncoding) {
+		call();
+		return super.setResourceContent(transaction, resourceUri, content,
+				contentType, characterEncoding);
+	}
+
+	@Override
+	public String[] getChildrenNames(ITransaction transaction, String folderUri) {
+		call();
+		return super.getChildrenNames(transaction, folderUri);
+	}
+
+	@Override
+	public long getResourceLength(ITransaction transaction, String path) {
+		call();
+		return super.getResourceLength(transaction, path);
+	}
+
+	@Override
+	public void removeObject(ITransaction transaction, String uri) {
+		call();
+		super.removeObject(transaction, uri);
+	}
+
+	@Override
+	public StoredObject getStoredObject(ITransaction transaction, String uri,
+			Vector<String> properties) {
+		call();
+		return super.getStoredObject(transaction, uri, properties);
+	}
+
+	@Override
+	public void moveResource(ITransaction transaction, String sourceUri,
+			String destinationUri) {
+		call();
+		super.moveResource(transaction, sourceUri, destinationUri);
+	}
+}
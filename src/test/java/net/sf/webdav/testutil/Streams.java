@@ -0,0 +1,32 @@
+package net.sf.webdav.testutil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the content returned by a store in tests.
+ */
+public final class Streams {
+
+	private Streams() {
+	}
+
+	/**
+	 * @return the remaining bytes, the stream is closed
+	 */
+	public static byte[] readBytes(InputStream in) throws IOException {
+		try {
+			return in.readAllBytes();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the remaining bytes as UTF-8 text, the stream is closed
+	 */
+	public static String read(InputStream in) throws IOException {
+		return new String(readBytes(in), StandardCharsets.UTF_8);
+	}
+}
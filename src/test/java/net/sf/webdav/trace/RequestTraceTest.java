@@ -0,0 +1,51 @@
+package net.sf.webdav.trace;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequestTraceTest {
+
+	@After
+	public void cleanup() {
+		RequestTrace.finish();
+	}
+
+	@Test
+	public void testNoTraceIsNoop() {
+		Assert.assertNull(RequestTrace.current());
+		RequestTrace.start("store.getStoredObject").end();
+		Assert.assertNull(RequestTrace.finish());
+	}
+
+	@Test
+	public void testSiblingsAreMerged() {
+		RequestTrace.begin("PROPFIND", "/folder");
+		RequestTrace.start("store.getChildrenNames").end();
+		for (int i = 0; i < 3; i++) {
+			RequestTrace.Span resource = RequestTrace.start("propfind.resource");
+			RequestTrace.start("store.getStoredObject").end();
+			resource.end();
+		}
+		RequestTrace trace = RequestTrace.finish();
+
+		Assert.assertNotNull(trace);
+		Assert.assertNull(RequestTrace.current());
+		Assert.assertTrue(trace.getDurationNanos() >= 0);
+
+		List<RequestTrace.Node> children = trace.getRoot().getChildren();
+		Assert.assertEquals(2, children.size());
+		Assert.assertEquals("store.getChildrenNames", children.get(0).getName());
+		Assert.assertEquals(1, children.get(0).getCount());
+
+		RequestTrace.Node resource = children.get(1);
+		Assert.assertEquals(3, resource.getCount());
+		Assert.assertEquals(1, resource.getChildren().size());
+		Assert.assertEquals(3, resource.getChildren().get(0).getCount());
+
+		Assert.assertTrue(trace.dump().startsWith("PROPFIND /folder x1"));
+		Assert.assertTrue(trace.dump().contains("    store.getStoredObject x3"));
+	}
+}
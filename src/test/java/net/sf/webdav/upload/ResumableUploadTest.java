@@ -0,0 +1,140 @@
+package net.sf.webdav.upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import net.sf.webdav.ITransaction;
+import net.sf.webdav.LocalFileSystemStore;
+import net.sf.webdav.exceptions.AccessDeniedException;
+import net.sf.webdav.exceptions.WebdavException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResumableUploadTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+	private LocalFileSystemStore store;
+
+	@Before
+	public void setup() throws Exception {
+		root = tmp.getRoot();
+		store = new LocalFileSystemStore(root);
+	}
+
+	@Test
+	public void testParseContentRange() {
+		ContentRange range = ContentRange.parse("bytes 0-1048575/21474836480");
+		Assert.assertFalse(range.isQuery());
+		Assert.assertEquals(0, range.getFirst());
+		Assert.assertEquals(1048575, range.getLast());
+		Assert.assertEquals(1048576, range.getLength());
+		Assert.assertEquals(21474836480L, range.getTotal());
+
+		Assert.assertEquals(-1, ContentRange.parse("bytes 10-19/*").getTotal());
+
+		range = ContentRange.parse("bytes */100");
+		Assert.assertTrue(range.isQuery());
+		Assert.assertEquals(100, range.getTotal());
+
+		Assert.assertNull(ContentRange.parse("bytes */*"));
+		Assert.assertNull(ContentRange.parse("bytes 10-5/100"));
+		Assert.assertNull(ContentRange.parse("bytes 0-100/100"));
+		Assert.assertNull(ContentRange.parse("items 0-1/2"));
+		Assert.assertNull(ContentRange.parse("bytes 0-x/2"));
+	}
+
+	@Test
+	public void testStageAndCommit() throws Exception {
+		byte[] data = new byte[300];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		store.createResource(null, "/big.bin");
+		Assert.assertEquals(-1, store.getStagedLength(null, "/big.bin"));
+
+		Assert.assertEquals(100, store.writeStagedContent(null, "/big.bin", 0,
+				new ByteArrayInputStream(data, 0, 100), 100));
+		// resent overlapping part, more bytes than announced are ignored
+		Assert.assertEquals(200, store.writeStagedContent(null, "/big.bin", 50,
+				new ByteArrayInputStream(data, 50, 250), 150));
+		Assert.assertEquals(200, store.getStagedLength(null, "/big.bin"));
+		Assert.assertEquals(0, new File(root, "big.bin").length());
+		Assert.assertEquals(Arrays.asList("big.bin"),
+				Arrays.asList(store.getChildrenNames(null, "/")));
+
+		try {
+			store.writeStagedContent(null, "/big.bin", 250,
+					new ByteArrayInputStream(data, 250, 50), 50);
+			Assert.fail("gap must be rejected");
+		} catch (WebdavException e) {
+			// expected
+		}
+
+		store.writeStagedContent(null, "/big.bin", 200,
+				new ByteArrayInputStream(data, 200, 100), 100);
+		Assert.assertEquals(300, store.commitStagedContent(null, "/big.bin"));
+		Assert.assertTrue(Arrays.equals(data,
+				Files.readAllBytes(new File(root, "big.bin").toPath())));
+		Assert.assertEquals(-1, store.getStagedLength(null, "/big.bin"));
+	}
+
+	@Test
+	public void testDiscard() {
+		store.writeStagedContent(null, "/file", 0,
+				new ByteArrayInputStream(new byte[10]), 10);
+		store.discardStagedContent(null, "/file");
+		Assert.assertEquals(-1, store.getStagedLength(null, "/file"));
+		Assert.assertFalse(new File(root, "file").exists());
+	}
+
+	@Test
+	public void testStagingIsPrivate() throws Exception {
+		ITransaction alice = () -> () -> "alice";
+		ITransaction bob = () -> () -> "bob";
+		store.writeStagedContent(alice, "/shared.bin", 0,
+				new ByteArrayInputStream(new byte[10]), 10);
+		Assert.assertEquals(10, store.getStagedLength(alice, "/shared.bin"));
+		Assert.assertEquals(-1, store.getStagedLength(bob, "/shared.bin"));
+		try {
+			store.commitStagedContent(bob, "/shared.bin");
+			Assert.fail("committed someone else's upload");
+		} catch (WebdavException e) {
+			// expected
+		}
+		store.discardStagedContent(bob, "/shared.bin");
+		Assert.assertEquals(10, store.getStagedLength(alice, "/shared.bin"));
+
+		// the parts are not reachable by path
+		String[] parts = new File(root, ".upload-staging").list();
+		Assert.assertEquals(1, parts.length);
+		String part = "/.upload-staging/" + parts[0];
+		Assert.assertNull(store.getStoredObject(bob, part, null));
+		Assert.assertNull(store.getStoredObject(bob, "/./.upload-staging", null));
+		try {
+			store.getResourceContent(bob, part);
+			Assert.fail("read a part");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+		try {
+			store.createResource(bob, "/a/../.upload-staging/new.part");
+			Assert.fail("created a part");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+		try {
+			store.removeObject(bob, part);
+			Assert.fail("removed a part");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package net.sf.webdav.xml;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Compares the cost per request of building a DOM with a new factory per
+ * request, with the pooled {@link DocumentParser} and with the streaming
+ * {@link DavRequestParser}. Not run by the build:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=net.sf.webdav.xml.DavRequestParserBenchmark
+ * </pre>
+ */
+public class DavRequestParserBenchmark {
+
+	private static final String PROPFIND = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+			+ "<D:propfind xmlns:D=\"DAV:\" xmlns:CS=\"http://calendarserver.org/ns/\">"
+			+ "<D:prop><D:resourcetype/><D:getcontenttype/><D:getetag/>"
+			+ "<D:getlastmodified/><D:displayname/><CS:getctag/><D:sync-token/>"
+			+ "<D:current-user-privilege-set/></D:prop></D:propfind>";
+
+	private static final String LOCK = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+			+ "<D:lockinfo xmlns:D=\"DAV:\"><D:lockscope><D:exclusive/></D:lockscope>"
+			+ "<D:locktype><D:write/></D:locktype>"
+			+ "<D:owner><D:href>mailto:jane@example.com</D:href></D:owner></D:lockinfo>";
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		for (String body : new String[] { PROPFIND, LOCK }) {
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			// warm up
+			dom(bytes, iterations / 10);
+			pooled(bytes, iterations / 10);
+			stax(bytes, iterations / 10);
+			long dom = dom(bytes, iterations);
+			long pooled = pooled(bytes, iterations);
+			long stax = stax(bytes, iterations);
+			System.out.printf("%-9s DOM %6.2f us/request, pooled DOM %6.2f us/request,"
+					+ " StAX %6.2f us/request%n",
+					body.contains("propfind") ? "PROPFIND" : "LOCK",
+					dom / 1000.0 / iterations, pooled / 1000.0 / iterations,
+					stax / 1000.0 / iterations);
+		}
+	}
+
+	private static long dom(byte[] body, int iterations) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			DocumentBuilder builder = factory.newDocumentBuilder();
+			Document document = builder.parse(new InputSource(
+					new ByteArrayInputStream(body)));
+			if (document.getDocumentElement() == null)
+				throw new IllegalStateException();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long pooled(byte[] body, int iterations) throws Exception {
+		DocumentParser parser = new DocumentParser(1);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			Document document = parser.parse(new InputSource(
+					new ByteArrayInputStream(body)));
+			if (document.getDocumentElement() == null)
+				throw new IllegalStateException();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long stax(byte[] body, int iterations) throws Exception {
+		DavRequestParser parser = new DavRequestParser(1048576);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			if (parser.parse(new ByteArrayInputStream(body)).getRootName() == null)
+				throw new IllegalStateException();
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,129 @@
+package net.sf.webdav.xml;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DavRequestParserTest {
+
+	private static DavRequest parse(String xml) throws Exception {
+		return new DavRequestParser(0).parse(new ByteArrayInputStream(
+				xml.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void testPropfind() throws Exception {
+		DavRequest request = parse("<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+				+ "<D:propfind xmlns:D=\"DAV:\" xmlns:C=\"urn:ietf:params:xml:ns:carddav\">"
+				+ "<D:prop><D:getetag/><C:address-data><C:prop name=\"FN\"/></C:address-data>"
+				+ "<foo/></D:prop></D:propfind>");
+		Assert.assertEquals("propfind", request.getRootName());
+		Assert.assertEquals(Arrays.asList("DAV::getetag",
+				"urn:ietf:params:xml:ns:carddav:address-data", "null:foo"),
+				request.getProperties());
+		Assert.assertFalse(request.isAllprop());
+
+		request = parse("<propfind xmlns=\"DAV:\"><propname/></propfind>");
+		Assert.assertNull(request.getProperties());
+		Assert.assertTrue(request.isPropname());
+		Assert.assertTrue(parse("<D:propfind xmlns:D=\"DAV:\"><D:allprop/></D:propfind>")
+				.isAllprop());
+	}
+
+	@Test
+	public void testReportHrefs() throws Exception {
+		DavRequest request = parse("<C:addressbook-multiget xmlns:D=\"DAV:\" "
+				+ "xmlns:C=\"urn:ietf:params:xml:ns:carddav\">"
+				+ "<D:prop><D:getetag/></D:prop>"
+				+ "<D:href>/dav/a.vcf</D:href>\n<D:href> /dav/b%20c.vcf </D:href>"
+				+ "</C:addressbook-multiget>");
+		Assert.assertEquals("addressbook-multiget", request.getRootName());
+		Assert.assertEquals(Collections.singletonList("DAV::getetag"),
+				request.getProperties());
+		Assert.assertEquals(Arrays.asList("/dav/a.vcf", "/dav/b%20c.vcf"),
+				request.getHrefs());
+	}
+
+	@Test
+	public void testProppatch() throws Exception {
+		DavRequest request = parse("<D:propertyupdate xmlns:D=\"DAV:\" xmlns:Z=\"urn:z\">"
+				+ "<D:set><D:prop><Z:color>r&amp;d <![CDATA[<b>]]></Z:color>"
+				+ "<Z:nested><Z:a>x</Z:a><Z:b>y</Z:b></Z:nested></D:prop></D:set>"
+				+ "<D:remove><D:prop><Z:old/></D:prop></D:remove>"
+				+ "</D:propertyupdate>");
+		Assert.assertEquals("r&d <b>", request.getPropertiesToSet().get("urn:z:color"));
+		Assert.assertEquals("xy", request.getPropertiesToSet().get("urn:z:nested"));
+		Assert.assertEquals(Arrays.asList("urn:z:color", "urn:z:nested"),
+				Arrays.asList(request.getPropertiesToSet().keySet().toArray()));
+		Assert.assertEquals(Collections.singletonList("urn:z:old"),
+				request.getPropertiesToRemove());
+	}
+
+	@Test
+	public void testLockInfo() throws Exception {
+		DavRequest request = parse("<D:lockinfo xmlns:D=\"DAV:\">"
+				+ "<D:lockscope><D:exclusive/></D:lockscope>"
+				+ "<D:locktype><D:write/></D:locktype>"
+				+ "<D:owner>\n  <D:href>mailto:jane@example.com</D:href>\n</D:owner>"
+				+ "</D:lockinfo>");
+		Assert.assertEquals("exclusive", request.getLockScope());
+		Assert.assertEquals("write", request.getLockType());
+		Assert.assertEquals("mailto:jane@example.com", request.getLockOwner());
+
+		request = parse("<lockinfo xmlns=\"DAV:\"><lockscope><shared/></lockscope>"
+				+ "<locktype><write/></locktype><owner> </owner></lockinfo>");
+		Assert.assertEquals("shared", request.getLockScope());
+		Assert.assertNull(request.getLockOwner());
+	}
+
+	@Test
+	public void testRejectsEntityExpansion() throws Exception {
+		String xml = "<?xml version=\"1.0\"?><!DOCTYPE lolz ["
+				+ "<!ENTITY lol \"lol\">"
+				+ "<!ENTITY lol2 \"&lol;&lol;&lol;&lol;&lol;&lol;&lol;&lol;&lol;&lol;\">]>"
+				+ "<D:propfind xmlns:D=\"DAV:\"><D:prop><D:displayname>&lol2;</D:displayname>"
+				+ "</D:prop></D:propfind>";
+		try {
+			parse(xml);
+			Assert.fail("DOCTYPE accepted");
+		} catch (XMLStreamException e) {
+			// expected
+		}
+		try {
+			parse("<?xml version=\"1.0\"?><!DOCTYPE x [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>"
+					+ "<D:lockinfo xmlns:D=\"DAV:\"><D:owner>&xxe;</D:owner></D:lockinfo>");
+			Assert.fail("external entity accepted");
+		} catch (XMLStreamException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testMaxBodySize() throws Exception {
+		StringBuilder xml = new StringBuilder("<D:propfind xmlns:D=\"DAV:\"><D:prop>");
+		for (int i = 0; i < 1000; i++)
+			xml.append("<D:getetag/>");
+		xml.append("</D:prop></D:propfind>");
+		byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+		Assert.assertEquals(1000, new DavRequestParser(body.length)
+				.parse(new ByteArrayInputStream(body)).getProperties().size());
+		try {
+			new DavRequestParser(4096).parse(new ByteArrayInputStream(body));
+			Assert.fail("body exceeding the maximum accepted");
+		} catch (RequestTooLargeException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = XMLStreamException.class)
+	public void testTruncatedBody() throws Exception {
+		parse("<D:propfind xmlns:D=\"DAV:\"><D:prop>");
+	}
+}
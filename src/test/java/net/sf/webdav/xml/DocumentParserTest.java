@@ -0,0 +1,188 @@
+package net.sf.webdav.xml;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+public class DocumentParserTest {
+
+	private static InputSource source(String xml) {
+		return new InputSource(new StringReader(xml));
+	}
+
+	@Test
+	public void testReusesBuilders() throws Exception {
+		DocumentParser parser = new DocumentParser(2);
+		DocumentBuilder first = parser.borrow();
+		parser.release(first);
+		Assert.assertEquals(1, parser.getIdleCount());
+		Assert.assertSame(first, parser.borrow());
+		Assert.assertEquals(0, parser.getIdleCount());
+
+		// the pool is bounded, extra builders are dropped
+		DocumentBuilder second = parser.borrow();
+		DocumentBuilder third = parser.borrow();
+		parser.release(first);
+		parser.release(second);
+		parser.release(third);
+		Assert.assertEquals(2, parser.getIdleCount());
+	}
+
+	@Test
+	public void testDocumentsAreIndependent() throws Exception {
+		DocumentParser parser = new DocumentParser(1);
+		Document propfind = parser.parse(source(
+				"<D:propfind xmlns:D=\"DAV:\"><D:prop><D:getetag/></D:prop></D:propfind>"));
+		Document lockinfo = parser.parse(source(
+				"<D:lockinfo xmlns:D=\"DAV:\"><D:owner>jane</D:owner></D:lockinfo>"));
+
+		Assert.assertNotSame(propfind, lockinfo);
+		Element root = propfind.getDocumentElement();
+		Assert.assertEquals("propfind", root.getLocalName());
+		Assert.assertEquals("DAV:", root.getNamespaceURI());
+		Assert.assertEquals(1, propfind.getElementsByTagNameNS("DAV:", "getetag")
+				.getLength());
+		Assert.assertEquals(0, propfind.getElementsByTagNameNS("DAV:", "owner")
+				.getLength());
+		Assert.assertEquals("jane", lockinfo.getDocumentElement().getTextContent());
+	}
+
+	@Test
+	public void testFailedParseDoesNotLeak() throws Exception {
+		DocumentParser parser = new DocumentParser(1);
+		try {
+			parser.parse(source("<D:propfind xmlns:D=\"DAV:\"><D:prop>"));
+			Assert.fail("truncated document accepted");
+		} catch (SAXException e) {
+			// expected
+		}
+		Assert.assertEquals(1, parser.getIdleCount());
+		Document document = parser.parse(source("<a:x xmlns:a=\"urn:a\"/>"));
+		Assert.assertEquals("x", document.getDocumentElement().getLocalName());
+		Assert.assertEquals("urn:a", document.getDocumentElement().getNamespaceURI());
+	}
+
+	@Test
+	public void testReleaseResetsBuilder() throws Exception {
+		DocumentParser parser = new DocumentParser(1);
+		DocumentBuilder builder = parser.borrow();
+		final List<String> resolved = new ArrayList<>();
+		builder.setEntityResolver(new EntityResolver() {
+			@Override
+			public InputSource resolveEntity(String publicId, String systemId) {
+				resolved.add(systemId);
+				return new InputSource(new StringReader(""));
+			}
+		});
+		parser.release(builder);
+
+		// external DTDs are not fetched and the old resolver is gone
+		try {
+			parser.parse(source("<!DOCTYPE x SYSTEM \"http://example.com/x.dtd\"><x/>"));
+		} catch (SAXException e) {
+			// refused, which is fine as well
+		}
+		Assert.assertTrue(resolved.isEmpty());
+	}
+
+	/**
+	 * the factory of a parser without the JAXP 1.5 attributes
+	 */
+	public static class LegacyFactory extends DocumentBuilderFactory {
+
+		private final DocumentBuilderFactory _delegate = DocumentBuilderFactory
+				.newDefaultInstance();
+
+		@Override
+		public DocumentBuilder newDocumentBuilder()
+				throws ParserConfigurationException {
+			_delegate.setNamespaceAware(isNamespaceAware());
+			_delegate.setExpandEntityReferences(isExpandEntityReferences());
+			return _delegate.newDocumentBuilder();
+		}
+
+		@Override
+		public void setAttribute(String name, Object value) {
+			if (XMLConstants.ACCESS_EXTERNAL_DTD.equals(name)
+					|| XMLConstants.ACCESS_EXTERNAL_SCHEMA.equals(name))
+				throw new IllegalArgumentException(name);
+			_delegate.setAttribute(name, value);
+		}
+
+		@Override
+		public Object getAttribute(String name) {
+			return _delegate.getAttribute(name);
+		}
+
+		@Override
+		public void setFeature(String name, boolean value)
+				throws ParserConfigurationException {
+			_delegate.setFeature(name, value);
+		}
+
+		@Override
+		public boolean getFeature(String name)
+				throws ParserConfigurationException {
+			return _delegate.getFeature(name);
+		}
+	}
+
+	@Test
+	public void testParserWithoutAccessAttributes() throws Exception {
+		String property = DocumentBuilderFactory.class.getName();
+		System.setProperty(property, LegacyFactory.class.getName());
+		DocumentParser parser;
+		try {
+			parser = new DocumentParser(1);
+		} finally {
+			System.clearProperty(property);
+		}
+		Document document = parser.parse(source("<D:propfind xmlns:D=\"DAV:\"/>"));
+		Assert.assertEquals("propfind", document.getDocumentElement()
+				.getLocalName());
+		try {
+			parser.parse(source("<!DOCTYPE x SYSTEM \"http://example.com/x.dtd\"><x/>"));
+			Assert.fail("DTD accepted");
+		} catch (SAXException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testConcurrentParsing() throws Exception {
+		final DocumentParser parser = new DocumentParser(4);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				final String name = "p" + i;
+				results.add(executor.submit(() -> parser.parse(source(
+						"<D:propfind xmlns:D=\"DAV:\"><D:prop><Z:" + name
+								+ " xmlns:Z=\"urn:z\"/></D:prop></D:propfind>"))
+						.getElementsByTagNameNS("urn:z", "*").item(0)
+						.getLocalName()));
+			}
+			for (int i = 0; i < results.size(); i++)
+				Assert.assertEquals("p" + i, results.get(i).get());
+		} finally {
+			executor.shutdownNow();
+		}
+		Assert.assertTrue(parser.getIdleCount() <= 4);
+	}
+}